@@ -1,5 +1,7 @@
 package crux;
 
+import crux.ir.Emulator;
+import crux.ir.Optimizer;
 import java.io.FileInputStream;
 
 /**
@@ -62,6 +64,15 @@ public final class Compiler {
         case "--debug-emulator":
           driver.enableDebugEmulator();
           break;
+        case "--emulator-stats":
+          driver.enableEmulatorStats();
+          break;
+        case "--emulator-no-prompt":
+          driver.disableEmulatorPrompts();
+          break;
+        case "--emulator-no-fusion":
+          driver.disableEmulatorFusion();
+          break;
         case "--read-ast":
           try {
             driver.readAST(new FileInputStream(args[i + 1]));
@@ -89,6 +100,60 @@ public final class Compiler {
           }
           i++;
           break;
+        case "--emulator-engine": {
+          var name = args[++i];
+          try {
+            driver.setEmulatorEngine(Emulator.Engine.valueOf(name.toUpperCase()));
+          } catch (IllegalArgumentException e) {
+            throw new RuntimeException(String.format("unknown emulator engine '%s'", name));
+          }
+          break;
+        }
+        case "--optimize":
+          for (var name : args[++i].split(",")) {
+            try {
+              driver.enableOptimization(Optimizer.Pass.valueOf(name.trim().toUpperCase()));
+            } catch (IllegalArgumentException e) {
+              throw new RuntimeException(String.format("unknown optimization '%s'", name));
+            }
+          }
+          break;
+        case "--optimize-stats":
+          driver.enableOptimizerStats();
+          break;
+        case "--emulator-profile":
+          driver.setEmulatorProfileFile(args[++i]);
+          break;
+        case "--emulator-lazy":
+          driver.enableEmulatorLazyLowering();
+          break;
+        case "--emulator-coverage":
+          driver.setEmulatorCoverageFile(args[++i]);
+          break;
+        case "--emulator-jit-threshold":
+          driver.setEmulatorJitThreshold(Integer.parseInt(args[++i]));
+          break;
+        case "--emulator-max-instructions":
+          driver.getEmulatorLimits().setMaxInstructions(Long.parseLong(args[++i]));
+          break;
+        case "--emulator-max-depth":
+          driver.getEmulatorLimits().setMaxCallDepth(Integer.parseInt(args[++i]));
+          break;
+        case "--emulator-max-memory":
+          driver.getEmulatorLimits().setMaxTouchedWords(Long.parseLong(args[++i]));
+          break;
+        case "--emulator-timeout":
+          driver.getEmulatorLimits().setTimeoutNanos(Long.parseLong(args[++i]) * 1000000);
+          break;
+        case "--emulator-batch":
+          driver.setEmulatorBatch(args[++i]);
+          break;
+        case "--emulator-batch-output":
+          driver.setEmulatorBatchOutput(args[++i]);
+          break;
+        case "--emulator-lockstep":
+          driver.enableEmulatorLockstep();
+          break;
         case "--emulator-input": {
           if (driver.hasEmulatorInputFile())
             throw new RuntimeException("multiple input files");
@@ -111,6 +176,12 @@ public final class Compiler {
       displayHelp();
       throw new RuntimeException("no input file.");
     }
+    try {
+      driver.checkEmulatorOptions();
+    } catch (RuntimeException e) {
+      displayHelp();
+      throw e;
+    }
 
     return true;
   }
@@ -128,9 +199,28 @@ public final class Compiler {
     System.out.println(
         "--serialize\t\t\tDump serialized versions of compiler represenatations out to files.");
     System.out.println("--print-ir\t\t\tDump dot compatible representation of IR.");
+    System.out.println("--optimize <pass,...>\t\tOptimize with: ssa, sccp, copyprop, cfg, dce.");
+    System.out.println("--optimize-stats\t\tReport what the optimization passes did.");
     System.out.println("--emulator\t\t\tRun Emulator on IR.");
-    System.out.println("--debug-emulator\t\tRun Emulator on IR with debugging turned on.");
+    System.out.println("--debug-emulator\t\tRun Emulator on IR and trace its last instructions.");
     System.out.println("--emulator-input <input file>\tInput File for the emulator");
+    System.out.println("--emulator-batch <dir or list>\tRun Emulator once per input file.");
+    System.out.println("--emulator-batch-output <dir>\tDirectory for the batch outputs.");
+    System.out.println("--emulator-lockstep\t\tRun the inputs of a batch in lockstep.");
+    System.out.println(
+        "--emulator-engine <engine>\tEngine: visitor, slots, decoded, closure, jit or trace.");
+    System.out.println("--emulator-stats\t\tReport emulator instructions per second.");
+    System.out.println("--emulator-profile <file>\tProfile Emulator, write folded stacks to file.");
+    System.out.println("--emulator-coverage <file>\tMerge the edge coverage into file.");
+    System.out.println(
+        "--emulator-jit-threshold <n>\tCompile functions or loops to JVM code after n runs.");
+    System.out.println("--emulator-max-instructions <n>\tStop the Emulator after n instructions.");
+    System.out.println("--emulator-max-depth <n>\tStop the Emulator at n nested calls.");
+    System.out.println("--emulator-max-memory <n>\tStop the Emulator after writing n words.");
+    System.out.println("--emulator-timeout <ms>\tStop the Emulator after ms milliseconds.");
+    System.out.println("--emulator-no-prompt\t\tDo not print the readInt prompt.");
+    System.out.println("--emulator-no-fusion\t\tDo not fuse superinstructions in the Emulator.");
+    System.out.println("--emulator-lazy\t\t\tLower functions when the Emulator first calls them.");
     System.out.println("--read-ast <input file>\t\tRead serialized version of AST in,");
     System.out.println("--read-type <input file>\tRead serialized version of type-checked AST in,");
     System.out.println("--read-ir <input file>\t\tRead serialized version of IR/CFG in,");
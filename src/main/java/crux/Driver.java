@@ -9,7 +9,19 @@ import crux.ast.types.TypeChecker;
 import crux.ir.ASTLower;
 import crux.printing.IRPrinter;
 import crux.ir.Program;
+import crux.ir.Checkpoint;
+import crux.ir.ClosureEngine;
+import crux.ir.DecodedProgram;
 import crux.ir.Emulator;
+import crux.ir.Function;
+import crux.ir.EmulatorService;
+import crux.ir.ExecutionLimits;
+import crux.ir.ExecutionResult;
+import crux.ir.Coverage;
+import crux.ir.LockstepInterpreter;
+import crux.ir.Optimizer;
+import crux.ir.Profiler;
+import crux.ir.Tracer;
 import crux.backend.CodeGen;
 import crux.printing.ASTPrinter;
 import crux.printing.ParseTreePrinter;
@@ -18,7 +30,17 @@ import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 enum State {
   Continue, Finished, Error;
@@ -46,6 +68,11 @@ public final class Driver {
   private boolean typeCheck = false;
   private boolean printIR = false;
   private boolean runEmulator = false;
+  private boolean traceEmulator = false;
+  private boolean emulatorStats = false;
+  private boolean emulatorPrompts = true;
+  private boolean emulatorFusion = true;
+  private int emulatorJitThreshold = ClosureEngine.DEFAULT_JIT_THRESHOLD;
   private boolean serialize = false;
 
   // Set this flag to false if earlier stages in your compiler do not work.
@@ -55,10 +82,23 @@ public final class Driver {
   private InputStream inputStream;
   private String emulatorInputFile = null;
   private InputStream emulatorInputStream = null;
+  private Emulator.Engine emulatorEngine = null;
+  private String emulatorProfileFile = null;
+  private String emulatorCoverageFile = null;
+  private String emulatorBatch = null;
+  private String emulatorBatchOutput = "batch-output";
+  private boolean emulatorLockstep = false;
+  private boolean emulatorLazy = false;
+  private final ExecutionLimits emulatorLimits = new ExecutionLimits();
+  private final EnumSet<Optimizer.Pass> optimizations = EnumSet.noneOf(Optimizer.Pass.class);
+  private boolean optimizerStats = false;
+  private Optimizer optimizer;
 
   private CruxParser.ProgramContext parseTree;
   private DeclarationList ast;
   private Program irProgram;
+  private ASTLower astLower;
+  private long loweringStartedAt;
   private Stage startStage = Stage.PARSE;
 
 
@@ -111,7 +151,27 @@ public final class Driver {
 
   public void enableDebugEmulator() {
     runEmulator = true;
-    Emulator.DEBUG = true;
+    traceEmulator = true;
+  }
+
+  public void enableEmulatorStats() {
+    emulatorStats = true;
+  }
+
+  public void disableEmulatorPrompts() {
+    emulatorPrompts = false;
+  }
+
+  public void disableEmulatorFusion() {
+    emulatorFusion = false;
+  }
+
+  /**
+   * Sets the number of calls and back-edges after which the JIT engine compiles a function, and the
+   * number of back-edges after which the trace engine records a loop.
+   */
+  public void setEmulatorJitThreshold(int threshold) {
+    emulatorJitThreshold = threshold;
   }
 
   public boolean hasInputFile() {
@@ -138,15 +198,139 @@ public final class Driver {
     emulatorInputStream = inputStream;
   }
 
+  /**
+   * Sets the engine the emulator runs on. Without one, it runs on the visitor engine, or on the
+   * decoded engine when profiling or recording coverage.
+   */
+  public void setEmulatorEngine(Emulator.Engine engine) {
+    emulatorEngine = engine;
+  }
+
+  /**
+   * Throws if the emulator options ask for something the chosen engine or mode cannot do, so that
+   * a run fails before the program is compiled instead of when the emulator starts.
+   */
+  public void checkEmulatorOptions() {
+    if (!runEmulator)
+      return;
+    if (emulatorBatch != null) {
+      if (emulatorEngine != null && emulatorEngine != Emulator.Engine.DECODED) {
+        throw new RuntimeException(String.format(
+            "cannot run a batch on the %s engine, only on the decoded engine",
+            emulatorEngine.toString().toLowerCase()));
+      }
+      if (traceEmulator || emulatorProfileFile != null)
+        throw new RuntimeException("cannot trace or profile a batch of emulator runs");
+      if (emulatorLockstep && emulatorCoverageFile != null)
+        throw new RuntimeException("cannot record coverage of a lockstep batch");
+      return;
+    }
+    if (emulatorEngine == null || emulatorEngine == Emulator.Engine.DECODED)
+      return;
+    var name = emulatorEngine.toString().toLowerCase();
+    if (emulatorProfileFile != null)
+      throw new RuntimeException(
+          String.format("cannot profile on the %s engine, only on the decoded engine", name));
+    if (emulatorCoverageFile != null)
+      throw new RuntimeException(String
+          .format("cannot record coverage on the %s engine, only on the decoded engine", name));
+    if (Tracer.COMPILED && traceEmulator && (emulatorEngine == Emulator.Engine.CLOSURE
+        || emulatorEngine == Emulator.Engine.JIT || emulatorEngine == Emulator.Engine.TRACE))
+      throw new RuntimeException(String.format("cannot debug on the %s engine", name));
+  }
+
+  /**
+   * Profiles the emulated program on the decoded engine, printing a report to the error stream
+   * and writing folded stacks to foldedFile.
+   */
+  public void setEmulatorProfileFile(String foldedFile) {
+    runEmulator = true;
+    emulatorProfileFile = foldedFile;
+  }
+
+  /**
+   * Records the edge coverage of the emulated program on the decoded engine and merges it into
+   * coverageFile, which is created if it does not exist yet.
+   */
+  public void setEmulatorCoverageFile(String coverageFile) {
+    runEmulator = true;
+    emulatorCoverageFile = coverageFile;
+  }
+
+  /**
+   * Runs the emulated program once per input file instead of once on the emulator input. inputs is
+   * either a directory, whose files are all inputs, or a file that lists one input file per line,
+   * relative to the directory of the list. Batches run on the decoded engine.
+   */
+  public void setEmulatorBatch(String inputs) {
+    runEmulator = true;
+    emulatorBatch = inputs;
+  }
+
+  /**
+   * Sets the directory the outputs of a batch are written to, one file per input named after the
+   * input with the extension .out. Inputs whose names would write the same output file are
+   * rejected before any of them runs.
+   */
+  public void setEmulatorBatchOutput(String directory) {
+    emulatorBatchOutput = directory;
+  }
+
+  /**
+   * Runs all inputs of a batch at once in a {@link LockstepInterpreter} instead of one interpreter
+   * per input.
+   */
+  public void enableEmulatorLockstep() {
+    emulatorLockstep = true;
+  }
+
+  /**
+   * Lowers a function to IR only when the emulated program first calls it, instead of lowering
+   * all functions before the emulator starts.
+   */
+  public void enableEmulatorLazyLowering() {
+    emulatorLazy = true;
+  }
+
+  /**
+   * Runs pass over every function right after lowering it, before the emulator or the code
+   * generator sees it.
+   */
+  public void enableOptimization(Optimizer.Pass pass) {
+    optimizations.add(pass);
+  }
+
+  /**
+   * Reports what the optimization passes did once the driver has run.
+   */
+  public void enableOptimizerStats() {
+    optimizerStats = true;
+  }
+
+  /**
+   * Returns the limits of the emulated program, which can be changed until the driver runs.
+   */
+  public ExecutionLimits getEmulatorLimits() {
+    return emulatorLimits;
+  }
+
   public boolean hasEmulatorInputFile() {
     return emulatorInputFile != null;
   }
 
+  /**
+   * Returns the IR of the program once the driver has run the IR stage, otherwise null.
+   */
+  public Program getIRProgram() {
+    return irProgram;
+  }
+
   public void setStartStage(Stage stage) {
     startStage = stage;
   }
 
   public State run() {
+    checkEmulatorOptions();
     State state = State.Continue;
     switch (startStage) {
       case PARSE:
@@ -171,6 +355,8 @@ public final class Driver {
       case CODEGEN:
         state = emitASM();
     }
+    if (optimizer != null && optimizerStats)
+      err.println("optimizer: " + optimizer);
     if (state != State.Finished)
       state = State.Error;
     return state;
@@ -307,8 +493,14 @@ public final class Driver {
   }
 
   private State emitIR() {
-    var astLower = new ASTLower();
-    irProgram = astLower.lower(ast);
+    astLower = new ASTLower();
+    if (!optimizations.isEmpty()) {
+      optimizer = new Optimizer(optimizations);
+      astLower.setFunctionPass(optimizer::optimize);
+    }
+    loweringStartedAt = System.nanoTime();
+    boolean lazy = emulatorLazy && runEmulator && !printIR && !serialize;
+    irProgram = lazy ? astLower.lowerLazily(ast) : astLower.lower(ast);
 
     if (printIR) {
       var printer = new IRPrinter(out);
@@ -337,16 +529,273 @@ public final class Driver {
   }
 
   private State emulator() {
+    if (runEmulator && emulatorBatch != null)
+      return emulatorBatch();
     if (runEmulator) {
       var emulatorInput = openEmulatorInput();
       var emulator = new Emulator(irProgram, emulatorInput, out);
-      emulator.run();
+      Profiler profiler = emulatorProfileFile != null ? new Profiler() : null;
+      Coverage coverage = emulatorCoverageFile != null ? new Coverage() : null;
+      var engine = emulatorEngine;
+      if (engine == null)
+        engine = profiler != null || coverage != null ? Emulator.Engine.DECODED
+            : Emulator.Engine.VISITOR;
+      emulator.setEngine(engine);
+      emulator.setPrompts(emulatorPrompts);
+      emulator.setFusion(emulatorFusion);
+      emulator.setJitThreshold(emulatorJitThreshold);
+      Tracer tracer = traceEmulator ? new Tracer(Tracer.DEFAULT_CAPACITY) : null;
+      emulator.setTracer(tracer);
+      emulator.setProfiler(profiler);
+      emulator.setCoverage(coverage);
+      emulator.setLimits(emulatorLimits);
+      ExecutionResult result;
+      try {
+        result = emulator.run();
+      } finally {
+        if (tracer != null)
+          tracer.dump(err);
+        if (profiler != null)
+          writeProfile(profiler);
+        if (coverage != null) {
+          Coverage total = readCoverage();
+          int before = total.countEdges();
+          total.merge(coverage);
+          writeCoverage(total, before);
+        }
+      }
+      if (emulatorStats) {
+        double seconds = emulator.getElapsedNanos() / 1e9;
+        err.println(String.format("emulator: %s engine executed %d instructions in %.3f s (%.0f/s)",
+            engine.toString().toLowerCase(), emulator.getInstructionCount(), seconds,
+            emulator.getInstructionCount() / seconds));
+        if (emulator.getCompileNanos() > 0) {
+          err.println(String.format("emulator: %s engine prepared the program in %.3f ms",
+              engine.toString().toLowerCase(), emulator.getCompileNanos() / 1e6));
+        }
+        if (engine == Emulator.Engine.JIT) {
+          err.println(String.format(
+              "emulator: jit compiled %d functions to %d bytes of JVM classes in %.3f ms",
+              emulator.getJitFunctions(), emulator.getJitBytes(), emulator.getJitNanos() / 1e6));
+        }
+        if (engine == Emulator.Engine.TRACE) {
+          err.println(String.format(
+              "emulator: trace compiled %d loops to %d bytes of JVM classes in %.3f ms",
+              emulator.getTraces(), emulator.getJitBytes(), emulator.getJitNanos() / 1e6));
+          err.println(String.format("emulator: trace entered loops %d times, %d side exits",
+              emulator.getTraceRuns(), emulator.getSideExits()));
+        }
+        if (astLower != null)
+          reportLowering(emulator);
+        var decoded = emulator.getDecodedProgram();
+        if (decoded != null && decoded.isFused()) {
+          err.println(String.format("emulator: %d instructions decoded, %d after fusion",
+              decoded.getUnfusedInstructions(), decoded.getNumInstructions()));
+        }
+        // Superinstructions count as the instructions they were fused from, so the dispatches
+        // show what fusion saved at run time
+        if (decoded != null) {
+          err.println(String.format(
+              "emulator: %d instructions took %d dispatches (%.2f per dispatch)",
+              emulator.getInstructionCount(), emulator.getDispatchCount(),
+              (double) emulator.getInstructionCount() / emulator.getDispatchCount()));
+        }
+      }
+      if (!result.isCompleted()) {
+        err.println("emulator: stopped, " + result);
+        return State.Error;
+      }
       return State.Finished;
     }
 
     return State.Continue;
   }
 
+  /**
+   * Reports how long after lowering started the emulator executed its first instruction. After a
+   * run with lazy lowering, also lowers the functions the run never called to measure the time
+   * lazy lowering saved.
+   */
+  private void reportLowering(Emulator emulator) {
+    List<Function> functions = new ArrayList<>();
+    irProgram.getFunctions().forEachRemaining(functions::add);
+    err.println(String.format(
+        "emulator: first instruction %.3f ms after lowering started, %d of %d functions lowered "
+            + "in %.3f ms",
+        (emulator.getStartNanos() - loweringStartedAt) / 1e6, astLower.getLoweredFunctions(),
+        functions.size(), astLower.getLoweringNanos() / 1e6));
+    long lowered = astLower.getLoweringNanos();
+    int count = astLower.getLoweredFunctions();
+    for (Function f : functions)
+      f.getStart();
+    if (astLower.getLoweredFunctions() > count) {
+      err.println(String.format("emulator: lazy lowering avoided %.3f ms for %d functions",
+          (astLower.getLoweringNanos() - lowered) / 1e6, astLower.getLoweredFunctions() - count));
+    }
+  }
+
+  /**
+   * Decodes the program once and runs it on every input of the batch in an
+   * {@link EmulatorService}. The program is checkpointed at its first input, so whatever it does
+   * before reading input is also done only once. In lockstep mode, all inputs run at once in a
+   * {@link LockstepInterpreter} instead.
+   */
+  private State emulatorBatch() {
+    List<Path> inputs = listBatchInputs();
+    Path outputs = Paths.get(emulatorBatchOutput);
+    Map<Path, Path> outputNames = new HashMap<>();
+    for (Path input : inputs) {
+      Path other = outputNames.putIfAbsent(outputOf(outputs, input), input);
+      if (other != null) {
+        throw new RuntimeException(
+            String.format("batch inputs '%s' and '%s' would both write '%s'", other, input,
+                outputOf(outputs, input)));
+      }
+    }
+    try {
+      Files.createDirectories(outputs);
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("cannot create directory '%s'", outputs), e);
+    }
+
+    List<byte[]> inputBytes = new ArrayList<>();
+    for (Path input : inputs) {
+      try {
+        inputBytes.add(Files.readAllBytes(input));
+      } catch (IOException e) {
+        throw new RuntimeException(String.format("cannot read file '%s'", input), e);
+      }
+    }
+    List<EmulatorService.Result> results =
+        emulatorLockstep ? runLockstep(inputBytes) : runService(inputBytes);
+
+    Coverage total = emulatorCoverageFile != null ? readCoverage() : null;
+    int before = total != null ? total.countEdges() : 0;
+    boolean allCompleted = true;
+    for (int i = 0; i < results.size(); i++) {
+      var result = results.get(i);
+      Path output = outputOf(outputs, inputs.get(i));
+      try {
+        Files.write(output, result.getOutput());
+      } catch (IOException e) {
+        throw new RuntimeException(String.format("cannot write file '%s'", output), e);
+      }
+      String outcome = result.getError() != null ? "failed, " + result.getError().getMessage()
+          : result.getExecution().toString();
+      allCompleted &= result.getError() == null && result.getExecution().isCompleted();
+      if (total != null && total.merge(result.getCoverage()))
+        outcome += ", new coverage";
+      err.println(String.format("emulator: %s: %s in %.3f ms", inputs.get(i), outcome,
+          result.getRunNanos() / 1e6));
+    }
+    if (total != null)
+      writeCoverage(total, before);
+    return allCompleted ? State.Finished : State.Error;
+  }
+
+  private List<EmulatorService.Result> runService(List<byte[]> inputs) {
+    try (var service = new EmulatorService()) {
+      service.setLimits(emulatorLimits);
+      service.setPrompts(emulatorPrompts);
+      service.setCoverage(emulatorCoverageFile != null);
+      DecodedProgram program = DecodedProgram.decode(irProgram, emulatorFusion);
+      Checkpoint checkpoint = null;
+      try {
+        checkpoint =
+            Checkpoint.atFirstInput(program, emulatorLimits, emulatorCoverageFile != null);
+      } catch (RuntimeException | Error e) {
+        // The program fails before reading input; let every run report it
+      }
+      List<EmulatorService.Job> jobs = new ArrayList<>();
+      for (byte[] input : inputs) {
+        jobs.add(checkpoint != null ? service.submit(checkpoint, input)
+            : service.submit(program, input));
+      }
+      List<EmulatorService.Result> results = new ArrayList<>();
+      for (var job : jobs)
+        results.add(job.getResult());
+      if (checkpoint != null && checkpoint.isAtInput()) {
+        err.println(String.format("emulator: %d instructions before the first input ran once",
+            checkpoint.getInstructionCount()));
+      }
+      err.println("emulator: " + service.getStats());
+      return results;
+    }
+  }
+
+  /**
+   * Runs all inputs at once. The lockstep interpreter needs the program without
+   * superinstructions.
+   */
+  private List<EmulatorService.Result> runLockstep(List<byte[]> inputs) {
+    var lockstep = new LockstepInterpreter(DecodedProgram.decode(irProgram, false), inputs);
+    lockstep.setPrompts(emulatorPrompts);
+    lockstep.setLimits(emulatorLimits);
+    List<EmulatorService.Result> results = lockstep.run();
+    err.println(String.format(
+        "emulator: lockstep dispatched %d instructions for %d lane instructions (%.1f lanes each), "
+            + "%d splits, %d merges",
+        lockstep.getDispatched(), lockstep.getLaneInstructions(),
+        (double) lockstep.getLaneInstructions() / Math.max(1, lockstep.getDispatched()),
+        lockstep.getSplits(), lockstep.getMerges()));
+    return results;
+  }
+
+  private static Path outputOf(Path outputs, Path input) {
+    return outputs.resolve(input.getFileName() + ".out");
+  }
+
+  private List<Path> listBatchInputs() {
+    Path inputs = Paths.get(emulatorBatch);
+    try {
+      if (Files.isDirectory(inputs)) {
+        try (Stream<Path> files = Files.list(inputs)) {
+          return files.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+      }
+      try (Stream<String> lines = Files.lines(inputs)) {
+        return lines.map(String::trim).filter(line -> !line.isEmpty())
+            .map(inputs::resolveSibling).collect(Collectors.toList());
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("cannot read '%s'", emulatorBatch), e);
+    }
+  }
+
+  private void writeProfile(Profiler profiler) {
+    profiler.report(err, 10);
+    try (var folded = new PrintStream(new FileOutputStream(emulatorProfileFile))) {
+      profiler.writeFoldedStacks(folded);
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("cannot write file '%s'", emulatorProfileFile), e);
+    }
+  }
+
+  /**
+   * Returns the coverage recorded in the coverage file, or an empty map if there is none yet.
+   */
+  private Coverage readCoverage() {
+    Path file = Paths.get(emulatorCoverageFile);
+    if (!Files.exists(file))
+      return new Coverage();
+    try (var in = new BufferedInputStream(Files.newInputStream(file))) {
+      return Coverage.read(in);
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("cannot read file '%s'", emulatorCoverageFile), e);
+    }
+  }
+
+  private void writeCoverage(Coverage total, int before) {
+    try (var out = new BufferedOutputStream(new FileOutputStream(emulatorCoverageFile))) {
+      total.write(out);
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("cannot write file '%s'", emulatorCoverageFile),
+          e);
+    }
+    err.println(String.format("emulator: coverage of %d edges, %d new, written to %s",
+        total.countEdges(), total.countEdges() - before, emulatorCoverageFile));
+  }
+
   private CharStream openInput() {
     if (inputStream == null) {
       try {
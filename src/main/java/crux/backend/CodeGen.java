@@ -65,6 +65,9 @@ public final class CodeGen extends InstVisitor {
   private void genCode(Function f, int[] count)
   {
     labelMap = f.assignLabels(count);
+    // Every function numbers its own stack slots, within the frame it enters below
+    varIndexMap.clear();
+    numLocalVar = 1;
 
     out.printCode(".globl " + f.getName());
     out.printLabel( f.getName() + ":");
@@ -134,43 +137,30 @@ public final class CodeGen extends InstVisitor {
     }
 
 
-    Stack<Instruction> tovisited = new Stack<>();
-    HashSet<Instruction> discovered = new HashSet<>();
-    tovisited.push(f.getStart());
-    while (!tovisited.isEmpty()) {
-      Instruction inst = tovisited.pop();
-      if (labelMap.containsKey(inst)){
-        out.printLabel(labelMap.get(inst) + ":");
+    // Lay out the blocks in reverse postorder; a block whose successor is laid out right after it
+    // falls through, every other edge needs a jmp
+    List<BasicBlock> blocks = f.getBlocks();
+    for (BasicBlock block : blocks) {
+      if (labelMap.containsKey(block.getFirst())){
+        out.printLabel(labelMap.get(block.getFirst()) + ":");
       }
 
-      inst.accept(this);
-      Instruction first = inst.getNext(0);
-      Instruction second = inst.getNext(1);
+      for (Instruction inst : block.getInstructions())
+        inst.accept(this);
 
-      if ((second != null) && (!discovered.contains(second))){
-        tovisited.push(second);
-        discovered.add(second);
-      }
-
-      if(first != null)
+      BasicBlock next = block.getSuccessor(0);
+      if (next != null)
       {
-        if(!discovered.contains(first))
-        {
-          tovisited.push(first);
-          discovered.add(first);
-        }
-        if((tovisited.isEmpty() || first != tovisited.peek()))
+        if (next.getIndex() != block.getIndex() + 1)
         {
-          out.printCode("jmp " + labelMap.get(first));
+          out.printCode("jmp " + labelMap.get(next.getFirst()));
         }
       }
-      else
+      else if (!(block.getLast() instanceof ReturnInst))
       {
         out.printCode("leave");
         out.printCode("ret");
       }
-
-
     }
   }
 
@@ -8,6 +8,7 @@ import crux.ast.types.*;
 import crux.ir.insts.*;
 
 import java.util.*;
+import java.util.function.BiConsumer;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
@@ -75,6 +76,12 @@ public final class ASTLower implements NodeVisitor<InstPair> {
 
   Stack<Instruction> instructionStack = new Stack<Instruction>();;
 
+  /** The time spent lowering function bodies and the number of bodies lowered. */
+  private long loweringNanos;
+  private int loweredFunctions;
+  /** Runs on every function right after its body is lowered, or null. */
+  private BiConsumer<Program, Function> functionPass;
+
   /**
    * A constructor to initialize member variables
    */
@@ -85,6 +92,51 @@ public final class ASTLower implements NodeVisitor<InstPair> {
     return mCurrentProgram;
   }
 
+  /**
+   * Lowers the global variables of ast and declares all its functions, but lowers the body of a
+   * function only when its {@link Function#getStart()} is first called, except for main, which
+   * every run needs. An emulator then only lowers the functions a run calls.
+   */
+  public Program lowerLazily(DeclarationList ast) {
+    mCurrentProgram = new Program();
+    for (var child : ast.getChildren()) {
+      if (child instanceof FunctionDefinition) {
+        var functionDefinition = (FunctionDefinition) child;
+        Function function = declare(functionDefinition);
+        if (!function.getName().equals("main"))
+          function.setLowering(() -> lowerBody(functionDefinition, function));
+        else
+          lowerBody(functionDefinition, function);
+      } else {
+        child.accept(this);
+      }
+    }
+    return mCurrentProgram;
+  }
+
+  /**
+   * Runs pass on every function right after its body is lowered, also when lowering is deferred,
+   * so that an optimization sees each body before anything else does. The pass also gets the
+   * program, which interns the constants it may create.
+   */
+  public void setFunctionPass(BiConsumer<Program, Function> pass) {
+    functionPass = pass;
+  }
+
+  /**
+   * Returns the total time spent lowering function bodies.
+   */
+  public long getLoweringNanos() {
+    return loweringNanos;
+  }
+
+  /**
+   * Returns the number of function bodies lowered so far.
+   */
+  public int getLoweredFunctions() {
+    return loweredFunctions;
+  }
+
   @Override
   public InstPair visit(DeclarationList declarationList) {
     mCurrentProgram = new Program();
@@ -103,24 +155,47 @@ public final class ASTLower implements NodeVisitor<InstPair> {
    */
   @Override
   public InstPair visit(FunctionDefinition functionDefinition) {
-    mCurrentFunction = new Function(functionDefinition.getSymbol().getName(), (FuncType) functionDefinition.getSymbol().getType());
-    mCurrentLocalVarMap = new HashMap<Symbol, LocalVar>();
+    lowerBody(functionDefinition, declare(functionDefinition));
+    return null;
+  }
+
+  /**
+   * Creates the Function of functionDefinition with its arguments and adds it to the program.
+   */
+  private Function declare(FunctionDefinition functionDefinition) {
+    Function function = new Function(functionDefinition.getSymbol().getName(), (FuncType) functionDefinition.getSymbol().getType());
     List<LocalVar> args = new ArrayList<>();
     for(Symbol arg: functionDefinition.getParameters())
-    {//create temp var and map symbol
-      LocalVar var = mCurrentFunction.getTempVar(arg.getType(), arg.getName()); //new LocalVar(arg.getType(), arg.getName());
-      mCurrentLocalVarMap.put(arg, var);
-      args.add(var);
+    {//create temp var
+      args.add(function.getTempVar(arg.getType(), arg.getName()));
+    }
+    function.setArguments(args);
+    mCurrentProgram.addFunction(function);
+    return function;
+  }
+
+  /**
+   * Maps the parameters to the arguments of function and lowers the statements into its body.
+   * Lazily lowered bodies may be requested from any thread, so lowering is serialized.
+   */
+  private synchronized void lowerBody(FunctionDefinition functionDefinition, Function function) {
+    long start = System.nanoTime();
+    mCurrentFunction = function;
+    mCurrentLocalVarMap = new HashMap<Symbol, LocalVar>();
+    int index = 0;
+    for(Symbol arg: functionDefinition.getParameters())
+    {//map symbol
+      mCurrentLocalVarMap.put(arg, function.getArguments().get(index++));
     }
 
     //visit func and set the instruction of mcf
-    mCurrentFunction.setArguments(args);
-    mCurrentProgram.addFunction(mCurrentFunction);
     mCurrentFunction.setStart(functionDefinition.getStatements().accept(this).get_start());
     mCurrentFunction = null;
     mCurrentLocalVarMap = null;
-
-    return null;
+    if (functionPass != null)
+      functionPass.accept(mCurrentProgram, function);
+    loweringNanos += System.nanoTime() - start;
+    loweredFunctions++;
   }
 
   @Override
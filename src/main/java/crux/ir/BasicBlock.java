@@ -0,0 +1,177 @@
+package crux.ir;
+
+import crux.ir.insts.ReturnInst;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Stack;
+
+/**
+ * A maximal straight-line sequence of the instructions of a {@link Function}: control enters only
+ * at the first instruction and leaves only after the last. The successors of a block are those of
+ * its last instruction in the same order, so successor 0 is the fall-through or false edge and
+ * successor 1 the true edge of a {@link crux.ir.insts.JumpInst}. A {@link ReturnInst} ends its
+ * block without successors. A block lists a predecessor once per edge, so the block after a jump
+ * whose two successors are the same lists the jump twice.
+ * <p>
+ * {@link Function#getBlocks()} returns the blocks of a function in reverse postorder, which is
+ * also the index of each block.
+ */
+public final class BasicBlock {
+  private final Instruction[] instructions;
+  private final List<BasicBlock> predecessors = new ArrayList<>(2);
+  private final List<BasicBlock> successors = new ArrayList<>(2);
+  private int index;
+
+  private BasicBlock(Instruction[] instructions) {
+    this.instructions = instructions;
+  }
+
+  /**
+   * Returns the position of the block in the reverse postorder of its function.
+   */
+  public int getIndex() {
+    return index;
+  }
+
+  public int size() {
+    return instructions.length;
+  }
+
+  public Instruction get(int i) {
+    return instructions[i];
+  }
+
+  public Instruction getFirst() {
+    return instructions[0];
+  }
+
+  public Instruction getLast() {
+    return instructions[instructions.length - 1];
+  }
+
+  public List<Instruction> getInstructions() {
+    return Collections.unmodifiableList(Arrays.asList(instructions));
+  }
+
+  public List<BasicBlock> getPredecessors() {
+    return Collections.unmodifiableList(predecessors);
+  }
+
+  public List<BasicBlock> getSuccessors() {
+    return Collections.unmodifiableList(successors);
+  }
+
+  /**
+   * Returns successor i, or null if the block has no such successor.
+   */
+  public BasicBlock getSuccessor(int i) {
+    return i < successors.size() ? successors.get(i) : null;
+  }
+
+  /**
+   * Returns the successors of inst as control flow sees them: none after a return, even if the
+   * lowering linked the statements after it.
+   */
+  static int numSuccessors(Instruction inst) {
+    if (inst instanceof ReturnInst)
+      return 0;
+    int n = inst.numNext();
+    while (n > 0 && inst.getNext(n - 1) == null)
+      n--;
+    return n;
+  }
+
+  /**
+   * Splits the instructions reachable from start into blocks and returns them in reverse
+   * postorder. The walk visits the true successor of a jump before the false one, so the false
+   * successor follows its jump whenever no other edge reaches it first.
+   */
+  static List<BasicBlock> build(Instruction start) {
+    if (start == null)
+      return List.of();
+
+    // Count the edges into every instruction; leaders start a block
+    IdentityHashMap<Instruction, Integer> predecessorCount = new IdentityHashMap<>();
+    IdentityHashMap<Instruction, Boolean> leaders = new IdentityHashMap<>();
+    List<Instruction> order = new ArrayList<>();
+    Stack<Instruction> tovisit = new Stack<>();
+    tovisit.push(start);
+    predecessorCount.put(start, 0);
+    leaders.put(start, true);
+    while (!tovisit.isEmpty()) {
+      Instruction inst = tovisit.pop();
+      order.add(inst);
+      int n = numSuccessors(inst);
+      for (int i = 0; i < n; i++) {
+        Instruction child = inst.getNext(i);
+        Integer count = predecessorCount.get(child);
+        if (count == null)
+          tovisit.push(child);
+        predecessorCount.put(child, count == null ? 1 : count + 1);
+        if (n > 1 || count != null)
+          leaders.put(child, true);
+      }
+    }
+
+    IdentityHashMap<Instruction, BasicBlock> blockOf = new IdentityHashMap<>();
+    List<BasicBlock> blocks = new ArrayList<>();
+    List<Instruction> body = new ArrayList<>();
+    for (Instruction leader : order) {
+      if (!leaders.containsKey(leader))
+        continue;
+      body.clear();
+      Instruction inst = leader;
+      body.add(inst);
+      while (numSuccessors(inst) == 1 && !leaders.containsKey(inst.getNext(0))) {
+        inst = inst.getNext(0);
+        body.add(inst);
+      }
+      BasicBlock block = new BasicBlock(body.toArray(new Instruction[0]));
+      blockOf.put(leader, block);
+      blocks.add(block);
+    }
+    for (BasicBlock block : blocks) {
+      Instruction last = block.getLast();
+      for (int i = 0; i < numSuccessors(last); i++) {
+        BasicBlock successor = blockOf.get(last.getNext(i));
+        block.successors.add(successor);
+        successor.predecessors.add(block);
+      }
+    }
+    return reversePostorder(blockOf.get(start), blocks.size());
+  }
+
+  private static List<BasicBlock> reversePostorder(BasicBlock entry, int count) {
+    BasicBlock[] order = new BasicBlock[count];
+    int next = count;
+    IdentityHashMap<BasicBlock, Boolean> discovered = new IdentityHashMap<>();
+    // Each frame is a block and the number of its successors still to visit, last one first
+    Stack<BasicBlock> blocks = new Stack<>();
+    Stack<Integer> remaining = new Stack<>();
+    blocks.push(entry);
+    remaining.push(entry.successors.size());
+    discovered.put(entry, true);
+    while (!blocks.isEmpty()) {
+      BasicBlock block = blocks.peek();
+      int i = remaining.pop();
+      if (i == 0) {
+        blocks.pop();
+        order[--next] = block;
+        continue;
+      }
+      remaining.push(i - 1);
+      BasicBlock successor = block.successors.get(i - 1);
+      if (discovered.put(successor, true) == null) {
+        blocks.push(successor);
+        remaining.push(successor.successors.size());
+      }
+    }
+    for (int i = 0; i < count; i++)
+      order[i].index = i;
+    return Collections.unmodifiableList(Arrays.asList(order));
+  }
+}
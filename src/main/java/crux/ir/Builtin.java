@@ -0,0 +1,37 @@
+package crux.ir;
+
+import java.util.HashMap;
+
+/**
+ * The functions every Crux program can call without defining them. The emulator resolves each call
+ * site to either a builtin or a program function once when a program is loaded, so executing a call
+ * never compares names.
+ */
+public enum Builtin {
+  READ_INT("readInt"), READ_CHAR("readChar"), PRINT_BOOL("printBool"), PRINT_INT("printInt"),
+  PRINT_CHAR("printChar"), PRINTLN("println");
+
+  private static final HashMap<String, Builtin> byName = new HashMap<>();
+
+  static {
+    for (Builtin b : values())
+      byName.put(b.name, b);
+  }
+
+  private final String name;
+
+  Builtin(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Returns the builtin with the given Crux name, or null if there is none.
+   */
+  public static Builtin lookup(String name) {
+    return byName.get(name);
+  }
+}
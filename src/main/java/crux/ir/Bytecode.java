@@ -0,0 +1,143 @@
+package crux.ir;
+
+/**
+ * The opcodes of the compact instruction format executed by the {@link Interpreter}. A decoded
+ * instruction is an opcode followed by its operands in the code array of a {@link DecodedFunction}.
+ * Operands are frame slots, indices into the constant table of the function or into the functions
+ * of the program, word offsets into global memory, or code indices of branch targets. Calls to
+ * builtins are resolved to dedicated opcodes.
+ * <p>
+ * The opcodes from {@link #ADDI} on are superinstructions, which the {@link Fuser} substitutes for
+ * common sequences of the basic opcodes. Immediate operands ({@code imm}) are values, not constant
+ * indices.
+ */
+final class Bytecode {
+  private Bytecode() {}
+
+  /** {@code NOP} */
+  static final int NOP = 0;
+  /** {@code CONST dst, constant} */
+  static final int CONST = 1;
+  /** {@code MOV dst, src} */
+  static final int MOV = 2;
+  /** {@code ADD dst, lhs, rhs} */
+  static final int ADD = 3;
+  /** {@code SUB dst, lhs, rhs} */
+  static final int SUB = 4;
+  /** {@code MUL dst, lhs, rhs} */
+  static final int MUL = 5;
+  /** {@code DIV dst, lhs, rhs} */
+  static final int DIV = 6;
+  /** {@code CMP_GE dst, lhs, rhs} */
+  static final int CMP_GE = 7;
+  /** {@code CMP_GT dst, lhs, rhs} */
+  static final int CMP_GT = 8;
+  /** {@code CMP_LE dst, lhs, rhs} */
+  static final int CMP_LE = 9;
+  /** {@code CMP_LT dst, lhs, rhs} */
+  static final int CMP_LT = 10;
+  /** {@code CMP_EQ dst, lhs, rhs} */
+  static final int CMP_EQ = 11;
+  /** {@code CMP_NE dst, lhs, rhs} */
+  static final int CMP_NE = 12;
+  /** {@code NOT dst, src} */
+  static final int NOT = 13;
+  /** {@code ADDR dst, base, index}; the address is a word index, index is -1 for scalars. */
+  static final int ADDR = 14;
+  /** {@code LOAD dst, address} */
+  static final int LOAD = 15;
+  /** {@code STORE src, address} */
+  static final int STORE = 16;
+  /** {@code JUMP predicate, target}; falls through if the predicate is false. */
+  static final int JUMP = 17;
+  /** {@code GOTO target} */
+  static final int GOTO = 18;
+  /**
+   * {@code CALL function, dst, argc, arg...}; function is an index into the functions of the
+   * {@link DecodedProgram} and dst is -1 if the result is unused.
+   */
+  static final int CALL = 19;
+  /** {@code RET src}; src is -1 for a return without value. */
+  static final int RET = 20;
+  /** {@code READ_INT dst}, the builtin {@code readInt}. */
+  static final int READ_INT = 21;
+  /** {@code READ_CHAR dst}, the builtin {@code readChar}. */
+  static final int READ_CHAR = 22;
+  /** {@code PRINT_BOOL src}, the builtin {@code printBool}. */
+  static final int PRINT_BOOL = 23;
+  /** {@code PRINT_INT src}, the builtin {@code printInt}. */
+  static final int PRINT_INT = 24;
+  /** {@code PRINT_CHAR src}, the builtin {@code printChar}. */
+  static final int PRINT_CHAR = 25;
+  /** {@code PRINTLN}, the builtin {@code println}. */
+  static final int PRINTLN = 26;
+
+  /** {@code ADDI dst, lhs, imm} */
+  static final int ADDI = 27;
+  /** {@code SUBI dst, lhs, imm} */
+  static final int SUBI = 28;
+  /** {@code MULI dst, lhs, imm} */
+  static final int MULI = 29;
+  /** {@code DIVI dst, lhs, imm} */
+  static final int DIVI = 30;
+  /** {@code CMPI_GE dst, lhs, imm}; the CMPI opcodes are in the order of the CMP opcodes. */
+  static final int CMPI_GE = 31;
+  static final int CMPI_GT = 32;
+  static final int CMPI_LE = 33;
+  static final int CMPI_LT = 34;
+  static final int CMPI_EQ = 35;
+  static final int CMPI_NE = 36;
+  /** {@code JCMP_GE lhs, rhs, target}; branches if lhs >= rhs, like CMP_GE and JUMP. */
+  static final int JCMP_GE = 37;
+  static final int JCMP_GT = 38;
+  static final int JCMP_LE = 39;
+  static final int JCMP_LT = 40;
+  static final int JCMP_EQ = 41;
+  static final int JCMP_NE = 42;
+  /** {@code JCMPI_GE lhs, imm, target}; branches if lhs >= imm, like CMPI_GE and JUMP. */
+  static final int JCMPI_GE = 43;
+  static final int JCMPI_GT = 44;
+  static final int JCMPI_LE = 45;
+  static final int JCMPI_LT = 46;
+  static final int JCMPI_EQ = 47;
+  static final int JCMPI_NE = 48;
+  /** {@code LOADG dst, word}, ADDR of a scalar and LOAD. */
+  static final int LOADG = 49;
+  /** {@code LOADX dst, base, index}, ADDR of an array element and LOAD. */
+  static final int LOADX = 50;
+  /** {@code STOREG src, word}, ADDR of a scalar and STORE. */
+  static final int STOREG = 51;
+  /** {@code STOREX src, base, index}, ADDR of an array element and STORE. */
+  static final int STOREX = 52;
+
+  private static final String[] NAMES = {"NOP", "CONST", "MOV", "ADD", "SUB", "MUL", "DIV",
+      "CMP_GE", "CMP_GT", "CMP_LE", "CMP_LT", "CMP_EQ", "CMP_NE", "NOT", "ADDR", "LOAD", "STORE",
+      "JUMP", "GOTO", "CALL", "RET", "READ_INT", "READ_CHAR", "PRINT_BOOL", "PRINT_INT",
+      "PRINT_CHAR", "PRINTLN", "ADDI", "SUBI", "MULI", "DIVI", "CMPI_GE", "CMPI_GT", "CMPI_LE",
+      "CMPI_LT", "CMPI_EQ", "CMPI_NE", "JCMP_GE", "JCMP_GT", "JCMP_LE", "JCMP_LT", "JCMP_EQ",
+      "JCMP_NE", "JCMPI_GE", "JCMPI_GT", "JCMPI_LE", "JCMPI_LT", "JCMPI_EQ", "JCMPI_NE", "LOADG",
+      "LOADX", "STOREG", "STOREX"};
+
+  private static final int[] LENGTHS =
+      {1, 3, 3, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 3, 4, 3, 3, 3, 2, -1, 2, 2, 2, 2, 2, 2, 1, 4, 4, 4, 4,
+          4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 3, 4, 3, 4};
+
+  static String name(int opcode) {
+    return NAMES[opcode];
+  }
+
+  /**
+   * Returns whether the instruction may transfer control other than to the next instruction.
+   */
+  static boolean isBranch(int opcode) {
+    return opcode >= JUMP && opcode <= RET || opcode >= JCMP_GE && opcode <= JCMPI_NE;
+  }
+
+  /**
+   * Returns the number of ints the instruction at pc occupies, including the opcode.
+   */
+  static int length(int[] code, int pc) {
+    int length = LENGTHS[code[pc]];
+    return length >= 0 ? length : 4 + code[pc + 3];
+  }
+}
@@ -0,0 +1,128 @@
+package crux.ir;
+
+import crux.ir.insts.JumpInst;
+import crux.ir.insts.NopInst;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.Stack;
+
+/**
+ * Simplifies the control flow graph of a function without phis: every edge into a
+ * {@link NopInst} goes to the instruction after it instead, a {@link JumpInst} whose two edges
+ * lead to the same instruction is bypassed the same way, and an edge of a jump into another jump
+ * on the same predicate goes straight to the successor that jump takes on the same edge. Blocks
+ * are maximal, so blocks that were only apart because of an empty block or a nop between them
+ * merge once the edges skip it.
+ * <p>
+ * A nop that ends the function stays, and so does at least one nop of a loop made only of nops.
+ */
+public final class CfgSimplifier {
+  private final Function function;
+  private final Set<Instruction> collapsed = Collections.newSetFromMap(new IdentityHashMap<>());
+  private int removed;
+  private int threaded;
+
+  public CfgSimplifier(Function function) {
+    this.function = function;
+  }
+
+  /**
+   * Returns the number of nops and jumps no edge reaches any more.
+   */
+  public int getRemoved() {
+    return removed;
+  }
+
+  /**
+   * Returns the number of jump edges redirected past a jump on the same predicate.
+   */
+  public int getThreaded() {
+    return threaded;
+  }
+
+  public void run() {
+    List<Instruction> reachable = reachable();
+    int before = reachable.size();
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (Instruction inst : reachable) {
+        if (inst instanceof JumpInst) {
+          changed |= thread((JumpInst) inst, 0);
+          changed |= thread((JumpInst) inst, 1);
+          if (inst.getNext(0) == inst.getNext(1) && collapsed.add(inst))
+            changed = true;
+        } else {
+          for (int i = 0; i < BasicBlock.numSuccessors(inst); i++) {
+            Instruction target = skip(inst.getNext(i));
+            if (target != inst.getNext(i)) {
+              inst.setNext(i, target);
+              changed = true;
+            }
+          }
+        }
+      }
+      Instruction start = skip(function.getStart());
+      if (start != function.getStart()) {
+        function.setStart(start);
+        changed = true;
+      }
+      reachable = reachable();
+    }
+    removed = before - reachable.size();
+    function.invalidateBlocks();
+  }
+
+  /**
+   * Points edge i of jump past nops, collapsed jumps and jumps on the same predicate, and returns
+   * whether it moved.
+   */
+  private boolean thread(JumpInst jump, int i) {
+    Instruction old = jump.getNext(i);
+    if (old == null)
+      return false;
+    Instruction target = skip(old);
+    Set<Instruction> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+    while (target instanceof JumpInst && target != jump && seen.add(target)
+        && ((JumpInst) target).getPredicate() == jump.getPredicate()) {
+      target = skip(target.getNext(i));
+      threaded++;
+    }
+    jump.setNext(i, target);
+    return target != old;
+  }
+
+  /**
+   * Returns the first instruction from inst on that does something, following nops and collapsed
+   * jumps; a nop without successor or on a cycle of nops stops the walk.
+   */
+  private Instruction skip(Instruction inst) {
+    Set<Instruction> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+    while ((inst instanceof NopInst && inst.getNext(0) != null || collapsed.contains(inst))
+        && seen.add(inst))
+      inst = inst.getNext(0);
+    return inst;
+  }
+
+  private List<Instruction> reachable() {
+    List<Instruction> order = new ArrayList<>();
+    Stack<Instruction> tovisit = new Stack<>();
+    Set<Instruction> discovered = Collections.newSetFromMap(new IdentityHashMap<>());
+    tovisit.push(function.getStart());
+    discovered.add(function.getStart());
+    while (!tovisit.isEmpty()) {
+      Instruction inst = tovisit.pop();
+      order.add(inst);
+      for (int i = 0; i < BasicBlock.numSuccessors(inst); i++) {
+        Instruction child = inst.getNext(i);
+        if (discovered.add(child))
+          tovisit.push(child);
+      }
+    }
+    return order;
+  }
+}
@@ -0,0 +1,100 @@
+package crux.ir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+/**
+ * The state of a run of a {@link DecodedProgram} at the moment it first reads input: its global
+ * memory, its call stack (the frames of all active calls and the record of each suspended caller),
+ * the position in the current function, the instruction count, the output printed so far and,
+ * if requested, the edges the run took.
+ * <p>
+ * Programs that build large tables before they read their input can be run once up to their first
+ * input, and each input then continues from the checkpoint with
+ * {@link Interpreter#Interpreter(Checkpoint, EmulatorIO)} instead of repeating the setup. A
+ * checkpoint is never modified: every interpreter resumed from it forks its memory copy-on-write,
+ * so any number of interpreters on any number of threads can share one checkpoint.
+ */
+public final class Checkpoint {
+  final DecodedProgram program;
+  final GlobalMemory memory;
+  final long[] stack;
+  final int[] calls;
+  final int function;
+  final int pc;
+  final int bp;
+  final int depth;
+  final long count;
+  final byte[] output;
+  /** The edges taken before the checkpoint, or null if they were not recorded. */
+  final Coverage coverage;
+  /** How the run ended if it ended before reading input, otherwise null. */
+  final ExecutionResult result;
+
+  Checkpoint(DecodedProgram program, GlobalMemory memory, long[] stack, int[] calls, int function,
+      int pc, int bp, int depth, long count, byte[] output, Coverage coverage,
+      ExecutionResult result) {
+    this.program = program;
+    this.memory = memory;
+    this.stack = stack;
+    this.calls = calls;
+    this.function = function;
+    this.pc = pc;
+    this.bp = bp;
+    this.depth = depth;
+    this.count = count;
+    this.output = output;
+    this.coverage = coverage;
+    this.result = result;
+  }
+
+  /**
+   * Runs program within limits until it first reads input and returns the state it is in then. If
+   * the program ends without reading input, resuming the checkpoint repeats how it ended.
+   */
+  public static Checkpoint atFirstInput(DecodedProgram program, ExecutionLimits limits) {
+    return atFirstInput(program, limits, false);
+  }
+
+  /**
+   * Like {@link #atFirstInput(DecodedProgram, ExecutionLimits)}, but if coverage is true also
+   * records the edges taken before the checkpoint, which runs resumed from it with a
+   * {@link Coverage} then include.
+   */
+  public static Checkpoint atFirstInput(DecodedProgram program, ExecutionLimits limits,
+      boolean coverage) {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Interpreter interpreter =
+        new Interpreter(program, new EmulatorIO(InputStream.nullInputStream(), output));
+    interpreter.setLimits(limits);
+    if (coverage)
+      interpreter.setCoverage(new Coverage());
+    return interpreter.runToInput(output);
+  }
+
+  public DecodedProgram getProgram() {
+    return program;
+  }
+
+  /**
+   * Returns whether the run stopped at an input, rather than ended before reading any.
+   */
+  public boolean isAtInput() {
+    return result == null;
+  }
+
+  /**
+   * Returns the number of instructions executed before the checkpoint, which every run resumed
+   * from it saves.
+   */
+  public long getInstructionCount() {
+    return count;
+  }
+
+  /**
+   * Returns the number of global memory words written before the checkpoint.
+   */
+  public long getTouchedWords() {
+    return memory.getTouchedWords();
+  }
+}
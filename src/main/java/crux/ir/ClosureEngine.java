@@ -0,0 +1,885 @@
+package crux.ir;
+
+import crux.ast.SymbolTable.Symbol;
+import crux.ast.types.IntType;
+import crux.ir.insts.*;
+
+import java.util.*;
+
+/**
+ * Runs a {@link Program} compiled to closures. Every straight-line instruction of a function
+ * becomes an {@link Op}, a small lambda with its frame slots, constants and global addresses bound
+ * when it is created, and every basic block becomes an array of ops followed by its exit. Executing
+ * an instruction is then a single call that the JVM can compile on its own, instead of a visit of
+ * the instruction graph or a dispatch on an opcode. A compare whose only use is the jump that ends
+ * its block is folded into the exit.
+ * <p>
+ * Calls and returns end their block and are executed by the run loop, which keeps the frames of all
+ * active calls on one {@code long[]} stack like the {@link Interpreter}, so deep recursion does not
+ * use the Java stack. The instruction count advances by whole blocks and the limits are tested at
+ * the end of every block, so a run overshoots a limit by at most one block.
+ */
+public final class ClosureEngine {
+  /** A straight-line instruction, executed on the frame that starts at bp. */
+  interface Op {
+    void run(long[] s, int bp);
+  }
+
+  /** The condition of a block that ends in a jump. */
+  interface Branch {
+    boolean taken(long[] s, int bp);
+  }
+
+  static final int GOTO = 0;
+  static final int BRANCH = 1;
+  static final int CALL = 2;
+  static final int RETURN = 3;
+
+  /** The threshold of {@link #setJitThreshold} that never compiles a function to JVM code. */
+  public static final int NO_JIT = -1;
+  /** The number of calls and back-edges after which the JIT engine compiles a function. */
+  public static final int DEFAULT_JIT_THRESHOLD = 1000;
+  /**
+   * The Java stack size of runs that may execute compiled code, whose calls nest on the Java stack.
+   */
+  private static final long JIT_STACK_SIZE = 1L << 30;
+  /** The longest path, in blocks, that a trace records. */
+  private static final int MAX_TRACE_BLOCKS = 100;
+  /** The number of failed recordings after which a loop header is no longer traced. */
+  private static final int MAX_TRACE_FAILURES = 3;
+
+  static final class Block {
+    /** The index of the block in its function, in the order the blocks were discovered. */
+    final int id;
+    /** The IR instructions of the block, including the one that ends it. */
+    Instruction[] insts;
+    Op[] ops;
+    /** The number of IR instructions of the block. */
+    int size;
+    int kind;
+    /** The successor of a GOTO, the false successor of a BRANCH or the block a CALL returns to. */
+    Block next;
+    Block taken;
+    Branch branch;
+    CompiledFunction callee;
+    int[] args;
+    /**
+     * The predicate of a BRANCH, the slot receiving the result of a CALL or the slot returned by a
+     * RETURN, or -1.
+     */
+    int slot = -1;
+    /** The number of back-edges to this block since its last trace recording, when tracing. */
+    int hotness;
+    /** The loop starting at this block compiled along one path, or null. */
+    CompiledTrace trace;
+    int traceFailures;
+
+    Block(int id) {
+      this.id = id;
+    }
+  }
+
+  static final class CompiledFunction {
+    final String name;
+    final int index;
+    final FrameLayout layout;
+    final ArrayList<Block> blocks = new ArrayList<>();
+    Block entry;
+    /** The number of calls and back-edges the closure engine has executed. */
+    int hotness;
+    /** The function compiled to a JVM class, or null. */
+    JitRuntime.Code code;
+    boolean jitFailed;
+
+    CompiledFunction(Function f, int index) {
+      name = f.getName();
+      this.index = index;
+      layout = new FrameLayout(f);
+    }
+  }
+
+  /** A trace compiled by the {@link JitCompiler}, entered at the first block of its path. */
+  static final class CompiledTrace {
+    final JitRuntime.Trace code;
+    /**
+     * The block execution continues at when the guard of a block of the path fails, by the index
+     * of that block in the path.
+     */
+    final Block[] exits;
+
+    CompiledTrace(JitRuntime.Trace code, Block[] exits) {
+      this.code = code;
+      this.exits = exits;
+    }
+  }
+
+  /** One suspended caller, reused by every call at the same depth. */
+  private static final class CallRecord {
+    CompiledFunction function;
+    Block next;
+    int bp;
+    int slot;
+  }
+
+  private final EmulatorIO io;
+  private final GlobalMemory memory;
+  private final HashMap<Symbol, Integer> globalWords = new HashMap<>();
+  private final HashMap<String, CompiledFunction> functions = new HashMap<>();
+  private long executed;
+  private ExecutionLimits limits = new ExecutionLimits();
+  private volatile boolean cancelled;
+  private long[] stack = new long[1024];
+  private CallRecord[] calls = new CallRecord[64];
+  private int jitThreshold = NO_JIT;
+  private int traceThreshold = NO_JIT;
+  /** The loop header of the trace being recorded, or null. */
+  private Block traceHeader;
+  private CompiledFunction traceFunction;
+  private final Block[] tracePath = new Block[MAX_TRACE_BLOCKS];
+  private final boolean[] traceTaken = new boolean[MAX_TRACE_BLOCKS];
+  private int traceLength;
+  private long traceRuns;
+  private long sideExits;
+  private final JitRuntime runtime;
+  private final JitCompiler jit;
+
+  /**
+   * Compiles every function of program. The closures bind the memory and io of this engine, so
+   * each engine compiles its own copy of the program.
+   */
+  public ClosureEngine(Program program, EmulatorIO io) {
+    this.io = io;
+    int words = 0;
+    for (Iterator<GlobalDecl> glob_it = program.getGlobals(); glob_it.hasNext();) {
+      GlobalDecl g = glob_it.next();
+      globalWords.put(g.getSymbol(), words);
+      words += (int) g.getNumElement().getValue();
+    }
+    memory = new GlobalMemory(words);
+    runtime = new JitRuntime(memory, io);
+    jit = new JitCompiler(globalWords);
+
+    List<Function> sources = new ArrayList<>();
+    for (Iterator<Function> func_it = program.getFunctions(); func_it.hasNext();) {
+      Function f = func_it.next();
+      functions.put(f.getName(), new CompiledFunction(f, sources.size()));
+      sources.add(f);
+    }
+    for (Function f : sources)
+      new BlockCompiler(f, functions.get(f.getName())).compile();
+  }
+
+  /**
+   * Returns the number of IR instructions executed so far.
+   */
+  public long getInstructionCount() {
+    return executed;
+  }
+
+  /**
+   * Sets the limits of the following runs.
+   */
+  public void setLimits(ExecutionLimits limits) {
+    this.limits = limits;
+  }
+
+  /**
+   * Compiles every function to a JVM class with the {@link JitCompiler} once it has been called or
+   * has taken a back-edge threshold times, from then on runs it as compiled code. A back-edge is a
+   * jump to a block discovered no later than the block it leaves, so every loop has one. The
+   * default {@link #NO_JIT} only runs closures.
+   */
+  public void setJitThreshold(int threshold) {
+    jitThreshold = threshold;
+  }
+
+  /**
+   * Records the path that one iteration of a loop takes once its header has been the target of a
+   * back-edge threshold times, compiles it to a trace with the {@link JitCompiler} and from then on
+   * runs the loop as compiled code for as long as it stays on that path. The recording gives up on
+   * iterations that call a function, return, run an inner loop or are longer than
+   * {@value #MAX_TRACE_BLOCKS} blocks. The default {@link #NO_JIT} records no traces.
+   */
+  public void setTraceThreshold(int threshold) {
+    traceThreshold = threshold;
+  }
+
+  /**
+   * Returns the number of traces compiled to JVM classes so far.
+   */
+  public int getTraces() {
+    return jit.getCompiledTraces();
+  }
+
+  /**
+   * Returns the number of times a compiled trace was entered so far.
+   */
+  public long getTraceRuns() {
+    return traceRuns;
+  }
+
+  /**
+   * Returns the number of times a compiled trace returned to the closures at a failed guard so
+   * far.
+   */
+  public long getSideExits() {
+    return sideExits;
+  }
+
+  /**
+   * Returns the number of functions compiled to JVM classes so far.
+   */
+  public int getJitFunctions() {
+    return jit.getCompiledFunctions();
+  }
+
+  /**
+   * Returns the total size of the JVM classes compiled so far.
+   */
+  public long getJitBytes() {
+    return jit.getCompiledBytes();
+  }
+
+  /**
+   * Returns the time spent compiling functions to JVM classes so far.
+   */
+  public long getJitNanos() {
+    return jit.getCompileNanos();
+  }
+
+  /**
+   * Asks the running program to stop. The run ends with {@link ExecutionResult.Status#CANCELLED}
+   * at the end of its current block, or at the next back-edge or call of compiled code. Can be
+   * called from any thread.
+   */
+  public void cancel() {
+    cancelled = true;
+    runtime.cancelled = true;
+  }
+
+  public ExecutionResult run() {
+    if (jitThreshold == NO_JIT)
+      return execute();
+    // Compiled functions call each other on the Java stack, so run on a thread with a stack deep
+    // enough for the recursion the closure engine runs on its own stack
+    ExecutionResult[] result = new ExecutionResult[1];
+    Throwable[] failure = new Throwable[1];
+    Thread thread = new Thread(null, () -> {
+      try {
+        result[0] = execute();
+      } catch (Throwable t) {
+        failure[0] = t;
+      }
+    }, "crux-jit", JIT_STACK_SIZE);
+    thread.start();
+    boolean interrupted = false;
+    for (;;) {
+      try {
+        thread.join();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+        cancel();
+      }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+    if (failure[0] instanceof RuntimeException)
+      throw (RuntimeException) failure[0];
+    if (failure[0] instanceof Error)
+      throw (Error) failure[0];
+    return result[0];
+  }
+
+  private ExecutionResult execute() {
+    CompiledFunction f = functions.get("main");
+    if (f == null)
+      throw new Error("No main function.");
+    Block b = f.entry;
+    int depth = 0;
+    int bp = 0;
+    long count = 0;
+    long[] s = ensureStack(f.layout.size());
+    Arrays.fill(s, 0, f.layout.size(), 0);
+    CallRecord[] calls = this.calls;
+    final GlobalMemory memory = this.memory;
+    final ExecutionLimits limits = this.limits;
+    final int maxCallDepth = limits.getMaxCallDepth();
+    final long maxTouchedWords = limits.getMaxTouchedWords();
+    final long deadline = limits.deadline(System.nanoTime());
+    final boolean tiered = jitThreshold != NO_JIT;
+    final boolean tracing = traceThreshold != NO_JIT;
+    traceHeader = null;
+    final JitRuntime runtime = this.runtime;
+    runtime.start(limits, deadline);
+    long nextPoll = limits.nextPoll(count);
+    ExecutionResult.Status stop = null;
+    try {
+      if (tiered && isCompiled(f)) {
+        // Main is hot from the start
+        runtime.count = count;
+        runtime.nextPoll = nextPoll;
+        runtime.depth = 1;
+        try {
+          f.code.run(runtime, s, bp, b.id);
+        } catch (JitRuntime.Stop e) {
+          stop = e.status;
+        }
+        count = runtime.count;
+        return new ExecutionResult(stop != null ? stop : ExecutionResult.Status.COMPLETED, count,
+            limits);
+      }
+      for (;;) {
+        count += b.size;
+        Op[] ops = b.ops;
+        for (int i = 0; i < ops.length; i++)
+          ops[i].run(s, bp);
+        if (memory.touched > maxTouchedWords) {
+          stop = ExecutionResult.Status.MEMORY_LIMIT;
+          break;
+        }
+        if (count >= nextPoll) {
+          stop = limits.poll(count, deadline, cancelled);
+          if (stop != null)
+            break;
+          nextPoll = limits.nextPoll(count);
+        }
+        Block next = null;
+        long value = 0;
+        switch (b.kind) {
+          case GOTO:
+            next = b.next;
+            break;
+          case BRANCH:
+            next = b.branch.taken(s, bp) ? b.taken : b.next;
+            break;
+          case CALL: {
+            if (depth + 1 >= maxCallDepth) {
+              stop = ExecutionResult.Status.CALL_DEPTH_LIMIT;
+              break;
+            }
+            CompiledFunction callee = b.callee;
+            int calleeBp = bp + f.layout.size();
+            int top = calleeBp + callee.layout.size();
+            if (top > s.length)
+              s = ensureStack(top);
+            Arrays.fill(s, calleeBp, top, 0);
+            int[] args = b.args;
+            for (int i = 0; i < args.length; i++)
+              s[calleeBp + callee.layout.argSlot(i)] = s[bp + args[i]];
+            if (tiered && isCompiled(callee)) {
+              // Run the whole call in compiled code
+              runtime.count = count;
+              runtime.nextPoll = nextPoll;
+              runtime.depth = depth + 2;
+              long result = 0;
+              try {
+                result = callee.code.run(runtime, s, calleeBp, callee.entry.id);
+              } catch (JitRuntime.Stop e) {
+                stop = e.status;
+              }
+              count = runtime.count;
+              nextPoll = runtime.nextPoll;
+              if (b.slot >= 0)
+                s[bp + b.slot] = result;
+              next = b.next;
+              break;
+            }
+            if (tracing && traceHeader != null)
+              abandonTrace();
+            if (depth == calls.length)
+              calls = this.calls = Arrays.copyOf(calls, calls.length * 2);
+            CallRecord record = calls[depth];
+            if (record == null)
+              record = calls[depth] = new CallRecord();
+            record.function = f;
+            record.next = b.next;
+            record.bp = bp;
+            record.slot = b.slot;
+            depth++;
+            f = callee;
+            bp = calleeBp;
+            b = callee.entry;
+            continue;
+          }
+          default:
+            value = b.slot >= 0 ? s[bp + b.slot] : 0;
+            break;
+        }
+        if (stop != null)
+          break;
+        if (tracing) {
+          if (traceHeader != null)
+            recordTrace(b, next);
+          if (next != null && next.id <= b.id && traceHeader == null && next.trace == null
+              && next.traceFailures < MAX_TRACE_FAILURES && ++next.hotness >= traceThreshold) {
+            traceHeader = next;
+            traceFunction = f;
+            traceLength = 0;
+          }
+          while (next != null && next.trace != null) {
+            // Run the loop in compiled code until it leaves the recorded path
+            if (traceHeader != null)
+              abandonTrace();
+            CompiledTrace trace = next.trace;
+            runtime.count = count;
+            runtime.nextPoll = nextPoll;
+            traceRuns++;
+            int exit;
+            try {
+              exit = trace.code.run(runtime, s, bp);
+            } catch (JitRuntime.Stop e) {
+              stop = e.status;
+              break;
+            } finally {
+              count = runtime.count;
+              nextPoll = runtime.nextPoll;
+            }
+            sideExits++;
+            next = trace.exits[exit];
+          }
+          if (stop != null)
+            break;
+        }
+        if (tiered && next != null && next.id <= b.id && isCompiled(f)) {
+          // Continue the activation in compiled code from the target of the back-edge
+          runtime.count = count;
+          runtime.nextPoll = nextPoll;
+          runtime.depth = depth + 1;
+          try {
+            value = f.code.run(runtime, s, bp, next.id);
+          } catch (JitRuntime.Stop e) {
+            stop = e.status;
+            break;
+          } finally {
+            count = runtime.count;
+            nextPoll = runtime.nextPoll;
+          }
+          next = null;
+        }
+        if (next != null) {
+          b = next;
+          continue;
+        }
+        if (depth == 0)
+          return new ExecutionResult(ExecutionResult.Status.COMPLETED, count, limits);
+        CallRecord record = calls[--depth];
+        f = record.function;
+        bp = record.bp;
+        b = record.next;
+        if (record.slot >= 0)
+          s[bp + record.slot] = value;
+      }
+      return new ExecutionResult(stop, count, limits);
+    } finally {
+      executed = count;
+      io.flush();
+    }
+  }
+
+  /**
+   * Counts a call or back-edge of f and returns whether f has compiled code, compiling it if it has
+   * become hot.
+   */
+  private boolean isCompiled(CompiledFunction f) {
+    if (f.code != null)
+      return true;
+    if (f.jitFailed || ++f.hotness < jitThreshold)
+      return false;
+    return jit.compile(f);
+  }
+
+  /**
+   * Adds the block b, which continues at next, to the trace being recorded. Compiles the trace once
+   * next is its header again.
+   */
+  private void recordTrace(Block b, Block next) {
+    if (next == null || traceLength == MAX_TRACE_BLOCKS) {
+      abandonTrace();
+      return;
+    }
+    for (int i = 0; i < traceLength; i++) {
+      if (tracePath[i] == b) {
+        abandonTrace();
+        return;
+      }
+    }
+    tracePath[traceLength] = b;
+    traceTaken[traceLength] = b.kind == BRANCH && next == b.taken;
+    traceLength++;
+    if (next != traceHeader)
+      return;
+    Block[] path = Arrays.copyOf(tracePath, traceLength);
+    boolean[] taken = Arrays.copyOf(traceTaken, traceLength);
+    JitRuntime.Trace code = jit.compileTrace(traceFunction, path, taken);
+    if (code == null) {
+      abandonTrace();
+      return;
+    }
+    Block[] exits = new Block[traceLength];
+    for (int i = 0; i < traceLength; i++) {
+      if (path[i].kind == BRANCH)
+        exits[i] = taken[i] ? path[i].next : path[i].taken;
+    }
+    traceHeader.trace = new CompiledTrace(code, exits);
+    traceHeader = null;
+  }
+
+  private void abandonTrace() {
+    traceHeader.traceFailures++;
+    traceHeader.hotness = 0;
+    traceHeader = null;
+  }
+
+  private long[] ensureStack(int size) {
+    if (size > stack.length)
+      stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
+    return stack;
+  }
+
+  /**
+   * Splits the instruction graph of one function into basic blocks and compiles their instructions
+   * to ops. A block starts at the start of the function, at every instruction with more than one
+   * predecessor and after every jump and call of a function of the program.
+   */
+  private final class BlockCompiler extends InstVisitor {
+    private final Function source;
+    private final CompiledFunction target;
+    private final FrameLayout layout;
+    private final HashMap<Instruction, Integer> predecessors = new HashMap<>();
+    private final HashMap<Variable, Integer> reads = new HashMap<>();
+    private final HashMap<Instruction, Block> blocks = new HashMap<>();
+    private final Stack<Instruction> leaders = new Stack<>();
+    private Block implicitReturn;
+
+    // State of the block that is currently compiled
+    private ArrayList<Op> ops;
+    private CompareInst lastCompare;
+
+    BlockCompiler(Function source, CompiledFunction target) {
+      this.source = source;
+      this.target = target;
+      layout = target.layout;
+    }
+
+    void compile() {
+      Instruction start = source.getStart();
+      if (start == null) {
+        target.entry = implicitReturn();
+        return;
+      }
+      countUses(start);
+      // The start is a leader even if no branch leads to it
+      predecessors.merge(start, 1, Integer::sum);
+      target.entry = blockAt(start);
+      while (!leaders.isEmpty()) {
+        Instruction leader = leaders.pop();
+        compileBlock(leader, blocks.get(leader));
+      }
+    }
+
+    private void countUses(Instruction start) {
+      Stack<Instruction> tovisit = new Stack<>();
+      HashSet<Instruction> discovered = new HashSet<>();
+      tovisit.push(start);
+      discovered.add(start);
+      while (!tovisit.isEmpty()) {
+        Instruction inst = tovisit.pop();
+        for (Value v : inst.mOperands) {
+          if (v instanceof Variable)
+            reads.merge((Variable) v, 1, Integer::sum);
+        }
+        for (int i = 0; i < inst.numNext(); i++) {
+          Instruction child = inst.getNext(i);
+          if (child == null)
+            continue;
+          predecessors.merge(child, 1, Integer::sum);
+          if (discovered.add(child))
+            tovisit.push(child);
+        }
+      }
+    }
+
+    private Block blockAt(Instruction leader) {
+      if (leader == null)
+        return implicitReturn();
+      Block block = blocks.get(leader);
+      if (block == null) {
+        block = newBlock();
+        blocks.put(leader, block);
+        leaders.push(leader);
+      }
+      return block;
+    }
+
+    private Block implicitReturn() {
+      if (implicitReturn == null) {
+        implicitReturn = newBlock();
+        implicitReturn.insts = new Instruction[0];
+        implicitReturn.ops = new Op[0];
+        implicitReturn.kind = RETURN;
+      }
+      return implicitReturn;
+    }
+
+    private Block newBlock() {
+      Block block = new Block(target.blocks.size());
+      target.blocks.add(block);
+      return block;
+    }
+
+    private void compileBlock(Instruction inst, Block block) {
+      ops = new ArrayList<>();
+      lastCompare = null;
+      ArrayList<Instruction> insts = new ArrayList<>();
+      for (;;) {
+        block.size++;
+        insts.add(inst);
+        if (inst instanceof JumpInst) {
+          block.kind = BRANCH;
+          block.slot = slot(((JumpInst) inst).getPredicate());
+          block.branch = branch((JumpInst) inst);
+          block.taken = blockAt(inst.getNext(1));
+          block.next = blockAt(inst.getNext(0));
+          break;
+        }
+        if (inst instanceof ReturnInst) {
+          block.kind = RETURN;
+          block.slot = slot(((ReturnInst) inst).getReturnValue());
+          break;
+        }
+        if (inst instanceof CallInst && !isBuiltin((CallInst) inst)) {
+          compileCall((CallInst) inst, block);
+          break;
+        }
+        inst.accept(this);
+        Instruction next = inst.getNext(0);
+        if (next == null) {
+          // Implicit return at the end of a void function
+          block.kind = RETURN;
+          break;
+        }
+        if (predecessors.get(next) > 1) {
+          block.kind = GOTO;
+          block.next = blockAt(next);
+          break;
+        }
+        inst = next;
+      }
+      block.insts = insts.toArray(new Instruction[0]);
+      block.ops = ops.toArray(new Op[0]);
+    }
+
+    private boolean isBuiltin(CallInst i) {
+      return Builtin.lookup(i.getCallee().getName()) != null;
+    }
+
+    private void compileCall(CallInst i, Block block) {
+      String name = i.getCallee().getName();
+      CompiledFunction callee = functions.get(name);
+      if (callee == null)
+        throw new Error("Call to undefined function " + name + ".");
+      List<LocalVar> params = i.getParams();
+      int[] args = new int[params.size()];
+      for (int j = 0; j < args.length; j++)
+        args[j] = slot(params.get(j));
+      block.kind = CALL;
+      block.callee = callee;
+      block.args = args;
+      block.slot = slot(i.getDst());
+      block.next = blockAt(i.getNext(0));
+    }
+
+    /**
+     * Returns the condition of jump i. If the predicate was computed by the last op of the block
+     * and has no other use, that compare is removed and done by the condition instead.
+     */
+    private Branch branch(JumpInst i) {
+      LocalVar predicate = i.getPredicate();
+      CompareInst compare = lastCompare;
+      if (compare == null || compare.getDst() != predicate || reads.get(predicate) != 1) {
+        int p = slot(predicate);
+        return (s, bp) -> s[bp + p] != 0;
+      }
+      ops.remove(ops.size() - 1);
+      int l = slot(compare.getLeftOperand());
+      int r = slot(compare.getRightOperand());
+      switch (compare.getPredicate()) {
+        case GE:
+          return (s, bp) -> s[bp + l] >= s[bp + r];
+        case GT:
+          return (s, bp) -> s[bp + l] > s[bp + r];
+        case LE:
+          return (s, bp) -> s[bp + l] <= s[bp + r];
+        case LT:
+          return (s, bp) -> s[bp + l] < s[bp + r];
+        case EQ:
+          return (s, bp) -> s[bp + l] == s[bp + r];
+        default:
+          return (s, bp) -> s[bp + l] != s[bp + r];
+      }
+    }
+
+    private int slot(Variable v) {
+      return v != null ? layout.slotOf(v) : -1;
+    }
+
+    private void emit(Op op) {
+      ops.add(op);
+      lastCompare = null;
+    }
+
+    public void visit(AddressAt i) {
+      int d = slot(i.getDst());
+      int base = globalWords.get(i.getBase());
+      LocalVar offset = i.getOffset();
+      if (offset == null) {
+        emit((s, bp) -> s[bp + d] = base);
+      } else {
+        int x = slot(offset);
+        emit((s, bp) -> s[bp + d] = base + s[bp + x]);
+      }
+    }
+
+    public void visit(BinaryOperator i) {
+      int d = slot(i.getDst());
+      int l = slot(i.getLeftOperand());
+      int r = slot(i.getRightOperand());
+      switch (i.getOperator()) {
+        case Add:
+          emit((s, bp) -> s[bp + d] = s[bp + l] + s[bp + r]);
+          break;
+        case Sub:
+          emit((s, bp) -> s[bp + d] = s[bp + l] - s[bp + r]);
+          break;
+        case Mul:
+          emit((s, bp) -> s[bp + d] = s[bp + l] * s[bp + r]);
+          break;
+        case Div:
+          emit((s, bp) -> s[bp + d] = s[bp + l] / s[bp + r]);
+          break;
+      }
+    }
+
+    public void visit(CompareInst i) {
+      int d = slot(i.getDst());
+      int l = slot(i.getLeftOperand());
+      int r = slot(i.getRightOperand());
+      switch (i.getPredicate()) {
+        case GE:
+          emit((s, bp) -> s[bp + d] = s[bp + l] >= s[bp + r] ? 1 : 0);
+          break;
+        case GT:
+          emit((s, bp) -> s[bp + d] = s[bp + l] > s[bp + r] ? 1 : 0);
+          break;
+        case LE:
+          emit((s, bp) -> s[bp + d] = s[bp + l] <= s[bp + r] ? 1 : 0);
+          break;
+        case LT:
+          emit((s, bp) -> s[bp + d] = s[bp + l] < s[bp + r] ? 1 : 0);
+          break;
+        case EQ:
+          emit((s, bp) -> s[bp + d] = s[bp + l] == s[bp + r] ? 1 : 0);
+          break;
+        case NE:
+          emit((s, bp) -> s[bp + d] = s[bp + l] != s[bp + r] ? 1 : 0);
+          break;
+      }
+      lastCompare = i;
+    }
+
+    public void visit(CopyInst i) {
+      int d = slot(i.getDstVar());
+      Value src = i.getSrcValue();
+      if (src instanceof Constant) {
+        long value = src instanceof IntegerConstant ? ((IntegerConstant) src).getValue()
+            : ((BooleanConstant) src).getValue() ? 1 : 0;
+        emit((s, bp) -> s[bp + d] = value);
+      } else {
+        int x = slot((Variable) src);
+        emit((s, bp) -> s[bp + d] = s[bp + x]);
+      }
+    }
+
+    public void visit(JumpInst i) {
+      throw new Error("Jumps end their block.");
+    }
+
+    public void visit(LoadInst i) {
+      int d = slot(i.getDst());
+      int a = slot(i.getSrcAddress());
+      GlobalMemory memory = ClosureEngine.this.memory;
+      EmulatorIO io = ClosureEngine.this.io;
+      if (i.getSrcAddress().getType() instanceof IntType) {
+        emit((s, bp) -> {
+          int word = memory.check(s[bp + a]);
+          if (!memory.isInitialized(word))
+            io.println("Reading from uninitialized memory");
+          s[bp + d] = memory.load(word);
+        });
+      } else {
+        emit((s, bp) -> {
+          int word = memory.check(s[bp + a]);
+          if (!memory.isInitialized(word))
+            io.println("Reading from uninitialized memory");
+          s[bp + d] = memory.load(word) != 0 ? 1 : 0;
+        });
+      }
+    }
+
+    public void visit(NopInst i) {
+      // Nops are counted in the size of their block but compile to nothing
+    }
+
+    public void visit(StoreInst i) {
+      int v = slot(i.getSrcValue());
+      int a = slot(i.getDestAddress());
+      GlobalMemory memory = ClosureEngine.this.memory;
+      emit((s, bp) -> memory.store(memory.check(s[bp + a]), s[bp + v]));
+    }
+
+    public void visit(ReturnInst i) {
+      throw new Error("Returns end their block.");
+    }
+
+    public void visit(CallInst i) {
+      EmulatorIO io = ClosureEngine.this.io;
+      switch (Builtin.lookup(i.getCallee().getName())) {
+        case READ_INT: {
+          int d = slot(i.getDst());
+          emit((s, bp) -> s[bp + d] = io.readInt());
+          break;
+        }
+        case READ_CHAR: {
+          int d = slot(i.getDst());
+          emit((s, bp) -> s[bp + d] = io.readChar());
+          break;
+        }
+        case PRINT_BOOL: {
+          int x = slot(i.getParams().get(0));
+          emit((s, bp) -> io.printBool(s[bp + x] != 0));
+          break;
+        }
+        case PRINT_INT: {
+          int x = slot(i.getParams().get(0));
+          emit((s, bp) -> io.printInt(s[bp + x]));
+          break;
+        }
+        case PRINT_CHAR: {
+          int x = slot(i.getParams().get(0));
+          emit((s, bp) -> io.printChar(s[bp + x]));
+          break;
+        }
+        case PRINTLN:
+          emit((s, bp) -> io.println());
+          break;
+      }
+    }
+
+    public void visit(UnaryNotInst i) {
+      int d = slot(i.getDst());
+      int x = slot(i.getInner());
+      emit((s, bp) -> s[bp + d] = s[bp + x] != 0 ? 0 : 1);
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package crux.ir;
+
+import crux.ir.insts.CopyInst;
+import crux.ir.insts.PhiInst;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Copy propagation over a function in SSA form: the reads of the destination of a copy read its
+ * source instead, which leaves the copy dead for {@link DeadCodeElimination}.
+ * <p>
+ * A read is rewritten only where the copy dominates it, since variables read before any write
+ * still hold their value on entry there, and only if the source is a constant or a variable no
+ * instruction writes after the copy, that is one written before it or never. Constants only
+ * replace the sources of copies and phi operands, the only operands every engine and the
+ * {@link crux.backend.CodeGen} take as constants.
+ */
+public final class CopyPropagation {
+  private CopyPropagation() {}
+
+  /**
+   * Propagates the copies of f and returns the number of operands rewritten.
+   */
+  public static int propagate(Function f) {
+    List<BasicBlock> blocks = f.getBlocks();
+    if (blocks.isEmpty())
+      return 0;
+    DominatorTree tree = new DominatorTree(blocks);
+    IdentityHashMap<Instruction, BasicBlock> blockOf = new IdentityHashMap<>();
+    IdentityHashMap<Instruction, Integer> position = new IdentityHashMap<>();
+    IdentityHashMap<LocalVar, Instruction> defs = new IdentityHashMap<>();
+    for (BasicBlock block : blocks) {
+      for (int i = 0; i < block.size(); i++) {
+        Instruction inst = block.get(i);
+        blockOf.put(inst, block);
+        position.put(inst, i);
+        LocalVar def = Liveness.defOf(inst);
+        if (def != null)
+          defs.put(def, inst);
+      }
+    }
+
+    // Every rewrite moves a read to a variable written higher up the dominator tree, so repeating
+    // until nothing changes collapses chains of copies and terminates
+    int propagated = 0;
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      IdentityHashMap<LocalVar, List<Instruction>> uses = new IdentityHashMap<>();
+      for (BasicBlock block : blocks) {
+        for (Instruction inst : block.getInstructions()) {
+          for (Value operand : inst.mOperands) {
+            if (operand instanceof LocalVar)
+              uses.computeIfAbsent((LocalVar) operand, v -> new ArrayList<>()).add(inst);
+          }
+        }
+      }
+      for (BasicBlock block : blocks) {
+        for (Instruction inst : block.getInstructions()) {
+          if (!(inst instanceof CopyInst))
+            continue;
+          CopyInst copy = (CopyInst) inst;
+          LocalVar dst = copy.getDstVar();
+          Value src = copy.getSrcValue();
+          if (src == dst || src instanceof LocalVar && defs.containsKey(src)
+              && !dominates(tree, defs.get(src), copy, blockOf, position))
+            continue;
+          for (Instruction use : uses.getOrDefault(dst, List.of())) {
+            if (!(src instanceof LocalVar || use instanceof CopyInst || use instanceof PhiInst))
+              continue;
+            for (int i = 0; i < use.mOperands.size(); i++) {
+              if (use.mOperands.get(i) != dst)
+                continue;
+              // A phi reads its operand at the end of the predecessor the operand comes from
+              Instruction at = use;
+              if (use instanceof PhiInst)
+                at = blockOf.get(((PhiInst) use).getSource(i)).getLast();
+              if (!dominates(tree, copy, at, blockOf, position))
+                continue;
+              use.setOperand(i, src);
+              propagated++;
+              changed = true;
+            }
+          }
+        }
+      }
+    }
+    return propagated;
+  }
+
+  /**
+   * Returns whether every path from the entry to b passes through a first, or a is b.
+   */
+  private static boolean dominates(DominatorTree tree, Instruction a, Instruction b,
+      IdentityHashMap<Instruction, BasicBlock> blockOf,
+      IdentityHashMap<Instruction, Integer> position) {
+    BasicBlock x = blockOf.get(a);
+    BasicBlock y = blockOf.get(b);
+    if (x == y)
+      return position.get(a) <= position.get(b);
+    return tree.dominates(x, y);
+  }
+}
@@ -0,0 +1,193 @@
+package crux.ir;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An edge coverage map in the style of AFL: a fixed-size {@code byte[]} with one hit counter per
+ * control flow edge, indexed by a hash of the instruction that transfers control and its
+ * successor. The {@link Interpreter} counts the edges of every jump, taken or not, of every call
+ * and of every return, so the edges also tell which straight-line instructions ran. Colliding
+ * edges share a counter, which the size of the map keeps rare.
+ * <p>
+ * A map of one run counts hits, saturating at 255. Merging it into a map of many runs classifies
+ * each count into one of the buckets 1, 2, 3, 4-7, 8-15, 16-31, 32-127 and 128+, and sets the bit
+ * of the bucket, so an input that runs a loop much more often than all others still adds coverage.
+ * Maps are only comparable between runs of the same {@link DecodedProgram}, with or without
+ * superinstructions.
+ */
+public final class Coverage {
+  /** The default number of counters, enough for programs with tens of thousands of branches. */
+  public static final int DEFAULT_SIZE = 1 << 16;
+  private static final int MAGIC = 0x43564731; // CVG1
+
+  /** The bucket bit of every hit count. */
+  private static final byte[] BUCKETS = new byte[256];
+
+  static {
+    BUCKETS[1] = 1;
+    BUCKETS[2] = 2;
+    BUCKETS[3] = 4;
+    for (int count = 4; count < 256; count++) {
+      BUCKETS[count] = (byte) (count < 8 ? 8 : count < 16 ? 16 : count < 32 ? 32
+          : count < 128 ? 64 : 128);
+    }
+  }
+
+  final byte[] bits;
+  private final int mask;
+
+  public Coverage() {
+    this(DEFAULT_SIZE);
+  }
+
+  /**
+   * Creates an empty map of size counters; size must be a power of two.
+   */
+  public Coverage(int size) {
+    if (size <= 0 || Integer.bitCount(size) != 1)
+      throw new IllegalArgumentException("coverage size " + size + " is not a power of two");
+    bits = new byte[size];
+    mask = size - 1;
+  }
+
+  /**
+   * Returns a copy of this map.
+   */
+  public Coverage copy() {
+    Coverage copy = new Coverage(bits.length);
+    System.arraycopy(bits, 0, copy.bits, 0, bits.length);
+    return copy;
+  }
+
+  public int size() {
+    return bits.length;
+  }
+
+  /**
+   * Counts the edge from the instruction at fromPc of function fromFunction to the instruction at
+   * toPc of function toFunction.
+   */
+  void hit(int fromFunction, int fromPc, int toFunction, int toPc) {
+    int h = (fromFunction * 0x9E3779B1 + fromPc) * 0x85EBCA6B;
+    h ^= (toFunction * 0xC2B2AE35 + toPc) * 0x27D4EB2F;
+    h ^= h >>> 15;
+    int i = h & mask;
+    if (bits[i] != -1)
+      bits[i]++;
+  }
+
+  /**
+   * Adds the hit counts of run to the hit counts of this map of a single run.
+   */
+  void add(Coverage run) {
+    checkSize(run);
+    for (int i = 0; i < bits.length; i++)
+      bits[i] = (byte) Math.min((bits[i] & 0xFF) + (run.bits[i] & 0xFF), 0xFF);
+  }
+
+  /**
+   * Returns the number of counters that are not zero, the edges covered up to collisions.
+   */
+  public int countEdges() {
+    int edges = 0;
+    for (byte b : bits) {
+      if (b != 0)
+        edges++;
+    }
+    return edges;
+  }
+
+  /**
+   * Merges the hit counts of a single run into this map of buckets and returns whether the run
+   * covered an edge or reached a bucket this map did not have yet.
+   */
+  public boolean merge(Coverage run) {
+    checkSize(run);
+    boolean added = false;
+    for (int i = 0; i < bits.length; i++) {
+      byte bucket = BUCKETS[run.bits[i] & 0xFF];
+      if ((bits[i] & bucket) != bucket) {
+        bits[i] |= bucket;
+        added = true;
+      }
+    }
+    return added;
+  }
+
+  /**
+   * Merges another map of buckets, such as one read from a file, into this one.
+   */
+  public void union(Coverage buckets) {
+    checkSize(buckets);
+    for (int i = 0; i < bits.length; i++)
+      bits[i] |= buckets.bits[i];
+  }
+
+  private void checkSize(Coverage other) {
+    if (other.bits.length != bits.length) {
+      throw new IllegalArgumentException(String.format(
+          "coverage maps of %d and %d counters cannot be merged", bits.length,
+          other.bits.length));
+    }
+  }
+
+  /**
+   * Writes the map in a sparse format: the size and the number of counters that are not zero,
+   * then the distance of each such counter from the previous one as a variable-length integer,
+   * followed by its value.
+   */
+  public void write(OutputStream out) throws IOException {
+    var data = new DataOutputStream(out);
+    data.writeInt(MAGIC);
+    data.writeInt(bits.length);
+    data.writeInt(countEdges());
+    int previous = -1;
+    for (int i = 0; i < bits.length; i++) {
+      if (bits[i] == 0)
+        continue;
+      int gap = i - previous;
+      while (gap >= 0x80) {
+        data.writeByte(gap & 0x7F | 0x80);
+        gap >>>= 7;
+      }
+      data.writeByte(gap);
+      data.writeByte(bits[i]);
+      previous = i;
+    }
+    data.flush();
+  }
+
+  /**
+   * Reads a map written by {@link #write}.
+   */
+  public static Coverage read(InputStream in) throws IOException {
+    var data = new DataInputStream(in);
+    if (data.readInt() != MAGIC)
+      throw new IOException("not a coverage file");
+    int size = data.readInt();
+    if (size <= 0 || Integer.bitCount(size) != 1)
+      throw new IOException("corrupt coverage file");
+    Coverage coverage = new Coverage(size);
+    int count = data.readInt();
+    int index = -1;
+    for (int k = 0; k < count; k++) {
+      int gap = 0;
+      int shift = 0;
+      int b;
+      do {
+        b = data.readUnsignedByte();
+        gap |= (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      index += gap;
+      if (index >= coverage.bits.length)
+        throw new IOException("corrupt coverage file");
+      coverage.bits[index] = data.readByte();
+    }
+    return coverage;
+  }
+}
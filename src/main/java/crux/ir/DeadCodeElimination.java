@@ -0,0 +1,87 @@
+package crux.ir;
+
+import crux.ir.insts.AddressAt;
+import crux.ir.insts.BinaryOperator;
+import crux.ir.insts.CompareInst;
+import crux.ir.insts.CopyInst;
+import crux.ir.insts.PhiInst;
+import crux.ir.insts.UnaryNotInst;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Removes the instructions that only compute a variable nobody reads afterwards, as found by
+ * {@link Liveness}, and the addresses nothing loads from or stores to. Calls and stores always
+ * stay for their side effects, and so do divisions and loads, which may trap. Removing an
+ * instruction can leave the instructions computing its operands dead in turn, so the pass repeats
+ * until it removes nothing.
+ */
+public final class DeadCodeElimination {
+  private DeadCodeElimination() {}
+
+  /**
+   * Removes the dead instructions of f and returns how many it removed.
+   */
+  public static int eliminate(Function f) {
+    int eliminated = 0;
+    while (true) {
+      List<BasicBlock> blocks = f.getBlocks();
+      Liveness liveness = new Liveness(f);
+      Set<Instruction> dead = Collections.newSetFromMap(new IdentityHashMap<>());
+      for (BasicBlock block : blocks) {
+        BitSet live = (BitSet) liveness.getLiveOut(block).clone();
+        for (int i = block.size() - 1; i >= 0; i--) {
+          Instruction inst = block.get(i);
+          // Phis read on the edges into the block, which the live-out sets already cover
+          if (inst instanceof PhiInst)
+            continue;
+          LocalVar def = Liveness.defOf(inst);
+          if (def != null) {
+            int k = liveness.indexOf(def);
+            if (!live.get(k) && isPure(inst)) {
+              dead.add(inst);
+              continue;
+            }
+            live.clear(k);
+          }
+          for (Value operand : inst.mOperands) {
+            if (operand instanceof LocalVar)
+              live.set(liveness.indexOf((LocalVar) operand));
+          }
+        }
+      }
+      // Addresses are not local variables; one is dead once nothing left reads it
+      Set<AddressVar> read = Collections.newSetFromMap(new IdentityHashMap<>());
+      for (BasicBlock block : blocks) {
+        for (Instruction inst : block.getInstructions()) {
+          if (dead.contains(inst))
+            continue;
+          for (Value operand : inst.mOperands) {
+            if (operand instanceof AddressVar)
+              read.add((AddressVar) operand);
+          }
+        }
+      }
+      for (BasicBlock block : blocks) {
+        for (Instruction inst : block.getInstructions()) {
+          if (inst instanceof AddressAt && !read.contains(((AddressAt) inst).getDst()))
+            dead.add(inst);
+        }
+      }
+      if (dead.isEmpty())
+        return eliminated;
+      eliminated += dead.size();
+      f.removeInstructions(dead);
+    }
+  }
+
+  private static boolean isPure(Instruction inst) {
+    if (inst instanceof BinaryOperator)
+      return ((BinaryOperator) inst).getOperator() != BinaryOperator.Op.Div;
+    return inst instanceof CopyInst || inst instanceof CompareInst || inst instanceof UnaryNotInst;
+  }
+}
@@ -0,0 +1,73 @@
+package crux.ir;
+
+/**
+ * A {@link Function} flattened by the {@link Decoder} into a linear array of {@link Bytecode}
+ * instructions. Operands are resolved to frame slots, branch targets to code indices and callees to
+ * functions of the {@link DecodedProgram} or builtins. A decoded function is never modified after
+ * decoding and can be shared between any number of interpreters.
+ */
+public final class DecodedFunction {
+  final String name;
+  final int[] code;
+  final long[] constants;
+  final int frameSize;
+  final int[] argSlots;
+  /** The IR instruction each code index was decoded from, null for operand and synthetic code. */
+  final Instruction[] origins;
+  /**
+   * The number of IR instructions the instruction at each code index stands for, which the
+   * interpreter counts as executed: 0 for operand and synthetic code, more than 1 for a
+   * superinstruction.
+   */
+  final int[] widths;
+
+  DecodedFunction(String name, int[] code, long[] constants, int frameSize, int[] argSlots,
+      Instruction[] origins, int[] widths) {
+    this.name = name;
+    this.code = code;
+    this.constants = constants;
+    this.frameSize = frameSize;
+    this.argSlots = argSlots;
+    this.origins = origins;
+    this.widths = widths;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getCodeLength() {
+    return code.length;
+  }
+
+  public int getFrameSize() {
+    return frameSize;
+  }
+
+  /**
+   * Returns the number of decoded instructions.
+   */
+  public int getNumInstructions() {
+    int count = 0;
+    for (int pc = 0; pc < code.length; pc += Bytecode.length(code, pc))
+      count++;
+    return count;
+  }
+
+  /**
+   * Returns a human readable listing of the code, one instruction per line.
+   */
+  public String disassemble() {
+    var builder = new StringBuilder();
+    builder.append(name).append(":\n");
+    for (int pc = 0; pc < code.length; pc += Bytecode.length(code, pc)) {
+      builder.append(String.format("%5d: %s", pc, Bytecode.name(code[pc])));
+      int length = Bytecode.length(code, pc);
+      for (int i = 1; i < length; i++) {
+        builder.append(i == 1 ? " " : ", ").append(code[pc + i]);
+      }
+      builder.append("\n");
+    }
+    return builder.toString();
+  }
+}
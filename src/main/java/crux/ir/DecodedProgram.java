@@ -0,0 +1,162 @@
+package crux.ir;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * A {@link Program} decoded for the {@link Interpreter}: all functions in the compact bytecode
+ * format and the layout of global memory. A decoded program is immutable, so a single instance can
+ * be run by many interpreters, each with its own frames and memory. A program decoded lazily
+ * decodes each function on its first call instead, which is safe on any number of threads.
+ */
+public final class DecodedProgram {
+  final DecodedFunction[] functions;
+  final Map<String, Integer> functionIndex;
+  final int mainIndex;
+  final int memoryWords;
+  /** Whether the code contains superinstructions, see {@link Fuser}. */
+  final boolean fused;
+  /** The number of instructions before fusion. */
+  private int unfusedInstructions;
+  /** Decodes a function that is not decoded yet, or null if all functions are decoded. */
+  private final IntFunction<DecodedFunction> decoder;
+
+  DecodedProgram(DecodedFunction[] functions, Map<String, Integer> functionIndex,
+      int memoryWords) {
+    this(functions, functionIndex, memoryWords, false, 0);
+  }
+
+  DecodedProgram(DecodedFunction[] functions, Map<String, Integer> functionIndex,
+      int memoryWords, int unfusedInstructions) {
+    this(functions, functionIndex, memoryWords, true, unfusedInstructions);
+  }
+
+  private DecodedProgram(DecodedFunction[] functions, Map<String, Integer> functionIndex,
+      int memoryWords, boolean fused, int unfusedInstructions) {
+    this(functions, functionIndex, memoryWords, fused, unfusedInstructions, null);
+  }
+
+  DecodedProgram(DecodedFunction[] functions, Map<String, Integer> functionIndex,
+      int memoryWords, boolean fused, int unfusedInstructions,
+      IntFunction<DecodedFunction> decoder) {
+    this.functions = functions;
+    this.decoder = decoder;
+    this.functionIndex = Collections.unmodifiableMap(functionIndex);
+    this.mainIndex = functionIndex.getOrDefault("main", -1);
+    this.memoryWords = memoryWords;
+    this.fused = fused;
+    this.unfusedInstructions = fused ? unfusedInstructions : getNumInstructions();
+  }
+
+  /**
+   * Decodes p and fuses its common instruction sequences into superinstructions.
+   */
+  public static DecodedProgram decode(Program p) {
+    return decode(p, true);
+  }
+
+  /**
+   * Decodes p, with superinstructions if fuse is set. Without them every decoded instruction comes
+   * from one IR instruction, which the {@link Profiler} needs.
+   */
+  public static DecodedProgram decode(Program p, boolean fuse) {
+    DecodedProgram decoded = new Decoder().decode(p);
+    return fuse ? Fuser.fuse(decoded) : decoded;
+  }
+
+  /**
+   * Like {@link #decode(Program, boolean)}, but decodes each function only when it is first
+   * called, so the functions a run never calls are neither decoded nor, if p was lowered with
+   * {@link ASTLower#lowerLazily}, lowered.
+   */
+  public static DecodedProgram decodeLazily(Program p, boolean fuse) {
+    return new Decoder().decodeLazily(p, fuse);
+  }
+
+  /**
+   * Returns the function at index, decoding it if it is not decoded yet.
+   */
+  DecodedFunction load(int index) {
+    DecodedFunction f = functions[index];
+    return f != null ? f : decodeFunction(index);
+  }
+
+  private synchronized DecodedFunction decodeFunction(int index) {
+    DecodedFunction f = functions[index];
+    if (f == null) {
+      f = decoder.apply(index);
+      unfusedInstructions += f.getNumInstructions();
+      if (fused)
+        f = Fuser.fuse(f);
+      functions[index] = f;
+    }
+    return f;
+  }
+
+  /**
+   * Decodes all functions that are not decoded yet, for users that walk every function.
+   */
+  void loadAll() {
+    if (decoder != null) {
+      for (int i = 0; i < functions.length; i++)
+        load(i);
+    }
+  }
+
+  /**
+   * Returns the number of functions decoded so far.
+   */
+  public int getNumDecodedFunctions() {
+    int count = 0;
+    for (DecodedFunction f : functions) {
+      if (f != null)
+        count++;
+    }
+    return count;
+  }
+
+  public boolean isFused() {
+    return fused;
+  }
+
+  /**
+   * Returns the number of decoded instructions of all functions decoded so far.
+   */
+  public int getNumInstructions() {
+    int count = 0;
+    for (DecodedFunction f : functions) {
+      if (f != null)
+        count += f.getNumInstructions();
+    }
+    return count;
+  }
+
+  /**
+   * Returns the number of instructions the program had before fusion, of the functions decoded so
+   * far if it is decoded lazily.
+   */
+  public int getUnfusedInstructions() {
+    return unfusedInstructions;
+  }
+
+  public int getNumFunctions() {
+    return functions.length;
+  }
+
+  public DecodedFunction getFunction(int index) {
+    return load(index);
+  }
+
+  public DecodedFunction getFunction(String name) {
+    Integer index = functionIndex.get(name);
+    return index != null ? load(index) : null;
+  }
+
+  /**
+   * Returns the number of 8 byte words of global memory the program uses.
+   */
+  public int getMemoryWords() {
+    return memoryWords;
+  }
+}
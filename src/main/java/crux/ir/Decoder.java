@@ -0,0 +1,279 @@
+package crux.ir;
+
+import crux.ast.SymbolTable.Symbol;
+import crux.ir.insts.*;
+
+import java.util.*;
+
+/**
+ * Flattens the instruction graph of every {@link Function} of a {@link Program} into the linear
+ * {@link Bytecode} format. The false successor of an instruction is laid out directly after it
+ * whenever possible, so most control flow falls through; all other edges become explicit branches.
+ */
+public final class Decoder extends InstVisitor {
+  private final HashMap<Symbol, Integer> globalOffsets = new HashMap<>();
+  private final HashMap<String, Integer> functionIndex = new HashMap<>();
+  private int globalWords;
+
+  // State of the function that is currently decoded
+  private FrameLayout layout;
+  private int[] code;
+  private Instruction[] origins;
+  private int size;
+  private IdentityHashMap<Instruction, Integer> pcMap;
+  private HashMap<Integer, Instruction> fixups;
+  private ArrayList<Long> constants;
+  private HashMap<Long, Integer> constantIndex;
+
+  public DecodedProgram decode(Program p) {
+    List<Function> functions = declare(p);
+    DecodedFunction[] decoded = new DecodedFunction[functions.size()];
+    for (int i = 0; i < decoded.length; i++) {
+      decoded[i] = decode(functions.get(i));
+    }
+    return new DecodedProgram(decoded, new HashMap<>(functionIndex), globalWords);
+  }
+
+  /**
+   * Lays out the globals and numbers the functions of p, but leaves every function to be decoded
+   * by the returned program on its first call. The program keeps this decoder for that.
+   */
+  DecodedProgram decodeLazily(Program p, boolean fuse) {
+    List<Function> functions = declare(p);
+    return new DecodedProgram(new DecodedFunction[functions.size()],
+        new HashMap<>(functionIndex), globalWords, fuse, 0, i -> decode(functions.get(i)));
+  }
+
+  /**
+   * Assigns the globals of p their words and its functions their indices, and returns the
+   * functions in index order.
+   */
+  private List<Function> declare(Program p) {
+    globalOffsets.clear();
+    functionIndex.clear();
+    int words = 0;
+    for (Iterator<GlobalDecl> glob_it = p.getGlobals(); glob_it.hasNext();) {
+      GlobalDecl g = glob_it.next();
+      globalOffsets.put(g.getSymbol(), words);
+      words += (int) g.getNumElement().getValue();
+    }
+
+    List<Function> functions = new ArrayList<>();
+    for (Iterator<Function> func_it = p.getFunctions(); func_it.hasNext();) {
+      Function f = func_it.next();
+      functionIndex.put(f.getName(), functions.size());
+      functions.add(f);
+    }
+    globalWords = words;
+    return functions;
+  }
+
+  private DecodedFunction decode(Function f) {
+    layout = new FrameLayout(f);
+    code = new int[64];
+    origins = new Instruction[64];
+    size = 0;
+    pcMap = new IdentityHashMap<>();
+    fixups = new HashMap<>();
+    constants = new ArrayList<>();
+    constantIndex = new HashMap<>();
+
+    Stack<Instruction> tovisit = new Stack<>();
+    if (f.getStart() != null)
+      tovisit.push(f.getStart());
+    while (!tovisit.isEmpty()) {
+      Instruction inst = tovisit.pop();
+      // Lay out a chain of false successors until it ends or joins code that is already placed
+      while (inst != null && !pcMap.containsKey(inst)) {
+        pcMap.put(inst, size);
+        origins = ensure(origins, size + 1);
+        origins[size] = inst;
+        inst.accept(this);
+        if (inst instanceof ReturnInst)
+          break;
+        if (inst instanceof JumpInst)
+          tovisit.push(inst.getNext(1));
+
+        Instruction next = inst.getNext(0);
+        if (next == null) {
+          // Implicit return at the end of a void function
+          emit(Bytecode.RET, -1);
+        } else if (pcMap.containsKey(next)) {
+          emit(Bytecode.GOTO, pcMap.get(next));
+        }
+        inst = next;
+      }
+    }
+    for (var fixup : fixups.entrySet()) {
+      code[fixup.getKey()] = pcMap.get(fixup.getValue());
+    }
+    if (size == 0)
+      emit(Bytecode.RET, -1);
+
+    int[] argSlots = new int[layout.numArgs()];
+    for (int i = 0; i < argSlots.length; i++)
+      argSlots[i] = layout.argSlot(i);
+    long[] constantTable = new long[constants.size()];
+    for (int i = 0; i < constantTable.length; i++)
+      constantTable[i] = constants.get(i);
+
+    Instruction[] instructions = Arrays.copyOf(origins, size);
+    int[] widths = new int[size];
+    for (int pc = 0; pc < size; pc += Bytecode.length(code, pc))
+      widths[pc] = instructions[pc] != null ? 1 : 0;
+    return new DecodedFunction(f.getName(), Arrays.copyOf(code, size), constantTable, layout.size(),
+        argSlots, instructions, widths);
+  }
+
+  private static int[] ensure(int[] array, int length) {
+    if (array.length >= length)
+      return array;
+    return Arrays.copyOf(array, Math.max(length, array.length * 2));
+  }
+
+  private static Instruction[] ensure(Instruction[] array, int length) {
+    if (array.length >= length)
+      return array;
+    return Arrays.copyOf(array, Math.max(length, array.length * 2));
+  }
+
+  private void emit(int... words) {
+    code = ensure(code, size + words.length);
+    for (int word : words)
+      code[size++] = word;
+  }
+
+  private int slot(Variable v) {
+    return layout.slotOf(v);
+  }
+
+  private int constant(long value) {
+    return constantIndex.computeIfAbsent(value, v -> {
+      constants.add(v);
+      return constants.size() - 1;
+    });
+  }
+
+  public void visit(AddressAt i) {
+    LocalVar offset = i.getOffset();
+    emit(Bytecode.ADDR, slot(i.getDst()), globalOffsets.get(i.getBase()),
+        offset != null ? slot(offset) : -1);
+  }
+
+  public void visit(BinaryOperator i) {
+    int opcode = 0;
+    switch (i.getOperator()) {
+      case Add:
+        opcode = Bytecode.ADD;
+        break;
+      case Sub:
+        opcode = Bytecode.SUB;
+        break;
+      case Mul:
+        opcode = Bytecode.MUL;
+        break;
+      case Div:
+        opcode = Bytecode.DIV;
+        break;
+    }
+    emit(opcode, slot(i.getDst()), slot(i.getLeftOperand()), slot(i.getRightOperand()));
+  }
+
+  public void visit(CompareInst i) {
+    int opcode = 0;
+    switch (i.getPredicate()) {
+      case GE:
+        opcode = Bytecode.CMP_GE;
+        break;
+      case GT:
+        opcode = Bytecode.CMP_GT;
+        break;
+      case LE:
+        opcode = Bytecode.CMP_LE;
+        break;
+      case LT:
+        opcode = Bytecode.CMP_LT;
+        break;
+      case EQ:
+        opcode = Bytecode.CMP_EQ;
+        break;
+      case NE:
+        opcode = Bytecode.CMP_NE;
+        break;
+    }
+    emit(opcode, slot(i.getDst()), slot(i.getLeftOperand()), slot(i.getRightOperand()));
+  }
+
+  public void visit(CopyInst i) {
+    Value src = i.getSrcValue();
+    if (src instanceof IntegerConstant) {
+      emit(Bytecode.CONST, slot(i.getDstVar()), constant(((IntegerConstant) src).getValue()));
+    } else if (src instanceof BooleanConstant) {
+      boolean value = ((BooleanConstant) src).getValue();
+      emit(Bytecode.CONST, slot(i.getDstVar()), constant(value ? 1 : 0));
+    } else {
+      emit(Bytecode.MOV, slot(i.getDstVar()), slot((Variable) src));
+    }
+  }
+
+  public void visit(JumpInst i) {
+    emit(Bytecode.JUMP, slot(i.getPredicate()), -1);
+    fixups.put(size - 1, i.getNext(1));
+  }
+
+  public void visit(LoadInst i) {
+    emit(Bytecode.LOAD, slot(i.getDst()), slot(i.getSrcAddress()));
+  }
+
+  public void visit(NopInst i) {
+    emit(Bytecode.NOP);
+  }
+
+  public void visit(StoreInst i) {
+    emit(Bytecode.STORE, slot(i.getSrcValue()), slot(i.getDestAddress()));
+  }
+
+  public void visit(UnaryNotInst i) {
+    emit(Bytecode.NOT, slot(i.getDst()), slot(i.getInner()));
+  }
+
+  public void visit(CallInst i) {
+    List<LocalVar> params = i.getParams();
+    String name = i.getCallee().getName();
+    Builtin builtin = Builtin.lookup(name);
+    if (builtin != null) {
+      switch (builtin) {
+        case READ_INT:
+          emit(Bytecode.READ_INT, slot(i.getDst()));
+          break;
+        case READ_CHAR:
+          emit(Bytecode.READ_CHAR, slot(i.getDst()));
+          break;
+        case PRINT_BOOL:
+          emit(Bytecode.PRINT_BOOL, slot(params.get(0)));
+          break;
+        case PRINT_INT:
+          emit(Bytecode.PRINT_INT, slot(params.get(0)));
+          break;
+        case PRINT_CHAR:
+          emit(Bytecode.PRINT_CHAR, slot(params.get(0)));
+          break;
+        case PRINTLN:
+          emit(Bytecode.PRINTLN);
+          break;
+      }
+      return;
+    }
+
+    Integer callee = functionIndex.get(name);
+    if (callee == null)
+      throw new Error("Call to undefined function " + name + ".");
+    emit(Bytecode.CALL, callee, i.getDst() != null ? slot(i.getDst()) : -1, params.size());
+    for (LocalVar param : params)
+      emit(slot(param));
+  }
+
+  public void visit(ReturnInst i) {
+    emit(Bytecode.RET, slot(i.getReturnValue()));
+  }
+}
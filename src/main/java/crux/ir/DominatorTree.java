@@ -0,0 +1,175 @@
+package crux.ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Stack;
+
+/**
+ * The dominator tree of the basic blocks of a {@link Function} and the dominance frontier of every
+ * block. Block a dominates block b if every path from the entry to b passes through a; the
+ * frontier of a holds the blocks where the dominance of a ends, which is where
+ * {@link Ssa#build} places phis.
+ * <p>
+ * The immediate dominators are computed with the iterative algorithm of Cooper, Harvey and
+ * Kennedy, which visits the blocks in reverse postorder until nothing changes, and the frontiers
+ * by walking up from the predecessors of every join block. The tree is a snapshot: it must be
+ * computed again after the blocks of the function change.
+ */
+public final class DominatorTree {
+  private final List<BasicBlock> blocks;
+  /** The index of the immediate dominator of every block; the entry is its own. */
+  private final int[] idom;
+  private final List<List<BasicBlock>> children = new ArrayList<>();
+  private final List<List<BasicBlock>> frontiers = new ArrayList<>();
+  /** The order in which a depth-first walk of the tree enters and leaves every block. */
+  private final int[] enter;
+  private final int[] exit;
+  private final List<BasicBlock> preorder = new ArrayList<>();
+
+  public DominatorTree(Function f) {
+    this(f.getBlocks());
+  }
+
+  DominatorTree(List<BasicBlock> blocks) {
+    this.blocks = blocks;
+    int n = blocks.size();
+    idom = new int[n];
+    enter = new int[n];
+    exit = new int[n];
+    if (n == 0)
+      return;
+    computeDominators();
+    for (int i = 0; i < n; i++) {
+      children.add(new ArrayList<>());
+      frontiers.add(new ArrayList<>());
+    }
+    for (int i = 1; i < n; i++)
+      children.get(idom[i]).add(blocks.get(i));
+    computeFrontiers();
+    number();
+  }
+
+  private void computeDominators() {
+    Arrays.fill(idom, -1);
+    idom[0] = 0;
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int b = 1; b < blocks.size(); b++) {
+        int newIdom = -1;
+        for (BasicBlock predecessor : blocks.get(b).getPredecessors()) {
+          int p = predecessor.getIndex();
+          if (idom[p] < 0)
+            continue;
+          newIdom = newIdom < 0 ? p : intersect(p, newIdom);
+        }
+        if (idom[b] != newIdom) {
+          idom[b] = newIdom;
+          changed = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the nearest common dominator of the blocks at a and b. Dominators come first in
+   * reverse postorder, so the later of the two walks up until they meet.
+   */
+  private int intersect(int a, int b) {
+    while (a != b) {
+      while (a > b)
+        a = idom[a];
+      while (b > a)
+        b = idom[b];
+    }
+    return a;
+  }
+
+  private void computeFrontiers() {
+    // added[r] == b + 1 once b is in the frontier of r, so every block is added once
+    int[] added = new int[blocks.size()];
+    for (BasicBlock block : blocks) {
+      if (block.getPredecessors().size() < 2)
+        continue;
+      int b = block.getIndex();
+      for (BasicBlock predecessor : block.getPredecessors()) {
+        int runner = predecessor.getIndex();
+        while (runner != idom[b]) {
+          if (added[runner] != b + 1) {
+            added[runner] = b + 1;
+            frontiers.get(runner).add(block);
+          }
+          runner = idom[runner];
+        }
+      }
+    }
+  }
+
+  private void number() {
+    int counter = 0;
+    Stack<BasicBlock> tovisit = new Stack<>();
+    Stack<Integer> next = new Stack<>();
+    tovisit.push(blocks.get(0));
+    next.push(0);
+    enter[0] = counter++;
+    preorder.add(blocks.get(0));
+    while (!tovisit.isEmpty()) {
+      BasicBlock block = tovisit.peek();
+      int i = next.pop();
+      List<BasicBlock> kids = children.get(block.getIndex());
+      if (i == kids.size()) {
+        tovisit.pop();
+        exit[block.getIndex()] = counter++;
+        continue;
+      }
+      next.push(i + 1);
+      BasicBlock child = kids.get(i);
+      enter[child.getIndex()] = counter++;
+      preorder.add(child);
+      tovisit.push(child);
+      next.push(0);
+    }
+  }
+
+  /**
+   * Returns the immediate dominator of block, or null for the entry.
+   */
+  public BasicBlock getImmediateDominator(BasicBlock block) {
+    int b = block.getIndex();
+    return b == 0 ? null : blocks.get(idom[b]);
+  }
+
+  /**
+   * Returns the blocks block immediately dominates.
+   */
+  public List<BasicBlock> getChildren(BasicBlock block) {
+    return Collections.unmodifiableList(children.get(block.getIndex()));
+  }
+
+  /**
+   * Returns the dominance frontier of block: the blocks that have a predecessor dominated by
+   * block without being strictly dominated by it.
+   */
+  public List<BasicBlock> getFrontier(BasicBlock block) {
+    return Collections.unmodifiableList(frontiers.get(block.getIndex()));
+  }
+
+  /**
+   * Returns whether a dominates b; every block dominates itself.
+   */
+  public boolean dominates(BasicBlock a, BasicBlock b) {
+    int x = a.getIndex();
+    int y = b.getIndex();
+    return enter[x] <= enter[y] && exit[y] <= exit[x];
+  }
+
+  /**
+   * Returns the blocks in the order a depth-first walk of the tree enters them, so every block
+   * comes after its dominators.
+   */
+  public List<BasicBlock> getPreorder() {
+    return Collections.unmodifiableList(preorder);
+  }
+}
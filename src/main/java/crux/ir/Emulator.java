@@ -5,51 +5,520 @@ import java.io.*;
 import crux.ir.insts.*;
 import crux.ast.SymbolTable.Symbol;
 import crux.ast.types.*;
+import crux.printing.IRValueFormatter;
 
 public class Emulator {
+  /**
+   * Selects how {@link #run()} executes the program.
+   */
+  public enum Engine {
+    /** Walks the instruction graph, keeping values boxed in a map per call. */
+    VISITOR,
+    /** Walks the instruction graph, keeping values unboxed in a slot frame per call. */
+    SLOTS,
+    /** Decodes the program to {@link Bytecode} once and runs it in an {@link Interpreter}. */
+    DECODED,
+    /** Compiles every function to closures and runs them in a {@link ClosureEngine}. */
+    CLOSURE,
+    /** Runs closures like CLOSURE until a function is hot, then compiles it to a JVM class. */
+    JIT,
+    /** Runs closures like CLOSURE and compiles the path hot loops take to JVM classes. */
+    TRACE
+  }
+
+  Program program;
   HashMap<String, Function> functions = new HashMap<>();
-  Stack<CallContext> stack = new Stack<>();
-  HashMap<Long, Long> globalMap = new HashMap<>();
+  HashMap<Symbol, Function> callTargets = new HashMap<>();
+  HashMap<Symbol, Builtin> builtins = new HashMap<>();
+  HashMap<Function, FrameLayout> layouts = new HashMap<>();
+  ArrayDeque<CallContext> stack = new ArrayDeque<>();
+  ArrayDeque<SlotContext> slotStack = new ArrayDeque<>();
   HashMap<Symbol, Long> offsetMap = new HashMap<>();
+  GlobalMemory memory;
 
-  BufferedReader br;
-  PrintStream out;
-  public static boolean DEBUG = false;
+  EmulatorIO io;
+  Engine engine = Engine.VISITOR;
+  boolean fusion = true;
+  int jitThreshold = ClosureEngine.DEFAULT_JIT_THRESHOLD;
+  int jitFunctions;
+  long jitBytes;
+  long jitNanos;
+  int traces;
+  long traceRuns;
+  long sideExits;
+  DecodedProgram decoded;
+  long executed;
+  long dispatched;
+  long elapsedNanos;
+  long startedAt;
+  long compileNanos;
+  Tracer tracer;
+  Profiler profiler;
+  Coverage coverage;
+  ExecutionLimits limits = new ExecutionLimits();
+  volatile boolean cancelled;
+  volatile Interpreter interpreter;
+  volatile ClosureEngine closures;
+  long deadline;
+  long nextPoll;
+  IdentityHashMap<Instruction, Integer> traceSites;
+  ArrayList<Instruction> traceInstructions;
+  ArrayList<Function> traceFunctions;
 
   public Emulator(Program p, InputStream emulatorInput, OutputStream emulatorOutput) {
-    br = new BufferedReader(new InputStreamReader(emulatorInput));
-    out = new PrintStream(emulatorOutput);
+    program = p;
+    io = new EmulatorIO(emulatorInput, emulatorOutput);
 
     for (Iterator<Function> func_it = p.getFunctions(); func_it.hasNext();) {
       Function f = func_it.next();
       functions.put(f.getName(), f);
     }
+    for (Function f : functions.values()) {
+      if (f.isLowered())
+        prepare(f);
+    }
     long offset = 0;
     for (Iterator<GlobalDecl> glob_it = p.getGlobals(); glob_it.hasNext();) {
       GlobalDecl g = glob_it.next();
       offsetMap.put(g.getSymbol(), offset);
       offset += ((IntegerConstant) g.getNumElement()).getValue() * 8;
     }
+    memory = new GlobalMemory((int) (offset / 8));
+  }
+
+  public void setEngine(Engine engine) {
+    this.engine = engine;
+  }
+
+  /**
+   * Enables or disables superinstructions in the decoded engine, see {@link Fuser}. Profiled runs
+   * never use them.
+   */
+  public void setFusion(boolean fusion) {
+    this.fusion = fusion;
+  }
+
+  /**
+   * Sets the number of calls and back-edges after which the JIT engine compiles a function, see
+   * {@link ClosureEngine#setJitThreshold}, and the number of back-edges after which the trace
+   * engine records a loop, see {@link ClosureEngine#setTraceThreshold}.
+   */
+  public void setJitThreshold(int threshold) {
+    jitThreshold = threshold;
+  }
+
+  /**
+   * Returns the number of loops the last run of the trace engine compiled to JVM classes.
+   */
+  public int getTraces() {
+    return traces;
+  }
+
+  /**
+   * Returns the number of times the last run of the trace engine entered a compiled loop.
+   */
+  public long getTraceRuns() {
+    return traceRuns;
+  }
+
+  /**
+   * Returns the number of times a compiled loop of the last run of the trace engine left its path
+   * and returned to the closures.
+   */
+  public long getSideExits() {
+    return sideExits;
+  }
+
+  /**
+   * Returns the number of functions the last run of the JIT engine compiled to JVM classes.
+   */
+  public int getJitFunctions() {
+    return jitFunctions;
+  }
+
+  /**
+   * Returns the total size of the JVM classes the last run of the JIT engine compiled.
+   */
+  public long getJitBytes() {
+    return jitBytes;
+  }
+
+  /**
+   * Returns the time the last run of the JIT engine spent compiling JVM classes, which is part of
+   * {@link #getElapsedNanos()}.
+   */
+  public long getJitNanos() {
+    return jitNanos;
+  }
+
+  /**
+   * Returns the program the last run of the decoded engine executed, or null.
+   */
+  public DecodedProgram getDecodedProgram() {
+    return decoded;
+  }
+
+  /**
+   * Lays out the frame of f and resolves its calls. A function whose body is lowered lazily is
+   * prepared on its first call, so preparing it does not lower it before it runs.
+   */
+  private FrameLayout prepare(Function f) {
+    FrameLayout layout = new FrameLayout(f);
+    layouts.put(f, layout);
+    resolveCalls(f);
+    return layout;
+  }
+
+  /**
+   * Returns the frame layout of f, preparing f on its first call.
+   */
+  FrameLayout layoutOf(Function f) {
+    FrameLayout layout = layouts.get(f);
+    return layout != null ? layout : prepare(f);
+  }
+
+  /**
+   * Resolves the callee of every call in f to a builtin or a function of the program, so that
+   * executing a call does not need to look at the name of the callee.
+   */
+  private void resolveCalls(Function f) {
+    Stack<Instruction> tovisit = new Stack<>();
+    HashSet<Instruction> discovered = new HashSet<>();
+    if (f.getStart() != null)
+      tovisit.push(f.getStart());
+    while (!tovisit.isEmpty()) {
+      Instruction inst = tovisit.pop();
+      if (inst instanceof CallInst) {
+        Symbol callee = ((CallInst) inst).getCallee();
+        Builtin builtin = Builtin.lookup(callee.getName());
+        if (builtin != null) {
+          builtins.put(callee, builtin);
+        } else if (functions.containsKey(callee.getName())) {
+          callTargets.put(callee, functions.get(callee.getName()));
+        } else {
+          throw new Error("Call to undefined function " + callee.getName() + ".");
+        }
+      }
+      for (int i = 0; i < inst.numNext(); i++) {
+        Instruction child = inst.getNext(i);
+        if (child != null && discovered.add(child))
+          tovisit.push(child);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of instructions the last {@link #run()} executed.
+   */
+  public long getInstructionCount() {
+    return executed;
   }
 
-  public void run() {
+  /**
+   * Returns the number of instructions the decoded engine dispatched in the last {@link #run()},
+   * fewer than it executed when superinstructions do the work of several, or 0 for the other
+   * engines.
+   */
+  public long getDispatchCount() {
+    return dispatched;
+  }
+
+  /**
+   * Returns the {@link System#nanoTime()} at which the last {@link #run()} started executing
+   * instructions, after it prepared the program.
+   */
+  public long getStartNanos() {
+    return startedAt;
+  }
+
+  /**
+   * Returns the time the last {@link #run()} spent executing instructions, excluding decoding.
+   */
+  public long getElapsedNanos() {
+    return elapsedNanos;
+  }
+
+  /**
+   * Returns the time the last {@link #run()} spent decoding or compiling the program before it
+   * executed the first instruction, 0 for the engines that walk the instruction graph.
+   */
+  public long getCompileNanos() {
+    return compileNanos;
+  }
+
+  /**
+   * Enables or disables the {@code int?} prompt of {@code readInt}, see
+   * {@link EmulatorIO#setPrompts}.
+   */
+  public void setPrompts(boolean prompts) {
+    io.setPrompts(prompts);
+  }
+
+  /**
+   * Attaches a tracer that records every instruction the following runs execute, or detaches the
+   * tracer if it is null.
+   */
+  public void setTracer(Tracer tracer) {
+    this.tracer = tracer;
+  }
+
+  /**
+   * Attaches a profiler to the following runs, or detaches it if profiler is null. Only the
+   * decoded engine can be profiled.
+   */
+  public void setProfiler(Profiler profiler) {
+    this.profiler = profiler;
+  }
+
+  /**
+   * Adds the edges the following runs take to coverage, or stops recording if coverage is null.
+   * Only the decoded engine records coverage.
+   */
+  public void setCoverage(Coverage coverage) {
+    this.coverage = coverage;
+  }
+
+  /**
+   * Sets the limits of the following runs.
+   */
+  public void setLimits(ExecutionLimits limits) {
+    this.limits = limits;
+  }
+
+  /**
+   * Asks the running program to stop; the run then ends with
+   * {@link ExecutionResult.Status#CANCELLED}. Can be called from any thread, also before the run
+   * starts.
+   */
+  public void cancel() {
+    cancelled = true;
+    Interpreter running = interpreter;
+    if (running != null)
+      running.cancel();
+    ClosureEngine compiled = closures;
+    if (compiled != null)
+      compiled.cancel();
+  }
+
+  /**
+   * Runs the program until it completes or reaches one of its limits. Errors of the program
+   * itself, such as reading past the end of the input, are still thrown.
+   */
+  public ExecutionResult run() {
+    executed = 0;
+    dispatched = 0;
+    compileNanos = 0;
+    jitFunctions = 0;
+    jitBytes = 0;
+    jitNanos = 0;
+    traces = 0;
+    traceRuns = 0;
+    sideExits = 0;
+    if (profiler != null && engine != Engine.DECODED)
+      throw new Error("Profiling requires the decoded engine.");
+    if (coverage != null && engine != Engine.DECODED)
+      throw new Error("Coverage requires the decoded engine.");
+    if (Tracer.COMPILED && tracer != null && (engine == Engine.CLOSURE || engine == Engine.JIT
+        || engine == Engine.TRACE))
+      throw new Error("The closure engine cannot be traced.");
+    try {
+      switch (engine) {
+        case VISITOR:
+          return runVisitor();
+        case SLOTS:
+          return runSlots();
+        case CLOSURE:
+        case JIT:
+        case TRACE:
+          return runClosures();
+        default:
+          return runDecoded();
+      }
+    } finally {
+      io.flush();
+    }
+  }
+
+  private ExecutionResult runVisitor() {
+    if (Tracer.COMPILED && tracer != null)
+      startTrace();
+    long start = System.nanoTime();
+    startedAt = start;
+    startLimits(start);
     Function main = functions.get("main");
     CallContext mainc = new CallContext(main, null, null);
+    stack.clear();
     stack.push(mainc);
-    while (!stack.isEmpty()) {
-      CallContext c = stack.peek();
-      if (c.pc == null) {
-        // Handle implicit return from void function
-        stack.pop();
-      } else {
-        c.pc.accept(c);
+    try {
+      while (!stack.isEmpty()) {
+        CallContext c = stack.peek();
+        if (c.pc == null) {
+          // Handle implicit return from void function
+          stack.pop();
+        } else {
+          ExecutionResult.Status stop = checkLimits(stack.size());
+          if (stop != null)
+            return new ExecutionResult(stop, executed, limits);
+          executed++;
+          if (Tracer.COMPILED && tracer != null)
+            c.trace();
+          c.pc.accept(c);
+        }
       }
+      return new ExecutionResult(ExecutionResult.Status.COMPLETED, executed, limits);
+    } finally {
+      elapsedNanos = System.nanoTime() - start;
     }
   }
 
-  void debug(String msg) {
-    if (DEBUG)
-      out.println(msg);
+  private ExecutionResult runSlots() {
+    if (Tracer.COMPILED && tracer != null)
+      startTrace();
+    long start = System.nanoTime();
+    startedAt = start;
+    startLimits(start);
+    Function main = functions.get("main");
+    slotStack.clear();
+    slotStack.push(new SlotContext(main, -1));
+    try {
+      while (!slotStack.isEmpty()) {
+        SlotContext c = slotStack.peek();
+        if (c.pc < 0) {
+          // Handle implicit return from void function
+          slotStack.pop();
+        } else {
+          ExecutionResult.Status stop = checkLimits(slotStack.size());
+          if (stop != null)
+            return new ExecutionResult(stop, executed, limits);
+          executed++;
+          if (Tracer.COMPILED && tracer != null)
+            c.trace();
+          c.code[c.pc].accept(c);
+        }
+      }
+      return new ExecutionResult(ExecutionResult.Status.COMPLETED, executed, limits);
+    } finally {
+      elapsedNanos = System.nanoTime() - start;
+    }
+  }
+
+  /**
+   * Returns whether the bodies of all functions are lowered.
+   */
+  private boolean isLowered() {
+    for (Function f : functions.values()) {
+      if (!f.isLowered())
+        return false;
+    }
+    return true;
+  }
+
+  private ExecutionResult runDecoded() {
+    long decodeStart = System.nanoTime();
+    // A program whose functions are lowered lazily is decoded lazily too, unless it is profiled
+    if (profiler == null && !isLowered())
+      decoded = DecodedProgram.decodeLazily(program, fusion);
+    else
+      decoded = DecodedProgram.decode(program, fusion && profiler == null);
+    compileNanos = System.nanoTime() - decodeStart;
+    Interpreter interpreter = new Interpreter(decoded, io);
+    if (Tracer.COMPILED)
+      interpreter.setTracer(tracer);
+    interpreter.setProfiler(profiler);
+    interpreter.setCoverage(coverage);
+    interpreter.setLimits(limits);
+    this.interpreter = interpreter;
+    if (cancelled)
+      interpreter.cancel();
+    long start = System.nanoTime();
+    startedAt = start;
+    try {
+      return interpreter.run();
+    } finally {
+      elapsedNanos = System.nanoTime() - start;
+      executed = interpreter.getInstructionCount();
+      dispatched = interpreter.getDispatchCount();
+      this.interpreter = null;
+    }
+  }
+
+  private ExecutionResult runClosures() {
+    long compileStart = System.nanoTime();
+    ClosureEngine closures = new ClosureEngine(program, io);
+    compileNanos = System.nanoTime() - compileStart;
+    closures.setLimits(limits);
+    if (engine == Engine.JIT)
+      closures.setJitThreshold(jitThreshold);
+    else if (engine == Engine.TRACE)
+      closures.setTraceThreshold(jitThreshold);
+    this.closures = closures;
+    if (cancelled)
+      closures.cancel();
+    long start = System.nanoTime();
+    startedAt = start;
+    try {
+      return closures.run();
+    } finally {
+      elapsedNanos = System.nanoTime() - start;
+      executed = closures.getInstructionCount();
+      jitFunctions = closures.getJitFunctions();
+      jitBytes = closures.getJitBytes();
+      jitNanos = closures.getJitNanos();
+      traces = closures.getTraces();
+      traceRuns = closures.getTraceRuns();
+      sideExits = closures.getSideExits();
+      this.closures = null;
+    }
+  }
+
+  private void startLimits(long start) {
+    deadline = limits.deadline(start);
+    nextPoll = limits.nextPoll(0);
+  }
+
+  /**
+   * Returns the limit the graph engines have reached before executing the next instruction with
+   * callDepth active calls, or null if they may continue. The walk of the instruction graph
+   * dominates the cost of these engines, so they check before every instruction.
+   */
+  private ExecutionResult.Status checkLimits(int callDepth) {
+    if (callDepth > limits.getMaxCallDepth())
+      return ExecutionResult.Status.CALL_DEPTH_LIMIT;
+    if (memory.getTouchedWords() > limits.getMaxTouchedWords())
+      return ExecutionResult.Status.MEMORY_LIMIT;
+    if (executed < nextPoll)
+      return null;
+    nextPoll = limits.nextPoll(executed);
+    return limits.poll(executed, deadline, cancelled);
+  }
+
+  /**
+   * Numbers the instructions of the graph engines for the tracer in the order they first execute.
+   */
+  private void startTrace() {
+    traceSites = new IdentityHashMap<>();
+    traceInstructions = new ArrayList<>();
+    traceFunctions = new ArrayList<>();
+    var formatter = new IRValueFormatter();
+    tracer.setSites(site -> traceFunctions.get((int) site).getName() + ": "
+        + traceInstructions.get((int) site).format(formatter));
+  }
+
+  private long traceSite(Function f, Instruction inst) {
+    Integer site = traceSites.get(inst);
+    if (site == null) {
+      site = traceInstructions.size();
+      traceSites.put(inst, site);
+      traceInstructions.add(inst);
+      traceFunctions.add(f);
+    }
+    return site;
+  }
+
+  private static long constantValue(Value v) {
+    if (v instanceof IntegerConstant)
+      return ((IntegerConstant) v).getValue();
+    return ((BooleanConstant) v).getValue() ? 1 : 0;
   }
 
   class CallContext extends InstVisitor {
@@ -60,6 +529,7 @@ public class Emulator {
 
     CallContext(Function f, Object[] arguments, LocalVar retval) {
       this.f = f;
+      layoutOf(f);
       pc = f.getStart();
       localMap = new HashMap<>();
       if (arguments != null) {
@@ -71,6 +541,21 @@ public class Emulator {
       this.retval = retval;
     }
 
+    void trace() {
+      List<Value> operands = pc.mOperands;
+      tracer.record(traceSite(f, pc), operands.size() > 0 ? input(operands.get(0)) : 0,
+          operands.size() > 1 ? input(operands.get(1)) : 0);
+    }
+
+    private long input(Value v) {
+      if (v instanceof Constant)
+        return constantValue(v);
+      Object value = localMap.get(v);
+      if (value instanceof Boolean)
+        return (Boolean) value ? 1 : 0;
+      return value instanceof Long ? (Long) value : 0;
+    }
+
     public void visit(AddressAt i) {
       Symbol base = i.getBase();
       long address = offsetMap.get(base);
@@ -79,7 +564,6 @@ public class Emulator {
         address += 8 * ((Long) localMap.get(v));
       }
       localMap.put(i.getDst(), address);
-      debug("AddressAt: " + i.getDst() + " = " + address);
       pc = pc.getNext(0);
     }
 
@@ -102,7 +586,6 @@ public class Emulator {
           break;
       }
       localMap.put(i.getDst(), result);
-      debug("BinaryOperator: " + i.getDst() + "=" + left + i.getOperator() + right);
       pc = pc.getNext(0);
     }
 
@@ -131,7 +614,6 @@ public class Emulator {
           break;
       }
       localMap.put(i.getDst(), result);
-      debug("CompareInst: " + i.getDst() + "=" + left + i.getPredicate() + right);
       pc = pc.getNext(0);
     }
 
@@ -146,25 +628,23 @@ public class Emulator {
         val = localMap.get(srcval);
       }
 
-      debug("CopyInst: " + i.getDstVar() + "=" + val);
       localMap.put(i.getDstVar(), val);
       pc = pc.getNext(0);
     }
 
     public void visit(JumpInst i) {
       Boolean pred = (Boolean) localMap.get(i.getPredicate());
-      debug("Jump: " + i.getPredicate() + "=" + pred);
       pc = pred ? pc.getNext(1) : pc.getNext(0);
     }
 
     public void visit(LoadInst i) {
       AddressVar var = i.getSrcAddress();
       Long address = (Long) localMap.get(var);
-      Long value = globalMap.get(address);
-      if (value == null) {
-        out.println("Reading from uninitialized memory");
-        value = Long.valueOf(0);
+      int word = memory.check(address >> 3);
+      if (!memory.isInitialized(word)) {
+        io.println("Reading from uninitialized memory");
       }
+      Long value = memory.load(word);
 
       Object val;
       if (var.getType() instanceof IntType) {
@@ -173,14 +653,12 @@ public class Emulator {
         val = Boolean.valueOf(value != 0);
       }
 
-      debug("LoadInst: " + i.getDst() + "=" + val);
       localMap.put(i.getDst(), val);
       pc = pc.getNext(0);
     }
 
     public void visit(NopInst i) {
       // Do nothing
-      debug("Nop:");
       pc = pc.getNext(0);
     }
 
@@ -189,19 +667,18 @@ public class Emulator {
       Object val = localMap.get(srcval);
       AddressVar dst = i.getDestAddress();
       Long address = (Long) localMap.get(dst);
-      debug("StoreInst: *" + address + "=" + val);
 
+      int word = memory.check(address >> 3);
       if (val instanceof Long) {
-        globalMap.put(address, (Long) val);
+        memory.store(word, (Long) val);
       } else if (val instanceof Boolean) {
-        globalMap.put(address, ((Boolean) val) ? Long.valueOf(1) : Long.valueOf(0));
+        memory.store(word, ((Boolean) val) ? 1 : 0);
       }
       pc = pc.getNext(0);
     }
 
     public void visit(ReturnInst i) {
       Object val = i.getReturnValue() != null ? localMap.get(i.getReturnValue()) : null;
-      debug("ReturnInst: " + val);
       // Remove ourselves from the stack
       stack.pop();
       // Return value to caller
@@ -220,38 +697,33 @@ public class Emulator {
       }
 
       Symbol varCallee = i.getCallee();
-      String fName = varCallee.getName();
-      debug("Calling " + fName + " with " + Arrays.toString(args));
-
-      if (fName.equals("readInt")) {
-        try {
-          out.print("int?");
-          String line = br.readLine();
-          localMap.put(i.mDestVar, Long.valueOf(line));
-        } catch (IOException e) {
-          throw new Error("Error in inputting Integer.");
-        }
-      } else if (fName.equals("readChar")) {
-        try {
-          int val = br.read();
-          if (val == -1)
-            throw new Error("Reading past end of stream.");
-          localMap.put(i.mDestVar, new Long(val));
-        } catch (IOException e) {
-          throw new Error("Error in inputting Integer.");
-        }
-      } else if (fName.equals("printBool")) {
-        out.print(args[0]);
-      } else if (fName.equals("printInt")) {
-        out.print(args[0]);
-      } else if (fName.equals("printChar")) {
-        out.print((char) ((Long) args[0]).longValue());
-      } else if (fName.equals("println")) {
-        out.println("");
-      } else {
-        Function f = functions.get(fName);
+
+      Builtin builtin = builtins.get(varCallee);
+      if (builtin == null) {
+        Function f = callTargets.get(varCallee);
         CallContext callee = new CallContext(f, args, (LocalVar) i.getDst());
         stack.push(callee);
+      } else {
+        switch (builtin) {
+          case READ_INT:
+            localMap.put(i.mDestVar, Long.valueOf(io.readInt()));
+            break;
+          case READ_CHAR:
+            localMap.put(i.mDestVar, Long.valueOf(io.readChar()));
+            break;
+          case PRINT_BOOL:
+            io.printBool((Boolean) args[0]);
+            break;
+          case PRINT_INT:
+            io.printInt((Long) args[0]);
+            break;
+          case PRINT_CHAR:
+            io.printChar((Long) args[0]);
+            break;
+          case PRINTLN:
+            io.println();
+            break;
+        }
       }
       pc = pc.getNext(0);
     }
@@ -260,8 +732,211 @@ public class Emulator {
       Object left = localMap.get(i.getInner());
       Object result = !((Boolean) left);
       localMap.put(i.getDst(), result);
-      debug("UnaryNotInst: " + result);
       pc = pc.getNext(0);
     }
   }
+
+  /**
+   * Executes one call like {@link CallContext}, but keeps every value in a slot of a primitive
+   * frame laid out by {@link FrameLayout}. Booleans are stored as 0 or 1. The program counter is
+   * the number the layout gave the instruction, and operands are read through the slots the layout
+   * resolved, so arithmetic, comparisons, copies and jumps neither allocate nor look anything up.
+   */
+  class SlotContext extends InstVisitor {
+    final Function f;
+    final FrameLayout layout;
+    final long[] slots;
+    final int retSlot;
+    final Instruction[] code;
+    final int[][] operandSlots;
+    final int[] destSlots;
+    final int[][] successors;
+    /** The number of the next instruction, or -1 once the function falls off its end. */
+    int pc;
+
+    SlotContext(Function f, int retSlot) {
+      this.f = f;
+      layout = layoutOf(f);
+      slots = new long[layout.size()];
+      this.retSlot = retSlot;
+      code = layout.code;
+      operandSlots = layout.operandSlots;
+      destSlots = layout.destSlots;
+      successors = layout.successors;
+      pc = code.length > 0 ? 0 : -1;
+    }
+
+    /**
+     * Returns operand i of the current instruction, which must be a variable.
+     */
+    long get(int i) {
+      return slots[operandSlots[pc][i]];
+    }
+
+    /**
+     * Writes the destination of the current instruction.
+     */
+    void set(long value) {
+      slots[destSlots[pc]] = value;
+    }
+
+    void next(int i) {
+      int[] next = successors[pc];
+      pc = i < next.length ? next[i] : -1;
+    }
+
+    void trace() {
+      List<Value> operands = code[pc].mOperands;
+      tracer.record(traceSite(f, code[pc]), operands.size() > 0 ? input(0) : 0,
+          operands.size() > 1 ? input(1) : 0);
+    }
+
+    private long input(int i) {
+      int slot = operandSlots[pc][i];
+      if (slot < 0)
+        return constantValue(code[pc].mOperands.get(i));
+      return slots[slot];
+    }
+
+    public void visit(AddressAt i) {
+      long address = offsetMap.get(i.getBase());
+      if (i.getOffset() != null) {
+        address += 8 * get(0);
+      }
+      set(address);
+      next(0);
+    }
+
+    public void visit(BinaryOperator i) {
+      long left = get(0);
+      long right = get(1);
+      long result = 0;
+      switch (i.getOperator()) {
+        case Add:
+          result = left + right;
+          break;
+        case Sub:
+          result = left - right;
+          break;
+        case Mul:
+          result = left * right;
+          break;
+        case Div:
+          result = left / right;
+          break;
+      }
+      set(result);
+      next(0);
+    }
+
+    public void visit(CompareInst i) {
+      long left = get(0);
+      long right = get(1);
+      boolean result = false;
+      switch (i.getPredicate()) {
+        case GE:
+          result = left >= right;
+          break;
+        case GT:
+          result = left > right;
+          break;
+        case LE:
+          result = left <= right;
+          break;
+        case LT:
+          result = left < right;
+          break;
+        case EQ:
+          result = left == right;
+          break;
+        case NE:
+          result = left != right;
+          break;
+      }
+      set(result ? 1 : 0);
+      next(0);
+    }
+
+    public void visit(CopyInst i) {
+      set(input(0));
+      next(0);
+    }
+
+    public void visit(JumpInst i) {
+      next(get(0) != 0 ? 1 : 0);
+    }
+
+    public void visit(LoadInst i) {
+      int word = memory.check(get(0) >> 3);
+      if (!memory.isInitialized(word)) {
+        io.println("Reading from uninitialized memory");
+      }
+      long value = memory.load(word);
+      long val = i.getSrcAddress().getType() instanceof IntType ? value : (value != 0 ? 1 : 0);
+      set(val);
+      next(0);
+    }
+
+    public void visit(NopInst i) {
+      // Do nothing
+      next(0);
+    }
+
+    public void visit(StoreInst i) {
+      long val = get(0);
+      long address = get(1);
+      memory.store(memory.check(address >> 3), val);
+      next(0);
+    }
+
+    public void visit(ReturnInst i) {
+      long val = get(0);
+      // Remove ourselves from the stack
+      slotStack.pop();
+      // Return value to caller
+      if (!slotStack.isEmpty() && retSlot >= 0) {
+        slotStack.peek().slots[retSlot] = val;
+      }
+    }
+
+    public void visit(CallInst i) {
+      int[] params = operandSlots[pc];
+      Builtin builtin = builtins.get(i.getCallee());
+      if (builtin == null) {
+        Function f = callTargets.get(i.getCallee());
+        SlotContext callee = new SlotContext(f, destSlots[pc]);
+        for (int j = 0; j < params.length; j++) {
+          callee.slots[callee.layout.argSlot(j)] = slots[params[j]];
+        }
+        slotStack.push(callee);
+      } else {
+        switch (builtin) {
+          case READ_INT:
+            set(io.readInt());
+            break;
+          case READ_CHAR:
+            set(io.readChar());
+            break;
+          case PRINT_BOOL:
+            io.printBool(get(0) != 0);
+            break;
+          case PRINT_INT:
+            io.printInt(get(0));
+            break;
+          case PRINT_CHAR:
+            io.printChar(get(0));
+            break;
+          case PRINTLN:
+            io.println();
+            break;
+        }
+      }
+      next(0);
+    }
+
+    public void visit(UnaryNotInst i) {
+      set(get(0) != 0 ? 0 : 1);
+      next(0);
+    }
+  }
 }
@@ -0,0 +1,260 @@
+package crux.ir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Buffered input and output of an emulated program. Output is collected in a reusable byte buffer
+ * and integers are formatted and parsed without allocating. Characters are read and written as
+ * UTF-8. Buffered output is flushed when the buffer is full, before the program blocks waiting for
+ * input, and when the program exits. The {@code int?} prompt of {@code readInt} can be suppressed
+ * for batch runs.
+ */
+public final class EmulatorIO {
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final InputStream in;
+  private final OutputStream out;
+  private final byte[] inBuf = new byte[BUFFER_SIZE];
+  private int inPos;
+  private int inLimit;
+  private final byte[] outBuf = new byte[BUFFER_SIZE];
+  private int outPos;
+  private final byte[] digits = new byte[20];
+  private int pendingLowSurrogate = -1;
+  private boolean prompts = true;
+
+  public EmulatorIO(InputStream in, OutputStream out) {
+    this.in = in;
+    this.out = out;
+  }
+
+  /**
+   * Enables or disables the {@code int?} prompt printed by {@code readInt}.
+   */
+  public void setPrompts(boolean prompts) {
+    this.prompts = prompts;
+  }
+
+  /**
+   * Implements the {@code readInt} builtin: prints the prompt and parses one line of input. A
+   * number outside the range of a long is an error, as it is for {@link Long#parseLong}.
+   */
+  public long readInt() {
+    if (prompts)
+      print("int?");
+    int c = readByte();
+    if (c == -1)
+      throw new Error("Reading past end of stream.");
+    while (c == ' ' || c == '\t')
+      c = readByte();
+    boolean negative = c == '-';
+    if (c == '-' || c == '+')
+      c = readByte();
+    if (c < '0' || c > '9')
+      throw new Error("Error in inputting Integer.");
+    long value = 0;
+    while (c >= '0' && c <= '9') {
+      // Accumulate negatively, so that Long.MIN_VALUE can be represented
+      int digit = c - '0';
+      if (value < (Long.MIN_VALUE + digit) / 10)
+        throw new Error("Error in inputting Integer.");
+      value = value * 10 - digit;
+      c = readByte();
+    }
+    while (c == ' ' || c == '\t' || c == '\r')
+      c = readByte();
+    if (c != '\n' && c != -1 || !negative && value == Long.MIN_VALUE)
+      throw new Error("Error in inputting Integer.");
+    return negative ? value : -value;
+  }
+
+  /**
+   * Implements the {@code readChar} builtin: reads one UTF-16 character of UTF-8 input.
+   */
+  public long readChar() {
+    if (pendingLowSurrogate >= 0) {
+      int low = pendingLowSurrogate;
+      pendingLowSurrogate = -1;
+      return low;
+    }
+    int c = readByte();
+    if (c == -1)
+      throw new Error("Reading past end of stream.");
+    if (c < 0x80)
+      return c;
+
+    int extra;
+    int codePoint;
+    if ((c & 0xE0) == 0xC0) {
+      extra = 1;
+      codePoint = c & 0x1F;
+    } else if ((c & 0xF0) == 0xE0) {
+      extra = 2;
+      codePoint = c & 0x0F;
+    } else if ((c & 0xF8) == 0xF0) {
+      extra = 3;
+      codePoint = c & 0x07;
+    } else {
+      return 0xFFFD;
+    }
+    for (int i = 0; i < extra; i++) {
+      c = peekByte();
+      if (c == -1 || (c & 0xC0) != 0x80)
+        return 0xFFFD;
+      inPos++;
+      codePoint = (codePoint << 6) | (c & 0x3F);
+    }
+    if (codePoint > 0xFFFF) {
+      pendingLowSurrogate = Character.lowSurrogate(codePoint);
+      return Character.highSurrogate(codePoint);
+    }
+    return codePoint;
+  }
+
+  public void printInt(long value) {
+    ensureOutput(digits.length);
+    int pos = digits.length;
+    // Format negatively, so that Long.MIN_VALUE can be represented
+    long v = value < 0 ? value : -value;
+    do {
+      digits[--pos] = (byte) ('0' - v % 10);
+      v /= 10;
+    } while (v != 0);
+    if (value < 0)
+      outBuf[outPos++] = '-';
+    int length = digits.length - pos;
+    System.arraycopy(digits, pos, outBuf, outPos, length);
+    outPos += length;
+  }
+
+  public void printBool(boolean value) {
+    print(value ? "true" : "false");
+  }
+
+  /**
+   * Implements the {@code printChar} builtin: prints the value as a UTF-16 character.
+   */
+  public void printChar(long value) {
+    char c = (char) value;
+    if (c < 0x80) {
+      ensureOutput(1);
+      outBuf[outPos++] = (byte) c;
+    } else {
+      print(String.valueOf(c));
+    }
+  }
+
+  public void println() {
+    ensureOutput(1);
+    outBuf[outPos++] = '\n';
+  }
+
+  /**
+   * Prints a message, such as a diagnostic, in order with the output of the program.
+   */
+  public void print(String s) {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        ensureOutput(1);
+        outBuf[outPos++] = (byte) c;
+      } else {
+        int codePoint = c;
+        if (Character.isHighSurrogate(c) && i + 1 < s.length()
+            && Character.isLowSurrogate(s.charAt(i + 1))) {
+          codePoint = Character.toCodePoint(c, s.charAt(++i));
+        } else if (Character.isSurrogate(c)) {
+          codePoint = '?';
+        }
+        writeCodePoint(codePoint);
+      }
+    }
+  }
+
+  public void println(String s) {
+    print(s);
+    println();
+  }
+
+  /**
+   * Writes bytes that another run already printed, such as the output of a {@link Checkpoint}.
+   */
+  void write(byte[] bytes) {
+    flush();
+    try {
+      out.write(bytes);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Writes all buffered output to the underlying stream.
+   */
+  public void flush() {
+    try {
+      if (outPos > 0) {
+        out.write(outBuf, 0, outPos);
+        outPos = 0;
+      }
+      out.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void writeCodePoint(int codePoint) {
+    ensureOutput(4);
+    if (codePoint < 0x80) {
+      outBuf[outPos++] = (byte) codePoint;
+    } else if (codePoint < 0x800) {
+      outBuf[outPos++] = (byte) (0xC0 | (codePoint >> 6));
+      outBuf[outPos++] = (byte) (0x80 | (codePoint & 0x3F));
+    } else if (codePoint < 0x10000) {
+      outBuf[outPos++] = (byte) (0xE0 | (codePoint >> 12));
+      outBuf[outPos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+      outBuf[outPos++] = (byte) (0x80 | (codePoint & 0x3F));
+    } else {
+      outBuf[outPos++] = (byte) (0xF0 | (codePoint >> 18));
+      outBuf[outPos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+      outBuf[outPos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+      outBuf[outPos++] = (byte) (0x80 | (codePoint & 0x3F));
+    }
+  }
+
+  private void ensureOutput(int length) {
+    if (outPos + length > outBuf.length)
+      flush();
+  }
+
+  private int readByte() {
+    int c = peekByte();
+    if (c != -1)
+      inPos++;
+    return c;
+  }
+
+  private int peekByte() {
+    if (inPos == inLimit && !fill())
+      return -1;
+    return inBuf[inPos] & 0xFF;
+  }
+
+  private boolean fill() {
+    // The program is about to block on input, so make sure it has seen all output so far
+    flush();
+    try {
+      int n = in.read(inBuf, 0, inBuf.length);
+      if (n <= 0)
+        return false;
+      inPos = 0;
+      inLimit = n;
+      return true;
+    } catch (IOException e) {
+      throw new Error("Error in inputting Integer.");
+    }
+  }
+}
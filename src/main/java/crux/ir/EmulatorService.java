@@ -0,0 +1,398 @@
+package crux.ir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs many emulated programs, or many inputs of one program, concurrently. Every job gets its own
+ * {@link Interpreter} with its own frames, global memory and in-memory input and output, while the
+ * {@link DecodedProgram} is decoded once per {@link Program} and shared read-only by all its jobs.
+ * <p>
+ * Jobs run on virtual threads when the JVM has them and on a fixed pool of one platform thread per
+ * processor otherwise. The service counts jobs, instructions and latencies, see {@link Stats}.
+ */
+public final class EmulatorService implements AutoCloseable {
+  private final ExecutorService executor;
+  private final Map<Program, DecodedProgram> decoded =
+      Collections.synchronizedMap(new WeakHashMap<>());
+  private volatile ExecutionLimits limits = new ExecutionLimits();
+  private volatile boolean prompts = true;
+  private volatile boolean coverage;
+
+  private final long started = System.nanoTime();
+  private final LongAdder submitted = new LongAdder();
+  private final LongAdder completed = new LongAdder();
+  private final LongAdder stopped = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final LongAdder instructions = new LongAdder();
+  private final LongAdder latencyNanos = new LongAdder();
+  private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+  /** Finished jobs by latency; bucket i counts latencies of less than 2^i microseconds. */
+  private final AtomicLongArray latencyBuckets = new AtomicLongArray(64);
+
+  public EmulatorService() {
+    this(newDefaultExecutor());
+  }
+
+  /**
+   * Creates a service that runs its jobs on executor and shuts it down when closed.
+   */
+  public EmulatorService(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Returns a virtual thread per task executor if the JVM supports virtual threads, and otherwise
+   * a pool with one thread per processor.
+   */
+  private static ExecutorService newDefaultExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+  }
+
+  /**
+   * Sets the limits of every job submitted afterwards.
+   */
+  public void setLimits(ExecutionLimits limits) {
+    this.limits = limits;
+  }
+
+  /**
+   * Enables or disables the {@code int?} prompt of {@code readInt} for jobs submitted afterwards.
+   */
+  public void setPrompts(boolean prompts) {
+    this.prompts = prompts;
+  }
+
+  /**
+   * Enables or disables recording a {@link Coverage} map of each job submitted afterwards, see
+   * {@link Result#getCoverage()}. Jobs resumed from a checkpoint include the edges taken before
+   * it only if the checkpoint recorded them.
+   */
+  public void setCoverage(boolean coverage) {
+    this.coverage = coverage;
+  }
+
+  /**
+   * Returns the decoded form of program, decoding it on first use.
+   */
+  public DecodedProgram decode(Program program) {
+    return decoded.computeIfAbsent(program, DecodedProgram::decode);
+  }
+
+  public Job submit(Program program, byte[] input) {
+    return submit(decode(program), input);
+  }
+
+  /**
+   * Runs program on input as a new job.
+   */
+  public Job submit(DecodedProgram program, byte[] input) {
+    submitted.increment();
+    return new Job(program, null, input, limits, prompts, coverage);
+  }
+
+  /**
+   * Continues the program of checkpoint on input as a new job. The instructions executed before
+   * the checkpoint count towards the limits of the job, but not towards the {@link Stats}.
+   */
+  public Job submit(Checkpoint checkpoint, byte[] input) {
+    submitted.increment();
+    return new Job(checkpoint.program, checkpoint, input, limits, prompts, coverage);
+  }
+
+  /**
+   * A submitted run of a program on one input.
+   */
+  public final class Job {
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private final Interpreter interpreter;
+    private final Coverage coverage;
+    private final long skipped;
+    private final long submittedAt = System.nanoTime();
+    private final CompletableFuture<Result> future;
+
+    private Job(DecodedProgram program, Checkpoint checkpoint, byte[] input,
+        ExecutionLimits limits, boolean prompts, boolean coverage) {
+      EmulatorIO io = new EmulatorIO(new ByteArrayInputStream(input), output);
+      io.setPrompts(prompts);
+      interpreter =
+          checkpoint != null ? new Interpreter(checkpoint, io) : new Interpreter(program, io);
+      skipped = checkpoint != null ? checkpoint.count : 0;
+      interpreter.setLimits(limits);
+      this.coverage = coverage ? new Coverage() : null;
+      interpreter.setCoverage(this.coverage);
+      future = CompletableFuture.supplyAsync(this::run, executor);
+    }
+
+    private Result run() {
+      long start = System.nanoTime();
+      ExecutionResult execution = null;
+      Throwable error = null;
+      try {
+        execution = interpreter.run();
+      } catch (RuntimeException | Error e) {
+        error = e;
+      }
+      long end = System.nanoTime();
+      record(execution, error, interpreter.getInstructionCount() - skipped, end - submittedAt);
+      return new Result(execution, error, output.toByteArray(), end - submittedAt, end - start,
+          coverage);
+    }
+
+    /**
+     * Returns the future result of the job.
+     */
+    public CompletableFuture<Result> future() {
+      return future;
+    }
+
+    /**
+     * Waits for the job to finish and returns its result.
+     */
+    public Result getResult() {
+      return future.join();
+    }
+
+    /**
+     * Stops the job at its next poll, see {@link Interpreter#cancel()}.
+     */
+    public void cancel() {
+      interpreter.cancel();
+    }
+  }
+
+  /**
+   * The outcome of a job: how the run ended or the error the program raised, and its output.
+   */
+  public static final class Result {
+    private final ExecutionResult execution;
+    private final Throwable error;
+    private final byte[] output;
+    private final long latencyNanos;
+    private final long runNanos;
+    private final Coverage coverage;
+
+    Result(ExecutionResult execution, Throwable error, byte[] output, long latencyNanos,
+        long runNanos) {
+      this(execution, error, output, latencyNanos, runNanos, null);
+    }
+
+    Result(ExecutionResult execution, Throwable error, byte[] output, long latencyNanos,
+        long runNanos, Coverage coverage) {
+      this.execution = execution;
+      this.error = error;
+      this.output = output;
+      this.latencyNanos = latencyNanos;
+      this.runNanos = runNanos;
+      this.coverage = coverage;
+    }
+
+    /**
+     * Returns how the run ended, or null if the program raised an error.
+     */
+    public ExecutionResult getExecution() {
+      return execution;
+    }
+
+    /**
+     * Returns the error the program raised, or null.
+     */
+    public Throwable getError() {
+      return error;
+    }
+
+    public byte[] getOutput() {
+      return output;
+    }
+
+    public String getOutputString() {
+      return new String(output, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the time from submitting the job until it finished, including the time it waited.
+     */
+    public long getLatencyNanos() {
+      return latencyNanos;
+    }
+
+    /**
+     * Returns the time the job ran.
+     */
+    public long getRunNanos() {
+      return runNanos;
+    }
+
+    /**
+     * Returns the hit counts of the edges the run took, or null if coverage was not enabled.
+     */
+    public Coverage getCoverage() {
+      return coverage;
+    }
+  }
+
+  private void record(ExecutionResult execution, Throwable error, long count, long latency) {
+    if (error != null)
+      failed.increment();
+    else if (execution.isCompleted())
+      completed.increment();
+    else
+      stopped.increment();
+    instructions.add(count);
+    latencyNanos.add(latency);
+    maxLatencyNanos.accumulate(latency);
+    latencyBuckets.incrementAndGet(64 - Long.numberOfLeadingZeros(latency / 1000));
+  }
+
+  /**
+   * A snapshot of the counters of the service.
+   */
+  public static final class Stats {
+    private final long submitted;
+    private final long completed;
+    private final long stopped;
+    private final long failed;
+    private final long instructions;
+    private final double seconds;
+    private final double meanLatencyMillis;
+    private final double p50LatencyMillis;
+    private final double p99LatencyMillis;
+    private final double maxLatencyMillis;
+
+    Stats(EmulatorService s) {
+      submitted = s.submitted.sum();
+      completed = s.completed.sum();
+      stopped = s.stopped.sum();
+      failed = s.failed.sum();
+      instructions = s.instructions.sum();
+      seconds = (System.nanoTime() - s.started) / 1e9;
+      long finished = completed + stopped + failed;
+      meanLatencyMillis = finished > 0 ? s.latencyNanos.sum() / 1e6 / finished : 0;
+      p50LatencyMillis = s.latencyPercentile(0.5);
+      p99LatencyMillis = s.latencyPercentile(0.99);
+      maxLatencyMillis = s.maxLatencyNanos.get() / 1e6;
+    }
+
+    public long getSubmitted() {
+      return submitted;
+    }
+
+    /**
+     * Returns the number of jobs whose program ran to its end.
+     */
+    public long getCompleted() {
+      return completed;
+    }
+
+    /**
+     * Returns the number of jobs that reached a limit or were cancelled.
+     */
+    public long getStopped() {
+      return stopped;
+    }
+
+    /**
+     * Returns the number of jobs whose program raised an error.
+     */
+    public long getFailed() {
+      return failed;
+    }
+
+    public long getInstructions() {
+      return instructions;
+    }
+
+    /**
+     * Returns the number of finished jobs per second since the service started.
+     */
+    public double getJobsPerSecond() {
+      return (completed + stopped + failed) / seconds;
+    }
+
+    public double getInstructionsPerSecond() {
+      return instructions / seconds;
+    }
+
+    public double getMeanLatencyMillis() {
+      return meanLatencyMillis;
+    }
+
+    /**
+     * Returns a bound below which the latency of half of the finished jobs is.
+     */
+    public double getMedianLatencyMillis() {
+      return p50LatencyMillis;
+    }
+
+    /**
+     * Returns a bound below which the latency of 99% of the finished jobs is.
+     */
+    public double getP99LatencyMillis() {
+      return p99LatencyMillis;
+    }
+
+    public double getMaxLatencyMillis() {
+      return maxLatencyMillis;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%d jobs submitted, %d completed, %d stopped, %d failed; %.1f jobs/s, "
+              + "%.0f instructions/s; latency mean %.3f ms, p50 < %.3f ms, p99 < %.3f ms, "
+              + "max %.3f ms",
+          submitted, completed, stopped, failed, getJobsPerSecond(), getInstructionsPerSecond(),
+          meanLatencyMillis, p50LatencyMillis, p99LatencyMillis, maxLatencyMillis);
+    }
+  }
+
+  /**
+   * Returns the current counters of the service.
+   */
+  public Stats getStats() {
+    return new Stats(this);
+  }
+
+  /**
+   * Returns an upper bound of the latency below which fraction of the finished jobs are, as the
+   * bound of the latency bucket the fraction falls in.
+   */
+  private double latencyPercentile(double fraction) {
+    long total = 0;
+    for (int i = 0; i < latencyBuckets.length(); i++)
+      total += latencyBuckets.get(i);
+    long seen = 0;
+    for (int i = 0; i < latencyBuckets.length(); i++) {
+      seen += latencyBuckets.get(i);
+      if (total > 0 && seen >= fraction * total)
+        return Math.scalb(1.0, i) / 1000;
+    }
+    return 0;
+  }
+
+  /**
+   * Waits for the running jobs and shuts down the executor of the service.
+   */
+  @Override
+  public void close() {
+    executor.shutdown();
+    try {
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
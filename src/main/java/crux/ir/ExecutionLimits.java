@@ -0,0 +1,90 @@
+package crux.ir;
+
+/**
+ * Bounds on the resources one run of an emulated program may use. All limits are off by default.
+ * <p>
+ * The engines do not test every limit after every instruction. They test the call depth on every
+ * call and the memory whenever a word is written for the first time. The instruction count is
+ * tested at taken branches and calls, and the deadline and cancellation only there once
+ * {@link #POLL_INTERVAL} instructions have executed since the last test. Every loop and every
+ * recursion passes such a point, so a run overshoots the instruction limit by at most a few
+ * instructions and notices the deadline or a cancellation within one poll interval. The
+ * {@link ClosureEngine} tests all limits at the end of every basic block instead.
+ */
+public final class ExecutionLimits {
+  /** The number of instructions between two tests of the deadline and cancellation. */
+  static final long POLL_INTERVAL = 1 << 16;
+
+  private long maxInstructions = Long.MAX_VALUE;
+  private int maxCallDepth = Integer.MAX_VALUE;
+  private long maxTouchedWords = Long.MAX_VALUE;
+  private long timeoutNanos = Long.MAX_VALUE;
+
+  public long getMaxInstructions() {
+    return maxInstructions;
+  }
+
+  public void setMaxInstructions(long maxInstructions) {
+    this.maxInstructions = maxInstructions;
+  }
+
+  /**
+   * Returns the maximum number of active calls, including the call of main.
+   */
+  public int getMaxCallDepth() {
+    return maxCallDepth;
+  }
+
+  public void setMaxCallDepth(int maxCallDepth) {
+    this.maxCallDepth = maxCallDepth;
+  }
+
+  /**
+   * Returns the maximum number of words of global memory a run may write.
+   */
+  public long getMaxTouchedWords() {
+    return maxTouchedWords;
+  }
+
+  public void setMaxTouchedWords(long maxTouchedWords) {
+    this.maxTouchedWords = maxTouchedWords;
+  }
+
+  public long getTimeoutNanos() {
+    return timeoutNanos;
+  }
+
+  /**
+   * Sets the wall-clock time a run may take, measured from the start of the run.
+   */
+  public void setTimeoutNanos(long timeoutNanos) {
+    this.timeoutNanos = timeoutNanos;
+  }
+
+  /**
+   * Returns the deadline of a run that starts at the given {@link System#nanoTime()}.
+   */
+  long deadline(long start) {
+    return timeoutNanos == Long.MAX_VALUE ? Long.MAX_VALUE : start + timeoutNanos;
+  }
+
+  /**
+   * Returns the instruction count at which a run that has executed count instructions polls next.
+   */
+  long nextPoll(long count) {
+    return Math.min(count + POLL_INTERVAL, maxInstructions);
+  }
+
+  /**
+   * Returns the limit a run has reached, or null if it may continue.
+   */
+  ExecutionResult.Status poll(long count, long deadline, boolean cancelled) {
+    if (cancelled)
+      return ExecutionResult.Status.CANCELLED;
+    if (count >= maxInstructions)
+      return ExecutionResult.Status.INSTRUCTION_LIMIT;
+    if (deadline != Long.MAX_VALUE && System.nanoTime() - deadline > 0)
+      return ExecutionResult.Status.DEADLINE;
+    return null;
+  }
+}
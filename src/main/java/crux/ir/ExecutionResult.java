@@ -0,0 +1,67 @@
+package crux.ir;
+
+/**
+ * How a run of an emulated program ended: either the program completed, or the run was stopped
+ * because it reached one of its {@link ExecutionLimits} or was cancelled.
+ */
+public final class ExecutionResult {
+  public enum Status {
+    COMPLETED, INSTRUCTION_LIMIT, CALL_DEPTH_LIMIT, MEMORY_LIMIT, DEADLINE, CANCELLED;
+  }
+
+  private final Status status;
+  private final long instructions;
+  private final String message;
+
+  ExecutionResult(Status status, long instructions, ExecutionLimits limits) {
+    this.status = status;
+    this.instructions = instructions;
+    switch (status) {
+      case INSTRUCTION_LIMIT:
+        message = String.format("instruction limit of %d reached", limits.getMaxInstructions());
+        break;
+      case CALL_DEPTH_LIMIT:
+        message = String.format("call depth limit of %d reached", limits.getMaxCallDepth());
+        break;
+      case MEMORY_LIMIT:
+        message = String.format("memory limit of %d words reached", limits.getMaxTouchedWords());
+        break;
+      case DEADLINE:
+        message = String.format("time limit of %d ms reached", limits.getTimeoutNanos() / 1000000);
+        break;
+      case CANCELLED:
+        message = "cancelled";
+        break;
+      default:
+        message = "completed";
+        break;
+    }
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  public boolean isCompleted() {
+    return status == Status.COMPLETED;
+  }
+
+  /**
+   * Returns the number of instructions executed before the run ended.
+   */
+  public long getInstructionCount() {
+    return instructions;
+  }
+
+  /**
+   * Returns a description of how the run ended, such as the limit it reached.
+   */
+  public String getMessage() {
+    return message;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s after %d instructions", message, instructions);
+  }
+}
@@ -0,0 +1,119 @@
+package crux.ir;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Stack;
+
+/**
+ * Assigns every {@link LocalVar} and {@link AddressVar} of a {@link Function} a dense slot index,
+ * so that an activation of the function can keep all of its values in a flat {@code long[]} frame.
+ * Arguments occupy the first slots, in declaration order. Integers are stored as is, booleans as 0
+ * or 1 and addresses as byte addresses.
+ * <p>
+ * The layout also numbers the instructions, starting with 0 for the first, and resolves the slots
+ * every instruction reads and writes and the numbers of its successors, so that executing an
+ * instruction indexes arrays instead of looking variables up.
+ */
+public final class FrameLayout {
+  private final IdentityHashMap<Variable, Integer> slotMap = new IdentityHashMap<>();
+  private final int[] argSlots;
+  /** The instructions of the function by number. */
+  final Instruction[] code;
+  /** The slot of every operand of every instruction, or -1 for a constant operand. */
+  final int[][] operandSlots;
+  /** The slot every instruction writes, or -1. */
+  final int[] destSlots;
+  /** The number of every successor of every instruction, or -1 where there is none. */
+  final int[][] successors;
+
+  public FrameLayout(Function f) {
+    List<LocalVar> args = f.getArguments();
+    argSlots = new int[args.size()];
+    for (int i = 0; i < argSlots.length; i++) {
+      argSlots[i] = assign(args.get(i));
+    }
+
+    Stack<Instruction> tovisit = new Stack<>();
+    HashSet<Instruction> discovered = new HashSet<>();
+    List<Instruction> order = new ArrayList<>();
+    if (f.getStart() != null) {
+      tovisit.push(f.getStart());
+      discovered.add(f.getStart());
+    }
+    while (!tovisit.isEmpty()) {
+      Instruction inst = tovisit.pop();
+      order.add(inst);
+      if (inst.mDestVar != null)
+        assign(inst.mDestVar);
+      for (Value v : inst.mOperands) {
+        if (v instanceof Variable)
+          assign((Variable) v);
+      }
+      for (int i = 0; i < inst.numNext(); i++) {
+        Instruction child = inst.getNext(i);
+        if (child != null && discovered.add(child))
+          tovisit.push(child);
+      }
+    }
+
+    code = order.toArray(new Instruction[0]);
+    IdentityHashMap<Instruction, Integer> numbers = new IdentityHashMap<>();
+    for (int pc = 0; pc < code.length; pc++)
+      numbers.put(code[pc], pc);
+    operandSlots = new int[code.length][];
+    destSlots = new int[code.length];
+    successors = new int[code.length][];
+    for (int pc = 0; pc < code.length; pc++) {
+      Instruction inst = code[pc];
+      List<Value> operands = inst.mOperands;
+      operandSlots[pc] = new int[operands.size()];
+      for (int i = 0; i < operands.size(); i++) {
+        Value v = operands.get(i);
+        operandSlots[pc][i] = v instanceof Variable ? slotOf((Variable) v) : -1;
+      }
+      destSlots[pc] = inst.mDestVar != null ? slotOf(inst.mDestVar) : -1;
+      successors[pc] = new int[inst.numNext()];
+      for (int i = 0; i < inst.numNext(); i++) {
+        Instruction child = inst.getNext(i);
+        successors[pc][i] = child != null ? numbers.get(child) : -1;
+      }
+    }
+  }
+
+  private int assign(Variable v) {
+    Integer slot = slotMap.get(v);
+    if (slot == null) {
+      slot = slotMap.size();
+      slotMap.put(v, slot);
+    }
+    return slot;
+  }
+
+  /**
+   * Returns the slot of a variable of this function, or -1 if the function never mentions it.
+   */
+  public int slotOf(Variable v) {
+    Integer slot = slotMap.get(v);
+    return slot != null ? slot : -1;
+  }
+
+  /**
+   * Returns the slot that receives the i-th argument of the function.
+   */
+  public int argSlot(int i) {
+    return argSlots[i];
+  }
+
+  public int numArgs() {
+    return argSlots.length;
+  }
+
+  /**
+   * Returns the number of slots a frame of this function needs.
+   */
+  public int size() {
+    return slotMap.size();
+  }
+}
@@ -3,6 +3,8 @@ package crux.ir;
 import crux.ast.types.FuncType;
 import crux.ast.types.Type;
 import crux.backend.CodeGen;
+import crux.ir.insts.NopInst;
+import crux.ir.insts.PhiInst;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -21,6 +23,12 @@ public final class Function implements Formattable, java.io.Serializable {
   private static final int FUNC_FORMAT_INDENT = 2;
   private int mTempVarCounter, mTempAddressVarCounter;
   private Instruction startInstruction;
+  /** Whether the body still has to be lowered, see {@link #isLowered()}. */
+  private transient volatile boolean deferred;
+  /** Lowers the body on first use, or null once lowering has started. */
+  private transient Runnable lowering;
+  /** The basic blocks of the body in reverse postorder, or null until they are needed. */
+  private transient List<BasicBlock> blocks;
 
   public Function(String name, FuncType funcType) {
     mFuncName = name;
@@ -33,8 +41,12 @@ public final class Function implements Formattable, java.io.Serializable {
     mArgs = List.copyOf(args);
   }
 
+  /**
+   * Returns the arguments of the function. The list is unmodifiable, so it is returned without
+   * copying.
+   */
   public List<LocalVar> getArguments() {
-    return List.copyOf(mArgs);
+    return mArgs;
   }
 
   public String getName() {
@@ -68,47 +80,170 @@ public final class Function implements Formattable, java.io.Serializable {
     return mTempAddressVarCounter;
   }
 
+  /**
+   * Returns the first instruction of the body, lowering the body first if it was deferred.
+   */
   public Instruction getStart() {
+    if (deferred)
+      lowerBody();
     return startInstruction;
   }
 
   public void setStart(Instruction inst) {
     startInstruction = inst;
+    blocks = null;
   }
 
   /**
-   * This function assigns labels to Instruction objects in the CFG that will need them. The method
-   * is intended for generating assembly code. Pass in a 1 element array that contains the start
-   * number for the labels, This element will be updated to record the start number for the next
-   * function. The method returns a HashMap that maps Instructions to labels if they need one.
+   * Returns the basic blocks of the body in reverse postorder, see {@link BasicBlock}. The blocks
+   * are built on first use and kept until {@link #invalidateBlocks()}.
    */
+  public List<BasicBlock> getBlocks() {
+    if (blocks == null)
+      blocks = BasicBlock.build(getStart());
+    return blocks;
+  }
 
-  public HashMap<Instruction, String> assignLabels(int count[]) {
-    HashMap<Instruction, String> labelMap = new HashMap<>();
+  /**
+   * Discards the basic blocks. Every transformation that changes the successors of an instruction
+   * must call this, so that the next {@link #getBlocks()} sees the new graph.
+   */
+  public void invalidateBlocks() {
+    blocks = null;
+  }
+
+  /**
+   * Defers lowering the body until {@link #getStart()} is first called; lowering must then call
+   * {@link #setStart}.
+   */
+  void setLowering(Runnable lowering) {
+    this.lowering = lowering;
+    deferred = true;
+  }
+
+  /**
+   * Returns whether the body of the function has been lowered to instructions.
+   */
+  public boolean isLowered() {
+    return !deferred;
+  }
+
+  /**
+   * Runs the deferred lowering once. Other threads wait until it is done; the lowering thread
+   * itself may call {@link #getStart()} again, for example from an optimization pass, and then
+   * sees the body set so far.
+   */
+  private synchronized void lowerBody() {
+    Runnable pending = lowering;
+    if (pending != null) {
+      lowering = null;
+      pending.run();
+      deferred = false;
+    }
+  }
+
+  /**
+   * Unlinks every instruction in removed from the body. Each removed instruction must have at most
+   * one successor, which takes its place; a jump that would lose its target or a body that would
+   * become empty gets a {@link NopInst} instead.
+   */
+  void removeInstructions(Set<Instruction> removed) {
+    if (removed.isEmpty())
+      return;
+    Instruction start = skip(getStart(), removed);
+    setStart(start != null ? start : new NopInst());
     Stack<Instruction> tovisit = new Stack<>();
-    HashSet<Instruction> discovered = new HashSet<>();
-    if (getStart() != null)
-      tovisit.push(getStart());
+    Set<Instruction> discovered = Collections.newSetFromMap(new IdentityHashMap<>());
+    tovisit.push(startInstruction);
+    discovered.add(startInstruction);
     while (!tovisit.isEmpty()) {
       Instruction inst = tovisit.pop();
+      for (int i = 0; i < inst.numNext(); i++) {
+        Instruction child = inst.getNext(i);
+        if (child == null)
+          continue;
+        child = skip(child, removed);
+        if (child == null)
+          child = new NopInst();
+        inst.setNext(i, child);
+        if (discovered.add(child))
+          tovisit.push(child);
+      }
+    }
+  }
 
-      for (int childIdx = 0; childIdx < inst.numNext(); childIdx++) {
-        Instruction child = inst.getNext(childIdx);
-        if (discovered.contains(child)) {
-          // Found the node for a second time...need a label for merge points
-          if (!labelMap.containsKey(child)) {
-            labelMap.put(child, "L" + (++count[0]));
-          }
-        } else {
-          discovered.add(child);
+  /**
+   * Replaces every instruction that is a key of replacements with its value, in every edge and as
+   * the source of every phi. The caller links each replacement to its successors.
+   */
+  void replaceInstructions(Map<Instruction, Instruction> replacements) {
+    if (replacements.isEmpty())
+      return;
+    setStart(replace(getStart(), replacements));
+    Stack<Instruction> tovisit = new Stack<>();
+    Set<Instruction> discovered = Collections.newSetFromMap(new IdentityHashMap<>());
+    tovisit.push(startInstruction);
+    discovered.add(startInstruction);
+    while (!tovisit.isEmpty()) {
+      Instruction inst = tovisit.pop();
+      if (inst instanceof PhiInst) {
+        PhiInst phi = (PhiInst) inst;
+        for (int i = 0; i < phi.numOperands(); i++)
+          phi.setSource(i, replace(phi.getSource(i), replacements));
+      }
+      for (int i = 0; i < inst.numNext(); i++) {
+        Instruction child = replace(inst.getNext(i), replacements);
+        if (child == null)
+          continue;
+        inst.setNext(i, child);
+        if (discovered.add(child))
           tovisit.push(child);
-          // Need a label for jump targets also
-          if (childIdx == 1 && !labelMap.containsKey(child)) {
-            labelMap.put(child, "L" + (++count[0]));
-          }
-        }
       }
     }
+  }
+
+  private static Instruction replace(Instruction inst, Map<Instruction, Instruction> replacements) {
+    Instruction replacement;
+    while (inst != null && (replacement = replacements.get(inst)) != null)
+      inst = replacement;
+    return inst;
+  }
+
+  private static Instruction skip(Instruction inst, Set<Instruction> removed) {
+    while (inst != null && removed.contains(inst))
+      inst = inst.getNext(0);
+    return inst;
+  }
+
+  private void writeObject(java.io.ObjectOutputStream out) throws java.io.IOException {
+    getStart();
+    out.defaultWriteObject();
+  }
+
+  /**
+   * This function assigns labels to Instruction objects in the CFG that will need them. The method
+   * is intended for generating assembly code that lays out the blocks in the order of
+   * {@link #getBlocks()}: the first instruction of a block needs a label if a jump targets it or if
+   * a block other than the one right before it continues into it. Pass in a 1 element array that
+   * contains the start number for the labels, This element will be updated to record the start
+   * number for the next function. The method returns a HashMap that maps Instructions to labels if
+   * they need one.
+   */
+  public HashMap<Instruction, String> assignLabels(int count[]) {
+    HashMap<Instruction, String> labelMap = new HashMap<>();
+    List<BasicBlock> blocks = getBlocks();
+    boolean[] labeled = new boolean[blocks.size()];
+    for (BasicBlock block : blocks) {
+      for (int i = 0; i < block.getSuccessors().size(); i++) {
+        BasicBlock target = block.getSuccessor(i);
+        if (i == 1 || target.getIndex() != block.getIndex() + 1)
+          labeled[target.getIndex()] = true;
+      }
+    }
+    for (BasicBlock block : blocks) {
+      if (labeled[block.getIndex()])
+        labelMap.put(block.getFirst(), "L" + (++count[0]));
+    }
     return labelMap;
   }
 
@@ -131,41 +266,34 @@ public final class Function implements Formattable, java.io.Serializable {
     var funcHeader = String.format(funcType, getName(), argStr, getFuncType().getRet());
     funcDotBuilder.append(" ".repeat(indent)).append(String.format("label=\"%s\";\n", funcHeader));
 
-    // Print nodes
-    int nodeCounter = 0;
+    // Print nodes, numbered in block order
     final var nodePrefix = funcName + "_n";
     Map<Instruction, String> nodeIdMap = new HashMap<>();
-    // Only print edge labels for nodes that have multiple (out) edges
-    Instruction start = getStart();
-    Stack<Instruction> tovisit = new Stack<>();
-
-    tovisit.add(start);
-    nodeIdMap.put(start, nodePrefix + (nodeCounter++));
-
-    while (!tovisit.isEmpty()) {
-      Instruction inst = tovisit.pop();
-      String srcId = nodeIdMap.get(inst);
-
-      funcDotBuilder.append(" ".repeat(indent)).append(srcId).append(" [label=\"");
-      funcDotBuilder.append(inst.format(valueFormatter)).append("\"];\n");
+    for (BasicBlock block : getBlocks()) {
+      for (Instruction inst : block.getInstructions())
+        nodeIdMap.put(inst, nodePrefix + nodeIdMap.size());
+    }
+    for (BasicBlock block : getBlocks()) {
+      for (Instruction inst : block.getInstructions()) {
+        String srcId = nodeIdMap.get(inst);
+        funcDotBuilder.append(" ".repeat(indent)).append(srcId).append(" [label=\"");
+        funcDotBuilder.append(inst.format(valueFormatter)).append("\"];\n");
 
-      for (int i = 0; i < inst.numNext(); i++) {
-        Instruction dst = inst.getNext(i);
-        if (!nodeIdMap.containsKey(dst)) {
-          nodeIdMap.put(dst, nodePrefix + (nodeCounter++));
-          tovisit.push(dst);
-        }
-        String dstId = nodeIdMap.get(dst);
-        funcDotBuilder.append(" ".repeat(indent)).append(srcId).append(" -> ").append(dstId);
-        if (inst.numNext() == 2) {
-          funcDotBuilder.append(" [label=\"  ");
-          if (i == 0)
-            funcDotBuilder.append("False");
-          else
-            funcDotBuilder.append("True");
-          funcDotBuilder.append("  \"]");
+        // Only print edge labels for nodes that have multiple (out) edges
+        int numNext = BasicBlock.numSuccessors(inst);
+        for (int i = 0; i < numNext; i++) {
+          String dstId = nodeIdMap.get(inst.getNext(i));
+          funcDotBuilder.append(" ".repeat(indent)).append(srcId).append(" -> ").append(dstId);
+          if (numNext == 2) {
+            funcDotBuilder.append(" [label=\"  ");
+            if (i == 0)
+              funcDotBuilder.append("False");
+            else
+              funcDotBuilder.append("True");
+            funcDotBuilder.append("  \"]");
+          }
+          funcDotBuilder.append(";\n");
         }
-        funcDotBuilder.append(";\n");
       }
     }
 
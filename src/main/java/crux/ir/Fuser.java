@@ -0,0 +1,374 @@
+package crux.ir;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Rewrites the code of a {@link DecodedProgram} so that it executes in fewer dispatches. Nops are
+ * dropped, and the sequences {@link ASTLower} emits all the time are fused into the
+ * superinstructions of {@link Bytecode}:
+ * <ul>
+ * <li>{@code CONST t, k} and an arithmetic or compare instruction on t become its immediate form,
+ * such as {@code ADDI};</li>
+ * <li>a compare and the {@code JUMP} on its result become a compare-and-branch, {@code JCMP} or
+ * {@code JCMPI};</li>
+ * <li>{@code ADDR t} and the {@code LOAD} or {@code STORE} through t become {@code LOADG},
+ * {@code LOADX}, {@code STOREG} or {@code STOREX};</li>
+ * <li>an instruction that writes t followed by {@code MOV x, t} writes x directly.</li>
+ * </ul>
+ * A pair is only fused if t is read by the second instruction only and the second instruction is
+ * not a branch target, so no other code can observe that t is no longer written.
+ * <p>
+ * Every instruction of the result keeps the number of IR instructions it stands for in
+ * {@link DecodedFunction#widths}, so a run counts the same instructions with or without fusion. A
+ * run of nops is only dropped when every way into it enters at the same nop, since otherwise the
+ * number of nops executed before the next instruction depends on the way in.
+ */
+final class Fuser {
+  private Fuser() {}
+
+  /** One instruction of the code being rewritten. */
+  private static final class Node {
+    int[] words;
+    Instruction origin;
+    /** Whether a branch targets this instruction or a nop dropped before it. */
+    boolean target;
+    Node mergedInto;
+    int pc;
+    int width;
+
+    Node(int[] words, Instruction origin, int width) {
+      this.words = words;
+      this.origin = origin;
+      this.width = width;
+    }
+
+    int op() {
+      return words[0];
+    }
+
+    Node resolve() {
+      Node n = this;
+      while (n.mergedInto != null)
+        n = n.mergedInto;
+      return n;
+    }
+  }
+
+  static DecodedProgram fuse(DecodedProgram program) {
+    DecodedFunction[] functions = new DecodedFunction[program.functions.length];
+    int unfused = 0;
+    for (int fi = 0; fi < functions.length; fi++) {
+      unfused += program.functions[fi].getNumInstructions();
+      functions[fi] = fuse(program.functions[fi]);
+    }
+    return new DecodedProgram(functions, new HashMap<>(program.functionIndex),
+        program.memoryWords, unfused);
+  }
+
+  static DecodedFunction fuse(DecodedFunction f) {
+    int[] code = f.code;
+    boolean[] targets = new boolean[code.length + 1];
+    int[] reads = new int[f.frameSize];
+    Node[] nodeAt = new Node[code.length];
+    List<Node> nodes = new ArrayList<>();
+    List<Integer> pendingNops = new ArrayList<>();
+    for (int pc = 0; pc < code.length; pc += Bytecode.length(code, pc)) {
+      int target = targetPosition(code[pc]);
+      if (target > 0)
+        targets[code[pc + target]] = true;
+    }
+    // The start of the function is entered like the instruction after one that falls through
+    boolean fallsThrough = true;
+    for (int pc = 0; pc < code.length; pc += Bytecode.length(code, pc)) {
+      int[] words = Arrays.copyOfRange(code, pc, pc + Bytecode.length(code, pc));
+      for (int position : readPositions(words))
+        reads[words[position]]++;
+      if (words[0] == Bytecode.NOP) {
+        pendingNops.add(pc);
+        continue;
+      }
+      Node node = new Node(words, f.origins[pc], f.widths[pc]);
+      int entry = entry(pendingNops, pc, targets, fallsThrough);
+      if (entry < 0) {
+        for (int nop : pendingNops) {
+          Node kept = new Node(new int[] {Bytecode.NOP}, f.origins[nop], f.widths[nop]);
+          nodes.add(kept);
+          nodeAt[nop] = kept;
+        }
+      } else {
+        for (int i = 0; i < pendingNops.size(); i++) {
+          nodeAt[pendingNops.get(i)] = node;
+          if (i >= entry)
+            node.width += f.widths[pendingNops.get(i)];
+        }
+      }
+      nodes.add(node);
+      nodeAt[pc] = node;
+      pendingNops.clear();
+      fallsThrough = words[0] != Bytecode.GOTO && words[0] != Bytecode.RET;
+    }
+    for (int pc = 0; pc < code.length; pc++) {
+      if (targets[pc] && nodeAt[pc] != null)
+        nodeAt[pc].target = true;
+    }
+
+    sinkAddresses(nodes, nodeAt, reads);
+    for (int i = 0; i + 1 < nodes.size();) {
+      Node a = nodes.get(i);
+      Node b = nodes.get(i + 1);
+      int[] fused = b.target ? null : fusePair(a.words, b.words, f.constants, reads);
+      if (fused == null) {
+        i++;
+        continue;
+      }
+      a.words = fused;
+      a.width += b.width;
+      if (a.origin == null)
+        a.origin = b.origin;
+      b.mergedInto = a;
+      nodes.remove(i + 1);
+      // The fused instruction may fuse again with the instruction before it
+      i = Math.max(0, i - 1);
+    }
+
+    int size = 0;
+    for (Node node : nodes) {
+      node.pc = size;
+      size += node.words.length;
+    }
+    int[] fusedCode = new int[size];
+    Instruction[] origins = new Instruction[size];
+    int[] widths = new int[size];
+    for (Node node : nodes) {
+      int target = targetPosition(node.op());
+      if (target > 0)
+        node.words[target] = nodeAt[node.words[target]].resolve().pc;
+      System.arraycopy(node.words, 0, fusedCode, node.pc, node.words.length);
+      origins[node.pc] = node.origin;
+      widths[node.pc] = node.width;
+    }
+    return new DecodedFunction(f.name, fusedCode, f.constants, f.frameSize, f.argSlots, origins,
+        widths);
+  }
+
+  /**
+   * Returns the index of the nop of nops at which every way into the nops and the instruction at
+   * pc after them enters, nops.size() if it is only ever entered at pc, or -1 if the ways in enter
+   * at different places. fallsThrough tells whether the instruction before the nops continues
+   * into them.
+   */
+  private static int entry(List<Integer> nops, int pc, boolean[] targets, boolean fallsThrough) {
+    int entry = fallsThrough ? 0 : -1;
+    for (int i = 0; i <= nops.size(); i++) {
+      if (!targets[i < nops.size() ? nops.get(i) : pc])
+        continue;
+      if (entry >= 0 && entry != i)
+        return -1;
+      entry = i;
+    }
+    return entry < 0 ? nops.size() : entry;
+  }
+
+  /**
+   * Moves every {@code ADDR t} whose only reader is a later {@code STORE} in the same straight-line
+   * code directly before that store, so the two can fuse. ASTLower computes the address of an
+   * assignment before its value, as in {@code a[i] = a[i] + 1}. Branches to the address move to
+   * the instruction after it.
+   */
+  private static void sinkAddresses(List<Node> nodes, Node[] nodeAt, int[] reads) {
+    for (int i = 0; i < nodes.size(); i++) {
+      Node node = nodes.get(i);
+      int[] addr = node.words;
+      if (addr[0] != Bytecode.ADDR || reads[addr[1]] != 1)
+        continue;
+      for (int j = i + 1; j < nodes.size() && !nodes.get(j).target; j++) {
+        int[] words = nodes.get(j).words;
+        if (words[0] == Bytecode.STORE && words[2] == addr[1] && words[1] != addr[1]) {
+          if (j == i + 1)
+            break;
+          Node next = nodes.get(i + 1);
+          next.target = node.target;
+          node.target = false;
+          for (int pc = 0; pc < nodeAt.length; pc++) {
+            if (nodeAt[pc] == node)
+              nodeAt[pc] = next;
+          }
+          nodes.add(j - 1, nodes.remove(i));
+          break;
+        }
+        // Only pass instructions that neither use t nor overwrite the index
+        if (!writesFirstOperand(words[0]) || words[1] == addr[1] || words[1] == addr[3]
+            || reads(words, addr[1]))
+          break;
+      }
+    }
+  }
+
+  private static boolean reads(int[] words, int slot) {
+    for (int position : readPositions(words)) {
+      if (words[position] == slot)
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns the superinstruction that does what a and then b do, or null if there is none. Updates
+   * reads for the temporary the superinstruction no longer reads.
+   */
+  private static int[] fusePair(int[] a, int[] b, long[] constants, int[] reads) {
+    int[] fused = null;
+    int t = -1;
+    switch (a[0]) {
+      case Bytecode.CONST: {
+        t = a[1];
+        long value = constants[a[2]];
+        if (value != (int) value || reads[t] != 1)
+          break;
+        if (isBinary(b[0]) && b[3] == t && b[2] != t) {
+          fused = new int[] {immediate(b[0]), b[1], b[2], (int) value};
+        } else if (isBinary(b[0]) && b[2] == t && b[3] != t) {
+          // Only commutative operators and compares, with the predicate mirrored, have the
+          // constant on the left
+          if (b[0] == Bytecode.ADD || b[0] == Bytecode.MUL)
+            fused = new int[] {immediate(b[0]), b[1], b[3], (int) value};
+          else if (b[0] >= Bytecode.CMP_GE)
+            fused = new int[] {immediate(mirror(b[0])), b[1], b[3], (int) value};
+        }
+        break;
+      }
+      case Bytecode.ADDR:
+        t = a[1];
+        if (reads[t] != 1)
+          break;
+        if (b[0] == Bytecode.LOAD && b[2] == t) {
+          fused = a[3] < 0 ? new int[] {Bytecode.LOADG, b[1], a[2]}
+              : new int[] {Bytecode.LOADX, b[1], a[2], a[3]};
+        } else if (b[0] == Bytecode.STORE && b[2] == t && b[1] != t) {
+          fused = a[3] < 0 ? new int[] {Bytecode.STOREG, b[1], a[2]}
+              : new int[] {Bytecode.STOREX, b[1], a[2], a[3]};
+        }
+        break;
+      default:
+        if (b[0] == Bytecode.JUMP && isCompare(a[0])) {
+          t = a[1];
+          if (reads[t] != 1 || b[1] != t)
+            return null;
+          int branch = a[0] >= Bytecode.CMPI_GE ? a[0] - Bytecode.CMPI_GE + Bytecode.JCMPI_GE
+              : a[0] - Bytecode.CMP_GE + Bytecode.JCMP_GE;
+          fused = new int[] {branch, a[2], a[3], b[2]};
+        }
+        break;
+    }
+    if (fused == null && b[0] == Bytecode.MOV && writesFirstOperand(a[0])) {
+      // Write the destination of the move instead of the temporary
+      t = b[2];
+      if (a[1] != t || reads[t] != 1 || b[1] == t)
+        return null;
+      fused = a.clone();
+      fused[1] = b[1];
+    }
+    if (fused != null)
+      reads[t]--;
+    return fused;
+  }
+
+  private static boolean isBinary(int op) {
+    return op >= Bytecode.ADD && op <= Bytecode.CMP_NE;
+  }
+
+  private static boolean isCompare(int op) {
+    return op >= Bytecode.CMP_GE && op <= Bytecode.CMP_NE
+        || op >= Bytecode.CMPI_GE && op <= Bytecode.CMPI_NE;
+  }
+
+  /**
+   * Returns the immediate form of the binary opcode op.
+   */
+  private static int immediate(int op) {
+    return op >= Bytecode.CMP_GE ? op - Bytecode.CMP_GE + Bytecode.CMPI_GE
+        : op - Bytecode.ADD + Bytecode.ADDI;
+  }
+
+  /**
+   * Returns the compare opcode that gives the same result as op with its operands swapped.
+   */
+  private static int mirror(int op) {
+    switch (op) {
+      case Bytecode.CMP_GE:
+        return Bytecode.CMP_LE;
+      case Bytecode.CMP_GT:
+        return Bytecode.CMP_LT;
+      case Bytecode.CMP_LE:
+        return Bytecode.CMP_GE;
+      case Bytecode.CMP_LT:
+        return Bytecode.CMP_GT;
+      default:
+        return op;
+    }
+  }
+
+  private static boolean writesFirstOperand(int op) {
+    switch (op) {
+      case Bytecode.CONST:
+      case Bytecode.MOV:
+      case Bytecode.NOT:
+      case Bytecode.ADDR:
+      case Bytecode.LOAD:
+      case Bytecode.LOADG:
+      case Bytecode.LOADX:
+        return true;
+      default:
+        return op >= Bytecode.ADD && op <= Bytecode.CMP_NE
+            || op >= Bytecode.ADDI && op <= Bytecode.CMPI_NE;
+    }
+  }
+
+  /**
+   * Returns the index of the branch target among the words of an instruction with opcode op, or
+   * 0 if it does not branch.
+   */
+  private static int targetPosition(int op) {
+    if (op == Bytecode.JUMP)
+      return 2;
+    if (op == Bytecode.GOTO)
+      return 1;
+    if (op >= Bytecode.JCMP_GE && op <= Bytecode.JCMPI_NE)
+      return 3;
+    return 0;
+  }
+
+  /**
+   * Returns the indices of the words of the basic instruction words that are slots it reads.
+   */
+  private static int[] readPositions(int[] words) {
+    switch (words[0]) {
+      case Bytecode.MOV:
+      case Bytecode.NOT:
+      case Bytecode.LOAD:
+        return new int[] {2};
+      case Bytecode.ADDR:
+        return words[3] >= 0 ? new int[] {3} : new int[0];
+      case Bytecode.STORE:
+        return new int[] {1, 2};
+      case Bytecode.JUMP:
+      case Bytecode.PRINT_BOOL:
+      case Bytecode.PRINT_INT:
+      case Bytecode.PRINT_CHAR:
+        return new int[] {1};
+      case Bytecode.RET:
+        return words[1] >= 0 ? new int[] {1} : new int[0];
+      case Bytecode.CALL: {
+        int[] positions = new int[words[3]];
+        for (int i = 0; i < positions.length; i++)
+          positions[i] = 4 + i;
+        return positions;
+      }
+      default:
+        return isBinary(words[0]) ? new int[] {2, 3} : new int[0];
+    }
+  }
+}
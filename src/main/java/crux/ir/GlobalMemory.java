@@ -0,0 +1,105 @@
+package crux.ir;
+
+import java.util.Arrays;
+
+/**
+ * The global memory of an emulated program: 8 byte words, laid out in the order of the
+ * {@link GlobalDecl}s of the program, in pages of {@link #PAGE_WORDS} words. Each page ends with a
+ * bitmap with one bit per word that records which words have been written, so reads of
+ * uninitialized memory can still be diagnosed with a single bit test. Unwritten words read as 0.
+ * <p>
+ * Pages are copy-on-write: {@link #fork()} returns a memory that shares all pages with this one,
+ * and whichever of the two writes a shared page first copies it. Pages that were never written are
+ * all one shared zero page, so memory costs nothing until it is written.
+ */
+public final class GlobalMemory {
+  static final int PAGE_SHIFT = 9;
+  static final int PAGE_WORDS = 1 << PAGE_SHIFT;
+  static final int PAGE_MASK = PAGE_WORDS - 1;
+  private static final long[] ZERO_PAGE = new long[PAGE_WORDS + PAGE_WORDS / 64];
+
+  private final int size;
+  /** The words of each page, followed by its written bitmap. */
+  final long[][] pages;
+  /** Whether a page belongs to this memory alone and may be written in place. */
+  final boolean[] owned;
+  /** The number of words written at least once. */
+  long touched;
+
+  public GlobalMemory(int numWords) {
+    size = numWords;
+    pages = new long[(numWords + PAGE_MASK) >>> PAGE_SHIFT][];
+    Arrays.fill(pages, ZERO_PAGE);
+    owned = new boolean[pages.length];
+  }
+
+  private GlobalMemory(GlobalMemory original) {
+    size = original.size;
+    pages = original.pages.clone();
+    owned = new boolean[pages.length];
+    touched = original.touched;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns word as an index of this memory, or throws if the program accesses a word outside its
+   * globals. Every engine checks the words it computes at run time before it loads or stores them.
+   */
+  public int check(long word) {
+    if (word < 0 || word >= size)
+      throw new Error(String.format(
+          "Global memory access out of bounds: word %d of %d.", word, size));
+    return (int) word;
+  }
+
+  public boolean isInitialized(int word) {
+    return (pages[word >>> PAGE_SHIFT][PAGE_WORDS + ((word & PAGE_MASK) >>> 6)] & (1L << word))
+        != 0;
+  }
+
+  public long load(int word) {
+    return pages[word >>> PAGE_SHIFT][word & PAGE_MASK];
+  }
+
+  public void store(int word, long value) {
+    long[] page = owned[word >>> PAGE_SHIFT] ? pages[word >>> PAGE_SHIFT] : copyPage(word);
+    int bits = PAGE_WORDS + ((word & PAGE_MASK) >>> 6);
+    page[word & PAGE_MASK] = value;
+    if ((page[bits] & (1L << word)) == 0) {
+      page[bits] |= 1L << word;
+      touched++;
+    }
+  }
+
+  /**
+   * Replaces the shared page that holds word by a copy that this memory owns, and returns it.
+   */
+  long[] copyPage(int word) {
+    int p = word >>> PAGE_SHIFT;
+    owned[p] = true;
+    return pages[p] = pages[p].clone();
+  }
+
+  /**
+   * Returns the number of words that have been written at least once.
+   */
+  public long getTouchedWords() {
+    return touched;
+  }
+
+  /**
+   * Returns a memory with the same contents that shares all pages with this one. Afterwards both
+   * copy a page before they write it, so a memory that is no longer written, such as the memory of
+   * a {@link Checkpoint}, can be forked any number of times and from any thread.
+   */
+  public GlobalMemory fork() {
+    for (int p = 0; p < owned.length; p++) {
+      if (owned[p])
+        owned[p] = false;
+    }
+    return new GlobalMemory(this);
+  }
+}
@@ -41,6 +41,19 @@ public abstract class Instruction implements Formattable, java.io.Serializable {
     return next.size();
   }
 
+  /**
+   * Replaces operand i with value, for passes that rewrite instructions in place.
+   */
+  void setOperand(int i, Value value) {
+    Value[] operands = mOperands.toArray(new Value[0]);
+    operands[i] = value;
+    mOperands = List.of(operands);
+  }
+
+  void setDestVar(Variable destVar) {
+    mDestVar = destVar;
+  }
+
   public void setNext(int i, Instruction inst) {
     if (next.size() <= i)
       next.setSize(i + 1);
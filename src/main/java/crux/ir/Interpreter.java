@@ -0,0 +1,772 @@
+package crux.ir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import crux.printing.IRValueFormatter;
+
+/**
+ * Runs a {@link DecodedProgram} with a single switch over the {@link Bytecode} opcodes. All state
+ * of a run (frames, global memory, input and output) belongs to the interpreter, while the decoded
+ * program is only read, so any number of interpreters can share one decoded program.
+ */
+public final class Interpreter {
+  private final DecodedProgram program;
+  private final EmulatorIO io;
+  private final GlobalMemory memory;
+  private long executed;
+  private long dispatched;
+  private Tracer tracer;
+  private Profiler profiler;
+  private Coverage coverage;
+  private ExecutionLimits limits = new ExecutionLimits();
+  private volatile boolean cancelled;
+  /** The state the run starts in, or null to start at main. */
+  private final Checkpoint start;
+  /**
+   * The function index, code index, frame base and call depth at which the last run was suspended
+   * before reading input, or null.
+   */
+  private int[] suspended;
+
+  /**
+   * The slots of all active calls. The frame of a call starts at its base and spans the frame size
+   * of its function; the frame of the callee directly follows the frame of the caller.
+   */
+  private long[] stack = new long[1024];
+  /**
+   * One record of {@link #CALL_RECORD} ints per suspended caller: function index, return pc, base
+   * of the frame and result slot (or -1).
+   */
+  private int[] calls = new int[64 * CALL_RECORD];
+  private static final int CALL_RECORD = 4;
+
+  public Interpreter(DecodedProgram program, InputStream in, OutputStream out) {
+    this(program, new EmulatorIO(in, out));
+  }
+
+  public Interpreter(DecodedProgram program, EmulatorIO io) {
+    this.program = program;
+    this.io = io;
+    memory = new GlobalMemory(program.memoryWords);
+    start = null;
+  }
+
+  /**
+   * Creates an interpreter that continues the program from checkpoint. Its run first prints the
+   * output the program printed before the checkpoint, so its output is that of a whole run. The
+   * interpreter works on a copy-on-write fork of the memory of the checkpoint.
+   */
+  public Interpreter(Checkpoint checkpoint, EmulatorIO io) {
+    program = checkpoint.program;
+    this.io = io;
+    memory = checkpoint.memory.fork();
+    start = checkpoint;
+  }
+
+  /**
+   * Returns the number of IR instructions executed so far, which a superinstruction counts as all
+   * the instructions it was fused from.
+   */
+  public long getInstructionCount() {
+    return executed;
+  }
+
+  /**
+   * Returns the number of instructions the last run dispatched, counting a superinstruction once.
+   */
+  public long getDispatchCount() {
+    return dispatched;
+  }
+
+  /**
+   * Attaches a tracer that records every instruction executed, or detaches it if tracer is null.
+   * Sites in the trace are the function index in the upper and the code index in the lower half.
+   */
+  public void setTracer(Tracer tracer) {
+    this.tracer = tracer;
+    if (tracer != null) {
+      tracer.setSites(site -> {
+        DecodedFunction f = program.functions[(int) (site >>> 32)];
+        int pc = (int) site;
+        String text = String.format("%s@%d: %s", f.name, pc, Bytecode.name(f.code[pc]));
+        Instruction origin = f.origins[pc];
+        return origin != null ? text + " (" + origin.format(new IRValueFormatter()) + ")" : text;
+      });
+    }
+  }
+
+  /**
+   * Attaches a profiler that counts the instructions, branches and calls of the following runs, or
+   * detaches it if profiler is null.
+   */
+  public void setProfiler(Profiler profiler) {
+    this.profiler = profiler;
+  }
+
+  /**
+   * Records the edges the following runs take in coverage, or stops recording if coverage is null.
+   * A run resumed from a checkpoint first adds the edges taken before the checkpoint.
+   */
+  public void setCoverage(Coverage coverage) {
+    this.coverage = coverage;
+  }
+
+  /**
+   * Sets the limits of the following runs.
+   */
+  public void setLimits(ExecutionLimits limits) {
+    this.limits = limits;
+  }
+
+  /**
+   * Asks the running program to stop. The run ends with {@link ExecutionResult.Status#CANCELLED}
+   * at its next poll, see {@link ExecutionLimits}. Can be called from any thread.
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  public ExecutionResult run() {
+    return execute(false);
+  }
+
+  /**
+   * Runs the program until it is about to read its first input, or to its end if it reads none, and
+   * returns the state it stopped in. The interpreter must print to output.
+   */
+  Checkpoint runToInput(ByteArrayOutputStream output) {
+    ExecutionResult result = execute(true);
+    if (suspended == null)
+      return new Checkpoint(program, memory.fork(), null, null, 0, 0, 0, 0, executed,
+          output.toByteArray(), coverage, result);
+    int fi = suspended[0];
+    int bp = suspended[2];
+    int depth = suspended[3];
+    return new Checkpoint(program, memory.fork(),
+        Arrays.copyOf(stack, bp + program.functions[fi].frameSize),
+        Arrays.copyOf(calls, depth * CALL_RECORD), fi, suspended[1], bp, depth, executed,
+        output.toByteArray(), coverage, null);
+  }
+
+  private ExecutionResult execute(boolean suspendAtInput) {
+    if (program.mainIndex < 0)
+      throw new Error("No main function.");
+    int fi = program.mainIndex;
+    int depth = 0;
+    int bp = 0;
+    int pc = 0;
+    long count = 0;
+    suspended = null;
+    if (start != null) {
+      if (profiler != null)
+        throw new Error("A run resumed from a checkpoint cannot be profiled.");
+      io.write(start.output);
+      if (coverage != null && start.coverage != null)
+        coverage.add(start.coverage);
+      if (start.result != null) {
+        executed = start.result.getInstructionCount();
+        return start.result;
+      }
+      fi = start.function;
+      pc = start.pc;
+      bp = start.bp;
+      depth = start.depth;
+      count = start.count;
+      System.arraycopy(start.stack, 0, ensureStack(start.stack.length), 0, start.stack.length);
+      if (start.calls.length > this.calls.length)
+        this.calls = Arrays.copyOf(start.calls, start.calls.length * 2);
+      System.arraycopy(start.calls, 0, this.calls, 0, start.calls.length);
+    }
+    DecodedFunction f = program.load(fi);
+    int[] code = f.code;
+    int[] widths = f.widths;
+    long dispatches = 0;
+    long[] s = ensureStack(bp + f.frameSize);
+    int[] calls = this.calls;
+    final long[][] pages = memory.pages;
+    final boolean[] owned = memory.owned;
+    final Tracer tracer = Tracer.COMPILED ? this.tracer : null;
+    final Profiler profiler = this.profiler;
+    final Coverage coverage = this.coverage;
+    if (profiler != null && program.fused)
+      throw new Error("Profiling requires a program decoded without superinstructions.");
+    if (profiler != null)
+      profiler.start(program);
+    long[] counts = profiler != null ? profiler.counts[fi] : null;
+    final ExecutionLimits limits = this.limits;
+    final int maxCallDepth = limits.getMaxCallDepth();
+    final long maxTouchedWords = limits.getMaxTouchedWords();
+    final long deadline = limits.deadline(System.nanoTime());
+    long nextPoll = limits.nextPoll(count);
+    long touched = memory.touched;
+    ExecutionResult.Status stop = null;
+    try {
+      dispatch: for (;;) {
+        count += widths[pc];
+        dispatches++;
+        if (Tracer.COMPILED && tracer != null)
+          trace(tracer, fi, f, pc, s, bp);
+        if (counts != null)
+          counts[pc]++;
+        final int op = code[pc];
+        final int from = pc;
+        final int fromFunction = fi;
+        switch (op) {
+          case Bytecode.NOP:
+            pc += 1;
+            break;
+          case Bytecode.CONST:
+            s[bp + code[pc + 1]] = f.constants[code[pc + 2]];
+            pc += 3;
+            break;
+          case Bytecode.MOV:
+            s[bp + code[pc + 1]] = s[bp + code[pc + 2]];
+            pc += 3;
+            break;
+          case Bytecode.ADD:
+            s[bp + code[pc + 1]] = s[bp + code[pc + 2]] + s[bp + code[pc + 3]];
+            pc += 4;
+            break;
+          case Bytecode.SUB:
+            s[bp + code[pc + 1]] = s[bp + code[pc + 2]] - s[bp + code[pc + 3]];
+            pc += 4;
+            break;
+          case Bytecode.MUL:
+            s[bp + code[pc + 1]] = s[bp + code[pc + 2]] * s[bp + code[pc + 3]];
+            pc += 4;
+            break;
+          case Bytecode.DIV:
+            s[bp + code[pc + 1]] = s[bp + code[pc + 2]] / s[bp + code[pc + 3]];
+            pc += 4;
+            break;
+          case Bytecode.CMP_GE:
+            s[bp + code[pc + 1]] = s[bp + code[pc + 2]] >= s[bp + code[pc + 3]] ? 1 : 0;
+            pc += 4;
+            break;
+          case Bytecode.CMP_GT:
+            s[bp + code[pc + 1]] = s[bp + code[pc + 2]] > s[bp + code[pc + 3]] ? 1 : 0;
+            pc += 4;
+            break;
+          case Bytecode.CMP_LE:
+            s[bp + code[pc + 1]] = s[bp + code[pc + 2]] <= s[bp + code[pc + 3]] ? 1 : 0;
+            pc += 4;
+            break;
+          case Bytecode.CMP_LT:
+            s[bp + code[pc + 1]] = s[bp + code[pc + 2]] < s[bp + code[pc + 3]] ? 1 : 0;
+            pc += 4;
+            break;
+          case Bytecode.CMP_EQ:
+            s[bp + code[pc + 1]] = s[bp + code[pc + 2]] == s[bp + code[pc + 3]] ? 1 : 0;
+            pc += 4;
+            break;
+          case Bytecode.CMP_NE:
+            s[bp + code[pc + 1]] = s[bp + code[pc + 2]] != s[bp + code[pc + 3]] ? 1 : 0;
+            pc += 4;
+            break;
+          case Bytecode.NOT:
+            s[bp + code[pc + 1]] = s[bp + code[pc + 2]] != 0 ? 0 : 1;
+            pc += 3;
+            break;
+          case Bytecode.ADDR: {
+            int index = code[pc + 3];
+            s[bp + code[pc + 1]] = code[pc + 2] + (index >= 0 ? s[bp + index] : 0);
+            pc += 4;
+            break;
+          }
+          case Bytecode.LOAD: {
+            int word = memory.check(s[bp + code[pc + 2]]);
+            long[] page = pages[word >>> GlobalMemory.PAGE_SHIFT];
+            int bits = GlobalMemory.PAGE_WORDS + ((word & GlobalMemory.PAGE_MASK) >>> 6);
+            if ((page[bits] & (1L << word)) == 0)
+              io.println("Reading from uninitialized memory");
+            s[bp + code[pc + 1]] = page[word & GlobalMemory.PAGE_MASK];
+            pc += 3;
+            break;
+          }
+          case Bytecode.STORE: {
+            int word = memory.check(s[bp + code[pc + 2]]);
+            long[] page = owned[word >>> GlobalMemory.PAGE_SHIFT]
+                ? pages[word >>> GlobalMemory.PAGE_SHIFT]
+                : memory.copyPage(word);
+            int bits = GlobalMemory.PAGE_WORDS + ((word & GlobalMemory.PAGE_MASK) >>> 6);
+            page[word & GlobalMemory.PAGE_MASK] = s[bp + code[pc + 1]];
+            if ((page[bits] & (1L << word)) == 0) {
+              page[bits] |= 1L << word;
+              if (++touched > maxTouchedWords) {
+                stop = ExecutionResult.Status.MEMORY_LIMIT;
+                break dispatch;
+              }
+            }
+            pc += 3;
+            break;
+          }
+          case Bytecode.JUMP:
+            if (s[bp + code[pc + 1]] != 0) {
+              if (counts != null)
+                counts[pc + 1]++;
+              if (count >= nextPoll) {
+                stop = limits.poll(count, deadline, cancelled);
+                if (stop != null)
+                  break dispatch;
+                nextPoll = limits.nextPoll(count);
+              }
+              pc = code[pc + 2];
+            } else {
+              pc += 3;
+            }
+            break;
+          case Bytecode.GOTO:
+            if (count >= nextPoll) {
+              stop = limits.poll(count, deadline, cancelled);
+              if (stop != null)
+                break dispatch;
+              nextPoll = limits.nextPoll(count);
+            }
+            pc = code[pc + 1];
+            break;
+          case Bytecode.CALL: {
+            if (depth + 1 >= maxCallDepth) {
+              stop = ExecutionResult.Status.CALL_DEPTH_LIMIT;
+              break dispatch;
+            }
+            if (count >= nextPoll) {
+              stop = limits.poll(count, deadline, cancelled);
+              if (stop != null)
+                break dispatch;
+              nextPoll = limits.nextPoll(count);
+            }
+            int calleeIndex = code[pc + 1];
+            DecodedFunction callee = program.load(calleeIndex);
+            int argc = code[pc + 3];
+            int calleeBp = bp + f.frameSize;
+            int top = calleeBp + callee.frameSize;
+            if (top > s.length)
+              s = ensureStack(top);
+            Arrays.fill(s, calleeBp, top, 0);
+            for (int i = 0; i < argc; i++) {
+              s[calleeBp + callee.argSlots[i]] = s[bp + code[pc + 4 + i]];
+            }
+            int record = depth * CALL_RECORD;
+            if (record + CALL_RECORD > calls.length)
+              calls = this.calls = Arrays.copyOf(calls, calls.length * 2);
+            calls[record] = fi;
+            calls[record + 1] = pc + 4 + argc;
+            calls[record + 2] = bp;
+            calls[record + 3] = code[pc + 2];
+            depth++;
+            fi = calleeIndex;
+            f = callee;
+            code = f.code;
+            widths = f.widths;
+            bp = calleeBp;
+            pc = 0;
+            if (profiler != null) {
+              profiler.enter(fi, count);
+              counts = profiler.counts[fi];
+            }
+            break;
+          }
+          case Bytecode.RET: {
+            int src = code[pc + 1];
+            long value = src >= 0 ? s[bp + src] : 0;
+            if (depth == 0)
+              break dispatch;
+            if (profiler != null)
+              profiler.exit(fi, count);
+            depth--;
+            int record = depth * CALL_RECORD;
+            fi = calls[record];
+            pc = calls[record + 1];
+            bp = calls[record + 2];
+            int retSlot = calls[record + 3];
+            f = program.functions[fi];
+            code = f.code;
+            widths = f.widths;
+            if (profiler != null)
+              counts = profiler.counts[fi];
+            if (retSlot >= 0)
+              s[bp + retSlot] = value;
+            break;
+          }
+          case Bytecode.READ_INT:
+            if (suspendAtInput) {
+              count -= widths[pc];
+              dispatches--;
+              suspended = new int[] {fi, pc, bp, depth};
+              break dispatch;
+            }
+            s[bp + code[pc + 1]] = io.readInt();
+            pc += 2;
+            break;
+          case Bytecode.READ_CHAR:
+            if (suspendAtInput) {
+              count -= widths[pc];
+              dispatches--;
+              suspended = new int[] {fi, pc, bp, depth};
+              break dispatch;
+            }
+            s[bp + code[pc + 1]] = io.readChar();
+            pc += 2;
+            break;
+          case Bytecode.PRINT_BOOL:
+            io.printBool(s[bp + code[pc + 1]] != 0);
+            pc += 2;
+            break;
+          case Bytecode.PRINT_INT:
+            io.printInt(s[bp + code[pc + 1]]);
+            pc += 2;
+            break;
+          case Bytecode.PRINT_CHAR:
+            io.printChar(s[bp + code[pc + 1]]);
+            pc += 2;
+            break;
+          case Bytecode.PRINTLN:
+            io.println();
+            pc += 1;
+            break;
+          case Bytecode.ADDI:
+            s[bp + code[pc + 1]] = s[bp + code[pc + 2]] + code[pc + 3];
+            pc += 4;
+            break;
+          case Bytecode.SUBI:
+            s[bp + code[pc + 1]] = s[bp + code[pc + 2]] - code[pc + 3];
+            pc += 4;
+            break;
+          case Bytecode.MULI:
+            s[bp + code[pc + 1]] = s[bp + code[pc + 2]] * code[pc + 3];
+            pc += 4;
+            break;
+          case Bytecode.DIVI:
+            s[bp + code[pc + 1]] = s[bp + code[pc + 2]] / code[pc + 3];
+            pc += 4;
+            break;
+          case Bytecode.CMPI_GE:
+            s[bp + code[pc + 1]] = s[bp + code[pc + 2]] >= code[pc + 3] ? 1 : 0;
+            pc += 4;
+            break;
+          case Bytecode.CMPI_GT:
+            s[bp + code[pc + 1]] = s[bp + code[pc + 2]] > code[pc + 3] ? 1 : 0;
+            pc += 4;
+            break;
+          case Bytecode.CMPI_LE:
+            s[bp + code[pc + 1]] = s[bp + code[pc + 2]] <= code[pc + 3] ? 1 : 0;
+            pc += 4;
+            break;
+          case Bytecode.CMPI_LT:
+            s[bp + code[pc + 1]] = s[bp + code[pc + 2]] < code[pc + 3] ? 1 : 0;
+            pc += 4;
+            break;
+          case Bytecode.CMPI_EQ:
+            s[bp + code[pc + 1]] = s[bp + code[pc + 2]] == code[pc + 3] ? 1 : 0;
+            pc += 4;
+            break;
+          case Bytecode.CMPI_NE:
+            s[bp + code[pc + 1]] = s[bp + code[pc + 2]] != code[pc + 3] ? 1 : 0;
+            pc += 4;
+            break;
+          case Bytecode.JCMP_GE:
+            if (s[bp + code[pc + 1]] >= s[bp + code[pc + 2]]) {
+              if (count >= nextPoll) {
+                stop = limits.poll(count, deadline, cancelled);
+                if (stop != null)
+                  break dispatch;
+                nextPoll = limits.nextPoll(count);
+              }
+              pc = code[pc + 3];
+            } else {
+              pc += 4;
+            }
+            break;
+          case Bytecode.JCMP_GT:
+            if (s[bp + code[pc + 1]] > s[bp + code[pc + 2]]) {
+              if (count >= nextPoll) {
+                stop = limits.poll(count, deadline, cancelled);
+                if (stop != null)
+                  break dispatch;
+                nextPoll = limits.nextPoll(count);
+              }
+              pc = code[pc + 3];
+            } else {
+              pc += 4;
+            }
+            break;
+          case Bytecode.JCMP_LE:
+            if (s[bp + code[pc + 1]] <= s[bp + code[pc + 2]]) {
+              if (count >= nextPoll) {
+                stop = limits.poll(count, deadline, cancelled);
+                if (stop != null)
+                  break dispatch;
+                nextPoll = limits.nextPoll(count);
+              }
+              pc = code[pc + 3];
+            } else {
+              pc += 4;
+            }
+            break;
+          case Bytecode.JCMP_LT:
+            if (s[bp + code[pc + 1]] < s[bp + code[pc + 2]]) {
+              if (count >= nextPoll) {
+                stop = limits.poll(count, deadline, cancelled);
+                if (stop != null)
+                  break dispatch;
+                nextPoll = limits.nextPoll(count);
+              }
+              pc = code[pc + 3];
+            } else {
+              pc += 4;
+            }
+            break;
+          case Bytecode.JCMP_EQ:
+            if (s[bp + code[pc + 1]] == s[bp + code[pc + 2]]) {
+              if (count >= nextPoll) {
+                stop = limits.poll(count, deadline, cancelled);
+                if (stop != null)
+                  break dispatch;
+                nextPoll = limits.nextPoll(count);
+              }
+              pc = code[pc + 3];
+            } else {
+              pc += 4;
+            }
+            break;
+          case Bytecode.JCMP_NE:
+            if (s[bp + code[pc + 1]] != s[bp + code[pc + 2]]) {
+              if (count >= nextPoll) {
+                stop = limits.poll(count, deadline, cancelled);
+                if (stop != null)
+                  break dispatch;
+                nextPoll = limits.nextPoll(count);
+              }
+              pc = code[pc + 3];
+            } else {
+              pc += 4;
+            }
+            break;
+          case Bytecode.JCMPI_GE:
+            if (s[bp + code[pc + 1]] >= code[pc + 2]) {
+              if (count >= nextPoll) {
+                stop = limits.poll(count, deadline, cancelled);
+                if (stop != null)
+                  break dispatch;
+                nextPoll = limits.nextPoll(count);
+              }
+              pc = code[pc + 3];
+            } else {
+              pc += 4;
+            }
+            break;
+          case Bytecode.JCMPI_GT:
+            if (s[bp + code[pc + 1]] > code[pc + 2]) {
+              if (count >= nextPoll) {
+                stop = limits.poll(count, deadline, cancelled);
+                if (stop != null)
+                  break dispatch;
+                nextPoll = limits.nextPoll(count);
+              }
+              pc = code[pc + 3];
+            } else {
+              pc += 4;
+            }
+            break;
+          case Bytecode.JCMPI_LE:
+            if (s[bp + code[pc + 1]] <= code[pc + 2]) {
+              if (count >= nextPoll) {
+                stop = limits.poll(count, deadline, cancelled);
+                if (stop != null)
+                  break dispatch;
+                nextPoll = limits.nextPoll(count);
+              }
+              pc = code[pc + 3];
+            } else {
+              pc += 4;
+            }
+            break;
+          case Bytecode.JCMPI_LT:
+            if (s[bp + code[pc + 1]] < code[pc + 2]) {
+              if (count >= nextPoll) {
+                stop = limits.poll(count, deadline, cancelled);
+                if (stop != null)
+                  break dispatch;
+                nextPoll = limits.nextPoll(count);
+              }
+              pc = code[pc + 3];
+            } else {
+              pc += 4;
+            }
+            break;
+          case Bytecode.JCMPI_EQ:
+            if (s[bp + code[pc + 1]] == code[pc + 2]) {
+              if (count >= nextPoll) {
+                stop = limits.poll(count, deadline, cancelled);
+                if (stop != null)
+                  break dispatch;
+                nextPoll = limits.nextPoll(count);
+              }
+              pc = code[pc + 3];
+            } else {
+              pc += 4;
+            }
+            break;
+          case Bytecode.JCMPI_NE:
+            if (s[bp + code[pc + 1]] != code[pc + 2]) {
+              if (count >= nextPoll) {
+                stop = limits.poll(count, deadline, cancelled);
+                if (stop != null)
+                  break dispatch;
+                nextPoll = limits.nextPoll(count);
+              }
+              pc = code[pc + 3];
+            } else {
+              pc += 4;
+            }
+            break;
+          case Bytecode.LOADG: {
+            int word = code[pc + 2];
+            long[] page = pages[word >>> GlobalMemory.PAGE_SHIFT];
+            int bits = GlobalMemory.PAGE_WORDS + ((word & GlobalMemory.PAGE_MASK) >>> 6);
+            if ((page[bits] & (1L << word)) == 0)
+              io.println("Reading from uninitialized memory");
+            s[bp + code[pc + 1]] = page[word & GlobalMemory.PAGE_MASK];
+            pc += 3;
+            break;
+          }
+          case Bytecode.LOADX: {
+            int word = memory.check(code[pc + 2] + s[bp + code[pc + 3]]);
+            long[] page = pages[word >>> GlobalMemory.PAGE_SHIFT];
+            int bits = GlobalMemory.PAGE_WORDS + ((word & GlobalMemory.PAGE_MASK) >>> 6);
+            if ((page[bits] & (1L << word)) == 0)
+              io.println("Reading from uninitialized memory");
+            s[bp + code[pc + 1]] = page[word & GlobalMemory.PAGE_MASK];
+            pc += 4;
+            break;
+          }
+          case Bytecode.STOREG: {
+            int word = code[pc + 2];
+            long[] page = owned[word >>> GlobalMemory.PAGE_SHIFT]
+                ? pages[word >>> GlobalMemory.PAGE_SHIFT]
+                : memory.copyPage(word);
+            int bits = GlobalMemory.PAGE_WORDS + ((word & GlobalMemory.PAGE_MASK) >>> 6);
+            page[word & GlobalMemory.PAGE_MASK] = s[bp + code[pc + 1]];
+            if ((page[bits] & (1L << word)) == 0) {
+              page[bits] |= 1L << word;
+              if (++touched > maxTouchedWords) {
+                stop = ExecutionResult.Status.MEMORY_LIMIT;
+                break dispatch;
+              }
+            }
+            pc += 3;
+            break;
+          }
+          case Bytecode.STOREX: {
+            int word = memory.check(code[pc + 2] + s[bp + code[pc + 3]]);
+            long[] page = owned[word >>> GlobalMemory.PAGE_SHIFT]
+                ? pages[word >>> GlobalMemory.PAGE_SHIFT]
+                : memory.copyPage(word);
+            int bits = GlobalMemory.PAGE_WORDS + ((word & GlobalMemory.PAGE_MASK) >>> 6);
+            page[word & GlobalMemory.PAGE_MASK] = s[bp + code[pc + 1]];
+            if ((page[bits] & (1L << word)) == 0) {
+              page[bits] |= 1L << word;
+              if (++touched > maxTouchedWords) {
+                stop = ExecutionResult.Status.MEMORY_LIMIT;
+                break dispatch;
+              }
+            }
+            pc += 4;
+            break;
+          }
+          default:
+            throw new Error("Unknown opcode " + code[pc] + " in " + f.name);
+        }
+        if (coverage != null && Bytecode.isBranch(op))
+          coverage.hit(fromFunction, from, fi, pc);
+      }
+      return new ExecutionResult(stop != null ? stop : ExecutionResult.Status.COMPLETED, count,
+          limits);
+    } finally {
+      executed = count;
+      dispatched = dispatches;
+      memory.touched = touched;
+      if (profiler != null)
+        profiler.finish(count);
+      io.flush();
+    }
+  }
+
+  /**
+   * Records the instruction at pc with the values of its first two inputs.
+   */
+  private static void trace(Tracer tracer, int fi, DecodedFunction f, int pc, long[] s, int bp) {
+    int[] code = f.code;
+    long a = 0;
+    long b = 0;
+    switch (code[pc]) {
+      case Bytecode.CONST:
+        a = f.constants[code[pc + 2]];
+        break;
+      case Bytecode.MOV:
+      case Bytecode.NOT:
+      case Bytecode.LOAD:
+        a = s[bp + code[pc + 2]];
+        break;
+      case Bytecode.ADDR:
+        a = code[pc + 2];
+        b = code[pc + 3] >= 0 ? s[bp + code[pc + 3]] : 0;
+        break;
+      case Bytecode.STORE:
+      case Bytecode.JUMP:
+        a = s[bp + code[pc + 1]];
+        b = code[pc] == Bytecode.STORE ? s[bp + code[pc + 2]] : 0;
+        break;
+      case Bytecode.CALL:
+        a = code[pc + 3] > 0 ? s[bp + code[pc + 4]] : 0;
+        b = code[pc + 3] > 1 ? s[bp + code[pc + 5]] : 0;
+        break;
+      case Bytecode.RET:
+      case Bytecode.PRINT_BOOL:
+      case Bytecode.PRINT_INT:
+      case Bytecode.PRINT_CHAR:
+        a = code[pc + 1] >= 0 ? s[bp + code[pc + 1]] : 0;
+        break;
+      case Bytecode.LOADG:
+        a = code[pc + 2];
+        break;
+      case Bytecode.LOADX:
+        a = code[pc + 2];
+        b = s[bp + code[pc + 3]];
+        break;
+      case Bytecode.STOREG:
+        a = s[bp + code[pc + 1]];
+        b = code[pc + 2];
+        break;
+      case Bytecode.STOREX:
+        a = s[bp + code[pc + 1]];
+        b = code[pc + 2] + s[bp + code[pc + 3]];
+        break;
+      default:
+        if (code[pc] >= Bytecode.ADD && code[pc] <= Bytecode.CMP_NE) {
+          a = s[bp + code[pc + 2]];
+          b = s[bp + code[pc + 3]];
+        } else if (code[pc] >= Bytecode.ADDI && code[pc] <= Bytecode.CMPI_NE) {
+          a = s[bp + code[pc + 2]];
+          b = code[pc + 3];
+        } else if (code[pc] >= Bytecode.JCMP_GE && code[pc] <= Bytecode.JCMP_NE) {
+          a = s[bp + code[pc + 1]];
+          b = s[bp + code[pc + 2]];
+        } else if (code[pc] >= Bytecode.JCMPI_GE && code[pc] <= Bytecode.JCMPI_NE) {
+          a = s[bp + code[pc + 1]];
+          b = code[pc + 2];
+        }
+        break;
+    }
+    tracer.record((long) fi << 32 | pc, a, b);
+  }
+
+  private long[] ensureStack(int size) {
+    if (size > stack.length)
+      stack = Arrays.copyOf(stack, Math.max(size, stack.length * 2));
+    return stack;
+  }
+}
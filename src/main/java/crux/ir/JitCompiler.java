@@ -0,0 +1,870 @@
+package crux.ir;
+
+import crux.ast.SymbolTable.Symbol;
+import crux.ast.types.IntType;
+import crux.ir.insts.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+
+/**
+ * Compiles the functions of a {@link ClosureEngine} to JVM classes once they are hot. Each function
+ * becomes a class with two methods that implement it on {@code long} locals, one local per frame
+ * slot:
+ * <ul>
+ * <li>{@code static long invoke(JitRuntime rt, long... args)}, which compiled callers call
+ * directly, and</li>
+ * <li>{@link JitRuntime.Code#run}, which the closure engine calls to start or continue an
+ * activation at the start of any of its blocks, with the slots in its frame.</li>
+ * </ul>
+ * A function is compiled together with all functions it can call, so compiled code only ever
+ * calls compiled code. Memory accesses, builtins, the instruction count and the limits go through
+ * the {@link JitRuntime}, whose small methods the JVM inlines.
+ * <p>
+ * The compiler also compiles the traces of a {@link ClosureEngine} that records hot loops: the
+ * blocks one iteration of a loop ran through, as a {@link JitRuntime.Trace} whose loop body is
+ * straight-line code. Every jump that could leave the recorded path becomes a guard that returns
+ * to the closure engine, a side exit.
+ * <p>
+ * The classes are written in class file version 49, which the JVM verifies by type inference, so
+ * no stack map frames are needed.
+ */
+final class JitCompiler {
+  private static final String RUNTIME = "crux/ir/JitRuntime";
+  private static final String CODE = "crux/ir/JitRuntime$Code";
+  private static final String RUN_DESCRIPTOR = "(L" + RUNTIME + ";[JII)J";
+  private static final String TRACE = "crux/ir/JitRuntime$Trace";
+  private static final String TRACE_DESCRIPTOR = "(L" + RUNTIME + ";[JI)I";
+  /** The largest method the compiler emits, so that every branch offset fits in 16 bits. */
+  private static final int MAX_CODE = 32767;
+
+  /** Defines the generated classes, resolving references between them by name. */
+  private static final class Loader extends ClassLoader {
+    private final HashMap<String, byte[]> classes = new HashMap<>();
+
+    Loader() {
+      super(JitCompiler.class.getClassLoader());
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+      byte[] bytes = classes.remove(name);
+      if (bytes == null)
+        throw new ClassNotFoundException(name);
+      return defineClass(name, bytes, 0, bytes.length);
+    }
+  }
+
+  /** Thrown when a function cannot be compiled, such as when its code is too large. */
+  private static final class Unsupported extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    Unsupported(String message) {
+      super(message);
+    }
+  }
+
+  private final Loader loader = new Loader();
+  private final Map<Symbol, Integer> globalWords;
+  private int compiledFunctions;
+  private int compiledTraces;
+  private long compiledBytes;
+  private long compileNanos;
+
+  JitCompiler(Map<Symbol, Integer> globalWords) {
+    this.globalWords = globalWords;
+  }
+
+  int getCompiledFunctions() {
+    return compiledFunctions;
+  }
+
+  int getCompiledTraces() {
+    return compiledTraces;
+  }
+
+  long getCompiledBytes() {
+    return compiledBytes;
+  }
+
+  long getCompileNanos() {
+    return compileNanos;
+  }
+
+  /**
+   * Compiles f and every function it can call that is not compiled yet, and returns whether f has
+   * compiled code now. If one of them cannot be compiled, none of them is, and they all stay in the
+   * closure engine.
+   */
+  boolean compile(ClosureEngine.CompiledFunction f) {
+    long start = System.nanoTime();
+    List<ClosureEngine.CompiledFunction> batch = new ArrayList<>();
+    Stack<ClosureEngine.CompiledFunction> tovisit = new Stack<>();
+    HashSet<ClosureEngine.CompiledFunction> discovered = new HashSet<>();
+    tovisit.push(f);
+    discovered.add(f);
+    while (!tovisit.isEmpty()) {
+      ClosureEngine.CompiledFunction g = tovisit.pop();
+      if (g.code != null)
+        continue;
+      batch.add(g);
+      for (ClosureEngine.Block b : g.blocks) {
+        if (b.callee != null && discovered.add(b.callee))
+          tovisit.push(b.callee);
+      }
+    }
+    try {
+      HashMap<ClosureEngine.CompiledFunction, byte[]> generated = new HashMap<>();
+      for (ClosureEngine.CompiledFunction g : batch) {
+        if (g.jitFailed)
+          throw new Unsupported(g.name + " failed to compile before");
+        var writer = new ClassWriter(className(g), CODE);
+        generated.put(g, writer.write(new FunctionWriter(writer, g, false).write(),
+            new FunctionWriter(writer, g, true).write()));
+      }
+      for (var entry : generated.entrySet()) {
+        loader.classes.put(className(entry.getKey()).replace('/', '.'), entry.getValue());
+        compiledBytes += entry.getValue().length;
+      }
+      List<JitRuntime.Code> code = new ArrayList<>();
+      for (ClosureEngine.CompiledFunction g : batch) {
+        Class<?> c = loader.loadClass(className(g).replace('/', '.'));
+        code.add((JitRuntime.Code) c.getDeclaredConstructor().newInstance());
+      }
+      for (int i = 0; i < batch.size(); i++)
+        batch.get(i).code = code.get(i);
+      compiledFunctions += batch.size();
+      return true;
+    } catch (Unsupported | LinkageError e) {
+      // The JVM rejects what the checks here miss, such as a signature it finds too long
+      for (ClosureEngine.CompiledFunction g : batch) {
+        loader.classes.remove(className(g).replace('/', '.'));
+        g.jitFailed = true;
+      }
+      return false;
+    } catch (ReflectiveOperationException e) {
+      throw new Error("Failed to load the compiled code of " + f.name + ".", e);
+    } finally {
+      compileNanos += System.nanoTime() - start;
+    }
+  }
+
+  /**
+   * Compiles the loop that f runs along path, starting and ending at its first block. taken tells
+   * for every block of path that ends in a jump whether the trace follows the jump. Returns the
+   * compiled trace, or null if it cannot be compiled.
+   */
+  JitRuntime.Trace compileTrace(ClosureEngine.CompiledFunction f, ClosureEngine.Block[] path,
+      boolean[] taken) {
+    long start = System.nanoTime();
+    String name = "crux/ir/jit/T" + compiledTraces;
+    try {
+      var writer = new ClassWriter(name, TRACE);
+      byte[] bytes = writer.write(new TraceWriter(writer, f, path, taken).write());
+      loader.classes.put(name.replace('/', '.'), bytes);
+      Class<?> c = loader.loadClass(name.replace('/', '.'));
+      compiledTraces++;
+      compiledBytes += bytes.length;
+      return (JitRuntime.Trace) c.getDeclaredConstructor().newInstance();
+    } catch (Unsupported | LinkageError e) {
+      loader.classes.remove(name.replace('/', '.'));
+      return null;
+    } catch (ReflectiveOperationException e) {
+      throw new Error("Failed to load a compiled trace of " + f.name + ".", e);
+    } finally {
+      compileNanos += System.nanoTime() - start;
+    }
+  }
+
+  private static String className(ClosureEngine.CompiledFunction f) {
+    return "crux/ir/jit/F" + f.index;
+  }
+
+  /**
+   * Returns the descriptor of the static invoke method of a function with numArgs arguments, which
+   * takes the runtime and one long per argument. A method has at most 255 parameter slots, and a
+   * long takes two.
+   */
+  private static String invokeDescriptor(int numArgs) {
+    if (1 + 2 * numArgs > 255)
+      throw new Unsupported("A function with " + numArgs + " arguments is too large to compile");
+    return "(L" + RUNTIME + ";" + "J".repeat(numArgs) + ")J";
+  }
+
+  /**
+   * Writes a class that implements one interface of the {@link JitRuntime} with a constructor and
+   * the methods of one function or trace.
+   */
+  private static final class ClassWriter {
+    private final ConstantPool pool = new ConstantPool();
+    private final String name;
+    private final String implemented;
+
+    ClassWriter(String name, String implemented) {
+      this.name = name;
+      this.implemented = implemented;
+    }
+
+    byte[] write(byte[]... methods) {
+      int thisClass = pool.classRef(name);
+      int superClass = pool.classRef("java/lang/Object");
+      int interfaceClass = pool.classRef(implemented);
+      byte[] init = constructor();
+
+      var bytes = new ByteArrayOutputStream();
+      var out = new DataOutputStream(bytes);
+      try {
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(49);
+        pool.write(out);
+        out.writeShort(0x0031); // public final super
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);
+        out.writeShort(interfaceClass);
+        out.writeShort(0);
+        out.writeShort(1 + methods.length);
+        out.write(init);
+        for (byte[] method : methods)
+          out.write(method);
+        out.writeShort(0);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return bytes.toByteArray();
+    }
+
+    private byte[] constructor() {
+      var code = new Code();
+      code.op(0x2A); // aload_0
+      code.op(0xB7); // invokespecial
+      code.u2(pool.methodRef("java/lang/Object", "<init>", "()V"));
+      code.op(0xB1); // return
+      return method(0x0001, "<init>", "()V", code, 1, 1);
+    }
+
+    byte[] method(int access, String name, String descriptor, Code code, int maxStack,
+        int maxLocals) {
+      if (code.size() > MAX_CODE)
+        throw new Unsupported(this.name + "." + name + " is too large to compile");
+      if (maxStack > 0xFFFF || maxLocals > 0xFFFF)
+        throw new Unsupported(this.name + "." + name + " has too many locals to compile");
+      int nameIndex = pool.utf8(name);
+      int descriptorIndex = pool.utf8(descriptor);
+      int codeIndex = pool.utf8("Code");
+      var bytes = new ByteArrayOutputStream();
+      var out = new DataOutputStream(bytes);
+      try {
+        out.writeShort(access);
+        out.writeShort(nameIndex);
+        out.writeShort(descriptorIndex);
+        out.writeShort(1);
+        out.writeShort(codeIndex);
+        out.writeInt(12 + code.size());
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.size());
+        code.writeTo(out);
+        out.writeShort(0);
+        out.writeShort(0);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return bytes.toByteArray();
+    }
+  }
+
+  /**
+   * Emits the straight-line instructions of the blocks of one function on long locals, one per
+   * frame slot from local base on, with the runtime in local rt. Branches go to labels, which are
+   * bound to code positions and patched when the method is done.
+   */
+  private abstract class BodyWriter extends InstVisitor {
+    final ClassWriter writer;
+    final ClosureEngine.CompiledFunction f;
+    final int rt;
+    final int base;
+    final Code code = new Code();
+    // The runtime and two longs, as a store passes them
+    int maxStack = 5;
+    private final ArrayList<Integer> labels = new ArrayList<>();
+    /** Branch position, operand position, label and operand width of every unpatched branch. */
+    private final ArrayList<int[]> fixups = new ArrayList<>();
+
+    BodyWriter(ClassWriter writer, ClosureEngine.CompiledFunction f, int rt, int base) {
+      this.writer = writer;
+      this.f = f;
+      this.rt = rt;
+      this.base = base;
+    }
+
+    int newLabel() {
+      labels.add(-1);
+      return labels.size() - 1;
+    }
+
+    void bind(int label) {
+      labels.set(label, code.size());
+    }
+
+    void branch(int opcode, int label) {
+      int at = code.size();
+      code.op(opcode);
+      fixups.add(new int[] {at, code.size(), label, 2});
+      code.u2(0);
+    }
+
+    /**
+     * Emits a tableswitch on the int on the stack to the labels of the values 0 to
+     * targets.length - 1, and to the first of them for all other values.
+     */
+    void tableswitch(int[] targets) {
+      int at = code.size();
+      code.op(0xAA); // tableswitch
+      while (code.size() % 4 != 0)
+        code.u1(0);
+      fixups.add(new int[] {at, code.size(), targets[0], 4});
+      code.u4(0);
+      code.u4(0);
+      code.u4(targets.length - 1);
+      for (int target : targets) {
+        fixups.add(new int[] {at, code.size(), target, 4});
+        code.u4(0);
+      }
+    }
+
+    /**
+     * Patches all branches, returns the code of the method.
+     */
+    Code finish() {
+      for (int[] fixup : fixups) {
+        int offset = labels.get(fixup[2]) - fixup[0];
+        if (fixup[3] == 2)
+          code.patch2(fixup[1], offset);
+        else
+          code.patch4(fixup[1], offset);
+      }
+      return code;
+    }
+
+    /**
+     * Loads slot k of the frame at bp of the long[] in local 2 into its local.
+     */
+    void loadFromFrame(int k) {
+      code.op(0x2C); // aload_2
+      code.op(0x1D); // iload_3
+      pushInt(k);
+      code.op(0x60); // iadd
+      code.op(0x2F); // laload
+      store(k);
+    }
+
+    /**
+     * Emits the instruction count of b and every instruction of b but the jump, call or return that
+     * ends it.
+     */
+    void writeStraightLine(ClosureEngine.Block b) {
+      if (b.size > 0) {
+        code.op(0x2A + rt); // aload rt
+        pushInt(b.size);
+        invoke("count", "(I)V");
+      }
+      int n = b.insts.length;
+      if (n > 0 && b.kind != ClosureEngine.GOTO
+          && (b.kind != ClosureEngine.RETURN || b.insts[n - 1] instanceof ReturnInst))
+        n--;
+      for (int j = 0; j < n; j++)
+        b.insts[j].accept(this);
+    }
+
+    void poll() {
+      code.op(0x2A + rt);
+      invoke("poll", "()V");
+    }
+
+    void invoke(String name, String descriptor) {
+      code.op(0xB6); // invokevirtual
+      code.u2(writer.pool.methodRef(RUNTIME, name, descriptor));
+    }
+
+    void load(int slot) {
+      localOp(0x16, slot); // lload
+    }
+
+    void store(int slot) {
+      localOp(0x37, slot); // lstore
+    }
+
+    private void localOp(int opcode, int slot) {
+      int local = base + 2 * slot;
+      if (local > 255) {
+        code.op(0xC4); // wide
+        code.op(opcode);
+        code.u2(local);
+      } else {
+        code.op(opcode);
+        code.u1(local);
+      }
+    }
+
+    void pushInt(int value) {
+      if (value >= -1 && value <= 5) {
+        code.op(0x03 + value); // iconst
+      } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        code.op(0x10); // bipush
+        code.u1(value);
+      } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+        code.op(0x11); // sipush
+        code.u2(value);
+      } else {
+        code.op(0x13); // ldc_w
+        code.u2(writer.pool.integer(value));
+      }
+    }
+
+    private void pushLong(long value) {
+      if (value == 0 || value == 1) {
+        code.op(0x09 + (int) value); // lconst
+      } else if (value == (short) value) {
+        pushInt((int) value);
+        code.op(0x85); // i2l
+      } else {
+        code.op(0x14); // ldc2_w
+        code.u2(writer.pool.longConstant(value));
+      }
+    }
+
+    /**
+     * Replaces the two longs on the stack by 1 if the condition of the int comparison opcode holds
+     * for their comparison and by 0 otherwise.
+     */
+    private void compare(int opcode) {
+      code.op(0x94); // lcmp
+      code.op(opcode);
+      code.u2(7);
+      code.op(0x09); // lconst_0
+      code.op(0xA7); // goto
+      code.u2(4);
+      code.op(0x0A); // lconst_1
+    }
+
+    private int slot(Variable v) {
+      return f.layout.slotOf(v);
+    }
+
+    public void visit(AddressAt i) {
+      pushLong(globalWords.get(i.getBase()));
+      if (i.getOffset() != null) {
+        load(slot(i.getOffset()));
+        code.op(0x61); // ladd
+      }
+      store(slot(i.getDst()));
+    }
+
+    public void visit(BinaryOperator i) {
+      load(slot(i.getLeftOperand()));
+      load(slot(i.getRightOperand()));
+      switch (i.getOperator()) {
+        case Add:
+          code.op(0x61); // ladd
+          break;
+        case Sub:
+          code.op(0x65); // lsub
+          break;
+        case Mul:
+          code.op(0x69); // lmul
+          break;
+        case Div:
+          code.op(0x6D); // ldiv
+          break;
+      }
+      store(slot(i.getDst()));
+    }
+
+    public void visit(CompareInst i) {
+      load(slot(i.getLeftOperand()));
+      load(slot(i.getRightOperand()));
+      switch (i.getPredicate()) {
+        case GE:
+          compare(0x9C); // ifge
+          break;
+        case GT:
+          compare(0x9D); // ifgt
+          break;
+        case LE:
+          compare(0x9E); // ifle
+          break;
+        case LT:
+          compare(0x9B); // iflt
+          break;
+        case EQ:
+          compare(0x99); // ifeq
+          break;
+        case NE:
+          compare(0x9A); // ifne
+          break;
+      }
+      store(slot(i.getDst()));
+    }
+
+    public void visit(CopyInst i) {
+      Value src = i.getSrcValue();
+      if (src instanceof IntegerConstant)
+        pushLong(((IntegerConstant) src).getValue());
+      else if (src instanceof BooleanConstant)
+        pushLong(((BooleanConstant) src).getValue() ? 1 : 0);
+      else
+        load(slot((Variable) src));
+      store(slot(i.getDstVar()));
+    }
+
+    public void visit(JumpInst i) {
+      throw new Error("Jumps end their block.");
+    }
+
+    public void visit(LoadInst i) {
+      code.op(0x2A + rt);
+      load(slot(i.getSrcAddress()));
+      boolean isInt = i.getSrcAddress().getType() instanceof IntType;
+      invoke(isInt ? "load" : "loadBool", "(J)J");
+      store(slot(i.getDst()));
+    }
+
+    public void visit(NopInst i) {
+      // Nothing to do
+    }
+
+    public void visit(StoreInst i) {
+      code.op(0x2A + rt);
+      load(slot(i.getDestAddress()));
+      load(slot(i.getSrcValue()));
+      invoke("store", "(JJ)V");
+    }
+
+    public void visit(ReturnInst i) {
+      throw new Error("Returns end their block.");
+    }
+
+    public void visit(CallInst i) {
+      code.op(0x2A + rt);
+      switch (Builtin.lookup(i.getCallee().getName())) {
+        case READ_INT:
+          invoke("readInt", "()J");
+          store(slot(i.getDst()));
+          break;
+        case READ_CHAR:
+          invoke("readChar", "()J");
+          store(slot(i.getDst()));
+          break;
+        case PRINT_BOOL:
+          load(slot(i.getParams().get(0)));
+          invoke("printBool", "(J)V");
+          break;
+        case PRINT_INT:
+          load(slot(i.getParams().get(0)));
+          invoke("printInt", "(J)V");
+          break;
+        case PRINT_CHAR:
+          load(slot(i.getParams().get(0)));
+          invoke("printChar", "(J)V");
+          break;
+        case PRINTLN:
+          invoke("println", "()V");
+          break;
+      }
+    }
+
+    public void visit(UnaryNotInst i) {
+      load(slot(i.getInner()));
+      code.op(0x09); // lconst_0
+      compare(0x99); // ifeq
+      store(slot(i.getDst()));
+    }
+  }
+  /**
+   * Writes invoke, or run if resumable, of the class of one function. The two differ only in where
+   * the runtime and the slots live and in how the slots are initialized.
+   */
+  private final class FunctionWriter extends BodyWriter {
+    private final boolean resumable;
+    private final int[] blockLabels;
+
+    FunctionWriter(ClassWriter writer, ClosureEngine.CompiledFunction f, boolean resumable) {
+      super(writer, f, resumable ? 1 : 0, resumable ? 5 : 1);
+      this.resumable = resumable;
+      blockLabels = new int[f.blocks.size()];
+      for (int id = 0; id < blockLabels.length; id++)
+        blockLabels[id] = newLabel();
+    }
+
+    byte[] write() {
+      int frameSize = f.layout.size();
+      if (resumable) {
+        for (int k = 0; k < frameSize; k++)
+          loadFromFrame(k);
+        code.op(0x15); // iload
+        code.u1(4);
+        tableswitch(blockLabels);
+      } else {
+        code.op(0x2A); // aload_0
+        invoke("enter", "()V");
+        for (int k = f.layout.numArgs(); k < frameSize; k++) {
+          code.op(0x09); // lconst_0
+          store(k);
+        }
+      }
+      for (ClosureEngine.Block b : f.blocks)
+        writeBlock(b);
+      return writer.method(resumable ? 0x0011 : 0x0019, resumable ? "run" : "invoke",
+          resumable ? RUN_DESCRIPTOR : invokeDescriptor(f.layout.numArgs()), finish(), maxStack,
+          base + 2 * frameSize);
+    }
+
+    private void writeBlock(ClosureEngine.Block b) {
+      bind(blockLabels[b.id]);
+      writeStraightLine(b);
+      switch (b.kind) {
+        case ClosureEngine.GOTO:
+          if (b.next.id <= b.id)
+            poll();
+          jumpTo(b, b.next);
+          break;
+        case ClosureEngine.BRANCH: {
+          if (b.taken.id <= b.id || b.next.id <= b.id)
+            poll();
+          load(b.slot);
+          code.op(0x09); // lconst_0
+          code.op(0x94); // lcmp
+          branch(0x9A, blockLabels[b.taken.id]); // ifne
+          jumpTo(b, b.next);
+          break;
+        }
+        case ClosureEngine.CALL: {
+          code.op(0x2A + rt);
+          for (int arg : b.args)
+            load(arg);
+          maxStack = Math.max(maxStack, 1 + 2 * b.args.length);
+          code.op(0xB8); // invokestatic
+          code.u2(writer.pool.methodRef(className(b.callee), "invoke",
+              invokeDescriptor(b.args.length)));
+          if (b.slot >= 0)
+            store(b.slot);
+          else
+            code.op(0x58); // pop2
+          jumpTo(b, b.next);
+          break;
+        }
+        default:
+          code.op(0x2A + rt);
+          invoke("leave", "()V");
+          if (b.slot >= 0)
+            load(b.slot);
+          else
+            code.op(0x09);
+          code.op(0xAD); // lreturn
+          break;
+      }
+    }
+
+    private void jumpTo(ClosureEngine.Block from, ClosureEngine.Block to) {
+      if (to.id != from.id + 1)
+        branch(0xA7, blockLabels[to.id]); // goto
+    }
+  }
+
+  /**
+   * Writes the run method of a trace. The loop body is the straight-line code of the blocks of the
+   * path, with a guard for every jump that leaves the path. A failing guard stores the index of the
+   * jump in local 4 and goes to the code that writes the slots back to the frame and returns it.
+   */
+  private final class TraceWriter extends BodyWriter {
+    private final ClosureEngine.Block[] path;
+    private final boolean[] taken;
+
+    TraceWriter(ClassWriter writer, ClosureEngine.CompiledFunction f, ClosureEngine.Block[] path,
+        boolean[] taken) {
+      super(writer, f, 1, 5);
+      this.path = path;
+      this.taken = taken;
+    }
+
+    byte[] write() {
+      int frameSize = f.layout.size();
+      for (int k = 0; k < frameSize; k++)
+        loadFromFrame(k);
+      int loop = newLabel();
+      int writeBack = newLabel();
+      int[] exits = new int[path.length];
+      bind(loop);
+      for (int j = 0; j < path.length; j++) {
+        ClosureEngine.Block b = path[j];
+        if (b.kind != ClosureEngine.GOTO && b.kind != ClosureEngine.BRANCH)
+          throw new Error("Traces only contain blocks that end in a jump.");
+        writeStraightLine(b);
+        if (b.kind == ClosureEngine.BRANCH) {
+          exits[j] = newLabel();
+          load(b.slot);
+          code.op(0x09); // lconst_0
+          code.op(0x94); // lcmp
+          branch(taken[j] ? 0x99 : 0x9A, exits[j]); // ifeq, ifne
+        }
+      }
+      poll();
+      branch(0xA7, loop); // goto
+      for (int j = 0; j < path.length; j++) {
+        if (path[j].kind != ClosureEngine.BRANCH)
+          continue;
+        bind(exits[j]);
+        pushInt(j);
+        code.op(0x36); // istore
+        code.u1(4);
+        branch(0xA7, writeBack); // goto
+      }
+      bind(writeBack);
+      for (int k = 0; k < frameSize; k++) {
+        code.op(0x2C); // aload_2
+        code.op(0x1D); // iload_3
+        pushInt(k);
+        code.op(0x60); // iadd
+        load(k);
+        code.op(0x50); // lastore
+      }
+      poll();
+      code.op(0x15); // iload
+      code.u1(4);
+      code.op(0xAC); // ireturn
+      return writer.method(0x0011, "run", TRACE_DESCRIPTOR, finish(), maxStack,
+          base + 2 * frameSize);
+    }
+  }
+
+  /** A growable buffer of method code. */
+  private static final class Code {
+    private byte[] bytes = new byte[256];
+    private int size;
+
+    int size() {
+      return size;
+    }
+
+    void op(int opcode) {
+      u1(opcode);
+    }
+
+    void u1(int value) {
+      if (size == bytes.length)
+        bytes = Arrays.copyOf(bytes, size * 2);
+      bytes[size++] = (byte) value;
+    }
+
+    void u2(int value) {
+      u1(value >> 8);
+      u1(value);
+    }
+
+    void u4(int value) {
+      u2(value >> 16);
+      u2(value);
+    }
+
+    void patch2(int at, int value) {
+      bytes[at] = (byte) (value >> 8);
+      bytes[at + 1] = (byte) value;
+    }
+
+    void patch4(int at, int value) {
+      patch2(at, value >> 16);
+      patch2(at + 2, value);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+      out.write(bytes, 0, size);
+    }
+  }
+
+  /** The constant pool of one class, with every constant entered once. */
+  private static final class ConstantPool {
+    private final HashMap<String, Integer> index = new HashMap<>();
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+    private int count = 1;
+
+    int utf8(String s) {
+      return entry("U" + s, 1, () -> out.writeUTF(s));
+    }
+
+    int integer(int value) {
+      return entry("I" + value, 1, () -> {
+        out.writeByte(3);
+        out.writeInt(value);
+      });
+    }
+
+    int longConstant(long value) {
+      return entry("J" + value, 2, () -> {
+        out.writeByte(5);
+        out.writeLong(value);
+      });
+    }
+
+    int classRef(String name) {
+      int nameIndex = utf8(name);
+      return entry("C" + name, 1, () -> {
+        out.writeByte(7);
+        out.writeShort(nameIndex);
+      });
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+      int ownerIndex = classRef(owner);
+      int nameIndex = utf8(name);
+      int descriptorIndex = utf8(descriptor);
+      int nameAndType = entry("N" + name + " " + descriptor, 1, () -> {
+        out.writeByte(12);
+        out.writeShort(nameIndex);
+        out.writeShort(descriptorIndex);
+      });
+      return entry("M" + owner + "." + name + descriptor, 1, () -> {
+        out.writeByte(10);
+        out.writeShort(ownerIndex);
+        out.writeShort(nameAndType);
+      });
+    }
+
+    private interface Writer {
+      void write() throws IOException;
+    }
+
+    /**
+     * Returns the index of the constant with the given key, writing it with writer and taking
+     * slots indices if it is new. The tag of a Utf8 constant is written here.
+     */
+    private int entry(String key, int slots, Writer writer) {
+      Integer existing = index.get(key);
+      if (existing != null)
+        return existing;
+      try {
+        if (key.charAt(0) == 'U')
+          out.writeByte(1);
+        writer.write();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      index.put(key, count);
+      count += slots;
+      if (count > 0xFFFF)
+        throw new Unsupported("Too many constants");
+      return count - slots;
+    }
+
+    void write(DataOutputStream to) throws IOException {
+      to.writeShort(count);
+      out.flush();
+      bytes.writeTo(to);
+    }
+  }
+}
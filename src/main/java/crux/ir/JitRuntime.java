@@ -0,0 +1,145 @@
+package crux.ir;
+
+/**
+ * The state that functions compiled by the {@link JitCompiler} share with the
+ * {@link ClosureEngine} that runs them: global memory, input and output, the instruction count and
+ * the number of active calls. The generated classes belong to their own class loader and package,
+ * so everything they use here is public.
+ */
+public final class JitRuntime {
+  /** A function compiled to a JVM class. */
+  public interface Code {
+    /**
+     * Continues an activation of the function at the start of block, with its slots in the frame
+     * of s that starts at bp, and returns the result of the activation.
+     */
+    long run(JitRuntime rt, long[] s, int bp, int block);
+  }
+
+  /** A loop of a function compiled to a JVM class along the path one iteration took. */
+  public interface Trace {
+    /**
+     * Runs the loop on the slots of the frame of s that starts at bp until one of its guards fails,
+     * and returns the index of the block of the path whose guard failed.
+     */
+    int run(JitRuntime rt, long[] s, int bp);
+  }
+
+  /** Unwinds all compiled activations when a run reaches one of its limits. */
+  static final class Stop extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    final ExecutionResult.Status status;
+
+    Stop(ExecutionResult.Status status) {
+      super(null, null, false, false);
+      this.status = status;
+    }
+  }
+
+  private final GlobalMemory memory;
+  private final EmulatorIO io;
+  private ExecutionLimits limits = new ExecutionLimits();
+  private long deadline = Long.MAX_VALUE;
+  private int maxCallDepth = Integer.MAX_VALUE;
+  private long maxTouchedWords = Long.MAX_VALUE;
+  volatile boolean cancelled;
+  long count;
+  long nextPoll;
+  /** The number of active calls, including the call of main. */
+  int depth;
+
+  JitRuntime(GlobalMemory memory, EmulatorIO io) {
+    this.memory = memory;
+    this.io = io;
+  }
+
+  /**
+   * Sets the limits and the deadline of the run that is about to start.
+   */
+  void start(ExecutionLimits limits, long deadline) {
+    this.limits = limits;
+    this.deadline = deadline;
+    maxCallDepth = limits.getMaxCallDepth();
+    maxTouchedWords = limits.getMaxTouchedWords();
+  }
+
+  /**
+   * Counts n more instructions.
+   */
+  public void count(int n) {
+    count += n;
+  }
+
+  /**
+   * Starts a call of a compiled function.
+   */
+  public void enter() {
+    if (++depth > maxCallDepth)
+      throw new Stop(ExecutionResult.Status.CALL_DEPTH_LIMIT);
+    poll();
+  }
+
+  /**
+   * Ends a call of a compiled function.
+   */
+  public void leave() {
+    depth--;
+  }
+
+  /**
+   * Tests the instruction limit, the deadline and cancellation, like the engines do at taken
+   * branches, see {@link ExecutionLimits}.
+   */
+  public void poll() {
+    if (count >= nextPoll) {
+      ExecutionResult.Status stop = limits.poll(count, deadline, cancelled);
+      if (stop != null)
+        throw new Stop(stop);
+      nextPoll = limits.nextPoll(count);
+    }
+  }
+
+  public long load(long word) {
+    int index = memory.check(word);
+    if (!memory.isInitialized(index))
+      io.println("Reading from uninitialized memory");
+    return memory.load(index);
+  }
+
+  /**
+   * Loads a boolean, normalized to 0 or 1.
+   */
+  public long loadBool(long word) {
+    return load(word) != 0 ? 1 : 0;
+  }
+
+  public void store(long word, long value) {
+    memory.store(memory.check(word), value);
+    if (memory.touched > maxTouchedWords)
+      throw new Stop(ExecutionResult.Status.MEMORY_LIMIT);
+  }
+
+  public long readInt() {
+    return io.readInt();
+  }
+
+  public long readChar() {
+    return io.readChar();
+  }
+
+  public void printBool(long value) {
+    io.printBool(value != 0);
+  }
+
+  public void printInt(long value) {
+    io.printInt(value);
+  }
+
+  public void printChar(long value) {
+    io.printChar(value);
+  }
+
+  public void println() {
+    io.println();
+  }
+}
@@ -0,0 +1,155 @@
+package crux.ir;
+
+import crux.ir.insts.PhiInst;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * The {@link LocalVar}s live at the start and at the end of every basic block of a function, as
+ * bit sets over a numbering of the variables. A variable is live at a point if some path from the
+ * point reads it before writing it.
+ * <p>
+ * Phis read their operands on the edges into their block, not in it: the operand for an edge is
+ * live at the end of the predecessor but not at the start of the phi block, and the destination of
+ * a phi is live at the start of its block. The source of a phi operand may be any instruction of
+ * the predecessor, since copies can be appended after it. Arguments are numbered first, in
+ * declaration order.
+ */
+final class Liveness {
+  private final IdentityHashMap<LocalVar, Integer> numbers = new IdentityHashMap<>();
+  private final List<LocalVar> vars = new ArrayList<>();
+  private final BitSet[] liveIn;
+  private final BitSet[] liveOut;
+
+  Liveness(Function f) {
+    for (LocalVar arg : f.getArguments())
+      number(arg);
+    List<BasicBlock> blocks = f.getBlocks();
+    int n = blocks.size();
+    liveIn = new BitSet[n];
+    liveOut = new BitSet[n];
+    BitSet[] uses = new BitSet[n];
+    BitSet[] defs = new BitSet[n];
+    BitSet[] phiDefs = new BitSet[n];
+    BitSet[] phiUses = new BitSet[n];
+    IdentityHashMap<Instruction, BasicBlock> blockOf = new IdentityHashMap<>();
+    for (BasicBlock block : blocks) {
+      int b = block.getIndex();
+      liveIn[b] = new BitSet();
+      liveOut[b] = new BitSet();
+      uses[b] = new BitSet();
+      defs[b] = new BitSet();
+      phiDefs[b] = new BitSet();
+      phiUses[b] = new BitSet();
+      for (Instruction inst : block.getInstructions())
+        blockOf.put(inst, block);
+    }
+
+    // Summarize every block: what it reads before writing, what it writes, what its phis write
+    for (BasicBlock block : blocks) {
+      int b = block.getIndex();
+      for (Instruction inst : block.getInstructions()) {
+        if (inst instanceof PhiInst) {
+          phiDefs[b].set(number(((PhiInst) inst).getDst()));
+          continue;
+        }
+        for (Value operand : inst.mOperands) {
+          if (operand instanceof LocalVar) {
+            int k = number((LocalVar) operand);
+            if (!defs[b].get(k))
+              uses[b].set(k);
+          }
+        }
+        LocalVar def = defOf(inst);
+        if (def != null)
+          defs[b].set(number(def));
+      }
+    }
+    for (BasicBlock block : blocks) {
+      for (Instruction inst : block.getInstructions()) {
+        if (!(inst instanceof PhiInst))
+          break;
+        PhiInst phi = (PhiInst) inst;
+        for (int i = 0; i < phi.numOperands(); i++) {
+          if (phi.getOperand(i) instanceof LocalVar) {
+            BasicBlock predecessor = blockOf.get(phi.getSource(i));
+            phiUses[predecessor.getIndex()].set(number((LocalVar) phi.getOperand(i)));
+          }
+        }
+      }
+    }
+
+    // Iterate to the fixed point in postorder, where successors mostly come first
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int b = n - 1; b >= 0; b--) {
+        BitSet out = (BitSet) phiUses[b].clone();
+        for (BasicBlock successor : blocks.get(b).getSuccessors()) {
+          BitSet in = (BitSet) liveIn[successor.getIndex()].clone();
+          in.andNot(phiDefs[successor.getIndex()]);
+          out.or(in);
+        }
+        BitSet in = (BitSet) out.clone();
+        in.andNot(defs[b]);
+        in.or(uses[b]);
+        in.or(phiDefs[b]);
+        if (!out.equals(liveOut[b]) || !in.equals(liveIn[b])) {
+          liveOut[b] = out;
+          liveIn[b] = in;
+          changed = true;
+        }
+      }
+    }
+  }
+
+  private int number(LocalVar v) {
+    Integer k = numbers.get(v);
+    if (k == null) {
+      k = vars.size();
+      numbers.put(v, k);
+      vars.add(v);
+    }
+    return k;
+  }
+
+  /**
+   * Returns the local variable inst writes, or null if it writes none.
+   */
+  static LocalVar defOf(Instruction inst) {
+    return inst.mDestVar instanceof LocalVar ? (LocalVar) inst.mDestVar : null;
+  }
+
+  int numVars() {
+    return vars.size();
+  }
+
+  /**
+   * Returns the number of v, or -1 if the function never mentions it.
+   */
+  int indexOf(LocalVar v) {
+    Integer k = numbers.get(v);
+    return k != null ? k : -1;
+  }
+
+  LocalVar get(int k) {
+    return vars.get(k);
+  }
+
+  /**
+   * Returns the variables live at the start of block, including the destinations of its phis.
+   */
+  BitSet getLiveIn(BasicBlock block) {
+    return liveIn[block.getIndex()];
+  }
+
+  /**
+   * Returns the variables live at the end of block, including the phi operands it passes on.
+   */
+  BitSet getLiveOut(BasicBlock block) {
+    return liveOut[block.getIndex()];
+  }
+}
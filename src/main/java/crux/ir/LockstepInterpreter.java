@@ -0,0 +1,821 @@
+package crux.ir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs one {@link DecodedProgram} on many inputs at once. Every input is a lane, and every slot of
+ * a frame is a row of the stack with one value per lane, so a decoded instruction is dispatched
+ * once and then applied to all lanes in a tight loop over its rows. Each lane has its own global
+ * memory and its own input and output.
+ * <p>
+ * Lanes that are at the same instruction with the same calls active form a group. When the lanes
+ * of a group disagree at a {@code JUMP}, the group splits in two, and each group runs on the lanes
+ * of its own direction only. Both wait at the immediate post-dominator of the jump, the first
+ * instruction every path from the jump passes, or at the return address of the call if the paths
+ * only meet at its return. Once no group can run any more, the waiting groups that split last merge
+ * back into one and continue. Programs whose control flow does not depend on their input stay in a
+ * single group and pay for one dispatch per instruction for all their inputs.
+ * <p>
+ * Every lane stops at its own limits exactly where an {@link Interpreter} would stop, and an error
+ * of the program, such as reading past the end of the input, only ends the lane that raised it.
+ * The program must be decoded without superinstructions.
+ */
+public final class LockstepInterpreter {
+  /** Function index, return pc, frame base and result slot of a suspended caller. */
+  private static final int CALL_RECORD = 4;
+  /** The post-dominator of the instructions from which every path returns. */
+  private static final int EXIT = Integer.MAX_VALUE;
+  /** The post-dominator of the instructions from which no path returns. */
+  private static final int NONE = -1;
+
+  /** Lanes that are at the same instruction with the same calls active. */
+  private static final class Group {
+    /** The lanes of the group in ascending order, n of them. */
+    int[] lanes;
+    int n;
+    int fi;
+    int pc;
+    int bp;
+    int depth;
+    int[] calls;
+    /** The instructions the group has executed; lane l has executed count + offset[l]. */
+    long count;
+    /** The largest offset of a lane of the group. */
+    long maxOffset;
+    long nextPoll;
+    /** The code index and call depth of every point the group waits at, innermost last. */
+    int[] waits = new int[8];
+    int numWaits;
+    /** The code index the group waits at next, or NONE. */
+    int waitPc = NONE;
+    int waitDepth;
+    /** Whether the group has reached the point it waits at. */
+    boolean parked;
+
+    void pushWait(int pc, int depth) {
+      if (pc == waitPc && depth == waitDepth)
+        return;
+      if (2 * numWaits + 2 > waits.length)
+        waits = Arrays.copyOf(waits, waits.length * 2);
+      waits[2 * numWaits] = pc;
+      waits[2 * numWaits + 1] = depth;
+      numWaits++;
+      waitPc = pc;
+      waitDepth = depth;
+    }
+
+    void popWait() {
+      numWaits--;
+      waitPc = numWaits > 0 ? waits[2 * numWaits - 2] : NONE;
+      waitDepth = numWaits > 0 ? waits[2 * numWaits - 1] : 0;
+    }
+
+    Group copy(int[] lanes, int n) {
+      Group copy = new Group();
+      copy.lanes = lanes;
+      copy.n = n;
+      copy.fi = fi;
+      copy.pc = pc;
+      copy.bp = bp;
+      copy.depth = depth;
+      copy.calls = calls.clone();
+      copy.count = count;
+      copy.waits = waits.clone();
+      copy.numWaits = numWaits;
+      copy.waitPc = waitPc;
+      copy.waitDepth = waitDepth;
+      return copy;
+    }
+
+    /**
+     * Returns whether other is at the same instruction with the same calls active and waits at the
+     * same points.
+     */
+    boolean sameState(Group other) {
+      return fi == other.fi && pc == other.pc && bp == other.bp && depth == other.depth
+          && parked == other.parked
+          && Arrays.equals(calls, 0, depth * CALL_RECORD, other.calls, 0, depth * CALL_RECORD)
+          && Arrays.equals(waits, 0, 2 * numWaits, other.waits, 0, 2 * other.numWaits);
+    }
+  }
+
+  private final DecodedProgram program;
+  private final int width;
+  private final EmulatorIO[] ios;
+  private final ByteArrayOutputStream[] outputs;
+  private final GlobalMemory[] memories;
+  private final long[] offset;
+  private final ExecutionResult[] results;
+  private final Throwable[] errors;
+  private final boolean[] done;
+  private final ArrayList<Group> groups = new ArrayList<>();
+  /** The immediate post-dominator of every instruction, by function, computed when needed. */
+  private final int[][] postDominators;
+  /** The rows of all active frames, each with one value per lane. */
+  private long[] stack;
+  private ExecutionLimits limits = new ExecutionLimits();
+  private long deadline;
+  private volatile boolean cancelled;
+  private long dispatched;
+  private long laneInstructions;
+  private int splits;
+  private int merges;
+
+  public LockstepInterpreter(DecodedProgram program, List<byte[]> inputs) {
+    this.program = program;
+    program.loadAll();
+    width = inputs.size();
+    ios = new EmulatorIO[width];
+    outputs = new ByteArrayOutputStream[width];
+    memories = new GlobalMemory[width];
+    for (int l = 0; l < width; l++) {
+      outputs[l] = new ByteArrayOutputStream();
+      ios[l] = new EmulatorIO(new ByteArrayInputStream(inputs.get(l)), outputs[l]);
+      memories[l] = new GlobalMemory(program.memoryWords);
+    }
+    offset = new long[width];
+    results = new ExecutionResult[width];
+    errors = new Throwable[width];
+    done = new boolean[width];
+    stack = new long[64 * width];
+    postDominators = new int[program.functions.length][];
+  }
+
+  /**
+   * Enables or disables the {@code int?} prompt of {@code readInt} in every lane.
+   */
+  public void setPrompts(boolean prompts) {
+    for (EmulatorIO io : ios)
+      io.setPrompts(prompts);
+  }
+
+  /**
+   * Sets the limits of every lane.
+   */
+  public void setLimits(ExecutionLimits limits) {
+    this.limits = limits;
+  }
+
+  /**
+   * Asks every lane to stop at its next poll, see {@link ExecutionLimits}. Can be called from any
+   * thread.
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  /**
+   * Returns the number of instructions dispatched, once per group that executed them.
+   */
+  public long getDispatched() {
+    return dispatched;
+  }
+
+  /**
+   * Returns the number of instructions executed, summed over all lanes.
+   */
+  public long getLaneInstructions() {
+    return laneInstructions;
+  }
+
+  /**
+   * Returns the number of times a group split at a jump.
+   */
+  public int getSplits() {
+    return splits;
+  }
+
+  /**
+   * Returns the number of times two groups merged.
+   */
+  public int getMerges() {
+    return merges;
+  }
+
+  /**
+   * Runs the program on all inputs and returns the result of every input, in the order of the
+   * inputs. Every result reports the time of the whole run.
+   */
+  public List<EmulatorService.Result> run() {
+    if (program.fused)
+      throw new Error("Lockstep runs require a program decoded without superinstructions.");
+    if (program.mainIndex < 0)
+      throw new Error("No main function.");
+    long start = System.nanoTime();
+    deadline = limits.deadline(start);
+    if (width > 0) {
+      Group main = new Group();
+      main.lanes = new int[width];
+      for (int l = 0; l < width; l++)
+        main.lanes[l] = l;
+      main.n = width;
+      main.fi = program.mainIndex;
+      main.calls = new int[16 * CALL_RECORD];
+      main.nextPoll = limits.nextPoll(0);
+      ensureStack(program.functions[main.fi].frameSize);
+      groups.add(main);
+    }
+    while (!groups.isEmpty())
+      step(select());
+    long elapsed = System.nanoTime() - start;
+
+    List<EmulatorService.Result> list = new ArrayList<>();
+    for (int l = 0; l < width; l++)
+      list.add(new EmulatorService.Result(results[l], errors[l], outputs[l].toByteArray(), elapsed,
+          elapsed));
+    return list;
+  }
+
+  /**
+   * Returns the group to run next: the deepest group that is not parked, and lowest in the code
+   * among those. If all groups are parked, the one that split last merges with the groups it split
+   * from and stops waiting. Groups in the same state merge whenever they meet.
+   */
+  private Group select() {
+    Group next = null;
+    for (Group g : groups) {
+      if (!g.parked && (next == null || g.depth > next.depth
+          || g.depth == next.depth && g.pc < next.pc))
+        next = g;
+    }
+    if (next == null) {
+      for (Group g : groups) {
+        if (next == null || g.numWaits > next.numWaits)
+          next = g;
+      }
+    }
+    for (int i = groups.size() - 1; i >= 0; i--) {
+      Group g = groups.get(i);
+      if (g != next && g.sameState(next)) {
+        merge(next, g);
+        groups.remove(i);
+      }
+    }
+    if (next.parked) {
+      next.parked = false;
+      next.popWait();
+    }
+    return next;
+  }
+
+  private void merge(Group into, Group g) {
+    if (into.n + g.n > into.lanes.length)
+      into.lanes = Arrays.copyOf(into.lanes, into.n + g.n);
+    for (int i = 0; i < g.n; i++) {
+      int l = g.lanes[i];
+      offset[l] += g.count - into.count;
+      into.lanes[into.n++] = l;
+      into.maxOffset = Math.max(into.maxOffset, offset[l]);
+    }
+    Arrays.sort(into.lanes, 0, into.n);
+    into.nextPoll = limits.nextPoll(into.count + into.maxOffset);
+    merges++;
+  }
+
+  /**
+   * Runs g up to and including the next instruction that transfers control.
+   */
+  private void step(Group g) {
+    final int w = width;
+    DecodedFunction f = program.functions[g.fi];
+    int[] code = f.code;
+    int pc = g.pc;
+    int bp = g.bp;
+    long[] s = stack;
+    for (;;) {
+      if (pc == g.waitPc && g.depth == g.waitDepth) {
+        g.pc = pc;
+        g.parked = true;
+        return;
+      }
+      g.count += f.widths[pc];
+      dispatched++;
+      laneInstructions += g.n;
+      int[] lanes = g.lanes;
+      int n = g.n;
+      switch (code[pc]) {
+        case Bytecode.NOP:
+          pc += 1;
+          break;
+        case Bytecode.CONST: {
+          int d = (bp + code[pc + 1]) * w;
+          long value = f.constants[code[pc + 2]];
+          if (n == w) {
+            Arrays.fill(s, d, d + w, value);
+          } else {
+            for (int i = 0; i < n; i++)
+              s[d + lanes[i]] = value;
+          }
+          pc += 3;
+          break;
+        }
+        case Bytecode.MOV: {
+          int d = (bp + code[pc + 1]) * w;
+          int a = (bp + code[pc + 2]) * w;
+          if (n == w) {
+            System.arraycopy(s, a, s, d, w);
+          } else {
+            for (int i = 0; i < n; i++)
+              s[d + lanes[i]] = s[a + lanes[i]];
+          }
+          pc += 3;
+          break;
+        }
+        case Bytecode.ADD:
+        case Bytecode.SUB:
+        case Bytecode.MUL:
+        case Bytecode.CMP_GE:
+        case Bytecode.CMP_GT:
+        case Bytecode.CMP_LE:
+        case Bytecode.CMP_LT:
+        case Bytecode.CMP_EQ:
+        case Bytecode.CMP_NE:
+          binary(code[pc], s, (bp + code[pc + 1]) * w, (bp + code[pc + 2]) * w,
+              (bp + code[pc + 3]) * w, lanes, n, w);
+          pc += 4;
+          break;
+        case Bytecode.DIV: {
+          int d = (bp + code[pc + 1]) * w;
+          int a = (bp + code[pc + 2]) * w;
+          int b = (bp + code[pc + 3]) * w;
+          boolean failed = false;
+          for (int i = 0; i < n; i++) {
+            int l = lanes[i];
+            if (s[b + l] == 0) {
+              fail(l, new ArithmeticException("/ by zero"));
+              failed = true;
+            } else {
+              s[d + l] = s[a + l] / s[b + l];
+            }
+          }
+          if (failed && !retire(g))
+            return;
+          pc += 4;
+          break;
+        }
+        case Bytecode.NOT: {
+          int d = (bp + code[pc + 1]) * w;
+          int a = (bp + code[pc + 2]) * w;
+          for (int i = 0; i < n; i++)
+            s[d + lanes[i]] = s[a + lanes[i]] != 0 ? 0 : 1;
+          pc += 3;
+          break;
+        }
+        case Bytecode.ADDR: {
+          int d = (bp + code[pc + 1]) * w;
+          long base = code[pc + 2];
+          int index = code[pc + 3];
+          if (index < 0) {
+            for (int i = 0; i < n; i++)
+              s[d + lanes[i]] = base;
+          } else {
+            int a = (bp + index) * w;
+            for (int i = 0; i < n; i++)
+              s[d + lanes[i]] = base + s[a + lanes[i]];
+          }
+          pc += 4;
+          break;
+        }
+        case Bytecode.LOAD: {
+          int d = (bp + code[pc + 1]) * w;
+          int a = (bp + code[pc + 2]) * w;
+          for (int i = 0; i < n; i++) {
+            int l = lanes[i];
+            int word = memories[l].check(s[a + l]);
+            if (!memories[l].isInitialized(word))
+              ios[l].println("Reading from uninitialized memory");
+            s[d + l] = memories[l].load(word);
+          }
+          pc += 3;
+          break;
+        }
+        case Bytecode.STORE: {
+          int v = (bp + code[pc + 1]) * w;
+          int a = (bp + code[pc + 2]) * w;
+          long maxTouchedWords = limits.getMaxTouchedWords();
+          boolean stopped = false;
+          for (int i = 0; i < n; i++) {
+            int l = lanes[i];
+            GlobalMemory memory = memories[l];
+            memory.store(memory.check(s[a + l]), s[v + l]);
+            if (memory.touched > maxTouchedWords) {
+              stop(l, g, ExecutionResult.Status.MEMORY_LIMIT);
+              stopped = true;
+            }
+          }
+          if (stopped && !retire(g))
+            return;
+          pc += 3;
+          break;
+        }
+        case Bytecode.JUMP: {
+          int p = (bp + code[pc + 1]) * w;
+          int taken = 0;
+          for (int i = 0; i < n; i++) {
+            if (s[p + lanes[i]] != 0)
+              taken++;
+          }
+          if (taken == 0) {
+            pc += 3;
+            break;
+          }
+          g.pc = code[pc + 2];
+          if (taken < n) {
+            // Split off the lanes that take the jump
+            int[] takenLanes = new int[taken];
+            int kept = 0;
+            int t = 0;
+            for (int i = 0; i < n; i++) {
+              int l = lanes[i];
+              if (s[p + l] != 0)
+                takenLanes[t++] = l;
+              else
+                lanes[kept++] = l;
+            }
+            int join = postDominators(g.fi)[pc];
+            if (join == EXIT && g.depth > 0)
+              g.pushWait(g.calls[(g.depth - 1) * CALL_RECORD + 1], g.depth - 1);
+            else if (join != EXIT && join != NONE)
+              g.pushWait(join, g.depth);
+            Group split = g.copy(takenLanes, taken);
+            g.n = kept;
+            g.pc = pc + 3;
+            updateMaxOffset(g);
+            updateMaxOffset(split);
+            split.nextPoll = g.nextPoll;
+            groups.add(split);
+            splits++;
+            poll(split);
+            return;
+          }
+          poll(g);
+          return;
+        }
+        case Bytecode.GOTO:
+          g.pc = code[pc + 1];
+          poll(g);
+          return;
+        case Bytecode.CALL: {
+          if (g.depth + 1 >= limits.getMaxCallDepth()) {
+            for (int i = 0; i < n; i++)
+              stop(lanes[i], g, ExecutionResult.Status.CALL_DEPTH_LIMIT);
+            retire(g);
+            return;
+          }
+          g.pc = pc;
+          if (!poll(g))
+            return;
+          lanes = g.lanes;
+          n = g.n;
+          int calleeIndex = code[pc + 1];
+          DecodedFunction callee = program.functions[calleeIndex];
+          int argc = code[pc + 3];
+          int calleeBp = bp + f.frameSize;
+          s = ensureStack(calleeBp + callee.frameSize);
+          for (int k = 0; k < callee.frameSize; k++) {
+            int d = (calleeBp + k) * w;
+            for (int i = 0; i < n; i++)
+              s[d + lanes[i]] = 0;
+          }
+          for (int j = 0; j < argc; j++) {
+            int d = (calleeBp + callee.argSlots[j]) * w;
+            int a = (bp + code[pc + 4 + j]) * w;
+            for (int i = 0; i < n; i++)
+              s[d + lanes[i]] = s[a + lanes[i]];
+          }
+          int record = g.depth * CALL_RECORD;
+          if (record + CALL_RECORD > g.calls.length)
+            g.calls = Arrays.copyOf(g.calls, g.calls.length * 2);
+          g.calls[record] = g.fi;
+          g.calls[record + 1] = pc + 4 + argc;
+          g.calls[record + 2] = bp;
+          g.calls[record + 3] = code[pc + 2];
+          g.depth++;
+          g.fi = calleeIndex;
+          g.pc = 0;
+          g.bp = calleeBp;
+          return;
+        }
+        case Bytecode.RET: {
+          int src = code[pc + 1];
+          if (g.depth == 0) {
+            for (int i = 0; i < n; i++)
+              stop(lanes[i], g, ExecutionResult.Status.COMPLETED);
+            retire(g);
+            return;
+          }
+          g.depth--;
+          int record = g.depth * CALL_RECORD;
+          g.fi = g.calls[record];
+          g.pc = g.calls[record + 1];
+          g.bp = g.calls[record + 2];
+          int retSlot = g.calls[record + 3];
+          if (retSlot >= 0) {
+            int d = (g.bp + retSlot) * w;
+            int a = (bp + src) * w;
+            for (int i = 0; i < n; i++)
+              s[d + lanes[i]] = src >= 0 ? s[a + lanes[i]] : 0;
+          }
+          return;
+        }
+        case Bytecode.READ_INT:
+        case Bytecode.READ_CHAR: {
+          int d = (bp + code[pc + 1]) * w;
+          boolean failed = false;
+          for (int i = 0; i < n; i++) {
+            int l = lanes[i];
+            try {
+              s[d + l] = code[pc] == Bytecode.READ_INT ? ios[l].readInt() : ios[l].readChar();
+            } catch (RuntimeException | Error e) {
+              fail(l, e);
+              failed = true;
+            }
+          }
+          if (failed && !retire(g))
+            return;
+          pc += 2;
+          break;
+        }
+        case Bytecode.PRINT_BOOL: {
+          int a = (bp + code[pc + 1]) * w;
+          for (int i = 0; i < n; i++)
+            ios[lanes[i]].printBool(s[a + lanes[i]] != 0);
+          pc += 2;
+          break;
+        }
+        case Bytecode.PRINT_INT: {
+          int a = (bp + code[pc + 1]) * w;
+          for (int i = 0; i < n; i++)
+            ios[lanes[i]].printInt(s[a + lanes[i]]);
+          pc += 2;
+          break;
+        }
+        case Bytecode.PRINT_CHAR: {
+          int a = (bp + code[pc + 1]) * w;
+          for (int i = 0; i < n; i++)
+            ios[lanes[i]].printChar(s[a + lanes[i]]);
+          pc += 2;
+          break;
+        }
+        case Bytecode.PRINTLN:
+          for (int i = 0; i < n; i++)
+            ios[lanes[i]].println();
+          pc += 1;
+          break;
+        default:
+          throw new Error("Unknown opcode " + code[pc] + ".");
+      }
+    }
+  }
+
+  /**
+   * Returns the immediate post-dominator of every instruction of function fi, EXIT if it is the
+   * return, or NONE if the instruction never returns. Computed on the reversed control flow graph
+   * with the algorithm of Cooper, Harvey and Kennedy.
+   */
+  private int[] postDominators(int fi) {
+    if (postDominators[fi] != null)
+      return postDominators[fi];
+    int[] code = program.functions[fi].code;
+    // Number the instructions, with the exit as the last node
+    int[] node = new int[code.length];
+    int[] pcs = new int[code.length + 1];
+    int m = 0;
+    for (int pc = 0; pc < code.length; pc += Bytecode.length(code, pc)) {
+      node[pc] = m;
+      pcs[m++] = pc;
+    }
+    int exit = m;
+    int[][] succs = new int[m + 1][];
+    List<List<Integer>> preds = new ArrayList<>();
+    for (int v = 0; v <= m; v++)
+      preds.add(new ArrayList<>());
+    for (int v = 0; v < m; v++) {
+      int pc = pcs[v];
+      int next = pc + Bytecode.length(code, pc);
+      int fallThrough = next < code.length ? node[next] : exit;
+      switch (code[pc]) {
+        case Bytecode.JUMP:
+          succs[v] = new int[] {fallThrough, node[code[pc + 2]]};
+          break;
+        case Bytecode.GOTO:
+          succs[v] = new int[] {node[code[pc + 1]]};
+          break;
+        case Bytecode.RET:
+          succs[v] = new int[] {exit};
+          break;
+        default:
+          succs[v] = new int[] {fallThrough};
+          break;
+      }
+      for (int w : succs[v])
+        preds.get(w).add(v);
+    }
+
+    // Number the nodes in postorder of a depth-first search of the reversed graph from the exit
+    int[] order = new int[m + 1];
+    Arrays.fill(order, -1);
+    int[] postorder = new int[m + 1];
+    int count = 0;
+    int[] stack = new int[m + 1];
+    int[] edge = new int[m + 1];
+    int top = 0;
+    stack[top++] = exit;
+    order[exit] = -2;
+    while (top > 0) {
+      int v = stack[top - 1];
+      if (edge[v] < preds.get(v).size()) {
+        int w = preds.get(v).get(edge[v]++);
+        if (order[w] == -1) {
+          order[w] = -2;
+          stack[top++] = w;
+        }
+      } else {
+        top--;
+        order[v] = count;
+        postorder[count++] = v;
+      }
+    }
+
+    int[] idom = new int[m + 1];
+    Arrays.fill(idom, -1);
+    idom[exit] = exit;
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int i = count - 2; i >= 0; i--) {
+        int v = postorder[i];
+        int dom = -1;
+        for (int w : succs[v]) {
+          if (idom[w] < 0)
+            continue;
+          int a = w;
+          int b = dom < 0 ? w : dom;
+          while (a != b) {
+            while (order[a] < order[b])
+              a = idom[a];
+            while (order[b] < order[a])
+              b = idom[b];
+          }
+          dom = a;
+        }
+        if (idom[v] != dom) {
+          idom[v] = dom;
+          changed = true;
+        }
+      }
+    }
+
+    int[] result = new int[code.length];
+    for (int v = 0; v < m; v++)
+      result[pcs[v]] = idom[v] < 0 ? NONE : idom[v] == exit ? EXIT : pcs[idom[v]];
+    return postDominators[fi] = result;
+  }
+
+  /**
+   * Applies the arithmetic or compare opcode op to the rows a and b of the lanes and writes the
+   * results to row d. A group of all lanes runs a plain loop over the rows, which the JVM can
+   * vectorize.
+   */
+  private static void binary(int op, long[] s, int d, int a, int b, int[] lanes, int n, int w) {
+    boolean all = n == w;
+    switch (op) {
+      case Bytecode.ADD:
+        if (all) {
+          for (int l = 0; l < w; l++)
+            s[d + l] = s[a + l] + s[b + l];
+        } else {
+          for (int i = 0; i < n; i++)
+            s[d + lanes[i]] = s[a + lanes[i]] + s[b + lanes[i]];
+        }
+        break;
+      case Bytecode.SUB:
+        if (all) {
+          for (int l = 0; l < w; l++)
+            s[d + l] = s[a + l] - s[b + l];
+        } else {
+          for (int i = 0; i < n; i++)
+            s[d + lanes[i]] = s[a + lanes[i]] - s[b + lanes[i]];
+        }
+        break;
+      case Bytecode.MUL:
+        if (all) {
+          for (int l = 0; l < w; l++)
+            s[d + l] = s[a + l] * s[b + l];
+        } else {
+          for (int i = 0; i < n; i++)
+            s[d + lanes[i]] = s[a + lanes[i]] * s[b + lanes[i]];
+        }
+        break;
+      case Bytecode.CMP_GE:
+        for (int i = 0; i < n; i++) {
+          int l = all ? i : lanes[i];
+          s[d + l] = s[a + l] >= s[b + l] ? 1 : 0;
+        }
+        break;
+      case Bytecode.CMP_GT:
+        for (int i = 0; i < n; i++) {
+          int l = all ? i : lanes[i];
+          s[d + l] = s[a + l] > s[b + l] ? 1 : 0;
+        }
+        break;
+      case Bytecode.CMP_LE:
+        for (int i = 0; i < n; i++) {
+          int l = all ? i : lanes[i];
+          s[d + l] = s[a + l] <= s[b + l] ? 1 : 0;
+        }
+        break;
+      case Bytecode.CMP_LT:
+        for (int i = 0; i < n; i++) {
+          int l = all ? i : lanes[i];
+          s[d + l] = s[a + l] < s[b + l] ? 1 : 0;
+        }
+        break;
+      case Bytecode.CMP_EQ:
+        for (int i = 0; i < n; i++) {
+          int l = all ? i : lanes[i];
+          s[d + l] = s[a + l] == s[b + l] ? 1 : 0;
+        }
+        break;
+      default:
+        for (int i = 0; i < n; i++) {
+          int l = all ? i : lanes[i];
+          s[d + l] = s[a + l] != s[b + l] ? 1 : 0;
+        }
+        break;
+    }
+  }
+
+  /**
+   * Tests the limits of every lane of g that has reached its next poll, like an
+   * {@link Interpreter} does at taken branches and calls. Returns whether g has lanes left.
+   */
+  private boolean poll(Group g) {
+    if (g.count + g.maxOffset < g.nextPoll)
+      return true;
+    boolean stopped = false;
+    for (int i = 0; i < g.n; i++) {
+      int l = g.lanes[i];
+      ExecutionResult.Status status = limits.poll(g.count + offset[l], deadline, cancelled);
+      if (status != null) {
+        stop(l, g, status);
+        stopped = true;
+      }
+    }
+    if (stopped && !retire(g))
+      return false;
+    g.nextPoll = limits.nextPoll(g.count + g.maxOffset);
+    return true;
+  }
+
+  private void stop(int l, Group g, ExecutionResult.Status status) {
+    results[l] = new ExecutionResult(status, g.count + offset[l], limits);
+    done[l] = true;
+    ios[l].flush();
+  }
+
+  private void fail(int l, Throwable error) {
+    errors[l] = error;
+    done[l] = true;
+    ios[l].flush();
+  }
+
+  /**
+   * Removes the lanes that are done from g, and g from the groups if it has no lanes left. Returns
+   * whether g has lanes left.
+   */
+  private boolean retire(Group g) {
+    int kept = 0;
+    for (int i = 0; i < g.n; i++) {
+      if (!done[g.lanes[i]])
+        g.lanes[kept++] = g.lanes[i];
+    }
+    g.n = kept;
+    if (kept == 0) {
+      groups.remove(g);
+      return false;
+    }
+    updateMaxOffset(g);
+    return true;
+  }
+
+  private void updateMaxOffset(Group g) {
+    long max = Long.MIN_VALUE;
+    for (int i = 0; i < g.n; i++)
+      max = Math.max(max, offset[g.lanes[i]]);
+    g.maxOffset = max;
+  }
+
+  /**
+   * Grows the stack to hold at least rows rows, keeping the rows of all frames.
+   */
+  private long[] ensureStack(int rows) {
+    if ((long) rows * width > stack.length)
+      stack = Arrays.copyOf(stack, Math.max(rows * width, stack.length * 2));
+    return stack;
+  }
+}
@@ -0,0 +1,170 @@
+package crux.ir;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Runs a selection of optimization passes over functions, usually as {@link ASTLower} lowers
+ * each one, see {@link ASTLower#setFunctionPass}. Every pass leaves the function in a form that
+ * all emulator engines and the {@link crux.backend.CodeGen} accept, so no phi survives
+ * {@link #optimize}. Optimizing lazily lowered functions may happen on any thread, so the
+ * counters are updated under a lock.
+ */
+public final class Optimizer {
+  public enum Pass {
+    /** Converts the body into SSA form and back, coalescing the copies that needs. */
+    SSA,
+    /** Propagates constants along the edges that can execute, see {@link Sccp}. */
+    SCCP,
+    /** Reads the sources of copies instead of their destinations, see {@link CopyPropagation}. */
+    COPYPROP,
+    /** Removes nops and threads jumps, see {@link CfgSimplifier}. */
+    CFG,
+    /** Removes the instructions whose results are never read, see {@link DeadCodeElimination}. */
+    DCE
+  }
+
+  private final EnumSet<Pass> passes;
+  private int functions;
+  private int phis;
+  private int copies;
+  private int folded;
+  private int removed;
+  private int propagated;
+  private int eliminated;
+  private int simplified;
+  private int threaded;
+  private long nanos;
+
+  public Optimizer(Set<Pass> passes) {
+    this.passes = passes.isEmpty() ? EnumSet.noneOf(Pass.class) : EnumSet.copyOf(passes);
+  }
+
+  public Set<Pass> getPasses() {
+    return EnumSet.copyOf(passes);
+  }
+
+  /**
+   * Runs the selected passes over f, a function of program. The passes that work on SSA form run
+   * between {@link Ssa#build} and {@link Ssa#destroy}. The control flow graph is simplified once
+   * no phi is left, and dead code elimination runs last so that it also removes what the others
+   * left dead.
+   */
+  public void optimize(Program program, Function f) {
+    long start = System.nanoTime();
+    boolean ssa = passes.contains(Pass.SSA) || passes.contains(Pass.SCCP)
+        || passes.contains(Pass.COPYPROP);
+    int placed = 0;
+    int left = 0;
+    int rewritten = 0;
+    int dead = 0;
+    Sccp sccp = null;
+    CfgSimplifier cfg = null;
+    if (ssa)
+      placed = Ssa.build(f);
+    if (passes.contains(Pass.SCCP)) {
+      sccp = new Sccp(program, f);
+      sccp.run();
+    }
+    if (passes.contains(Pass.COPYPROP))
+      rewritten = CopyPropagation.propagate(f);
+    if (ssa)
+      left = Ssa.destroy(f);
+    if (passes.contains(Pass.CFG)) {
+      cfg = new CfgSimplifier(f);
+      cfg.run();
+    }
+    if (passes.contains(Pass.DCE))
+      dead = DeadCodeElimination.eliminate(f);
+    synchronized (this) {
+      functions++;
+      phis += placed;
+      copies += left;
+      propagated += rewritten;
+      eliminated += dead;
+      if (cfg != null) {
+        simplified += cfg.getRemoved();
+        threaded += cfg.getThreaded();
+      }
+      if (sccp != null) {
+        folded += sccp.getFolded();
+        removed += sccp.getRemoved();
+      }
+      nanos += System.nanoTime() - start;
+    }
+  }
+
+  public synchronized int getFunctions() {
+    return functions;
+  }
+
+  /**
+   * Returns the number of phis SSA construction placed.
+   */
+  public synchronized int getPhis() {
+    return phis;
+  }
+
+  /**
+   * Returns the number of copies SSA destruction could not coalesce away.
+   */
+  public synchronized int getCopies() {
+    return copies;
+  }
+
+  /**
+   * Returns the number of instructions constant propagation replaced with constants.
+   */
+  public synchronized int getFolded() {
+    return folded;
+  }
+
+  /**
+   * Returns the number of unreachable instructions constant propagation removed.
+   */
+  public synchronized int getRemoved() {
+    return removed;
+  }
+
+  /**
+   * Returns the number of operands copy propagation rewrote.
+   */
+  public synchronized int getPropagated() {
+    return propagated;
+  }
+
+  /**
+   * Returns the number of dead instructions dead code elimination removed.
+   */
+  public synchronized int getEliminated() {
+    return eliminated;
+  }
+
+  /**
+   * Returns the number of nops and jumps control flow simplification removed.
+   */
+  public synchronized int getSimplified() {
+    return simplified;
+  }
+
+  /**
+   * Returns the number of jump edges control flow simplification threaded.
+   */
+  public synchronized int getThreaded() {
+    return threaded;
+  }
+
+  public synchronized long getNanos() {
+    return nanos;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(
+        "%d functions in %.3f ms, %d phis placed, %d copies left, %d instructions folded, "
+            + "%d unreachable removed, %d operands propagated, %d dead instructions removed, "
+            + "%d nops and jumps removed, %d jumps threaded",
+        functions, nanos / 1e6, phis, copies, folded, removed, propagated, eliminated, simplified,
+        threaded);
+  }
+}
@@ -0,0 +1,347 @@
+package crux.ir;
+
+import crux.ir.insts.JumpInst;
+import crux.ir.insts.NopInst;
+import crux.printing.IRValueFormatter;
+
+import java.io.PrintStream;
+import java.util.*;
+
+/**
+ * Counts what a program does while an {@link Interpreter} runs it: how often each instruction and
+ * each edge of the control flow graph executes, and per function the number of calls and the
+ * instructions executed in the function itself (exclusive) and in it and its callees (inclusive).
+ * The instructions of each calling context are kept in a calling context tree, which is written as
+ * folded stacks for flame graph tools.
+ * <p>
+ * The interpreter increments one counter per instruction and per taken branch, and updates the
+ * calling context tree on calls and returns only; everything else is derived when it is reported.
+ */
+public final class Profiler {
+  /** Calls nested deeper than this are attributed to the deepest calling context. */
+  private static final int MAX_CONTEXT_DEPTH = 512;
+
+  private DecodedProgram program;
+  /**
+   * Per function and code index the executions of the instruction at that index. For a JUMP, the
+   * slot of its first operand counts how often the branch was taken.
+   */
+  long[][] counts;
+  private long[] calls;
+  private long[] inclusive;
+  private long[] entered;
+  private int[] active;
+  private IdentityHashMap<Instruction, int[]> sites;
+
+  private Context root;
+  private Context context;
+  private int depth;
+  private int overflow;
+  private long mark;
+
+  /** A node of the calling context tree. */
+  private static final class Context {
+    final int function;
+    final Context parent;
+    Context[] children;
+    long self;
+
+    Context(int function, Context parent) {
+      this.function = function;
+      this.parent = parent;
+    }
+
+    Context child(int function, int numFunctions) {
+      if (children == null)
+        children = new Context[numFunctions];
+      Context child = children[function];
+      if (child == null)
+        child = children[function] = new Context(function, this);
+      return child;
+    }
+  }
+
+  /**
+   * Clears all counts and prepares for a run of program starting in main.
+   */
+  void start(DecodedProgram program) {
+    this.program = program;
+    program.loadAll();
+    int n = program.functions.length;
+    counts = new long[n][];
+    sites = new IdentityHashMap<>();
+    for (int fi = 0; fi < n; fi++) {
+      DecodedFunction f = program.functions[fi];
+      counts[fi] = new long[f.code.length];
+      for (int pc = 0; pc < f.code.length; pc += Bytecode.length(f.code, pc)) {
+        if (f.origins[pc] != null)
+          sites.putIfAbsent(f.origins[pc], new int[] {fi, pc});
+      }
+    }
+    calls = new long[n];
+    inclusive = new long[n];
+    entered = new long[n];
+    active = new int[n];
+    depth = 0;
+    overflow = 0;
+    mark = 0;
+    root = context = null;
+    if (program.mainIndex >= 0) {
+      root = context = new Context(program.mainIndex, null);
+      calls[program.mainIndex] = 1;
+      active[program.mainIndex] = 1;
+    }
+  }
+
+  /**
+   * Called when the function fi is called after count instructions.
+   */
+  void enter(int fi, long count) {
+    calls[fi]++;
+    if (active[fi]++ == 0)
+      entered[fi] = count;
+    context.self += count - mark;
+    mark = count;
+    if (depth < MAX_CONTEXT_DEPTH) {
+      context = context.child(fi, counts.length);
+      depth++;
+    } else {
+      overflow++;
+    }
+  }
+
+  /**
+   * Called when the function fi returns to its caller after count instructions.
+   */
+  void exit(int fi, long count) {
+    if (--active[fi] == 0)
+      inclusive[fi] += count - entered[fi];
+    context.self += count - mark;
+    mark = count;
+    if (overflow > 0) {
+      overflow--;
+    } else {
+      context = context.parent;
+      depth--;
+    }
+  }
+
+  /**
+   * Called when the run ends after count instructions, normally or not.
+   */
+  void finish(long count) {
+    for (int fi = 0; fi < active.length; fi++) {
+      if (active[fi] > 0)
+        inclusive[fi] += count - entered[fi];
+      active[fi] = 0;
+    }
+    if (context != null)
+      context.self += count - mark;
+    mark = count;
+  }
+
+  /**
+   * Returns how often inst executed.
+   */
+  public long getCount(Instruction inst) {
+    int[] site = sites.get(inst);
+    return site != null ? counts[site[0]][site[1]] : 0;
+  }
+
+  /**
+   * Returns how often control flowed from inst to its successor i.
+   */
+  public long getEdgeCount(Instruction inst, int i) {
+    int[] site = sites.get(inst);
+    if (site == null || inst.getNext(i) == null)
+      return 0;
+    long count = counts[site[0]][site[1]];
+    if (!(inst instanceof JumpInst))
+      return i == 0 ? count : 0;
+    long taken = counts[site[0]][site[1] + 1];
+    return i == 1 ? taken : count - taken;
+  }
+
+  public long getCalls(String function) {
+    Integer fi = program.functionIndex.get(function);
+    return fi != null ? calls[fi] : 0;
+  }
+
+  /**
+   * Returns the number of instructions executed in function itself.
+   */
+  public long getExclusiveCount(String function) {
+    Integer fi = program.functionIndex.get(function);
+    return fi != null ? exclusive(fi) : 0;
+  }
+
+  /**
+   * Returns the number of instructions executed in function and everything it called. Recursive
+   * calls are only counted once, in their outermost call.
+   */
+  public long getInclusiveCount(String function) {
+    Integer fi = program.functionIndex.get(function);
+    return fi != null ? inclusive[fi] : 0;
+  }
+
+  private long exclusive(int fi) {
+    DecodedFunction f = program.functions[fi];
+    long sum = 0;
+    for (int pc = 0; pc < f.code.length; pc += Bytecode.length(f.code, pc))
+      sum += counts[fi][pc] * f.widths[pc];
+    return sum;
+  }
+
+  /**
+   * Prints the top hottest functions by exclusive count and the top hottest loops by the number of
+   * instructions executed in their body.
+   */
+  public void report(PrintStream out, int top) {
+    long total = 0;
+    Integer[] order = new Integer[counts.length];
+    long[] exclusive = new long[counts.length];
+    for (int fi = 0; fi < counts.length; fi++) {
+      order[fi] = fi;
+      exclusive[fi] = exclusive(fi);
+      total += exclusive[fi];
+    }
+    Arrays.sort(order, (a, b) -> Long.compare(exclusive[b], exclusive[a]));
+
+    out.println(String.format("profile: %d instructions", total));
+    out.println("hottest functions:");
+    out.println(String.format("%14s %14s %6s %14s  %s", "calls", "exclusive", "%", "inclusive",
+        "function"));
+    for (int k = 0; k < Math.min(top, order.length); k++) {
+      int fi = order[k];
+      if (calls[fi] == 0)
+        break;
+      out.println(String.format("%14d %14d %6.2f %14d  %s", calls[fi], exclusive[fi],
+          100.0 * exclusive[fi] / Math.max(1, total), inclusive[fi], program.functions[fi].name));
+    }
+
+    List<Loop> loops = new ArrayList<>();
+    for (DecodedFunction f : program.functions)
+      findLoops(f, loops);
+    loops.sort((a, b) -> Long.compare(b.instructions, a.instructions));
+    out.println("hottest loops:");
+    out.println(String.format("%14s %14s %6s  %s", "iterations", "instructions", "%", "header"));
+    var formatter = new IRValueFormatter();
+    for (int k = 0; k < Math.min(top, loops.size()); k++) {
+      Loop loop = loops.get(k);
+      if (loop.instructions == 0)
+        break;
+      // Describe the header by the first instruction that does something
+      Instruction header = loop.header;
+      for (int n = 0; header instanceof NopInst && header.getNext(0) != null && n < 16; n++)
+        header = header.getNext(0);
+      out.println(String.format("%14d %14d %6.2f  %s@%d: %s", loop.iterations, loop.instructions,
+          100.0 * loop.instructions / Math.max(1, total), loop.function,
+          sites.get(loop.header)[1], header.format(formatter)));
+    }
+  }
+
+  private static final class Loop {
+    String function;
+    Instruction header;
+    long iterations;
+    long instructions;
+  }
+
+  /**
+   * Adds the natural loops of f to loops. Back edges are found by a depth first search of the
+   * instruction graph; back edges to the same header form one loop.
+   */
+  private void findLoops(DecodedFunction f, List<Loop> loops) {
+    if (f.origins.length == 0 || f.origins[0] == null)
+      return;
+    // The decoder places the start instruction of a function first
+    Instruction start = f.origins[0];
+    HashMap<Instruction, List<Instruction>> preds = new HashMap<>();
+    HashSet<Instruction> discovered = new HashSet<>();
+    HashSet<Instruction> onPath = new HashSet<>();
+    LinkedHashMap<Instruction, Loop> headers = new LinkedHashMap<>();
+    LinkedHashMap<Instruction, List<Instruction>> tails = new LinkedHashMap<>();
+    Stack<Instruction> path = new Stack<>();
+    Stack<Integer> nextChild = new Stack<>();
+    discovered.add(start);
+    onPath.add(start);
+    path.push(start);
+    nextChild.push(0);
+    while (!path.isEmpty()) {
+      Instruction inst = path.peek();
+      int i = nextChild.pop();
+      if (i < inst.numNext()) {
+        nextChild.push(i + 1);
+        Instruction child = inst.getNext(i);
+        if (child == null)
+          continue;
+        preds.computeIfAbsent(child, c -> new ArrayList<>()).add(inst);
+        if (onPath.contains(child)) {
+          Loop loop = headers.computeIfAbsent(child, h -> new Loop());
+          loop.iterations += getEdgeCount(inst, i);
+          tails.computeIfAbsent(child, h -> new ArrayList<>()).add(inst);
+        } else if (discovered.add(child)) {
+          onPath.add(child);
+          path.push(child);
+          nextChild.push(0);
+        }
+      } else {
+        onPath.remove(path.pop());
+      }
+    }
+
+    for (var entry : headers.entrySet()) {
+      Instruction header = entry.getKey();
+      Loop loop = entry.getValue();
+      loop.function = f.name;
+      loop.header = header;
+      // The body are the header and all instructions that reach a tail without passing the header
+      HashSet<Instruction> body = new HashSet<>();
+      Stack<Instruction> tovisit = new Stack<>();
+      body.add(header);
+      for (Instruction tail : tails.get(header)) {
+        if (body.add(tail))
+          tovisit.push(tail);
+      }
+      while (!tovisit.isEmpty()) {
+        for (Instruction pred : preds.getOrDefault(tovisit.pop(), List.of())) {
+          if (body.add(pred))
+            tovisit.push(pred);
+        }
+      }
+      for (Instruction inst : body)
+        loop.instructions += getCount(inst);
+      loops.add(loop);
+    }
+  }
+
+  /**
+   * Writes one line per calling context in the folded stack format: the names of the functions on
+   * the stack from main to the callee, separated by semicolons, and the number of instructions
+   * executed in that context.
+   */
+  public void writeFoldedStacks(PrintStream out) {
+    if (root == null)
+      return;
+    Stack<Context> tovisit = new Stack<>();
+    tovisit.push(root);
+    while (!tovisit.isEmpty()) {
+      Context c = tovisit.pop();
+      if (c.self > 0)
+        out.println(stackOf(c) + " " + c.self);
+      if (c.children != null) {
+        for (Context child : c.children) {
+          if (child != null)
+            tovisit.push(child);
+        }
+      }
+    }
+  }
+
+  private String stackOf(Context c) {
+    ArrayDeque<String> names = new ArrayDeque<>();
+    for (; c != null; c = c.parent)
+      names.push(program.functions[c.function].name);
+    return String.join(";", names);
+  }
+}
@@ -3,6 +3,8 @@ package crux.ir;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
@@ -12,6 +14,14 @@ public final class Program implements Formattable, java.io.Serializable {
   static final long serialVersionUID = 12022L;
   private List<Function> mFunctions;
   private List<GlobalDecl> mGlobalVars;
+  /**
+   * The interned constants of this program, see {@link IntegerConstant#get} and
+   * {@link BooleanConstant#get}. They belong to the program, so they become unreachable with it,
+   * and are concurrent, so programs can be built on several threads. They are created on first use
+   * because deserialization does not run constructors.
+   */
+  private transient volatile Map<Long, IntegerConstant> mIntConstantPool;
+  private transient volatile Map<Boolean, BooleanConstant> mBoolConstantPool;
 
   private static final int PROGRAM_FORMAT_INDENT = 2;
 
@@ -36,6 +46,30 @@ public final class Program implements Formattable, java.io.Serializable {
     return mFunctions.iterator();
   }
 
+  Map<Long, IntegerConstant> getIntConstantPool() {
+    var pool = mIntConstantPool;
+    if (pool == null) {
+      synchronized (this) {
+        pool = mIntConstantPool;
+        if (pool == null)
+          mIntConstantPool = pool = new ConcurrentHashMap<>();
+      }
+    }
+    return pool;
+  }
+
+  Map<Boolean, BooleanConstant> getBoolConstantPool() {
+    var pool = mBoolConstantPool;
+    if (pool == null) {
+      synchronized (this) {
+        pool = mBoolConstantPool;
+        if (pool == null)
+          mBoolConstantPool = pool = new ConcurrentHashMap<>();
+      }
+    }
+    return pool;
+  }
+
   @Override
   public String format(java.util.function.Function<Value, String> valueFormatter) {
     var builder = new StringBuilder();
@@ -0,0 +1,352 @@
+package crux.ir;
+
+import crux.ir.insts.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Sparse conditional constant propagation, after Wegman and Zadeck, over a function in SSA form.
+ * <p>
+ * The analysis assumes every variable is undefined and every block unreachable until shown
+ * otherwise: it follows only the edges a jump can take given what is known of its predicate, and
+ * a phi merges only the operands of the edges found executable. Every variable ends up undefined,
+ * a constant or varying. Arguments, results of calls and loads, and variables no instruction
+ * writes vary. Division by zero is left to run time.
+ * <p>
+ * {@link #run} then replaces every instruction whose result is constant with a copy of the
+ * constant, every jump whose predicate is constant with a {@link NopInst} that continues with the
+ * taken successor, and drops the blocks that are never reached together with the phi operands of
+ * their edges.
+ */
+public final class Sccp {
+  /** The lattice values besides constants, which are Longs for integers and Booleans. */
+  private static final Object UNDEFINED = new Object();
+  private static final Object VARYING = new Object();
+
+  private final Program program;
+  private final Function function;
+  private List<BasicBlock> blocks;
+  private final IdentityHashMap<Instruction, BasicBlock> blockOf = new IdentityHashMap<>();
+  private final IdentityHashMap<LocalVar, List<Instruction>> uses = new IdentityHashMap<>();
+  private final IdentityHashMap<LocalVar, Object> values = new IdentityHashMap<>();
+  private boolean[] executable;
+  /** The executable edges, each as predecessor index times the number of blocks plus successor. */
+  private final Set<Long> edges = new HashSet<>();
+  private final ArrayDeque<long[]> flowWorklist = new ArrayDeque<>();
+  private final ArrayDeque<Instruction> ssaWorklist = new ArrayDeque<>();
+  private int folded;
+  private int removed;
+
+  public Sccp(Program program, Function function) {
+    this.program = program;
+    this.function = function;
+  }
+
+  /**
+   * Returns the number of instructions replaced with a constant, including jumps.
+   */
+  public int getFolded() {
+    return folded;
+  }
+
+  /**
+   * Returns the number of instructions dropped because no execution reaches them.
+   */
+  public int getRemoved() {
+    return removed;
+  }
+
+  /**
+   * Analyzes the function and rewrites it with what the analysis found.
+   */
+  public void run() {
+    blocks = function.getBlocks();
+    if (blocks.isEmpty())
+      return;
+    executable = new boolean[blocks.size()];
+    for (BasicBlock block : blocks) {
+      for (Instruction inst : block.getInstructions()) {
+        blockOf.put(inst, block);
+        LocalVar def = Liveness.defOf(inst);
+        if (def != null)
+          values.put(def, UNDEFINED);
+        for (Value operand : inst.mOperands) {
+          if (operand instanceof LocalVar)
+            uses.computeIfAbsent((LocalVar) operand, v -> new ArrayList<>()).add(inst);
+        }
+      }
+    }
+    analyze();
+    rewrite();
+  }
+
+  private void analyze() {
+    flowWorklist.add(new long[] {-1, 0});
+    while (!flowWorklist.isEmpty() || !ssaWorklist.isEmpty()) {
+      while (!flowWorklist.isEmpty()) {
+        long[] edge = flowWorklist.poll();
+        int from = (int) edge[0];
+        int to = (int) edge[1];
+        if (from >= 0 && !edges.add(edgeKey(from, to)))
+          continue;
+        BasicBlock block = blocks.get(to);
+        for (Instruction inst : block.getInstructions()) {
+          if (inst instanceof PhiInst)
+            visitPhi((PhiInst) inst, block);
+        }
+        if (executable[to])
+          continue;
+        executable[to] = true;
+        for (Instruction inst : block.getInstructions()) {
+          if (!(inst instanceof PhiInst))
+            visit(inst, block);
+        }
+        if (block.getSuccessors().size() == 1)
+          addEdge(block, 0);
+      }
+      while (!ssaWorklist.isEmpty()) {
+        Instruction inst = ssaWorklist.poll();
+        BasicBlock block = blockOf.get(inst);
+        if (!executable[block.getIndex()])
+          continue;
+        if (inst instanceof PhiInst)
+          visitPhi((PhiInst) inst, block);
+        else
+          visit(inst, block);
+      }
+    }
+  }
+
+  private long edgeKey(int from, int to) {
+    return (long) from * blocks.size() + to;
+  }
+
+  private void addEdge(BasicBlock block, int successor) {
+    flowWorklist.add(new long[] {block.getIndex(), block.getSuccessor(successor).getIndex()});
+  }
+
+  private void visitPhi(PhiInst phi, BasicBlock block) {
+    Object value = UNDEFINED;
+    for (int i = 0; i < phi.numOperands(); i++) {
+      BasicBlock predecessor = blockOf.get(phi.getSource(i));
+      if (edges.contains(edgeKey(predecessor.getIndex(), block.getIndex())))
+        value = meet(value, valueOf(phi.getOperand(i)));
+    }
+    update(phi.getDst(), value);
+  }
+
+  private void visit(Instruction inst, BasicBlock block) {
+    if (inst instanceof JumpInst) {
+      Object predicate = valueOf(((JumpInst) inst).getPredicate());
+      if (predicate instanceof Boolean) {
+        addEdge(block, (Boolean) predicate ? 1 : 0);
+      } else if (predicate == VARYING) {
+        addEdge(block, 0);
+        addEdge(block, 1);
+      }
+      return;
+    }
+    LocalVar def = Liveness.defOf(inst);
+    if (def != null)
+      update(def, evaluate(inst));
+  }
+
+  private void update(LocalVar v, Object value) {
+    Object old = values.get(v);
+    if (old == VARYING || value == UNDEFINED || value.equals(old))
+      return;
+    // A second constant means the value varies; the lattice only ever goes down
+    values.put(v, old == UNDEFINED ? value : VARYING);
+    for (Instruction use : uses.getOrDefault(v, List.of()))
+      ssaWorklist.add(use);
+  }
+
+  private Object valueOf(Value v) {
+    if (v instanceof IntegerConstant)
+      return ((IntegerConstant) v).getValue();
+    if (v instanceof BooleanConstant)
+      return ((BooleanConstant) v).getValue();
+    return values.getOrDefault(v, VARYING);
+  }
+
+  private static Object meet(Object a, Object b) {
+    if (a == UNDEFINED)
+      return b;
+    if (b == UNDEFINED)
+      return a;
+    return a.equals(b) ? a : VARYING;
+  }
+
+  private Object evaluate(Instruction inst) {
+    if (inst instanceof CopyInst)
+      return valueOf(((CopyInst) inst).getSrcValue());
+    if (!(inst instanceof BinaryOperator || inst instanceof CompareInst
+        || inst instanceof UnaryNotInst))
+      return VARYING;
+    List<Object> operands = new ArrayList<>();
+    for (Value operand : inst.mOperands) {
+      Object value = valueOf(operand);
+      if (value == VARYING)
+        return VARYING;
+      if (value == UNDEFINED)
+        return UNDEFINED;
+      operands.add(value);
+    }
+    if (inst instanceof UnaryNotInst)
+      return !(Boolean) operands.get(0);
+    if (inst instanceof CompareInst) {
+      var predicate = ((CompareInst) inst).getPredicate();
+      if (operands.get(0) instanceof Boolean) {
+        boolean equal = operands.get(0).equals(operands.get(1));
+        return predicate == CompareInst.Predicate.EQ ? equal : !equal;
+      }
+      long lhs = (Long) operands.get(0);
+      long rhs = (Long) operands.get(1);
+      switch (predicate) {
+        case GE:
+          return lhs >= rhs;
+        case GT:
+          return lhs > rhs;
+        case LE:
+          return lhs <= rhs;
+        case LT:
+          return lhs < rhs;
+        case EQ:
+          return lhs == rhs;
+        default:
+          return lhs != rhs;
+      }
+    }
+    long lhs = (Long) operands.get(0);
+    long rhs = (Long) operands.get(1);
+    switch (((BinaryOperator) inst).getOperator()) {
+      case Add:
+        return lhs + rhs;
+      case Sub:
+        return lhs - rhs;
+      case Mul:
+        return lhs * rhs;
+      default:
+        // The machine traps where Java does not, so these stay for run time
+        if (rhs == 0 || rhs == -1 && lhs == Long.MIN_VALUE)
+          return VARYING;
+        return lhs / rhs;
+    }
+  }
+
+  private Value constant(Object value) {
+    if (value instanceof Boolean)
+      return BooleanConstant.get(program, (Boolean) value);
+    return IntegerConstant.get(program, (Long) value);
+  }
+
+  private void rewrite() {
+    IdentityHashMap<Instruction, Instruction> replacements = new IdentityHashMap<>();
+    for (BasicBlock block : blocks) {
+      if (!executable[block.getIndex()])
+        continue;
+      Instruction last = block.getLast();
+      if (last instanceof JumpInst && valueOf(((JumpInst) last).getPredicate()) instanceof Boolean)
+        replacements.put(last, foldJump(block, (Boolean) valueOf(((JumpInst) last).getPredicate())));
+    }
+    for (BasicBlock block : blocks) {
+      if (!executable[block.getIndex()]) {
+        removed += block.size();
+        continue;
+      }
+      foldPhis(block, replacements);
+      for (Instruction inst : block.getInstructions()) {
+        LocalVar def = Liveness.defOf(inst);
+        if (def == null || inst instanceof CallInst || inst instanceof PhiInst)
+          continue;
+        Object value = values.get(def);
+        if (value == UNDEFINED || value == VARYING)
+          continue;
+        if (inst instanceof CopyInst && ((CopyInst) inst).getSrcValue() instanceof Constant)
+          continue;
+        CopyInst copy = new CopyInst(def, constant(value));
+        copy.setNext(0, inst.getNext(0));
+        replacements.put(inst, copy);
+        folded++;
+      }
+    }
+    function.replaceInstructions(replacements);
+    function.invalidateBlocks();
+  }
+
+  /**
+   * Replaces the phis of block that have a constant value with copies of the constant, and all of
+   * them with copies of their operand once only one edge into the block can execute. The copies
+   * go after the phis that remain, which must stay first in their block.
+   */
+  private void foldPhis(BasicBlock block, IdentityHashMap<Instruction, Instruction> replacements) {
+    List<Instruction> chain = new ArrayList<>();
+    List<Instruction> copies = new ArrayList<>();
+    int first = 0;
+    for (; first < block.size() && block.get(first) instanceof PhiInst; first++) {
+      PhiInst phi = (PhiInst) block.get(first);
+      dropDeadIncoming(phi, block);
+      Object value = values.get(phi.getDst());
+      if (value != UNDEFINED && value != VARYING) {
+        copies.add(new CopyInst(phi.getDst(), constant(value)));
+        folded++;
+      } else if (phi.numOperands() == 1) {
+        copies.add(new CopyInst(phi.getDst(), phi.getOperand(0)));
+      } else {
+        chain.add(phi);
+      }
+    }
+    if (copies.isEmpty())
+      return;
+    chain.addAll(copies);
+    for (int i = 0; i < chain.size(); i++)
+      chain.get(i).setNext(0, i + 1 < chain.size() ? chain.get(i + 1) : block.get(first));
+    if (chain.get(0) != block.getFirst())
+      replacements.put(block.getFirst(), chain.get(0));
+  }
+
+  /**
+   * Removes the operands of phi for edges the analysis never found executable.
+   */
+  private void dropDeadIncoming(PhiInst phi, BasicBlock block) {
+    for (int i = phi.numOperands() - 1; i >= 0; i--) {
+      BasicBlock predecessor = blockOf.get(phi.getSource(i));
+      if (!edges.contains(edgeKey(predecessor.getIndex(), block.getIndex())))
+        phi.removeIncoming(i);
+    }
+  }
+
+  /**
+   * Returns a nop that continues with the successor the jump ending block always takes. The
+   * operands of the edge never taken are already gone, see {@link #dropDeadIncoming}, except when
+   * both edges lead to the same block, whose phis then keep one operand for the nop.
+   */
+  private Instruction foldJump(BasicBlock block, boolean predicate) {
+    int taken = predicate ? 1 : 0;
+    BasicBlock target = block.getSuccessor(taken);
+    if (block.getSuccessor(1 - taken) == target) {
+      for (Instruction inst : target.getInstructions()) {
+        if (!(inst instanceof PhiInst))
+          break;
+        PhiInst phi = (PhiInst) inst;
+        boolean kept = false;
+        for (int i = 0; i < phi.numOperands(); i++) {
+          if (blockOf.get(phi.getSource(i)) != block)
+            continue;
+          if (kept)
+            phi.removeIncoming(i--);
+          kept = true;
+        }
+      }
+    }
+    NopInst nop = new NopInst();
+    nop.setNext(0, block.getLast().getNext(taken));
+    folded++;
+    return nop;
+  }
+}
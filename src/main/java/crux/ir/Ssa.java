@@ -0,0 +1,477 @@
+package crux.ir;
+
+import crux.ir.insts.CopyInst;
+import crux.ir.insts.NopInst;
+import crux.ir.insts.PhiInst;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.Stack;
+
+/**
+ * Converts the body of a function into static single assignment form, where every
+ * {@link LocalVar} is written by exactly one instruction, and back.
+ * <p>
+ * {@link #build} places {@link PhiInst}s at the iterated dominance frontiers of the blocks that
+ * write a variable, but only for variables some block reads before writing them (semi-pruned
+ * SSA), and then renames every write along the dominator tree. Variables written once and never
+ * merged keep their name. Reads that no write reaches keep the original variable, which holds
+ * whatever it held on entry, as before.
+ * <p>
+ * {@link #destroy} first isolates every phi with fresh copies, one at the end of every predecessor
+ * and one after the phis, so that no engine ever has to execute a phi. It then coalesces the phi
+ * and copy variables that do not interfere into one variable each and drops the phis and copies
+ * that became self-assignments. Only the copies that had to stay remain.
+ */
+public final class Ssa {
+  private Ssa() {}
+
+  /**
+   * Rewrites the body of f into SSA form and returns the number of phis placed.
+   */
+  public static int build(Function f) {
+    List<BasicBlock> blocks = f.getBlocks();
+    if (blocks.isEmpty())
+      return 0;
+    if (!blocks.get(0).getPredecessors().isEmpty()) {
+      // Phis need an entry block without predecessors to take the entry values from
+      NopInst entry = new NopInst();
+      entry.setNext(0, f.getStart());
+      f.setStart(entry);
+      blocks = f.getBlocks();
+    }
+    DominatorTree tree = new DominatorTree(blocks);
+
+    // Find the block of every write of each variable and the variables read before written in a
+    // block
+    LinkedHashMap<LocalVar, List<BasicBlock>> defBlocks = new LinkedHashMap<>();
+    Set<LocalVar> global = new HashSet<>();
+    for (BasicBlock block : blocks) {
+      Set<LocalVar> killed = new HashSet<>();
+      for (Instruction inst : block.getInstructions()) {
+        for (Value operand : inst.mOperands) {
+          if (operand instanceof LocalVar && !killed.contains(operand))
+            global.add((LocalVar) operand);
+        }
+        LocalVar def = Liveness.defOf(inst);
+        if (def != null) {
+          killed.add(def);
+          List<BasicBlock> writers = defBlocks.computeIfAbsent(def, v -> new ArrayList<>());
+          writers.add(block);
+        }
+      }
+    }
+
+    // Place the phis of every such variable at the iterated dominance frontier of its writers
+    List<List<PhiInst>> phis = new ArrayList<>();
+    for (int i = 0; i < blocks.size(); i++)
+      phis.add(new ArrayList<>());
+    IdentityHashMap<PhiInst, LocalVar> phiVar = new IdentityHashMap<>();
+    for (var entry : defBlocks.entrySet()) {
+      LocalVar v = entry.getKey();
+      if (!global.contains(v))
+        continue;
+      boolean[] hasPhi = new boolean[blocks.size()];
+      boolean[] queued = new boolean[blocks.size()];
+      ArrayDeque<BasicBlock> worklist = new ArrayDeque<>();
+      for (BasicBlock writer : entry.getValue()) {
+        if (!queued[writer.getIndex()]) {
+          queued[writer.getIndex()] = true;
+          worklist.add(writer);
+        }
+      }
+      while (!worklist.isEmpty()) {
+        for (BasicBlock join : tree.getFrontier(worklist.poll())) {
+          int j = join.getIndex();
+          if (hasPhi[j])
+            continue;
+          hasPhi[j] = true;
+          List<Instruction> sources = new ArrayList<>();
+          for (BasicBlock predecessor : join.getPredecessors())
+            sources.add(predecessor.getLast());
+          PhiInst phi = new PhiInst(v, Collections.nCopies(sources.size(), v), sources);
+          phis.get(j).add(phi);
+          phiVar.put(phi, v);
+          if (!queued[j]) {
+            queued[j] = true;
+            worklist.add(join);
+          }
+        }
+      }
+    }
+    int placed = phiVar.size();
+    for (BasicBlock block : blocks)
+      linkPhis(block, phis.get(block.getIndex()));
+
+    // Rename along the dominator tree; a variable that needs no renaming keeps its name
+    Set<LocalVar> renamed = new HashSet<>(phiVar.values());
+    Set<LocalVar> args = new HashSet<>(f.getArguments());
+    for (var entry : defBlocks.entrySet()) {
+      LocalVar v = entry.getKey();
+      if (entry.getValue().size() > 1 || args.contains(v))
+        renamed.add(v);
+    }
+    IdentityHashMap<LocalVar, ArrayDeque<LocalVar>> versions = new IdentityHashMap<>();
+    for (LocalVar v : renamed)
+      versions.put(v, new ArrayDeque<>());
+    List<List<LocalVar>> pushed = new ArrayList<>(Collections.nCopies(blocks.size(), null));
+    // A block index enters the block, its complement leaves it and pops its versions
+    Stack<Integer> tovisit = new Stack<>();
+    tovisit.push(0);
+    while (!tovisit.isEmpty()) {
+      int b = tovisit.pop();
+      if (b < 0) {
+        for (LocalVar v : pushed.get(~b))
+          versions.get(v).pop();
+        continue;
+      }
+      BasicBlock block = blocks.get(b);
+      List<LocalVar> defined = new ArrayList<>();
+      for (PhiInst phi : phis.get(b)) {
+        LocalVar v = phiVar.get(phi);
+        LocalVar version = newVersion(f, v);
+        setDestVar(phi, version);
+        versions.get(v).push(version);
+        defined.add(v);
+      }
+      for (Instruction inst : block.getInstructions()) {
+        for (int i = 0; i < inst.mOperands.size(); i++) {
+          Value operand = inst.mOperands.get(i);
+          if (operand instanceof LocalVar && renamed.contains(operand))
+            inst.setOperand(i, current(versions, (LocalVar) operand));
+        }
+        LocalVar def = Liveness.defOf(inst);
+        if (def != null && renamed.contains(def)) {
+          LocalVar version = newVersion(f, def);
+          inst.setDestVar(version);
+          versions.get(def).push(version);
+          defined.add(def);
+        }
+      }
+      for (BasicBlock successor : block.getSuccessors()) {
+        for (PhiInst phi : phis.get(successor.getIndex())) {
+          LocalVar version = current(versions, phiVar.get(phi));
+          for (int i = 0; i < phi.numOperands(); i++) {
+            if (phi.getSource(i) == block.getLast())
+              setOperand(phi, i, version);
+          }
+        }
+      }
+      pushed.set(b, defined);
+      tovisit.push(~b);
+      List<BasicBlock> children = tree.getChildren(block);
+      for (int i = children.size() - 1; i >= 0; i--)
+        tovisit.push(children.get(i).getIndex());
+    }
+    f.invalidateBlocks();
+    return placed;
+  }
+
+  /**
+   * Chains the phis of block in front of its first instruction and points every edge into the
+   * block at the first phi.
+   */
+  private static void linkPhis(BasicBlock block, List<PhiInst> phis) {
+    if (phis.isEmpty())
+      return;
+    for (int i = 0; i < phis.size(); i++)
+      phis.get(i).setNext(0, i + 1 < phis.size() ? phis.get(i + 1) : block.getFirst());
+    redirect(block, phis.get(0));
+  }
+
+  /**
+   * Points every edge into block at head instead of the first instruction of block.
+   */
+  private static void redirect(BasicBlock block, Instruction head) {
+    for (BasicBlock predecessor : block.getPredecessors()) {
+      Instruction last = predecessor.getLast();
+      for (int i = 0; i < BasicBlock.numSuccessors(last); i++) {
+        if (last.getNext(i) == block.getFirst())
+          last.setNext(i, head);
+      }
+    }
+  }
+
+  private static LocalVar newVersion(Function f, LocalVar v) {
+    return f.getTempVar(v.getType(), v.getName().substring(1) + ".");
+  }
+
+  private static LocalVar current(IdentityHashMap<LocalVar, ArrayDeque<LocalVar>> versions,
+      LocalVar v) {
+    LocalVar version = versions.get(v).peek();
+    return version != null ? version : v;
+  }
+
+  // PhiInst lives in another package, so these go through Instruction
+  private static void setOperand(Instruction inst, int i, Value value) {
+    inst.setOperand(i, value);
+  }
+
+  private static void setDestVar(Instruction inst, Variable destVar) {
+    inst.setDestVar(destVar);
+  }
+
+  /**
+   * Takes the body of f out of SSA form, so that it has no phis left, and returns the number of
+   * copies that could not be coalesced away.
+   */
+  public static int destroy(Function f) {
+    List<BasicBlock> blocks = f.getBlocks();
+    IdentityHashMap<Instruction, BasicBlock> blockOf = new IdentityHashMap<>();
+    for (BasicBlock block : blocks) {
+      for (Instruction inst : block.getInstructions())
+        blockOf.put(inst, block);
+    }
+
+    // Isolate every phi: its operands and its destination get fresh variables and copies
+    List<PhiInst> allPhis = new ArrayList<>();
+    List<CopyInst> inserted = new ArrayList<>();
+    List<List<Instruction>> exitCopies = new ArrayList<>();
+    for (int i = 0; i < blocks.size(); i++)
+      exitCopies.add(new ArrayList<>());
+    List<List<Instruction>> entryCopies = new ArrayList<>();
+    for (BasicBlock block : blocks) {
+      List<Instruction> copies = new ArrayList<>();
+      for (Instruction inst : block.getInstructions()) {
+        if (!(inst instanceof PhiInst))
+          break;
+        PhiInst phi = (PhiInst) inst;
+        allPhis.add(phi);
+        LocalVar dst = phi.getDst();
+        LocalVar isolated = f.getTempVar(dst.getType(), "phi");
+        setDestVar(phi, isolated);
+        copies.add(new CopyInst(dst, isolated));
+        for (int i = 0; i < phi.numOperands(); i++) {
+          int first = firstFromSameBlock(phi, i, blockOf);
+          if (first < i) {
+            // A jump with both edges into the block: both operands are the same
+            setOperand(phi, i, phi.getOperand(first));
+            continue;
+          }
+          Value operand = phi.getOperand(i);
+          LocalVar copy = f.getTempVar(operand.getType(), "phi");
+          exitCopies.get(blockOf.get(phi.getSource(i)).getIndex()).add(new CopyInst(copy, operand));
+          setOperand(phi, i, copy);
+        }
+      }
+      entryCopies.add(copies);
+    }
+    if (allPhis.isEmpty())
+      return 0;
+    for (List<Instruction> copies : exitCopies) {
+      for (Instruction copy : copies)
+        inserted.add((CopyInst) copy);
+    }
+    for (List<Instruction> copies : entryCopies) {
+      for (Instruction copy : copies)
+        inserted.add((CopyInst) copy);
+    }
+
+    // Copies out of a block that branches go before the jump, and those go in first, because a
+    // jump alone in its block takes over the edges into it; the other blocks append them
+    for (BasicBlock block : blocks) {
+      List<Instruction> copies = exitCopies.get(block.getIndex());
+      if (copies.isEmpty() || BasicBlock.numSuccessors(block.getLast()) < 2)
+        continue;
+      Instruction head = chain(copies, block.getLast());
+      if (block.size() > 1)
+        block.get(block.size() - 2).setNext(0, head);
+      else if (block.getIndex() == 0)
+        f.setStart(head);
+      else
+        redirect(block, head);
+    }
+    for (BasicBlock block : blocks) {
+      List<Instruction> copies = exitCopies.get(block.getIndex());
+      Instruction last = block.getLast();
+      if (copies.isEmpty() || BasicBlock.numSuccessors(last) >= 2)
+        continue;
+      last.setNext(0, chain(copies, last.getNext(0)));
+    }
+    for (BasicBlock block : blocks) {
+      List<Instruction> copies = entryCopies.get(block.getIndex());
+      if (copies.isEmpty())
+        continue;
+      Instruction lastPhi = block.get(copies.size() - 1);
+      lastPhi.setNext(0, chain(copies, lastPhi.getNext(0)));
+    }
+    f.invalidateBlocks();
+
+    // Coalesce the variables of every phi, which never interfere, then every copy that can be
+    Coalescer coalescer = new Coalescer(f);
+    for (PhiInst phi : allPhis) {
+      for (int i = 0; i < phi.numOperands(); i++) {
+        if (!coalescer.union(phi.getDst(), (LocalVar) phi.getOperand(i)))
+          throw new Error("operands of " + phi.format(Object::toString) + " interfere");
+      }
+    }
+    for (BasicBlock block : f.getBlocks()) {
+      for (Instruction inst : block.getInstructions()) {
+        if (inst instanceof CopyInst && ((CopyInst) inst).getSrcValue() instanceof LocalVar)
+          coalescer.union(((CopyInst) inst).getDstVar(), (LocalVar) ((CopyInst) inst).getSrcValue());
+      }
+    }
+
+    // Rename every variable to its class and drop the phis and the copies that became no-ops
+    Set<Instruction> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+    removed.addAll(allPhis);
+    for (BasicBlock block : f.getBlocks()) {
+      for (Instruction inst : block.getInstructions()) {
+        for (int i = 0; i < inst.mOperands.size(); i++) {
+          if (inst.mOperands.get(i) instanceof LocalVar)
+            inst.setOperand(i, coalescer.representative((LocalVar) inst.mOperands.get(i)));
+        }
+        LocalVar def = Liveness.defOf(inst);
+        if (def != null)
+          inst.setDestVar(coalescer.representative(def));
+        if (inst instanceof CopyInst && inst.mOperands.get(0) == inst.mDestVar)
+          removed.add(inst);
+      }
+    }
+    int left = 0;
+    for (CopyInst copy : inserted) {
+      if (!removed.contains(copy))
+        left++;
+    }
+    f.removeInstructions(removed);
+    return left;
+  }
+
+  private static int firstFromSameBlock(PhiInst phi, int i,
+      IdentityHashMap<Instruction, BasicBlock> blockOf) {
+    BasicBlock block = blockOf.get(phi.getSource(i));
+    for (int j = 0; j < i; j++) {
+      if (blockOf.get(phi.getSource(j)) == block)
+        return j;
+    }
+    return i;
+  }
+
+  /**
+   * Links instructions into a chain that continues with next and returns its head.
+   */
+  private static Instruction chain(List<Instruction> instructions, Instruction next) {
+    for (int i = instructions.size() - 1; i >= 0; i--) {
+      instructions.get(i).setNext(0, next);
+      next = instructions.get(i);
+    }
+    return next;
+  }
+
+  /**
+   * Merges variables into classes that share one variable, as long as no two variables of
+   * different classes it merges interfere. Two variables interfere if one is live where the other
+   * is written, except that a copy does not make its destination interfere with its source,
+   * which holds the same value. The live-in variables of the entry and the arguments are all
+   * written on entry, so they interfere with each other.
+   */
+  private static final class Coalescer {
+    private final Liveness liveness;
+    private final List<Set<Integer>> interference = new ArrayList<>();
+    private final int[] parent;
+    private final List<List<Integer>> members = new ArrayList<>();
+
+    Coalescer(Function f) {
+      liveness = new Liveness(f);
+      int n = liveness.numVars();
+      parent = new int[n];
+      for (int k = 0; k < n; k++) {
+        parent[k] = k;
+        members.add(new ArrayList<>(List.of(k)));
+        interference.add(new HashSet<>());
+      }
+      List<BasicBlock> blocks = f.getBlocks();
+      for (BasicBlock block : blocks) {
+        BitSet live = (BitSet) liveness.getLiveOut(block).clone();
+        int i = block.size() - 1;
+        for (; i >= 0 && !(block.get(i) instanceof PhiInst); i--) {
+          Instruction inst = block.get(i);
+          LocalVar def = Liveness.defOf(inst);
+          if (def != null) {
+            int d = liveness.indexOf(def);
+            int source = -1;
+            if (inst instanceof CopyInst && inst.mOperands.get(0) instanceof LocalVar)
+              source = liveness.indexOf((LocalVar) inst.mOperands.get(0));
+            for (int k = live.nextSetBit(0); k >= 0; k = live.nextSetBit(k + 1)) {
+              if (k != source)
+                interfere(d, k);
+            }
+            live.clear(d);
+          }
+          for (Value operand : inst.mOperands) {
+            if (operand instanceof LocalVar)
+              live.set(liveness.indexOf((LocalVar) operand));
+          }
+        }
+        // The phis all write at the start of the block, after the edge
+        for (int p = 0; p <= i; p++) {
+          int d = liveness.indexOf(((PhiInst) block.get(p)).getDst());
+          for (int k = live.nextSetBit(0); k >= 0; k = live.nextSetBit(k + 1))
+            interfere(d, k);
+          for (int q = 0; q <= i; q++)
+            interfere(d, liveness.indexOf(((PhiInst) block.get(q)).getDst()));
+        }
+      }
+      BitSet entry = (BitSet) liveness.getLiveIn(blocks.get(0)).clone();
+      entry.set(0, f.getArguments().size());
+      for (int a = entry.nextSetBit(0); a >= 0; a = entry.nextSetBit(a + 1)) {
+        for (int b = entry.nextSetBit(a + 1); b >= 0; b = entry.nextSetBit(b + 1))
+          interfere(a, b);
+      }
+    }
+
+    private void interfere(int a, int b) {
+      if (a == b)
+        return;
+      interference.get(a).add(b);
+      interference.get(b).add(a);
+    }
+
+    private int find(int k) {
+      while (parent[k] != k) {
+        parent[k] = parent[parent[k]];
+        k = parent[k];
+      }
+      return k;
+    }
+
+    /**
+     * Merges the classes of a and b unless they interfere and returns whether they are one class.
+     */
+    boolean union(LocalVar a, LocalVar b) {
+      int x = find(liveness.indexOf(a));
+      int y = find(liveness.indexOf(b));
+      if (x == y)
+        return true;
+      if (members.get(x).size() > members.get(y).size()) {
+        int t = x;
+        x = y;
+        y = t;
+      }
+      for (int m : members.get(x)) {
+        for (int k : interference.get(m)) {
+          if (find(k) == y)
+            return false;
+        }
+      }
+      // The smallest number names the class, so an argument keeps its name
+      int root = Math.min(x, y);
+      int other = root == x ? y : x;
+      parent[other] = root;
+      members.get(root).addAll(members.get(other));
+      members.set(other, null);
+      return true;
+    }
+
+    LocalVar representative(LocalVar v) {
+      return liveness.get(find(liveness.indexOf(v)));
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package crux.ir;
+
+import java.io.PrintStream;
+
+/**
+ * Records the instructions an emulator executes into a fixed-size ring buffer, so the last
+ * instructions before a crash can be inspected. Each record is three longs: the site of the
+ * instruction and the values of its first two inputs. Sites are numbers chosen by the engine that
+ * writes the trace and are only turned into text by its {@link Sites} when the trace is dumped, so
+ * recording neither formats nor allocates.
+ * <p>
+ * Tracing is off unless a tracer is attached to an emulator. Engines test {@link #COMPILED} before
+ * they test for a tracer, so setting it to false removes tracing from the compiled engines.
+ */
+public final class Tracer {
+  /** Set to false to compile tracing out of all engines. */
+  public static final boolean COMPILED = true;
+  public static final int DEFAULT_CAPACITY = 4096;
+  private static final int RECORD = 3;
+
+  /** Describes the sites of the engine that writes a trace. */
+  interface Sites {
+    String describe(long site);
+  }
+
+  private final long[] ring;
+  private final int mask;
+  private long recorded;
+  private Sites sites = Long::toString;
+
+  /**
+   * Creates a tracer that keeps the last capacity records, rounded up to a power of two.
+   */
+  public Tracer(int capacity) {
+    int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+    ring = new long[size * RECORD];
+    mask = size - 1;
+  }
+
+  void setSites(Sites sites) {
+    this.sites = sites;
+  }
+
+  void record(long site, long a, long b) {
+    int i = (int) (recorded & mask) * RECORD;
+    ring[i] = site;
+    ring[i + 1] = a;
+    ring[i + 2] = b;
+    recorded++;
+  }
+
+  /**
+   * Returns the number of records written so far, including those already overwritten.
+   */
+  public long getRecordedCount() {
+    return recorded;
+  }
+
+  /**
+   * Prints the records still in the buffer, oldest first.
+   */
+  public void dump(PrintStream out) {
+    long first = Math.max(0, recorded - (mask + 1));
+    out.println(String.format("trace: last %d of %d instructions", recorded - first, recorded));
+    for (long n = first; n < recorded; n++) {
+      int i = (int) (n & mask) * RECORD;
+      out.println(String.format("%10d  %-40s %d, %d", n, sites.describe(ring[i]), ring[i + 1],
+          ring[i + 2]));
+    }
+  }
+}
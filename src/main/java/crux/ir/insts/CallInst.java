@@ -47,12 +47,13 @@ public final class CallInst extends Instruction implements java.io.Serializable
     return callee;
   }
 
+  /**
+   * Returns the parameters of the call. The constructors only accept LocalVars as parameters, so the
+   * unmodifiable operand list is returned as is instead of being copied on every call.
+   */
+  @SuppressWarnings("unchecked")
   public List<LocalVar> getParams() {
-    ArrayList<LocalVar> params = new ArrayList<>();
-    for (Value v : mOperands)
-      params.add((LocalVar) v);
-
-    return params;
+    return (List<LocalVar>) (List<?>) mOperands;
   }
 
   public LocalVar getDst() {
@@ -0,0 +1,91 @@
+package crux.ir.insts;
+
+import crux.ir.Instruction;
+import crux.ir.LocalVar;
+import crux.ir.Value;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Selects one of its operands depending on the edge control came from, in SSA form. Operand i
+ * belongs to the edge that leaves the block of source instruction i, the last instruction of a
+ * predecessor block when the phi is placed. The phis of a block come first in the block and all read their operands before any of
+ * them writes its destination. {@link crux.ir.Ssa#destroy} replaces them with copies, so no engine
+ * and no backend ever executes one.
+ * <p>
+ * Operation (pseudo-code):
+ *
+ * <pre>
+ * {@code
+ * destVar = operands[i] if control came from sources[i]
+ * }
+ * </pre>
+ */
+public final class PhiInst extends Instruction implements java.io.Serializable {
+  static final long serialVersionUID = 12022L;
+  private final List<Instruction> mSources;
+
+  public PhiInst(LocalVar destVar, List<? extends Value> operands, List<Instruction> sources) {
+    super(destVar, List.copyOf(operands));
+    if (operands.size() != sources.size())
+      throw new IllegalArgumentException("a phi needs one operand per source");
+    mSources = new ArrayList<>(sources);
+  }
+
+  public LocalVar getDst() {
+    return (LocalVar) mDestVar;
+  }
+
+  public int numOperands() {
+    return mOperands.size();
+  }
+
+  public Value getOperand(int i) {
+    return mOperands.get(i);
+  }
+
+  public Instruction getSource(int i) {
+    return mSources.get(i);
+  }
+
+  /**
+   * Makes source the instruction operand i comes from, after a pass replaced the previous one.
+   */
+  public void setSource(int i, Instruction source) {
+    mSources.set(i, source);
+  }
+
+  /**
+   * Removes operand i and its source, after a pass removed the edge it belongs to.
+   */
+  public void removeIncoming(int i) {
+    List<Value> operands = new ArrayList<>(mOperands);
+    operands.remove(i);
+    mOperands = List.copyOf(operands);
+    mSources.remove(i);
+  }
+
+  /**
+   * Returns the operand for the edge from source, or null if source does not lead to the phi.
+   */
+  public Value getOperandFrom(Instruction source) {
+    int i = mSources.indexOf(source);
+    return i >= 0 ? mOperands.get(i) : null;
+  }
+
+  @Override
+  public void accept(InstVisitor v) {
+    v.visit(this);
+  }
+
+  @Override
+  public String format(Function<Value, String> valueFormatter) {
+    var destVar = valueFormatter.apply(mDestVar);
+    List<String> operands = new ArrayList<>();
+    for (Value operand : mOperands)
+      operands.add(valueFormatter.apply(operand));
+    return String.format("%s = phi(%s)", destVar, String.join(", ", operands));
+  }
+}
@@ -0,0 +1,85 @@
+package crux;
+
+import crux.ast.DeclarationList;
+import crux.ast.ParseTreeLower;
+import crux.ast.types.TypeChecker;
+import crux.ir.ASTLower;
+import crux.ir.BooleanConstant;
+import crux.ir.IntegerConstant;
+import crux.ir.Program;
+import crux.pt.CruxLexer;
+import crux.pt.CruxParser;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.ref.WeakReference;
+
+/**
+ * Checks that constants are interned per program and do not keep compiled programs alive.
+ */
+final class ConstantTests {
+  private static final int COMPILATIONS = 100000;
+  /** The heap may grow by this much over all compilations, for noise of the collector. */
+  private static final long MAX_GROWTH = 16 << 20;
+
+  private static final String SOURCE = "int a[10];\n"
+      + "int f(int x) { if (x > 3) { return x * 2; } return x + 1; }\n"
+      + "void main() { a[2] = f(7); printInt(a[2] - 5); printBool(true && !false); }\n";
+
+  @Test
+  void interning() {
+    var p = new Program();
+    var q = new Program();
+    Assertions.assertSame(IntegerConstant.get(p, 42), IntegerConstant.get(p, 42));
+    Assertions.assertSame(BooleanConstant.get(p, true), BooleanConstant.get(p, true));
+    Assertions.assertNotSame(IntegerConstant.get(p, 42), IntegerConstant.get(q, 42));
+    Assertions.assertEquals(42, IntegerConstant.get(q, 42).getValue());
+  }
+
+  @Test
+  void heapStaysFlatAcrossCompilations() {
+    var ast = parse(SOURCE);
+    PrintStream stdout = System.out;
+    // The lowering prints diagnostics, which would dominate the running time
+    System.setOut(new PrintStream(new ByteArrayOutputStream() {
+      @Override
+      public void write(byte[] b, int off, int len) {}
+    }));
+    try {
+      WeakReference<Program> first = new WeakReference<>(new ASTLower().lower(ast));
+      for (int i = 0; i < COMPILATIONS / 10; i++)
+        new ASTLower().lower(ast);
+      long before = usedHeap();
+      for (int i = 0; i < COMPILATIONS; i++)
+        new ASTLower().lower(ast);
+      long after = usedHeap();
+
+      Assertions.assertNull(first.get(), "a compiled program is still reachable");
+      Assertions.assertTrue(after - before < MAX_GROWTH, String.format(
+          "heap grew by %d bytes over %d compilations", after - before, COMPILATIONS));
+    } finally {
+      System.setOut(stdout);
+    }
+  }
+
+  private static DeclarationList parse(String source) {
+    var lexer = new CruxLexer(CharStreams.fromString(source));
+    var parser = new CruxParser(new CommonTokenStream(lexer));
+    var ast = new ParseTreeLower(System.err).lower(parser.program());
+    var typeChecker = new TypeChecker();
+    typeChecker.check(ast);
+    Assertions.assertTrue(typeChecker.getErrors().isEmpty(), typeChecker.getErrors().toString());
+    return ast;
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++)
+      System.gc();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,202 @@
+package crux;
+
+import crux.ir.ClosureEngine;
+import crux.ir.Emulator;
+import crux.ir.ExecutionLimits;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.DynamicTest.dynamicTest;
+
+/**
+ * Runs the IR stage programs through every emulator engine and checks that each one produces the
+ * expected output.
+ */
+final class EmulatorEngineTests {
+  @TestFactory
+  Stream<DynamicTest> engines() throws IOException {
+    var tests = getTests("ir");
+    return Arrays.stream(Emulator.Engine.values()).flatMap(engine -> tests.stream()
+        .map(test -> dynamicTest(engine + " " + test,
+            () -> checkOutput(engine, ClosureEngine.DEFAULT_JIT_THRESHOLD, test))));
+  }
+
+  /**
+   * Runs every program with a JIT threshold of 0, so that all functions run as compiled JVM code.
+   */
+  @TestFactory
+  Stream<DynamicTest> jitCompiled() throws IOException {
+    return getTests("ir").stream().map(
+        test -> dynamicTest("compiled " + test, () -> checkOutput(Emulator.Engine.JIT, 0, test)));
+  }
+
+  /**
+   * Runs every program with a trace threshold of 0, so that every loop is recorded the first time
+   * it loops and then runs as a compiled trace.
+   */
+  @TestFactory
+  Stream<DynamicTest> tracesCompiled() throws IOException {
+    return getTests("ir").stream().map(
+        test -> dynamicTest("traced " + test, () -> checkOutput(Emulator.Engine.TRACE, 0, test)));
+  }
+
+  /**
+   * Runs every program on every engine with functions lowered only when they are first called.
+   */
+  @TestFactory
+  Stream<DynamicTest> lazilyLowered() throws IOException {
+    var tests = getTests("ir");
+    return Arrays.stream(Emulator.Engine.values()).flatMap(engine -> tests.stream()
+        .map(test -> dynamicTest("lazy " + engine + " " + test,
+            () -> checkOutput(engine, ClosureEngine.DEFAULT_JIT_THRESHOLD, true, test))));
+  }
+
+  /**
+   * Loads and stores outside the globals, which every engine, compiled code included, reports as
+   * an error that names the word.
+   */
+  @TestFactory
+  Stream<DynamicTest> outOfBoundsGlobals() {
+    var sources = List.of("int a[4]; void main() { printInt(a[100000]); }",
+        "int a[4]; void main() { a[100000] = 3; }", "int a[4]; void main() { a[0 - 1] = 3; }");
+    var words = List.of(100000, 100000, -1);
+    return Arrays.stream(Emulator.Engine.values()).flatMap(engine -> IntStream
+        .range(0, sources.size()).mapToObj(k -> dynamicTest(engine + " out of bounds " + k, () -> {
+          Error e = Assertions.assertThrows(Error.class,
+              () -> StagePrograms.run(new ByteArrayInputStream(sources.get(k).getBytes()),
+                  new ByteArrayInputStream(new byte[0]), driver -> {
+                    driver.setEmulatorEngine(engine);
+                    driver.setEmulatorJitThreshold(0);
+                  }));
+          Assertions.assertEquals(
+              "Global memory access out of bounds: word " + words.get(k) + " of 4.",
+              e.getMessage());
+        })));
+  }
+
+  /**
+   * Calls a function with more arguments than a JVM method has parameter slots for, which the JIT
+   * leaves to the closure engine.
+   */
+  @TestFactory
+  Stream<DynamicTest> manyArguments() {
+    int n = 130;
+    var source = String.format("int sum(%s) { return %s; } void main() { printInt(sum(%s)); }",
+        IntStream.range(0, n).mapToObj(i -> "int a" + i).collect(Collectors.joining(", ")),
+        IntStream.range(0, n).mapToObj(i -> "a" + i).collect(Collectors.joining(" + ")),
+        IntStream.range(0, n).mapToObj(Integer::toString).collect(Collectors.joining(", ")));
+    return Arrays.stream(Emulator.Engine.values())
+        .map(engine -> dynamicTest(engine + " many arguments", () -> {
+          String output = StagePrograms.run(new ByteArrayInputStream(source.getBytes()),
+              new ByteArrayInputStream(new byte[0]), driver -> {
+                driver.setEmulatorEngine(engine);
+                driver.setEmulatorJitThreshold(0);
+              });
+          Assertions.assertEquals("8385", CompilerStageTests.sanitize(output).trim());
+        }));
+  }
+
+  /**
+   * Options the chosen engine cannot honor stop the driver before it compiles the program.
+   */
+  @Test
+  void unsupportedOptions() {
+    List<Consumer<Driver>> options = List.of(Driver::enableDebugEmulator,
+        driver -> driver.setEmulatorProfileFile("unused.folded"),
+        driver -> driver.setEmulatorCoverageFile("unused.coverage"));
+    List<Emulator.Engine> engines =
+        List.of(Emulator.Engine.CLOSURE, Emulator.Engine.JIT, Emulator.Engine.TRACE);
+    for (var option : options) {
+      for (var engine : engines) {
+        var driver = new Driver();
+        driver.setEmulatorEngine(engine);
+        option.accept(driver);
+        driver.setInputStream(new ByteArrayInputStream("void main() { }".getBytes()));
+        Assertions.assertThrows(RuntimeException.class, driver::run, engine.toString());
+        Assertions.assertNull(driver.getIRProgram(), engine.toString());
+      }
+    }
+  }
+
+  /**
+   * Counts the IR instructions of every program with and without superinstructions, which count
+   * as the instructions they were fused from, so both agree with the visitor engine.
+   */
+  @TestFactory
+  Stream<DynamicTest> instructionCounts() throws IOException {
+    return getTests("ir").stream().map(test -> dynamicTest("counted " + test, () -> {
+      byte[] source = StagePrograms.readBytes(test + ".crx");
+      byte[] input = StagePrograms.readBytes(test + ".in");
+      long expected = count(source, input, Emulator.Engine.VISITOR, true, new ExecutionLimits());
+      for (boolean fusion : new boolean[] {true, false}) {
+        Assertions.assertEquals(expected,
+            count(source, input, Emulator.Engine.DECODED, fusion, new ExecutionLimits()),
+            "fusion " + fusion);
+      }
+    }));
+  }
+
+  /**
+   * A run stopped by the memory limit reports the same count on every engine.
+   */
+  @TestFactory
+  Stream<DynamicTest> instructionCountsAtLimit() {
+    byte[] source = ("int a[100]; void main() { int i; i = 0; "
+        + "while (i < 100) { a[i] = i * 2; i = i + 1; } }").getBytes();
+    var limits = new ExecutionLimits();
+    limits.setMaxTouchedWords(50);
+    long expected = count(source, new byte[0], Emulator.Engine.VISITOR, true, limits);
+    return Stream.concat(
+        Arrays.stream(Emulator.Engine.values()).map(engine -> dynamicTest(engine + " at limit",
+            () -> Assertions.assertEquals(expected,
+                count(source, new byte[0], engine, true, limits)))),
+        Stream.of(dynamicTest("unfused at limit", () -> Assertions.assertEquals(expected,
+            count(source, new byte[0], Emulator.Engine.DECODED, false, limits)))));
+  }
+
+  private static long count(byte[] source, byte[] input, Emulator.Engine engine, boolean fusion,
+      ExecutionLimits limits) {
+    var emulator = new Emulator(StagePrograms.lower(new ByteArrayInputStream(source)),
+        new ByteArrayInputStream(input), new ByteArrayOutputStream());
+    emulator.setEngine(engine);
+    emulator.setFusion(fusion);
+    emulator.setLimits(limits);
+    try {
+      emulator.run();
+    } catch (Error e) {
+      // Programs that fail at run time still count what they executed up to the failure
+    }
+    return emulator.getInstructionCount();
+  }
+
+  private void checkOutput(Emulator.Engine engine, int jitThreshold, String test)
+      throws Exception {
+    checkOutput(engine, jitThreshold, false, test);
+  }
+
+  private void checkOutput(Emulator.Engine engine, int jitThreshold, boolean lazy, String test)
+      throws Exception {
+    StagePrograms.checkOutput(test, engine + " engine", driver -> {
+      driver.setEmulatorEngine(engine);
+      driver.setEmulatorJitThreshold(jitThreshold);
+      if (lazy)
+        driver.enableEmulatorLazyLowering();
+    });
+  }
+
+  private List<String> getTests(String stageName) throws IOException {
+    return StagePrograms.list(stageName);
+  }
+}
@@ -0,0 +1,125 @@
+package crux;
+
+import crux.ir.EmulatorIO;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Checks the integer parser, the UTF-8 decoder and the output buffering of {@link EmulatorIO}.
+ */
+final class EmulatorIOTests {
+  @Test
+  void readsIntegers() {
+    Assertions.assertEquals(42, io("42\n").readInt());
+    Assertions.assertEquals(42, io("+42\n").readInt());
+    Assertions.assertEquals(-17, io(" \t-17 \r\n").readInt());
+    Assertions.assertEquals(5, io("5").readInt());
+    Assertions.assertEquals(Long.MAX_VALUE, io("9223372036854775807\n").readInt());
+    Assertions.assertEquals(Long.MIN_VALUE, io("-9223372036854775808\n").readInt());
+
+    EmulatorIO io = io("1\n2\n");
+    Assertions.assertEquals(1, io.readInt());
+    Assertions.assertEquals(2, io.readInt());
+  }
+
+  @Test
+  void rejectsIntegersOutOfRange() {
+    for (String input : new String[] {"99999999999999999999\n", "9223372036854775808\n",
+        "-9223372036854775809\n", "+9223372036854775808\n"}) {
+      Error e = Assertions.assertThrows(Error.class, () -> io(input).readInt(), input);
+      Assertions.assertEquals("Error in inputting Integer.", e.getMessage());
+    }
+  }
+
+  @Test
+  void rejectsMalformedIntegers() {
+    for (String input : new String[] {"x\n", "-\n", "12a\n", "1 2\n", "\n", "--1\n"}) {
+      Error e = Assertions.assertThrows(Error.class, () -> io(input).readInt(), input);
+      Assertions.assertEquals("Error in inputting Integer.", e.getMessage());
+    }
+  }
+
+  @Test
+  void stopsAtEndOfInput() {
+    Error e = Assertions.assertThrows(Error.class, () -> io("").readInt());
+    Assertions.assertEquals("Reading past end of stream.", e.getMessage());
+    e = Assertions.assertThrows(Error.class, () -> io("").readChar());
+    Assertions.assertEquals("Reading past end of stream.", e.getMessage());
+
+    EmulatorIO io = io("7\n");
+    io.readInt();
+    Assertions.assertThrows(Error.class, io::readInt);
+  }
+
+  @Test
+  void readsUtf8Characters() {
+    String text = "aé€😀";
+    EmulatorIO io = io(text);
+    for (int i = 0; i < text.length(); i++)
+      Assertions.assertEquals(text.charAt(i), io.readChar(), "character " + i);
+
+    // A malformed sequence reads as the replacement character and the next byte stays unread
+    io = new EmulatorIO(new ByteArrayInputStream(new byte[] {(byte) 0xFF, (byte) 0xC3, 'b'}),
+        new ByteArrayOutputStream());
+    Assertions.assertEquals(0xFFFD, io.readChar());
+    Assertions.assertEquals(0xFFFD, io.readChar());
+    Assertions.assertEquals('b', io.readChar());
+  }
+
+  @Test
+  void flushesBeforeInput() {
+    var out = new ByteArrayOutputStream();
+    String[] seen = new String[1];
+    InputStream in = new InputStream() {
+      private final ByteArrayInputStream input = new ByteArrayInputStream("3\n".getBytes());
+
+      @Override
+      public int read() {
+        return input.read();
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) {
+        if (seen[0] == null)
+          seen[0] = out.toString(StandardCharsets.UTF_8);
+        return input.read(b, off, len);
+      }
+    };
+    EmulatorIO io = new EmulatorIO(in, out);
+    io.printInt(-12);
+    io.println();
+    Assertions.assertEquals("", out.toString(StandardCharsets.UTF_8));
+    Assertions.assertEquals(3, io.readInt());
+    Assertions.assertEquals("-12\nint?", seen[0]);
+
+    io.printChar('é');
+    io.flush();
+    Assertions.assertEquals("-12\nint?é", out.toString(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void formatsIntegers() {
+    var out = new ByteArrayOutputStream();
+    EmulatorIO io = new EmulatorIO(new ByteArrayInputStream(new byte[0]), out);
+    io.setPrompts(false);
+    for (long value : new long[] {0, 7, -7, Long.MAX_VALUE, Long.MIN_VALUE}) {
+      io.printInt(value);
+      io.println();
+    }
+    io.flush();
+    Assertions.assertEquals("0\n7\n-7\n9223372036854775807\n-9223372036854775808\n",
+        out.toString(StandardCharsets.UTF_8));
+  }
+
+  private static EmulatorIO io(String input) {
+    var in = new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8));
+    EmulatorIO io = new EmulatorIO(in, new ByteArrayOutputStream());
+    io.setPrompts(false);
+    return io;
+  }
+}
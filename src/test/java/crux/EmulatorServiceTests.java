@@ -0,0 +1,304 @@
+package crux;
+
+import crux.ir.Checkpoint;
+import crux.ir.Coverage;
+import crux.ir.Emulator;
+import crux.ir.EmulatorService;
+import crux.ir.ExecutionLimits;
+import crux.ir.DecodedProgram;
+import crux.ir.ExecutionResult;
+import crux.ir.LockstepInterpreter;
+import crux.ir.Program;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the IR stage programs concurrently in an {@link EmulatorService} and checks that every job
+ * produces the expected output.
+ */
+final class EmulatorServiceTests {
+  private static final int COPIES = 4;
+
+  @Test
+  void concurrentJobs() throws IOException {
+    var tests = getTests("ir");
+    List<Program> programs = new ArrayList<>();
+    for (var test : tests)
+      programs.add(compile(test));
+
+    try (var service = new EmulatorService()) {
+      List<EmulatorService.Job> jobs = new ArrayList<>();
+      for (int copy = 0; copy < COPIES; copy++) {
+        for (int i = 0; i < tests.size(); i++) {
+          byte[] input = readResource(tests.get(i) + ".in");
+          jobs.add(service.submit(programs.get(i), input));
+        }
+      }
+      for (int j = 0; j < jobs.size(); j++) {
+        var test = tests.get(j % tests.size());
+        var result = jobs.get(j).getResult();
+        var expected = new String(readResource(test + ".out"), StandardCharsets.UTF_8);
+        Assertions.assertEquals(CompilerStageTests.sanitize(expected).trim(),
+            CompilerStageTests.sanitize(result.getOutputString()).trim(),
+            String.format("Output of job %d for program %s differs from expected output.", j,
+                test));
+      }
+      var stats = service.getStats();
+      Assertions.assertEquals(jobs.size(), stats.getSubmitted());
+      Assertions.assertEquals(jobs.size(),
+          stats.getCompleted() + stats.getStopped() + stats.getFailed());
+    }
+  }
+
+  @Test
+  void checkpointedJobs() throws IOException {
+    var tests = getTests("ir");
+    try (var service = new EmulatorService()) {
+      List<EmulatorService.Job> jobs = new ArrayList<>();
+      for (var test : tests) {
+        var checkpoint =
+            Checkpoint.atFirstInput(service.decode(compile(test)), new ExecutionLimits());
+        byte[] input = readResource(test + ".in");
+        for (int copy = 0; copy < COPIES; copy++)
+          jobs.add(service.submit(checkpoint, input));
+      }
+      for (int j = 0; j < jobs.size(); j++) {
+        var test = tests.get(j / COPIES);
+        var expected = new String(readResource(test + ".out"), StandardCharsets.UTF_8);
+        Assertions.assertEquals(CompilerStageTests.sanitize(expected).trim(),
+            CompilerStageTests.sanitize(jobs.get(j).getResult().getOutputString()).trim(),
+            String.format("Output of job %d resumed from the checkpoint of %s differs from "
+                + "expected output.", j, test));
+      }
+    }
+  }
+
+  @Test
+  void batchWritesOneOutputPerInput(@TempDir Path dir) throws IOException {
+    var test = "crux/stages/ir/test11";
+    Path inputs = Files.createDirectory(dir.resolve("inputs"));
+    for (int copy = 0; copy < COPIES; copy++)
+      Files.write(inputs.resolve(copy + ".in"), readResource(test + ".in"));
+
+    var out = new PrintStream(new ByteArrayOutputStream());
+    var driver = new Driver(out, out);
+    driver.setInputStream(getClass().getClassLoader().getResourceAsStream(test + ".crx"));
+    driver.setEmulatorBatch(inputs.toString());
+    driver.setEmulatorBatchOutput(dir.resolve("outputs").toString());
+    Assertions.assertEquals(State.Finished, driver.run());
+
+    var expected = new String(readResource(test + ".out"), StandardCharsets.UTF_8);
+    for (int copy = 0; copy < COPIES; copy++) {
+      var output = Files.readString(dir.resolve("outputs").resolve(copy + ".in.out"));
+      Assertions.assertEquals(CompilerStageTests.sanitize(expected).trim(),
+          CompilerStageTests.sanitize(output).trim(),
+          String.format("Batch output for input %d differs from expected output.", copy));
+    }
+  }
+
+  /**
+   * Inputs listed from different directories under the same name would write the same output
+   * file, so the batch fails before any of them runs.
+   */
+  @Test
+  void batchRejectsDuplicateOutputNames(@TempDir Path dir) throws IOException {
+    for (var sub : List.of("a", "b"))
+      Files.write(Files.createDirectory(dir.resolve(sub)).resolve("0.in"), new byte[0]);
+    Path list = Files.write(dir.resolve("inputs.txt"), List.of("a/0.in", "b/0.in"));
+
+    var out = new PrintStream(new ByteArrayOutputStream());
+    var driver = new Driver(out, out);
+    driver.setInputStream(new ByteArrayInputStream("void main() { }".getBytes()));
+    driver.setEmulatorBatch(list.toString());
+    driver.setEmulatorBatchOutput(dir.resolve("outputs").toString());
+    var e = Assertions.assertThrows(RuntimeException.class, driver::run);
+    Assertions.assertTrue(e.getMessage().startsWith("batch inputs"), e.getMessage());
+    Assertions.assertFalse(Files.exists(dir.resolve("outputs")));
+  }
+
+  /**
+   * Batches always run on the decoded engine, so asking for any other engine fails before the
+   * program is compiled.
+   */
+  @Test
+  void batchRejectsOtherEngines(@TempDir Path dir) throws IOException {
+    Path inputs = Files.createDirectory(dir.resolve("inputs"));
+    Files.write(inputs.resolve("0.in"), new byte[0]);
+    for (var engine : Emulator.Engine.values()) {
+      var out = new PrintStream(new ByteArrayOutputStream());
+      var driver = new Driver(out, out);
+      driver.setInputStream(new ByteArrayInputStream("void main() { }".getBytes()));
+      driver.setEmulatorEngine(engine);
+      driver.setEmulatorBatch(inputs.toString());
+      driver.setEmulatorBatchOutput(dir.resolve("outputs").toString());
+      if (engine == Emulator.Engine.DECODED) {
+        Assertions.assertEquals(State.Finished, driver.run());
+      } else {
+        Assertions.assertThrows(RuntimeException.class, driver::run, engine.toString());
+        Assertions.assertNull(driver.getIRProgram(), engine.toString());
+      }
+    }
+  }
+
+  /**
+   * Runs every program on the inputs of all programs at once in lockstep, so that lanes diverge,
+   * and checks every lane against a job of its own.
+   */
+  @Test
+  void lockstepMatchesJobs() throws IOException {
+    var tests = getTests("ir");
+    List<byte[]> inputs = new ArrayList<>();
+    for (var test : tests)
+      inputs.add(readResource(test + ".in"));
+    var limits = new ExecutionLimits();
+    limits.setMaxInstructions(1000000);
+    try (var service = new EmulatorService()) {
+      service.setLimits(limits);
+      for (var test : tests) {
+        DecodedProgram program = DecodedProgram.decode(compile(test), false);
+        var lockstep = new LockstepInterpreter(program, inputs);
+        lockstep.setLimits(limits);
+        var lanes = lockstep.run();
+        for (int l = 0; l < inputs.size(); l++) {
+          var lane = lanes.get(l);
+          var job = service.submit(program, inputs.get(l)).getResult();
+          var message = String.format("Lane %d of program %s differs from its job.", l, test);
+          Assertions.assertEquals(job.getOutputString(), lane.getOutputString(), message);
+          Assertions.assertEquals(String.valueOf(job.getExecution()),
+              String.valueOf(lane.getExecution()), message);
+          Assertions.assertEquals(job.getError() == null ? null : job.getError().getMessage(),
+              lane.getError() == null ? null : lane.getError().getMessage(), message);
+        }
+      }
+    }
+  }
+
+  @Test
+  void lockstepLanesDivergeAndMerge() {
+    var source = "int a[20];\n"
+        + "int f(int n) { int r; if (n < 2) { r = n; } else { r = f(n - 1) + f(n - 2); }\n"
+        + "  return r; }\n"
+        + "void main() { int n; int i; n = readInt();\n"
+        + "  for (i = 0; i < n; i = i + 1) {\n"
+        + "    if (i / 2 * 2 == i) { a[i] = f(i); } else { a[i] = 100 / (7 - i); } }\n"
+        + "  printInt(a[n / 2]); println(); printInt(f(n)); println(); }";
+    Program program = compile(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)));
+    DecodedProgram decoded = DecodedProgram.decode(program, false);
+    List<byte[]> inputs = new ArrayList<>();
+    for (int n = 0; n < 20; n++)
+      inputs.add((n + "\n").getBytes(StandardCharsets.UTF_8));
+    inputs.add("x\n".getBytes(StandardCharsets.UTF_8));
+    inputs.add(new byte[0]);
+    var lockstep = new LockstepInterpreter(decoded, inputs);
+    var lanes = lockstep.run();
+    try (var service = new EmulatorService()) {
+      for (int l = 0; l < inputs.size(); l++) {
+        var job = service.submit(decoded, inputs.get(l)).getResult();
+        var lane = lanes.get(l);
+        var message = String.format("Lane %d differs from its job.", l);
+        Assertions.assertEquals(job.getOutputString(), lane.getOutputString(), message);
+        Assertions.assertEquals(String.valueOf(job.getExecution()),
+            String.valueOf(lane.getExecution()), message);
+        Assertions.assertEquals(String.valueOf(job.getError()), String.valueOf(lane.getError()),
+            message);
+      }
+    }
+    Assertions.assertTrue(lockstep.getSplits() > 0);
+    Assertions.assertTrue(lockstep.getMerges() > 0);
+  }
+
+  /**
+   * Checks that runs resumed from a checkpoint record the same coverage as whole runs, and that a
+   * coverage map survives writing and reading it back.
+   */
+  @Test
+  void checkpointedCoverageMatchesWholeRuns() throws IOException {
+    var tests = getTests("ir");
+    var total = new Coverage();
+    try (var service = new EmulatorService()) {
+      service.setCoverage(true);
+      for (var test : tests) {
+        var program = service.decode(compile(test));
+        var checkpoint = Checkpoint.atFirstInput(program, new ExecutionLimits(), true);
+        byte[] input = readResource(test + ".in");
+        var whole = service.submit(program, input).getResult().getCoverage();
+        var resumed = service.submit(checkpoint, input).getResult().getCoverage();
+        Assertions.assertArrayEquals(toBytes(whole), toBytes(resumed),
+            String.format("Coverage of %s resumed from its checkpoint differs.", test));
+        total.merge(whole);
+      }
+    }
+    Assertions.assertTrue(total.countEdges() > 0);
+    var read = Coverage.read(new ByteArrayInputStream(toBytes(total)));
+    Assertions.assertArrayEquals(toBytes(total), toBytes(read));
+  }
+
+  @Test
+  void coverageMergesNewEdgesAndBuckets() {
+    var source = "void main() { int n; int i; n = readInt();\n"
+        + "  if (n < 0) { printInt(0); } else { for (i = 0; i < n; i = i + 1) { } } }";
+    Program program = compile(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)));
+    try (var service = new EmulatorService()) {
+      service.setCoverage(true);
+      var total = new Coverage();
+      Assertions.assertTrue(total.merge(run(service, program, "1")));
+      Assertions.assertFalse(total.merge(run(service, program, "1")));
+      int edges = total.countEdges();
+      Assertions.assertTrue(total.merge(run(service, program, "5")), "more loop trips");
+      Assertions.assertEquals(edges, total.countEdges());
+      Assertions.assertFalse(total.merge(run(service, program, "6")), "same bucket");
+      Assertions.assertTrue(total.merge(run(service, program, "-1")), "other branch");
+      Assertions.assertTrue(total.countEdges() > edges);
+    }
+  }
+
+  private static Coverage run(EmulatorService service, Program program, String input) {
+    return service.submit(program, input.getBytes(StandardCharsets.UTF_8)).getResult()
+        .getCoverage();
+  }
+
+  private static byte[] toBytes(Coverage coverage) throws IOException {
+    var bytes = new ByteArrayOutputStream();
+    coverage.write(bytes);
+    return bytes.toByteArray();
+  }
+
+  @Test
+  void limitsStopJobs() {
+    var source = "void main() { int i; for (i = 0; true; i = i + 1) { } }";
+    Program program = compile(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)));
+    var limits = new ExecutionLimits();
+    limits.setMaxInstructions(1000);
+    try (var service = new EmulatorService()) {
+      service.setLimits(limits);
+      var result = service.submit(program, new byte[0]).getResult();
+      Assertions.assertEquals(ExecutionResult.Status.INSTRUCTION_LIMIT,
+          result.getExecution().getStatus());
+      Assertions.assertEquals(1, service.getStats().getStopped());
+    }
+  }
+
+  private Program compile(String test) {
+    return compile(StagePrograms.resource(test + ".crx"));
+  }
+
+  private Program compile(InputStream source) {
+    return StagePrograms.lower(source);
+  }
+
+  private List<String> getTests(String stageName) throws IOException {
+    return StagePrograms.list(stageName);
+  }
+
+  private byte[] readResource(String resourceName) throws IOException {
+    return StagePrograms.readBytes(resourceName);
+  }
+}
@@ -0,0 +1,152 @@
+package crux;
+
+import crux.ir.Emulator;
+import crux.ir.ExecutionLimits;
+import crux.ir.ExecutionResult;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.TestFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.DynamicTest.dynamicTest;
+
+/**
+ * Stops programs with each of the {@link ExecutionLimits} and with {@link Emulator#cancel()} on
+ * the engines that walk the instruction graph and on the decoded engine, and checks the status
+ * and the instruction count of the result.
+ */
+final class ExecutionLimitsTests {
+  private static final List<Emulator.Engine> ENGINES =
+      List.of(Emulator.Engine.VISITOR, Emulator.Engine.SLOTS, Emulator.Engine.DECODED);
+  private static final String RECURSION =
+      "int f(int n) { return f(n + 1); } void main() { printInt(f(0)); }";
+  private static final String ARRAY =
+      "int a[100]; void main() { int i; for (i = 0; i < 100; i = i + 1) { a[i] = i; } }";
+  private static final String LOOP = "void main() { int i; for (i = 0; true; i = i + 1) { } }";
+
+  @TestFactory
+  Stream<DynamicTest> instructionLimit() {
+    var limits = new ExecutionLimits();
+    limits.setMaxInstructions(1000);
+    return ENGINES.stream().map(engine -> dynamicTest(engine + " instruction limit", () -> {
+      var emulator = emulator(LOOP, engine, limits);
+      var result = emulator.run();
+      Assertions.assertEquals(ExecutionResult.Status.INSTRUCTION_LIMIT, result.getStatus());
+      // The limit is tested at the branch back to the loop header, at most one iteration late
+      Assertions.assertTrue(result.getInstructionCount() >= 1000, result.toString());
+      Assertions.assertTrue(result.getInstructionCount() < 1010, result.toString());
+      Assertions.assertEquals(result.getInstructionCount(), emulator.getInstructionCount());
+    }));
+  }
+
+  @TestFactory
+  Stream<DynamicTest> callDepthLimit() {
+    var limits = new ExecutionLimits();
+    limits.setMaxCallDepth(50);
+    long expected = emulator(RECURSION, Emulator.Engine.VISITOR, limits).run()
+        .getInstructionCount();
+    return ENGINES.stream().map(engine -> dynamicTest(engine + " call depth limit", () -> {
+      var result = emulator(RECURSION, engine, limits).run();
+      Assertions.assertEquals(ExecutionResult.Status.CALL_DEPTH_LIMIT, result.getStatus());
+      Assertions.assertEquals("call depth limit of 50 reached", result.getMessage());
+      Assertions.assertEquals(expected, result.getInstructionCount());
+      // Every level of the recursion runs the same instructions up to its call
+      long perCall = count(RECURSION, engine, 51) - result.getInstructionCount();
+      Assertions.assertTrue(perCall > 0);
+      Assertions.assertEquals(expected + 10 * perCall, count(RECURSION, engine, 60));
+    }));
+  }
+
+  @TestFactory
+  Stream<DynamicTest> memoryLimit() {
+    var limits = new ExecutionLimits();
+    limits.setMaxTouchedWords(40);
+    long completed = emulator(ARRAY, Emulator.Engine.VISITOR, new ExecutionLimits()).run()
+        .getInstructionCount();
+    return ENGINES.stream().map(engine -> dynamicTest(engine + " memory limit", () -> {
+      var result = emulator(ARRAY, engine, limits).run();
+      Assertions.assertEquals(ExecutionResult.Status.MEMORY_LIMIT, result.getStatus());
+      Assertions.assertEquals("memory limit of 40 words reached", result.getMessage());
+      Assertions.assertTrue(result.getInstructionCount() < completed / 2, result.toString());
+      Assertions.assertEquals(
+          emulator(ARRAY, Emulator.Engine.VISITOR, limits).run().getInstructionCount(),
+          result.getInstructionCount());
+
+      var unlimited = emulator(ARRAY, engine, new ExecutionLimits()).run();
+      Assertions.assertEquals(ExecutionResult.Status.COMPLETED, unlimited.getStatus());
+      Assertions.assertEquals(completed, unlimited.getInstructionCount());
+    }));
+  }
+
+  @TestFactory
+  Stream<DynamicTest> timeout() {
+    var limits = new ExecutionLimits();
+    limits.setTimeoutNanos(TimeUnit.MILLISECONDS.toNanos(100));
+    return ENGINES.stream().map(engine -> dynamicTest(engine + " timeout", () -> {
+      var emulator = emulator(LOOP, engine, limits);
+      long start = System.nanoTime();
+      var result = emulator.run();
+      long elapsed = System.nanoTime() - start;
+      Assertions.assertEquals(ExecutionResult.Status.DEADLINE, result.getStatus());
+      Assertions.assertEquals("time limit of 100 ms reached", result.getMessage());
+      Assertions.assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(100));
+      Assertions.assertTrue(elapsed < TimeUnit.SECONDS.toNanos(StagePrograms.TIMEOUT));
+      Assertions.assertTrue(result.getInstructionCount() > 0);
+      Assertions.assertEquals(result.getInstructionCount(), emulator.getInstructionCount());
+    }));
+  }
+
+  @TestFactory
+  Stream<DynamicTest> cancel() {
+    return ENGINES.stream().map(engine -> dynamicTest(engine + " cancel", () -> {
+      var emulator = emulator(LOOP, engine, new ExecutionLimits());
+      var run = CompletableFuture.supplyAsync(emulator::run);
+      Thread.sleep(100);
+      Assertions.assertFalse(run.isDone());
+      emulator.cancel();
+      var result = run.get(StagePrograms.TIMEOUT, TimeUnit.SECONDS);
+      Assertions.assertEquals(ExecutionResult.Status.CANCELLED, result.getStatus());
+      Assertions.assertEquals("cancelled", result.getMessage());
+      Assertions.assertTrue(result.getInstructionCount() > 0);
+      Assertions.assertEquals(result.getInstructionCount(), emulator.getInstructionCount());
+    }));
+  }
+
+  @TestFactory
+  Stream<DynamicTest> cancelBeforeRun() {
+    return ENGINES.stream().map(engine -> dynamicTest(engine + " cancel before run", () -> {
+      var emulator = emulator(LOOP, engine, new ExecutionLimits());
+      emulator.cancel();
+      var result = emulator.run();
+      Assertions.assertEquals(ExecutionResult.Status.CANCELLED, result.getStatus());
+      // Cancellation is tested at the first taken branch after one poll interval of 1 << 16
+      Assertions.assertTrue(result.getInstructionCount() >= 1 << 16, result.toString());
+      Assertions.assertTrue(result.getInstructionCount() < (1 << 16) + 10, result.toString());
+    }));
+  }
+
+  /**
+   * Returns the number of instructions source executes before it reaches a call depth limit of
+   * maxCallDepth on engine.
+   */
+  private static long count(String source, Emulator.Engine engine, int maxCallDepth) {
+    var limits = new ExecutionLimits();
+    limits.setMaxCallDepth(maxCallDepth);
+    return emulator(source, engine, limits).run().getInstructionCount();
+  }
+
+  private static Emulator emulator(String source, Emulator.Engine engine,
+      ExecutionLimits limits) {
+    var emulator = new Emulator(StagePrograms.lower(new ByteArrayInputStream(source.getBytes())),
+        new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream());
+    emulator.setEngine(engine);
+    emulator.setLimits(limits);
+    return emulator;
+  }
+}
@@ -0,0 +1,228 @@
+package crux;
+
+import crux.ir.BasicBlock;
+import crux.ir.CfgSimplifier;
+import crux.ir.CopyPropagation;
+import crux.ir.DeadCodeElimination;
+import crux.ir.DominatorTree;
+import crux.ir.Emulator;
+import crux.ir.Function;
+import crux.ir.Instruction;
+import crux.ir.LocalVar;
+import crux.ir.Optimizer;
+import crux.ir.Program;
+import crux.ir.Sccp;
+import crux.ir.Ssa;
+import crux.ir.insts.*;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.TestFactory;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.DynamicTest.dynamicTest;
+
+/**
+ * Runs the IR stage programs with all optimization passes and checks that they still produce the
+ * expected output, and checks the SSA form the passes work on.
+ */
+final class OptimizerTests {
+  @TestFactory
+  Stream<DynamicTest> optimized() throws IOException {
+    var tests = getTests("ir");
+    return Stream.of(Emulator.Engine.DECODED, Emulator.Engine.JIT).flatMap(engine -> tests
+        .stream().map(test -> dynamicTest("optimized " + engine + " " + test,
+            () -> checkOutput(engine, test))));
+  }
+
+  /**
+   * Converts every function into SSA form, checks that every variable is written once and every
+   * phi has one operand per predecessor, and checks that no phi is left after destruction.
+   */
+  @TestFactory
+  Stream<DynamicTest> ssaForm() throws IOException {
+    return getTests("ir").stream().map(test -> dynamicTest("ssa " + test, () -> {
+      for (Function f : lower(test)) {
+        Ssa.build(f);
+        IdentityHashMap<LocalVar, Instruction> writers = new IdentityHashMap<>();
+        for (BasicBlock block : f.getBlocks()) {
+          for (Instruction inst : block.getInstructions()) {
+            LocalVar dst = destinationOf(inst);
+            if (dst != null && writers.put(dst, inst) != null) {
+              Assertions.fail(String.format("%s is written twice in %s of %s", dst, f.getName(),
+                  test));
+            }
+            if (inst instanceof PhiInst) {
+              Assertions.assertEquals(block.getPredecessors().size(),
+                  ((PhiInst) inst).numOperands(), "phi operands in " + f.getName());
+            }
+          }
+        }
+        var tree = new DominatorTree(f);
+        for (BasicBlock block : f.getBlocks()) {
+          var idom = tree.getImmediateDominator(block);
+          if (idom != null)
+            Assertions.assertTrue(tree.dominates(idom, block) && idom != block);
+        }
+
+        Ssa.destroy(f);
+        for (BasicBlock block : f.getBlocks()) {
+          for (Instruction inst : block.getInstructions())
+            Assertions.assertFalse(inst instanceof PhiInst, "phi left in " + f.getName());
+        }
+      }
+    }));
+  }
+
+  /**
+   * Checks that constant propagation folds a branch on constants, drops the branch not taken and
+   * leaves main without any jump.
+   */
+  @TestFactory
+  Stream<DynamicTest> sccpFoldsConstantBranches() {
+    var source = "void main() { int x; x = 2 + 3; if (x > 4) { printInt(x); } "
+        + "else { printInt(0); } }";
+    return Stream.of(dynamicTest("sccp folds a constant branch", () -> {
+      Program program = StagePrograms.lower(new ByteArrayInputStream(source.getBytes()));
+      Function main = program.getFunctions().next();
+      Ssa.build(main);
+      var sccp = new Sccp(program, main);
+      sccp.run();
+      Ssa.destroy(main);
+      Assertions.assertTrue(sccp.getFolded() >= 3, "folded " + sccp.getFolded());
+      Assertions.assertTrue(sccp.getRemoved() > 0, "removed " + sccp.getRemoved());
+      for (BasicBlock block : main.getBlocks()) {
+        for (Instruction inst : block.getInstructions())
+          Assertions.assertFalse(inst instanceof JumpInst, "jump left in main");
+      }
+    }));
+  }
+
+  /**
+   * Checks that copy propagation and dead code elimination remove the computations nobody reads
+   * but keep every call.
+   */
+  @TestFactory
+  Stream<DynamicTest> deadCodeKeepsCalls() {
+    var source = "int f() { return 1; } void main() { int x; int y; x = 2 + 3; y = x * 7; "
+        + "x = f(); printInt(4); }";
+    return Stream.of(dynamicTest("dce keeps calls", () -> {
+      Program program = StagePrograms.lower(new ByteArrayInputStream(source.getBytes()));
+      var functions = program.getFunctions();
+      functions.next();
+      Function main = functions.next();
+      Ssa.build(main);
+      CopyPropagation.propagate(main);
+      Ssa.destroy(main);
+      Assertions.assertTrue(DeadCodeElimination.eliminate(main) > 0);
+      int calls = 0;
+      for (BasicBlock block : main.getBlocks()) {
+        for (Instruction inst : block.getInstructions()) {
+          Assertions.assertFalse(inst instanceof BinaryOperator, "dead arithmetic left in main");
+          if (inst instanceof CallInst)
+            calls++;
+        }
+      }
+      Assertions.assertEquals(2, calls);
+    }));
+  }
+
+  /**
+   * Checks that dead code elimination keeps a load whose result nobody reads, so that an out of
+   * bounds load still fails the run.
+   */
+  @TestFactory
+  Stream<DynamicTest> deadCodeKeepsLoads() {
+    var source = "int a[2]; void main() { int x; x = a[100000]; printInt(7); }";
+    return Stream.of(Emulator.Engine.VISITOR, Emulator.Engine.DECODED)
+        .map(engine -> dynamicTest("dce keeps loads " + engine, () -> {
+          Error error = Assertions.assertThrows(Error.class,
+              () -> StagePrograms.run(new ByteArrayInputStream(source.getBytes()),
+                  new ByteArrayInputStream(new byte[0]), driver -> {
+                    driver.setEmulatorEngine(engine);
+                    driver.enableOptimization(Optimizer.Pass.DCE);
+                  }));
+          Assertions.assertEquals("Global memory access out of bounds: word 100000 of 2.",
+              error.getMessage());
+        }));
+  }
+
+  /**
+   * Simplifies the control flow graph of every function and checks that no nop is left but those
+   * that end a function, and no jump whose two edges lead to the same instruction.
+   */
+  @TestFactory
+  Stream<DynamicTest> cfgSimplified() throws IOException {
+    return getTests("ir").stream().map(test -> dynamicTest("cfg " + test, () -> {
+      for (Function f : lower(test)) {
+        new CfgSimplifier(f).run();
+        for (BasicBlock block : f.getBlocks()) {
+          for (Instruction inst : block.getInstructions()) {
+            if (inst instanceof NopInst)
+              Assertions.assertNull(inst.getNext(0), "nop left in " + f.getName());
+            if (inst instanceof JumpInst)
+              Assertions.assertNotSame(inst.getNext(0), inst.getNext(1), "jump in " + f.getName());
+          }
+        }
+      }
+    }));
+  }
+
+  private List<Function> lower(String test) {
+    Program program = StagePrograms.lower(StagePrograms.resource(test + ".crx"));
+    List<Function> functions = new ArrayList<>();
+    program.getFunctions().forEachRemaining(functions::add);
+    return functions;
+  }
+
+  private static LocalVar destinationOf(Instruction inst) {
+    LocalVar[] dst = new LocalVar[1];
+    inst.accept(new InstVisitor() {
+      public void visit(BinaryOperator i) {
+        dst[0] = i.getDst();
+      }
+
+      public void visit(CompareInst i) {
+        dst[0] = i.getDst();
+      }
+
+      public void visit(CopyInst i) {
+        dst[0] = i.getDstVar();
+      }
+
+      public void visit(LoadInst i) {
+        dst[0] = i.getDst();
+      }
+
+      public void visit(UnaryNotInst i) {
+        dst[0] = i.getDst();
+      }
+
+      public void visit(CallInst i) {
+        dst[0] = i.getDst();
+      }
+
+      public void visit(PhiInst i) {
+        dst[0] = i.getDst();
+      }
+    });
+    return dst[0];
+  }
+
+  private void checkOutput(Emulator.Engine engine, String test) throws Exception {
+    StagePrograms.checkOutput(test, "Optimized " + engine, driver -> {
+      driver.setEmulatorEngine(engine);
+      for (Optimizer.Pass pass : EnumSet.allOf(Optimizer.Pass.class))
+        driver.enableOptimization(pass);
+    });
+  }
+
+  private List<String> getTests(String stageName) throws IOException {
+    return StagePrograms.list(stageName);
+  }
+}
@@ -0,0 +1,143 @@
+package crux;
+
+import crux.ir.Emulator;
+import crux.ir.Profiler;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Profiles a recursive program with nested loops and checks the calls, the exclusive and
+ * inclusive counts and the folded stacks the {@link Profiler} reports.
+ */
+final class ProfilerTests {
+  private static final String SOURCE = String.join("\n",
+      "int fact(int n) {",
+      "  if (n <= 1) {",
+      "    return 1;",
+      "  }",
+      "  return n * fact(n - 1);",
+      "}",
+      "int grid(int n) {",
+      "  int i;",
+      "  int j;",
+      "  int sum;",
+      "  sum = 0;",
+      "  for (i = 0; i < n; i = i + 1) {",
+      "    for (j = 0; j < n; j = j + 1) {",
+      "      sum = sum + fact(3);",
+      "    }",
+      "  }",
+      "  return sum;",
+      "}",
+      "void main() {",
+      "  printInt(grid(2));",
+      "  println();",
+      "  printInt(fact(4));",
+      "  println();",
+      "}");
+  private static final List<String> FUNCTIONS = List.of("main", "grid", "fact");
+
+  @Test
+  void countsCalls() {
+    var run = profile();
+    Assertions.assertEquals("24\n24", run.output.trim());
+    Assertions.assertEquals(1, run.profiler.getCalls("main"));
+    Assertions.assertEquals(1, run.profiler.getCalls("grid"));
+    // grid calls fact(3) four times, three activations each, and main calls fact(4) once
+    Assertions.assertEquals(4 * 3 + 4, run.profiler.getCalls("fact"));
+  }
+
+  @Test
+  void inclusiveCoversExclusive() {
+    var run = profile();
+    long total = 0;
+    for (String function : FUNCTIONS) {
+      long exclusive = run.profiler.getExclusiveCount(function);
+      Assertions.assertTrue(exclusive > 0, function);
+      Assertions.assertTrue(run.profiler.getInclusiveCount(function) >= exclusive, function);
+      total += exclusive;
+    }
+    Assertions.assertEquals(run.instructions, total);
+    Assertions.assertEquals(run.instructions, run.profiler.getInclusiveCount("main"));
+    // fact only calls itself, and recursive calls count once, in the outermost call
+    Assertions.assertEquals(run.profiler.getExclusiveCount("fact"),
+        run.profiler.getInclusiveCount("fact"));
+    Assertions.assertEquals(
+        run.profiler.getExclusiveCount("grid") + foldedUnder(run, "main;grid;fact"),
+        run.profiler.getInclusiveCount("grid"));
+  }
+
+  @Test
+  void writesFoldedStacks() {
+    var run = profile();
+    // Every call of fact that recurses runs 14 instructions in itself, the base case 8
+    Set<String> expected = new TreeSet<>(List.of(
+        "main 11",
+        "main;grid 103",
+        "main;grid;fact 56",
+        "main;grid;fact;fact 56",
+        "main;grid;fact;fact;fact 32",
+        "main;fact 14",
+        "main;fact;fact 14",
+        "main;fact;fact;fact 14",
+        "main;fact;fact;fact;fact 8"));
+    Assertions.assertEquals(expected, new TreeSet<>(run.folded()));
+
+    long sum = 0;
+    for (String line : run.folded())
+      sum += Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+    Assertions.assertEquals(run.instructions, sum);
+  }
+
+  /**
+   * Returns the instructions of the folded stacks that start with prefix.
+   */
+  private static long foldedUnder(Run run, String prefix) {
+    long sum = 0;
+    for (String line : run.folded()) {
+      if (line.startsWith(prefix))
+        sum += Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+    }
+    return sum;
+  }
+
+  private static Run profile() {
+    var program = StagePrograms.lower(new ByteArrayInputStream(SOURCE.getBytes()));
+    var output = new ByteArrayOutputStream();
+    var emulator = new Emulator(program, new ByteArrayInputStream(new byte[0]), output);
+    var profiler = new Profiler();
+    emulator.setEngine(Emulator.Engine.DECODED);
+    emulator.setProfiler(profiler);
+    Assertions.assertTrue(emulator.run().isCompleted());
+    return new Run(profiler, output.toString(StandardCharsets.UTF_8),
+        emulator.getInstructionCount());
+  }
+
+  /** A profiled run of {@link #SOURCE}. */
+  private static final class Run {
+    final Profiler profiler;
+    final String output;
+    final long instructions;
+
+    Run(Profiler profiler, String output, long instructions) {
+      this.profiler = profiler;
+      this.output = output;
+      this.instructions = instructions;
+    }
+
+    List<String> folded() {
+      var bytes = new ByteArrayOutputStream();
+      profiler.writeFoldedStacks(new PrintStream(bytes, true, StandardCharsets.UTF_8));
+      return Arrays.asList(bytes.toString(StandardCharsets.UTF_8).split("\n"));
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package crux;
+
+import crux.ir.Program;
+import org.junit.jupiter.api.Assertions;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * The fixtures the emulator and optimizer tests share: the programs of a stage, their resources,
+ * and running a program on the emulator to compare what it prints with its expected output.
+ */
+final class StagePrograms {
+  static final int TIMEOUT = 20;
+
+  private StagePrograms() {}
+
+  /**
+   * Returns the programs of a stage as resource names without the .crx extension, sorted.
+   */
+  static List<String> list(String stageName) throws IOException {
+    var folder = String.format("crux/stages/%s", stageName);
+    try (var programs = resource(folder);
+        BufferedReader br =
+            new BufferedReader(new InputStreamReader(Objects.requireNonNull(programs)))) {
+      return br.lines().filter(resourceName -> resourceName.endsWith(".crx"))
+          .map(resourceName -> folder + "/" + resourceName.substring(0, resourceName.length() - 4))
+          .sorted().collect(Collectors.toList());
+    }
+  }
+
+  static InputStream resource(String resourceName) {
+    return StagePrograms.class.getClassLoader().getResourceAsStream(resourceName);
+  }
+
+  static byte[] readBytes(String resourceName) throws IOException {
+    try (var inputStream = Objects.requireNonNull(resource(resourceName))) {
+      return inputStream.readAllBytes();
+    }
+  }
+
+  static String read(String resourceName) throws IOException {
+    return new String(readBytes(resourceName), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Lowers a program to IR without running it.
+   */
+  static Program lower(InputStream source) {
+    var out = new PrintStream(new ByteArrayOutputStream());
+    var driver = new Driver(out, out);
+    driver.enablePrintIR();
+    driver.setInputStream(source);
+    driver.run();
+    return Objects.requireNonNull(driver.getIRProgram());
+  }
+
+  /**
+   * Runs source on the emulator with input, after configure has set up the driver, and returns
+   * everything the run printed.
+   */
+  static String run(InputStream source, InputStream input, Consumer<Driver> configure) {
+    var outStream = new ByteArrayOutputStream();
+    var outPrintStream = new PrintStream(outStream);
+    var driver = new Driver(outPrintStream, outPrintStream);
+    driver.enableEmulator();
+    configure.accept(driver);
+    driver.setEmulatorInput(input);
+    driver.setInputStream(source);
+    driver.run();
+    outPrintStream.flush();
+    return outStream.toString();
+  }
+
+  /**
+   * Runs the program test with its input on a driver that configure sets up, and checks that it
+   * prints its expected output within {@link #TIMEOUT} seconds. The description names the setup
+   * in failure messages.
+   */
+  static void checkOutput(String test, String description, Consumer<Driver> configure)
+      throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    Future<String> future = executor
+        .submit(() -> run(resource(test + ".crx"), resource(test + ".in"), configure));
+    String actual = null;
+    try {
+      actual = future.get(TIMEOUT, TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
+      future.cancel(true);
+    }
+    executor.shutdownNow();
+
+    if (actual == null) {
+      Assertions.fail(String.format("Timeout for %s on program %s.", description, test));
+    } else {
+      var expected = read(test + ".out");
+      Assertions.assertEquals(CompilerStageTests.sanitize(expected).trim(),
+          CompilerStageTests.sanitize(actual).trim(),
+          String.format("%s output for program %s differs from expected output.", description,
+              test));
+    }
+  }
+}
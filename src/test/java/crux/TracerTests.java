@@ -0,0 +1,107 @@
+package crux;
+
+import crux.ir.Emulator;
+import crux.ir.Tracer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.TestFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.DynamicTest.dynamicTest;
+
+/**
+ * Attaches a {@link Tracer} whose ring is much smaller than the run to the engines that support
+ * tracing, and checks that its dump keeps the last records in order, also after a crash.
+ */
+final class TracerTests {
+  private static final List<Emulator.Engine> ENGINES =
+      List.of(Emulator.Engine.VISITOR, Emulator.Engine.SLOTS, Emulator.Engine.DECODED);
+  private static final int CAPACITY = 8;
+  private static final String LOOP = "int a[4]; void main() { int i; "
+      + "for (i = 0; i < 4; i = i + 1) { a[i] = i; } printInt(a[3]); }";
+  /** Stores one word past the end of a. */
+  private static final String CRASH =
+      "int a[4]; void main() { int i; for (i = 0; i < 10; i = i + 1) { a[i] = i; } }";
+
+  @TestFactory
+  Stream<DynamicTest> keepsLastRecords() {
+    return ENGINES.stream().map(engine -> dynamicTest(engine + " ring", () -> {
+      var small = new Tracer(CAPACITY);
+      var large = new Tracer(1 << 12);
+      Assertions.assertNull(run(LOOP, engine, small));
+      Assertions.assertNull(run(LOOP, engine, large));
+      checkDump(small, large);
+    }));
+  }
+
+  @TestFactory
+  Stream<DynamicTest> keepsLastRecordsAfterCrash() {
+    return ENGINES.stream().map(engine -> dynamicTest(engine + " crash", () -> {
+      var small = new Tracer(CAPACITY);
+      var large = new Tracer(1 << 12);
+      Error error = run(CRASH, engine, small);
+      Assertions.assertNotNull(error);
+      Assertions.assertEquals("Global memory access out of bounds: word 4 of 4.",
+          error.getMessage());
+      Assertions.assertNotNull(run(CRASH, engine, large));
+      List<String> lines = checkDump(small, large);
+      // The store that crashed is the last record
+      String last = lines.get(lines.size() - 1);
+      Assertions.assertTrue(last.toLowerCase().contains("store"), last);
+    }));
+  }
+
+  /**
+   * Checks that small, whose ring overflowed, dumps the last {@link #CAPACITY} records of the
+   * same run large recorded in full, numbered in order. Returns the records of small.
+   */
+  private static List<String> checkDump(Tracer small, Tracer large) {
+    long recorded = small.getRecordedCount();
+    Assertions.assertEquals(large.getRecordedCount(), recorded);
+    Assertions.assertTrue(recorded > CAPACITY, "the ring did not overflow");
+
+    List<String> lines = dump(small);
+    Assertions.assertEquals(
+        String.format("trace: last %d of %d instructions", CAPACITY, recorded), lines.get(0));
+    List<String> records = lines.subList(1, lines.size());
+    Assertions.assertEquals(CAPACITY, records.size());
+    for (int i = 0; i < CAPACITY; i++) {
+      long n = Long.parseLong(records.get(i).trim().split("\\s+")[0]);
+      Assertions.assertEquals(recorded - CAPACITY + i, n);
+    }
+
+    List<String> all = dump(large);
+    Assertions.assertEquals(recorded + 1, all.size());
+    Assertions.assertEquals(all.subList(all.size() - CAPACITY, all.size()), records);
+    return records;
+  }
+
+  private static List<String> dump(Tracer tracer) {
+    var bytes = new ByteArrayOutputStream();
+    tracer.dump(new PrintStream(bytes, true, StandardCharsets.UTF_8));
+    return Arrays.asList(bytes.toString(StandardCharsets.UTF_8).split("\n"));
+  }
+
+  /**
+   * Runs source on engine with tracer attached, and returns the error it crashed with or null.
+   */
+  private static Error run(String source, Emulator.Engine engine, Tracer tracer) {
+    var emulator = new Emulator(StagePrograms.lower(new ByteArrayInputStream(source.getBytes())),
+        new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream());
+    emulator.setEngine(engine);
+    emulator.setTracer(tracer);
+    try {
+      emulator.run();
+      return null;
+    } catch (Error e) {
+      return e;
+    }
+  }
+}